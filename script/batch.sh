@@ -0,0 +1,7 @@
+#!/bin/sh
+
+JARS=${project.build.directory}/${project.artifactId}-${project.version}.jar
+JARS=$JARS:${project.build.directory}/lib/Saxon-HE-${saxon.version}.jar
+JARS=$JARS:${project.build.directory}/lib/xmlresolver-${xmlresolver.version}.jar
+
+java $JAVAOPTS -cp $JARS de.wwu.scdh.saxon.harden.BatchTransform -config:${project.basedir}/saxon.xml $@
@@ -0,0 +1,63 @@
+# Client mode of xslt.cmd and saxon.cmd: forward the arguments to a
+# running daemon, see daemon.cmd. The first argument is the name of
+# the tool. Exits with status 255, if the daemon is not reachable, so
+# that the calling script runs the tool locally.
+
+$state = $env:SAXON_DAEMON_FILE
+if (-not $state) {
+    $state = Join-Path $env:USERPROFILE '.saxon-daemon'
+}
+if (-not (Test-Path -LiteralPath $state)) {
+    exit 255
+}
+$port, $token = (Get-Content -LiteralPath $state -TotalCount 1).Trim() -split ' '
+
+# PowerShell splits -name:value into -name: and value
+$lines = New-Object System.Collections.Generic.List[string]
+for ($i = 0; $i -lt $args.Count; $i++) {
+    $arg = [string] $args[$i]
+    if ($arg -match '^-[^:]+:$' -and $i + 1 -lt $args.Count) {
+	$i++
+	$arg = $arg + [string] $args[$i]
+    }
+    $lines.Add($arg)
+}
+$body = [System.Text.Encoding]::UTF8.GetBytes(($lines -join "`n") + "`n")
+
+try {
+    $request = [System.Net.HttpWebRequest]::Create("http://127.0.0.1:$port/run")
+    $request.Method = 'POST'
+    $request.ContentType = 'text/plain; charset=UTF-8'
+    $request.Headers.Add('X-Saxon-Token', $token)
+    $request.Headers.Add('X-Saxon-Working-Directory', (Get-Location).ProviderPath)
+    if ($env:SAXON_ALLOWED_PATHS) {
+	$request.Headers.Add('X-Saxon-Allowed-Paths', $env:SAXON_ALLOWED_PATHS)
+    }
+    $stream = $request.GetRequestStream()
+    $stream.Write($body, 0, $body.Length)
+    $stream.Close()
+    $response = $request.GetResponse()
+} catch [System.Net.WebException] {
+    if ($_.Exception.Response -eq $null) {
+	# daemon not reachable: run locally
+	exit 255
+    }
+    # rejected by the daemon
+    $reader = New-Object System.IO.StreamReader($_.Exception.Response.GetResponseStream())
+    [Console]::Error.Write($reader.ReadToEnd())
+    exit 2
+}
+
+$status = [int] $response.Headers['X-Saxon-Exit-Status']
+$length = [int] $response.Headers['X-Saxon-Stdout-Length']
+$memory = New-Object System.IO.MemoryStream
+$response.GetResponseStream().CopyTo($memory)
+$response.Close()
+$bytes = $memory.ToArray()
+$stdout = [Console]::OpenStandardOutput()
+$stdout.Write($bytes, 0, $length)
+$stdout.Flush()
+$stderr = [Console]::OpenStandardError()
+$stderr.Write($bytes, $length, $bytes.Length - $length)
+$stderr.Flush()
+exit $status
@@ -4,4 +4,12 @@ set JARS=${project.build.directory}\${project.artifactId}-${project.version}.jar
 set JARS=%JARS%;${project.build.directory}\lib\Saxon-HE-${saxon.version}.jar
 set JARS=%JARS%;${project.build.directory}\lib\xmlresolver-${xmlresolver.version}.jar
 
+rem client mode: forward the arguments to a running daemon, see daemon.cmd
+if "%SAXON_DAEMON_CLIENT%"=="" goto local
+powershell -NoProfile -ExecutionPolicy Bypass -File "%~dp0daemon-client.ps1" %*
+rem 255: daemon not reachable
+if errorlevel 255 goto local
+exit /b %ERRORLEVEL%
+
+:local
 java %JAVAOPTS% -cp %JARS% %*
@@ -4,4 +4,35 @@ JARS=${project.build.directory}/${project.artifactId}-${project.version}.jar
 JARS=$JARS:${project.build.directory}/lib/Saxon-HE-${saxon.version}.jar
 JARS=$JARS:${project.build.directory}/lib/xmlresolver-${xmlresolver.version}.jar
 
+# client mode: forward the arguments to a running daemon, see daemon.sh
+if [ -n "$SAXON_DAEMON_CLIENT" ]; then
+    STATE=${SAXON_DAEMON_FILE:-$HOME/.saxon-daemon}
+    if [ -r "$STATE" ] && read PORT TOKEN < "$STATE"; then
+	BODY=$(mktemp)
+	HEADERS=$(mktemp)
+	printf '%s\n' net.sf.saxon.Transform "$@" | \
+	    curl -s -o "$BODY" -D "$HEADERS" \
+		 -H "X-Saxon-Token: $TOKEN" \
+		 -H "X-Saxon-Working-Directory: $PWD" \
+		 -H "X-Saxon-Allowed-Paths: $SAXON_ALLOWED_PATHS" \
+		 --data-binary @- "http://127.0.0.1:$PORT/run"
+	if [ $? -eq 0 ]; then
+	    if head -n 1 "$HEADERS" | grep -q ' 200'; then
+		STATUS=$(grep -i '^X-Saxon-Exit-Status:' "$HEADERS" | tr -dc '0-9')
+		LENGTH=$(grep -i '^X-Saxon-Stdout-Length:' "$HEADERS" | tr -dc '0-9')
+		head -c "$LENGTH" "$BODY"
+		tail -c +"$((LENGTH + 1))" "$BODY" >&2
+	    else
+		# rejected by the daemon
+		cat "$BODY" >&2
+		STATUS=2
+	    fi
+	    rm -f "$BODY" "$HEADERS"
+	    exit "$STATUS"
+	fi
+	# daemon not reachable: run locally
+	rm -f "$BODY" "$HEADERS"
+    fi
+fi
+
 java $JAVAOPTS -cp $JARS net.sf.saxon.Transform $@
@@ -0,0 +1,102 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Microbenchmarks for {@link FilesystemFilter}. The size of the set of
+ * allowed locations is varied, the kind of input is varied by the
+ * benchmark methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilesystemFilterBenchmark {
+
+    /**
+     * Number of allowed locations.
+     */
+    @Param({"1", "100", "10000"})
+    public int locations;
+
+    private FilesystemFilter filter;
+
+    private URI absoluteUri;
+
+    private URI dotDotUri;
+
+    private URI nonFileUri;
+
+    private URI deniedUri;
+
+    private static final String BASE = "/srv/projects/p0/xsl/main.xsl";
+
+    @Setup
+    public void setup() throws FilesystemFilterException, URISyntaxException {
+	String allowed[] = new String[locations];
+	for (int i = 0; i < locations; i++) {
+	    allowed[i] = "/srv/projects/p" + i;
+	}
+	filter = new FilesystemFilter(allowed);
+	absoluteUri = new URI("/srv/projects/p0/docs/letters/letter-0001.xml");
+	dotDotUri = new URI("/srv/projects/p0/xsl/../docs/../docs/letters/letter-0001.xml");
+	nonFileUri = new URI("https://example.com/srv/projects/p0/docs/letter.xml");
+	deniedUri = new URI("/srv/other/docs/letters/letter-0001.xml");
+    }
+
+    @Benchmark
+    public boolean checkUriAbsolute() {
+	return filter.check(absoluteUri);
+    }
+
+    @Benchmark
+    public boolean checkUriDotDot() {
+	return filter.check(dotDotUri);
+    }
+
+    @Benchmark
+    public boolean checkUriNonFile() {
+	return filter.check(nonFileUri);
+    }
+
+    @Benchmark
+    public boolean checkUriDenied() {
+	return filter.check(deniedUri);
+    }
+
+    @Benchmark
+    public boolean checkHrefRelative() {
+	return filter.check("../docs/letters/letter-0001.xml", BASE);
+    }
+
+    @Benchmark
+    public boolean checkHrefDotDot() {
+	return filter.check("lib/../../docs/./letters/../letters/letter-0001.xml", BASE);
+    }
+
+    @Benchmark
+    public boolean checkHrefNonFile() {
+	return filter.check("https://example.com/docs/letter.xml", BASE);
+    }
+
+    @Benchmark
+    public boolean checkHrefDenied() {
+	return filter.check("../../../../etc/passwd", BASE);
+    }
+
+    @Benchmark
+    public boolean checkHrefMalformed() {
+	return filter.check("../docs/letter 0001.xml", BASE);
+    }
+
+}
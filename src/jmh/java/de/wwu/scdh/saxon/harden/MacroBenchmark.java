@@ -0,0 +1,287 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * End-to-end benchmark of whole transformations under Saxon's default
+ * configuration and under the hardened configuration from
+ * <code>saxon.xml</code>. Both run the same stylesheets on the same
+ * inputs, so the difference is the cost of hardening for a realistic
+ * workload.<P>
+ *
+ * A synthetic corpus is generated with a fixed seed: letters, that
+ * refer to other letters, read with <code>doc()</code>, lookup tables
+ * read with <code>unparsed-text-lines()</code>, and a stylesheet with
+ * nested imports and includes, that writes several result documents
+ * per letter with <code>xsl:result-document</code>.<P>
+ *
+ * Throughput and the p50/p99 latencies are reported by the modes of
+ * this benchmark, the allocation rate by JMH's GC profiler:
+ *
+ * <pre>
+ * ./mvnw -Pbenchmark test-compile exec:exec -Djmh.args="-f 1 -prof gc MacroBenchmark"
+ * </pre>
+ *
+ * The configuration file is taken from the system property {@link
+ * CONFIG_PROPERTY} or else <code>saxon.xml</code> in the working
+ * directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MacroBenchmark {
+
+    /**
+     * The name of the system property for the hardened configuration
+     * file.
+     */
+    public static final String CONFIG_PROPERTY = MacroBenchmark.class.getName() + ".config";
+
+    private static final long SEED = 20241018L;
+
+    private static final String XSL_NS = "xmlns:xsl='http://www.w3.org/1999/XSL/Transform'";
+
+    private static final String MAIN_XSL =
+	"<xsl:stylesheet " + XSL_NS + " version='3.0'>\n"
+	+ "  <xsl:import href='lib/common.xsl'/>\n"
+	+ "  <xsl:template match='/letter'>\n"
+	+ "    <xsl:variable name='places' select=\"unparsed-text-lines(resolve-uri('../tables/places.csv', static-base-uri()))\"/>\n"
+	+ "    <xsl:variable name='persons' select=\"unparsed-text-lines(resolve-uri('../tables/persons.csv', static-base-uri()))\"/>\n"
+	+ "    <xsl:for-each select='ref'>\n"
+	+ "      <xsl:result-document href='{../@id}/ref-{position()}.xml'>\n"
+	+ "        <xsl:apply-templates select='doc(resolve-uri(@target, base-uri(.)))/letter' mode='summary'/>\n"
+	+ "      </xsl:result-document>\n"
+	+ "    </xsl:for-each>\n"
+	+ "    <xsl:result-document href='{@id}/index.xml'>\n"
+	+ "      <index>\n"
+	+ "        <xsl:for-each select='place'>\n"
+	+ "          <xsl:call-template name='lookup'><xsl:with-param name='table' select='$places'/></xsl:call-template>\n"
+	+ "        </xsl:for-each>\n"
+	+ "        <xsl:for-each select='person'>\n"
+	+ "          <xsl:call-template name='lookup'><xsl:with-param name='table' select='$persons'/></xsl:call-template>\n"
+	+ "        </xsl:for-each>\n"
+	+ "      </index>\n"
+	+ "    </xsl:result-document>\n"
+	+ "    <done id='{@id}' refs='{count(ref)}'/>\n"
+	+ "  </xsl:template>\n"
+	+ "</xsl:stylesheet>\n";
+
+    private static final String COMMON_XSL =
+	"<xsl:stylesheet " + XSL_NS + " version='3.0'>\n"
+	+ "  <xsl:import href='lookup.xsl'/>\n"
+	+ "  <xsl:include href='summary.xsl'/>\n"
+	+ "</xsl:stylesheet>\n";
+
+    private static final String LOOKUP_XSL =
+	"<xsl:stylesheet " + XSL_NS + " version='3.0'>\n"
+	+ "  <xsl:include href='util.xsl'/>\n"
+	+ "  <xsl:template name='lookup'>\n"
+	+ "    <xsl:param name='table'/>\n"
+	+ "    <xsl:variable name='key' select='@key'/>\n"
+	+ "    <entry key='{$key}' label=\"{substring-after($table[starts-with(., concat($key, ','))][1], ',')}\"/>\n"
+	+ "  </xsl:template>\n"
+	+ "</xsl:stylesheet>\n";
+
+    private static final String SUMMARY_XSL =
+	"<xsl:stylesheet " + XSL_NS + " version='3.0'>\n"
+	+ "  <xsl:template match='letter' mode='summary'>\n"
+	+ "    <summary id='{@id}' words='{count(tokenize(string-join(p, &quot; &quot;)))}'>\n"
+	+ "      <xsl:copy-of select='title'/>\n"
+	+ "    </summary>\n"
+	+ "  </xsl:template>\n"
+	+ "</xsl:stylesheet>\n";
+
+    private static final String UTIL_XSL =
+	"<xsl:stylesheet " + XSL_NS + " version='3.0'>\n"
+	+ "  <xsl:mode on-no-match='shallow-skip'/>\n"
+	+ "</xsl:stylesheet>\n";
+
+    private static final String[] WORDS = {
+	"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+	"eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua"
+    };
+
+    /**
+     * The configuration: Saxon's default or the hardened one.
+     */
+    @Param({"default", "hardened"})
+    public String configuration;
+
+    /**
+     * Number of letters in the corpus.
+     */
+    @Param({"200"})
+    public int documents;
+
+    /**
+     * Number of other letters each letter refers to.
+     */
+    @Param({"5"})
+    public int references;
+
+    /**
+     * Number of rows of each lookup table.
+     */
+    @Param({"2000"})
+    public int rows;
+
+    private Path dir;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    private XsltExecutable executable;
+
+    private File[] inputs;
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, FilesystemFilterException, XPathException, SaxonApiException {
+	dir = Files.createTempDirectory("hardening-saxon-macro").toRealPath();
+	generateCorpus(dir, new Random(SEED));
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { dir.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Configuration config;
+	if ("hardened".equals(configuration)) {
+	    Path file = Paths.get(System.getProperty(CONFIG_PROPERTY, "saxon.xml")).toAbsolutePath();
+	    config = Configuration.readConfiguration(new StreamSource(file.toFile()));
+	} else {
+	    config = new Configuration();
+	}
+	processor = new Processor(config);
+	executable = processor.newXsltCompiler()
+	    .compile(new StreamSource(dir.resolve("xsl/main.xsl").toFile()));
+	inputs = new File[documents];
+	for (int i = 0; i < documents; i++) {
+	    inputs[i] = dir.resolve("docs/" + letterName(i)).toFile();
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	FilesystemFilterRegistry.setFilter(previous);
+	Files.walk(dir)
+	    .sorted((a, b) -> b.compareTo(a))
+	    .map(Path::toFile)
+	    .forEach(File::delete);
+    }
+
+    private static String letterName(int i) {
+	return String.format("letter-%05d.xml", i);
+    }
+
+    private void generateCorpus(Path dir, Random random) throws IOException {
+	Files.createDirectories(dir.resolve("xsl/lib"));
+	Files.createDirectories(dir.resolve("docs"));
+	Files.createDirectories(dir.resolve("tables"));
+	Files.createDirectories(dir.resolve("out"));
+	write(dir.resolve("xsl/main.xsl"), MAIN_XSL);
+	write(dir.resolve("xsl/lib/common.xsl"), COMMON_XSL);
+	write(dir.resolve("xsl/lib/lookup.xsl"), LOOKUP_XSL);
+	write(dir.resolve("xsl/lib/summary.xsl"), SUMMARY_XSL);
+	write(dir.resolve("xsl/lib/util.xsl"), UTIL_XSL);
+	StringBuilder places = new StringBuilder();
+	StringBuilder persons = new StringBuilder();
+	for (int i = 0; i < rows; i++) {
+	    places.append("pl").append(i).append(',').append(words(random, 2)).append('\n');
+	    persons.append("pe").append(i).append(',').append(words(random, 3)).append('\n');
+	}
+	write(dir.resolve("tables/places.csv"), places.toString());
+	write(dir.resolve("tables/persons.csv"), persons.toString());
+	for (int i = 0; i < documents; i++) {
+	    StringBuilder letter = new StringBuilder();
+	    letter.append("<letter id='l").append(i).append("'>\n");
+	    letter.append("  <title>").append(words(random, 4)).append("</title>\n");
+	    for (int r = 0; r < references; r++) {
+		letter.append("  <ref target='").append(letterName(random.nextInt(documents))).append("'/>\n");
+	    }
+	    for (int k = 0; k < 10; k++) {
+		letter.append("  <place key='pl").append(random.nextInt(rows)).append("'/>\n");
+		letter.append("  <person key='pe").append(random.nextInt(rows)).append("'/>\n");
+	    }
+	    for (int p = 0; p < 20; p++) {
+		letter.append("  <p>").append(words(random, 40)).append("</p>\n");
+	    }
+	    letter.append("</letter>\n");
+	    write(dir.resolve("docs/" + letterName(i)), letter.toString());
+	}
+    }
+
+    private static String words(Random random, int n) {
+	StringBuilder words = new StringBuilder();
+	for (int i = 0; i < n; i++) {
+	    if (i > 0) {
+		words.append(' ');
+	    }
+	    words.append(WORDS[random.nextInt(WORDS.length)]);
+	}
+	return words.toString();
+    }
+
+    private static void write(Path file, String content) throws IOException {
+	Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A stream, that discards the principal output.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+	@Override
+	public void write(int b) {
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	}
+    }
+
+    /**
+     * Transform the next letter of the corpus.
+     */
+    @Benchmark
+    public Serializer transform() throws SaxonApiException {
+	int i;
+	synchronized (this) {
+	    i = next;
+	    next = (next + 1) % documents;
+	}
+	Xslt30Transformer transformer = executable.load30();
+	transformer.setBaseOutputURI(dir.resolve("out/main.xml").toFile().toURI().toString());
+	Serializer serializer = processor.newSerializer(new NullOutputStream());
+	transformer.applyTemplates(new StreamSource(inputs[i]), serializer);
+	return serializer;
+    }
+
+}
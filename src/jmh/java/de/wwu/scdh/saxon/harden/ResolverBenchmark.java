@@ -0,0 +1,202 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.StandardOutputResolver;
+import net.sf.saxon.lib.StandardResultDocumentResolver;
+import net.sf.saxon.lib.StandardURIResolver;
+import net.sf.saxon.lib.StandardUnparsedTextResolver;
+
+/**
+ * Microbenchmarks that compare the hardened resolvers with the
+ * standard resolvers of Saxon they are based on. Each pair of
+ * benchmark methods does the same work, so the difference is the cost
+ * of hardening.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResolverBenchmark {
+
+    private Path dir;
+
+    private String base;
+
+    private URI textUri;
+
+    private URI outputUri;
+
+    private Configuration config;
+
+    private StandardURIResolver standardUriResolver;
+
+    private HardenedURIResolver hardenedUriResolver;
+
+    private StandardUnparsedTextResolver standardUnparsedTextResolver;
+
+    private HardenedUnparsedTextResolver hardenedUnparsedTextResolver;
+
+    private HardenedUnparsedTextResolver channelUnparsedTextResolver;
+
+    private HardenedUnparsedTextResolver mappedUnparsedTextResolver;
+
+    private StandardOutputResolver standardOutputResolver;
+
+    private HardenedOutputResolver hardenedOutputResolver;
+
+    private StandardResultDocumentResolver standardResultDocumentResolver;
+
+    private HardenedResultDocumentResolver hardenedResultDocumentResolver;
+
+    private final char[] buffer = new char[8192];
+
+    @Setup
+    public void setup() throws IOException, FilesystemFilterException {
+	dir = Files.createTempDirectory("hardening-saxon-bench");
+	String allowed[] = { dir.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Path xsl = dir.resolve("main.xsl");
+	Path text = dir.resolve("table.csv");
+	Files.write(xsl, "<xsl:stylesheet/>".getBytes(StandardCharsets.UTF_8));
+	StringBuilder csv = new StringBuilder();
+	for (int i = 0; i < 1000; i++) {
+	    csv.append(i).append(",key-").append(i).append(",value-").append(i).append('\n');
+	}
+	Files.write(text, csv.toString().getBytes(StandardCharsets.UTF_8));
+	base = xsl.toFile().toURI().toString();
+	textUri = text.toFile().toURI();
+	outputUri = dir.resolve("out/result.xml").toFile().toURI();
+
+	config = new Configuration();
+	standardUriResolver = new StandardURIResolver(config);
+	hardenedUriResolver = new HardenedURIResolver();
+	hardenedUriResolver.setConfiguration(config);
+	standardUnparsedTextResolver = new StandardUnparsedTextResolver();
+	hardenedUnparsedTextResolver = new HardenedUnparsedTextResolver();
+	channelUnparsedTextResolver = new HardenedUnparsedTextResolver();
+	channelUnparsedTextResolver.setNio(true);
+	channelUnparsedTextResolver.setMapThreshold(Long.MAX_VALUE);
+	mappedUnparsedTextResolver = new HardenedUnparsedTextResolver();
+	mappedUnparsedTextResolver.setNio(true);
+	mappedUnparsedTextResolver.setMapThreshold(0);
+	standardOutputResolver = new StandardOutputResolver();
+	hardenedOutputResolver = new HardenedOutputResolver();
+	standardResultDocumentResolver = new StandardResultDocumentResolver();
+	hardenedResultDocumentResolver = new HardenedResultDocumentResolver();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	Files.walk(dir)
+	    .sorted((a, b) -> b.compareTo(a))
+	    .map(Path::toFile)
+	    .forEach(File::delete);
+    }
+
+    private long drain(Reader reader) throws IOException {
+	long count = 0;
+	int n;
+	try {
+	    while ((n = reader.read(buffer)) >= 0) {
+		count += n;
+	    }
+	} finally {
+	    reader.close();
+	}
+	return count;
+    }
+
+    @Benchmark
+    public Source uriResolverStandard() throws TransformerException {
+	return standardUriResolver.resolve("docs/letter.xml", base);
+    }
+
+    @Benchmark
+    public Source uriResolverHardened() throws TransformerException {
+	return hardenedUriResolver.resolve("docs/letter.xml", base);
+    }
+
+    @Benchmark
+    public long unparsedTextResolverStandard() throws TransformerException, IOException {
+	return drain(standardUnparsedTextResolver.resolve(textUri, "UTF-8", config));
+    }
+
+    @Benchmark
+    public long unparsedTextResolverHardened() throws TransformerException, IOException {
+	return drain(hardenedUnparsedTextResolver.resolve(textUri, "UTF-8", config));
+    }
+
+    @Benchmark
+    public long unparsedTextResolverHardenedChannel() throws TransformerException, IOException {
+	return drain(channelUnparsedTextResolver.resolve(textUri, "UTF-8", config));
+    }
+
+    @Benchmark
+    public long unparsedTextResolverHardenedMapped() throws TransformerException, IOException {
+	return drain(mappedUnparsedTextResolver.resolve(textUri, "UTF-8", config));
+    }
+
+    @Benchmark
+    public Result outputResolverStandard() throws TransformerException {
+	Result result = standardOutputResolver.resolve("out/result.xml", base);
+	standardOutputResolver.close(result);
+	return result;
+    }
+
+    @Benchmark
+    public Result outputResolverHardened() throws TransformerException {
+	Result result = hardenedOutputResolver.resolve("out/result.xml", base);
+	hardenedOutputResolver.close(result);
+	return result;
+    }
+
+    @Benchmark
+    public StreamResult resultDocumentResolverStandard() throws TransformerException {
+	StreamResult result = standardResultDocumentResolver.resolve("out/result.xml", base);
+	standardResultDocumentResolver.close(result);
+	return result;
+    }
+
+    @Benchmark
+    public StreamResult resultDocumentResolverHardened() throws TransformerException {
+	StreamResult result = hardenedResultDocumentResolver.resolve("out/result.xml", base);
+	hardenedResultDocumentResolver.close(result);
+	return result;
+    }
+
+    @Benchmark
+    public StreamResult makeOutputFileStandard() throws TransformerException {
+	StreamResult result = StandardResultDocumentResolver.makeOutputFile(outputUri);
+	standardResultDocumentResolver.close(result);
+	return result;
+    }
+
+    @Benchmark
+    public StreamResult makeOutputFileHardened() throws TransformerException {
+	StreamResult result = HardenedResultDocumentResolver.makeOutputFile(outputUri);
+	hardenedResultDocumentResolver.close(result);
+	return result;
+    }
+
+}
@@ -0,0 +1,243 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * A cache of open zip archives, that is shared across
+ * transformations. Opening a {@link ZipFile} reads its central
+ * directory. Keeping it open makes later lookups of entries in the
+ * same archive a hash lookup instead of a rescan.<P>
+ *
+ * Archives are keyed by path and stamped with the modification time
+ * and the size of the file. An archive, that has changed, is opened
+ * again. The least recently used archives are closed, when more than
+ * the maximum number of archives are open. An archive is closed only
+ * after all entry streams read from it are closed.<P>
+ *
+ * The cache does not check access permissions. That's up to the
+ * caller, see {@link HardenedURIResolver} and {@link
+ * HardenedUnparsedTextResolver}.
+ */
+public final class ArchiveCache {
+
+    /**
+     * The name of the system property for the maximum number of open
+     * archives of the shared cache.
+     */
+    public static final String MAX_OPEN_PROPERTY = ArchiveCache.class.getName() + ".maxOpen";
+
+    /**
+     * The default maximum number of open archives of the shared cache.
+     */
+    public static final int DEFAULT_MAX_OPEN = 16;
+
+    private static ArchiveCache shared = null;
+
+    private final int maxOpen;
+
+    private final LinkedHashMap<String, Archive> archives = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param maxOpen  the maximum number of open archives
+     */
+    public ArchiveCache(int maxOpen) {
+	if (maxOpen <= 0) {
+	    throw new IllegalArgumentException("maximum number of open archives must be positive");
+	}
+	this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Returns the process-wide cache. Its maximum number of open
+     * archives is taken from the system property {@link
+     * MAX_OPEN_PROPERTY}.
+     */
+    public static synchronized ArchiveCache getSharedCache() {
+	if (shared == null) {
+	    shared = new ArchiveCache(Integer.getInteger(MAX_OPEN_PROPERTY, DEFAULT_MAX_OPEN));
+	}
+	return shared;
+    }
+
+    /**
+     * Open a stream on an entry of an archive. The stream must be
+     * closed.
+     *
+     * @param file  the archive
+     * @param entryName  the name of the entry
+     *
+     * @return the uncompressed content of the entry
+     *
+     * @throws FileNotFoundException  if there is no such entry
+     * @throws IOException  if the archive cannot be read
+     */
+    public InputStream getInputStream(File file, String entryName) throws IOException {
+	Archive archive = acquire(file);
+	try {
+	    ZipEntry entry = archive.zip.getEntry(entryName);
+	    if (entry == null || entry.isDirectory()) {
+		throw new FileNotFoundException(file + "!/" + entryName);
+	    }
+	    return new EntryStream(archive, archive.zip.getInputStream(entry));
+	} catch (IOException e) {
+	    release(archive);
+	    throw e;
+	} catch (RuntimeException e) {
+	    release(archive);
+	    throw e;
+	}
+    }
+
+    private Archive acquire(File file) throws IOException {
+	String key = file.getAbsolutePath();
+	long modified = file.lastModified();
+	long size = file.length();
+	synchronized (this) {
+	    Archive archive = archives.get(key);
+	    if (archive != null && archive.modified == modified && archive.size == size) {
+		hits.increment();
+		archive.users++;
+		return archive;
+	    }
+	    misses.increment();
+	    if (archive != null) {
+		archives.remove(key);
+		evict(archive);
+	    }
+	    archive = new Archive(new ZipFile(file), modified, size);
+	    archive.users++;
+	    archives.put(key, archive);
+	    if (archives.size() > maxOpen) {
+		Map.Entry<String, Archive> eldest = archives.entrySet().iterator().next();
+		archives.remove(eldest.getKey());
+		evict(eldest.getValue());
+	    }
+	    return archive;
+	}
+    }
+
+    private synchronized void release(Archive archive) {
+	archive.users--;
+	if (archive.evicted && archive.users == 0) {
+	    closeQuietly(archive);
+	}
+    }
+
+    private void evict(Archive archive) {
+	archive.evicted = true;
+	if (archive.users == 0) {
+	    closeQuietly(archive);
+	}
+    }
+
+    private static void closeQuietly(Archive archive) {
+	try {
+	    archive.zip.close();
+	} catch (IOException e) {
+	    // nothing was written
+	}
+    }
+
+    /**
+     * Close all archives, that are not in use, and forget all others.
+     */
+    public synchronized void clear() {
+	List<Archive> open = new ArrayList<>(archives.values());
+	archives.clear();
+	for (Archive archive : open) {
+	    evict(archive);
+	}
+    }
+
+    /**
+     * Returns the number of open archives in the cache.
+     */
+    public synchronized int size() {
+	return archives.size();
+    }
+
+    public int getMaxOpen() {
+	return maxOpen;
+    }
+
+    /**
+     * Returns the number of lookups, that found the archive open.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups, that had to open the archive and
+     * read its central directory.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    private static final class Archive {
+
+	final ZipFile zip;
+
+	final long modified;
+
+	final long size;
+
+	int users = 0;
+
+	boolean evicted = false;
+
+	Archive(ZipFile zip, long modified, long size) {
+	    this.zip = zip;
+	    this.modified = modified;
+	    this.size = size;
+	}
+    }
+
+    /**
+     * A stream on an entry, that releases the archive when closed.
+     */
+    private final class EntryStream extends FilterInputStream {
+
+	private final Archive archive;
+
+	private boolean closed = false;
+
+	EntryStream(Archive archive, InputStream in) {
+	    super(in);
+	    this.archive = archive;
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    try {
+		super.close();
+	    } finally {
+		release(archive);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,508 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * Writes result documents, that were serialized into memory, to the
+ * file system in background threads. The transformation thread only
+ * hands over the bytes and continues.<P>
+ *
+ * The writer has a budget of pending bytes. When it is exhausted,
+ * {@link submit(Path, Buffer)} blocks until enough bytes are written,
+ * so that a fast transformation cannot fill the heap with
+ * documents.<P>
+ *
+ * Optionally, written files are synced to the storage device. Syncing
+ * is done in batches: a writer thread keeps the files open until the
+ * batch is full or the queue is empty, then syncs the files and their
+ * directories once.<P>
+ *
+ * Pending documents and write errors are tracked per {@link Job}. A
+ * transformation runs with a job of its own by {@link callWith(Job,
+ * Callable)} and calls {@link Job#awaitCompletion()} at its end, which
+ * waits for its documents only and throws its errors only. So
+ * transformations sharing the writer do not see each other's
+ * errors. Documents submitted outside of a job belong to the default
+ * job of the writer, whose errors are thrown by {@link
+ * awaitCompletion()}.<P>
+ *
+ * The writer does not check access permissions. That's up to the
+ * caller, see {@link HardenedResultDocumentResolver}.
+ */
+public final class AsyncResultWriter {
+
+    /**
+     * The name of the system property for the number of writer
+     * threads of the shared writer.
+     */
+    public static final String THREADS_PROPERTY = AsyncResultWriter.class.getName() + ".threads";
+
+    /**
+     * The name of the system property for the budget of pending bytes
+     * of the shared writer.
+     */
+    public static final String PENDING_PROPERTY = AsyncResultWriter.class.getName() + ".pending";
+
+    /**
+     * The name of the system property for the number of files synced
+     * in a batch by the shared writer. 0 switches syncing off.
+     */
+    public static final String SYNC_BATCH_PROPERTY = AsyncResultWriter.class.getName() + ".syncBatch";
+
+    /**
+     * The default number of writer threads.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default budget of pending bytes: 64 MiB.
+     */
+    public static final long DEFAULT_PENDING = 64L * 1024 * 1024;
+
+    private static final Logger LOG = new StandardLogger();
+
+    private static final ThreadLocal<Job> threadJob = new ThreadLocal<>();
+
+    private static AsyncResultWriter shared = null;
+
+    private final long maxPending;
+
+    private final int syncBatch;
+
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+
+    private final Job defaultJob = new Job();
+
+    private final Thread[] threads;
+
+    /**
+     * Guards {@link pendingBytes} and {@link pendingFiles}.
+     */
+    private final Object lock = new Object();
+
+    private long pendingBytes = 0;
+
+    private long pendingFiles = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Make a new writer and start its threads.
+     *
+     * @param threads  the number of writer threads
+     * @param maxPending  the budget of pending bytes
+     * @param syncBatch  the number of files synced in a batch, or 0 for no syncing
+     */
+    public AsyncResultWriter(int threads, long maxPending, int syncBatch) {
+	if (threads <= 0) {
+	    throw new IllegalArgumentException("number of threads must be positive");
+	}
+	if (maxPending <= 0) {
+	    throw new IllegalArgumentException("pending bytes must be positive");
+	}
+	if (syncBatch < 0) {
+	    throw new IllegalArgumentException("sync batch must not be negative");
+	}
+	this.maxPending = maxPending;
+	this.syncBatch = syncBatch;
+	this.threads = new Thread[threads];
+	for (int i = 0; i < threads; i++) {
+	    this.threads[i] = new Thread(this::work, "hardened-result-writer-" + i);
+	    this.threads[i].setDaemon(true);
+	    this.threads[i].start();
+	}
+    }
+
+    /**
+     * Returns the process-wide writer. Its settings are taken from the
+     * system properties {@link THREADS_PROPERTY}, {@link
+     * PENDING_PROPERTY} and {@link SYNC_BATCH_PROPERTY}. Pending
+     * documents are written before the JVM exits. Errors of the
+     * default job, that were not thrown before, are logged then.
+     */
+    public static synchronized AsyncResultWriter getSharedWriter() {
+	if (shared == null) {
+	    final AsyncResultWriter writer = new AsyncResultWriter
+		(Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+		 Long.getLong(PENDING_PROPERTY, DEFAULT_PENDING),
+		 Integer.getInteger(SYNC_BATCH_PROPERTY, 0));
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+		try {
+		    writer.awaitCompletion();
+		} catch (XPathException e) {
+		    LOG.error(e.getMessage());
+		    for (Throwable suppressed : e.getSuppressed()) {
+			LOG.error(suppressed.getMessage());
+		    }
+		}
+	    }, "hardened-result-writer-shutdown"));
+	    shared = writer;
+	}
+	return shared;
+    }
+
+    /**
+     * Run a task on the current thread with the given job, so that
+     * the documents it submits to any writer belong to the job. The
+     * caller should call {@link Job#awaitCompletion()} afterwards.
+     *
+     * @param job  the job for the task
+     * @param task  the task
+     *
+     * @return the result of the task
+     */
+    public static <T> T callWith(Job job, Callable<T> task) throws Exception {
+	if (job == null) {
+	    throw new IllegalArgumentException("job may not be null");
+	}
+	Job previous = threadJob.get();
+	threadJob.set(job);
+	try {
+	    return task.call();
+	} finally {
+	    if (previous == null) {
+		threadJob.remove();
+	    } else {
+		threadJob.set(previous);
+	    }
+	}
+    }
+
+    /**
+     * Returns a new buffer for serializing a result document into.
+     */
+    public Buffer newBuffer() {
+	return new Buffer();
+    }
+
+    /**
+     * Queue a document for writing. Blocks while the budget of
+     * pending bytes is exhausted. A document larger than the budget
+     * waits until nothing else is pending. The document belongs to the
+     * job of the current thread or else to the default job.
+     *
+     * @param path  the file to write to
+     * @param buffer  the serialized document
+     *
+     * @throws XPathException  if the writer is closed or the thread is interrupted
+     */
+    public void submit(Path path, Buffer buffer) throws XPathException {
+	if (closed) {
+	    throw new XPathException("result writer is closed: " + path);
+	}
+	long size = buffer.size();
+	synchronized (lock) {
+	    try {
+		while (pendingBytes > 0 && pendingBytes + size > maxPending) {
+		    lock.wait();
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new XPathException("interrupted while waiting for result writer: " + path, e);
+	    }
+	    pendingBytes += size;
+	    pendingFiles++;
+	}
+	Job job = threadJob.get();
+	if (job == null) {
+	    job = defaultJob;
+	}
+	job.submitted();
+	queue.add(new Task(path, buffer, job));
+    }
+
+    /**
+     * Wait until all submitted documents are written and synced, and
+     * throw the errors of the default job, that occurred since the
+     * last call.
+     *
+     * @throws XPathException  if a document of the default job could not be written
+     */
+    public void awaitCompletion() throws XPathException {
+	synchronized (lock) {
+	    try {
+		while (pendingFiles > 0) {
+		    lock.wait();
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new XPathException("interrupted while waiting for result writer", e);
+	    }
+	}
+	defaultJob.awaitCompletion();
+    }
+
+    /**
+     * Write the pending documents and stop the writer threads.
+     *
+     * @throws XPathException  if a document could not be written
+     */
+    public void close() throws XPathException {
+	closed = true;
+	try {
+	    awaitCompletion();
+	} finally {
+	    for (Thread thread : threads) {
+		thread.interrupt();
+	    }
+	}
+    }
+
+    /**
+     * Returns the number of documents submitted but not yet written.
+     */
+    public long getPendingFiles() {
+	synchronized (lock) {
+	    return pendingFiles;
+	}
+    }
+
+    /**
+     * Returns the number of bytes submitted but not yet written.
+     */
+    public long getPendingBytes() {
+	synchronized (lock) {
+	    return pendingBytes;
+	}
+    }
+
+    /**
+     * The loop of a writer thread.
+     */
+    private void work() {
+	List<Sync> batch = new ArrayList<>();
+	try {
+	    while (true) {
+		Task task = queue.poll();
+		if (task == null) {
+		    // idle: do not keep a batch waiting
+		    sync(batch);
+		    task = queue.take();
+		}
+		FileChannel channel = write(task);
+		if (channel == null) {
+		    task.job.done();
+		}
+		released(task.buffer.size(), channel == null ? 1 : 0);
+		if (channel != null) {
+		    batch.add(new Sync(task.path, channel, task.job));
+		    if (batch.size() >= syncBatch) {
+			sync(batch);
+		    }
+		}
+	    }
+	} catch (InterruptedException e) {
+	    // closed
+	    sync(batch);
+	}
+    }
+
+    /**
+     * Write a document. Returns the open channel, if it has to be
+     * synced, or <code>null</code> otherwise.
+     */
+    private FileChannel write(Task task) {
+	FileChannel channel = null;
+	try {
+	    Path parent = task.path.getParent();
+	    if (parent != null) {
+		Files.createDirectories(parent);
+	    }
+	    channel = FileChannel.open(task.path,
+				       StandardOpenOption.WRITE,
+				       StandardOpenOption.CREATE,
+				       StandardOpenOption.TRUNCATE_EXISTING);
+	    ByteBuffer bytes = task.buffer.toByteBuffer();
+	    while (bytes.hasRemaining()) {
+		channel.write(bytes);
+	    }
+	    if (syncBatch > 0) {
+		return channel;
+	    }
+	    channel.close();
+	} catch (IOException e) {
+	    task.job.failed(new IOException("cannot write " + task.path + ": " + e.getMessage(), e));
+	    if (channel != null) {
+		try {
+		    channel.close();
+		} catch (IOException ce) {
+		    // already reported
+		}
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Sync the files of a batch and their directories.
+     */
+    private void sync(List<Sync> batch) {
+	if (batch.isEmpty()) {
+	    return;
+	}
+	Set<Path> directories = new HashSet<>();
+	for (Sync file : batch) {
+	    try {
+		file.channel.force(true);
+	    } catch (IOException e) {
+		file.job.failed(new IOException("cannot sync " + file.path + ": " + e.getMessage(), e));
+	    }
+	    try {
+		file.channel.close();
+	    } catch (IOException e) {
+		file.job.failed(new IOException("cannot close " + file.path + ": " + e.getMessage(), e));
+	    }
+	    if (file.path.getParent() != null) {
+		directories.add(file.path.getParent());
+	    }
+	}
+	// done, when the directories are synced, too
+	for (Path directory : directories) {
+	    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+		channel.force(true);
+	    } catch (IOException e) {
+		// directories cannot be synced on all platforms
+	    }
+	}
+	for (Sync file : batch) {
+	    file.job.done();
+	}
+	released(0, batch.size());
+	batch.clear();
+    }
+
+    private void released(long bytes, int files) {
+	synchronized (lock) {
+	    pendingBytes -= bytes;
+	    pendingFiles -= files;
+	    lock.notifyAll();
+	}
+    }
+
+    /**
+     * A buffer for a serialized document, that hands over its bytes
+     * without copying them.
+     */
+    public static final class Buffer extends ByteArrayOutputStream {
+
+	Buffer() {
+	    super(1024);
+	}
+
+	ByteBuffer toByteBuffer() {
+	    return ByteBuffer.wrap(buf, 0, count);
+	}
+    }
+
+    /**
+     * The documents submitted by a transformation. It tracks its
+     * pending documents and collects its write errors.
+     */
+    public static final class Job {
+
+	private long pendingFiles = 0;
+
+	private final List<Throwable> errors = new ArrayList<>();
+
+	synchronized void submitted() {
+	    pendingFiles++;
+	}
+
+	synchronized void failed(Throwable error) {
+	    errors.add(error);
+	}
+
+	synchronized void done() {
+	    pendingFiles--;
+	    notifyAll();
+	}
+
+	/**
+	 * Returns the number of documents of the job submitted but not
+	 * yet written.
+	 */
+	public synchronized long getPendingFiles() {
+	    return pendingFiles;
+	}
+
+	/**
+	 * Wait until the documents of the job are written and synced,
+	 * and throw the errors, that occurred since the last call.
+	 *
+	 * @throws XPathException  if a document could not be written
+	 */
+	public void awaitCompletion() throws XPathException {
+	    List<Throwable> failed;
+	    synchronized (this) {
+		try {
+		    while (pendingFiles > 0) {
+			wait();
+		    }
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new XPathException("interrupted while waiting for result writer", e);
+		}
+		failed = new ArrayList<>(errors);
+		errors.clear();
+	    }
+	    if (!failed.isEmpty()) {
+		XPathException e = new XPathException
+		    ("failed to write " + failed.size() + " result document(s): " + failed.get(0).getMessage(),
+		     failed.get(0));
+		for (int i = 1; i < failed.size(); i++) {
+		    e.addSuppressed(failed.get(i));
+		}
+		throw e;
+	    }
+	}
+    }
+
+    private static final class Task {
+
+	final Path path;
+
+	final Buffer buffer;
+
+	final Job job;
+
+	Task(Path path, Buffer buffer, Job job) {
+	    this.path = path;
+	    this.buffer = buffer;
+	    this.job = job;
+	}
+    }
+
+    private static final class Sync {
+
+	final Path path;
+
+	final FileChannel channel;
+
+	final Job job;
+
+	Sync(Path path, FileChannel channel, Job job) {
+	    this.path = path;
+	    this.channel = channel;
+	    this.job = job;
+	}
+    }
+
+}
@@ -0,0 +1,560 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * An audit trail of the access decisions of the hardened
+ * resolvers. Each decision is recorded with its time, operation,
+ * <code>href</code>, base URI, the resolved URI, the decision and the
+ * name of the thread.<P>
+ *
+ * Recording must not slow down a transformation. So events are put
+ * into a ring buffer of preallocated slots and written to the file by
+ * a background thread. A producer claims a slot by a single
+ * compare-and-set. If the buffer is full, the event is dropped and
+ * counted instead of waiting. The number of dropped events is written
+ * to the log, too. Resolving the URI and formatting the event is left
+ * to the background thread.<P>
+ *
+ * The log is written as JSON lines. When the file exceeds a maximal
+ * size, it is rotated: <code>FILE</code> is renamed to
+ * <code>FILE.1</code>, <code>FILE.1</code> to <code>FILE.2</code>
+ * etc.<P>
+ *
+ * The shared log is set up from the system property {@link
+ * FILE_PROPERTY} or the environment variable {@link FILE_ENVIRON}. If
+ * none is set, nothing is recorded. The size of the buffer, the
+ * maximal size of a file and the number of rotated files are set by
+ * the system properties {@link CAPACITY_PROPERTY}, {@link
+ * MAX_BYTES_PROPERTY} and {@link FILES_PROPERTY}. <code>~</code> can
+ * be used to point to the user's home directory.
+ */
+public final class AuditLog {
+
+    public static final String FILE_PROPERTY = AuditLog.class.getName() + ".file";
+
+    public static final String FILE_ENVIRON = "SAXON_AUDIT_LOG";
+
+    public static final String CAPACITY_PROPERTY = AuditLog.class.getName() + ".capacity";
+
+    public static final String MAX_BYTES_PROPERTY = AuditLog.class.getName() + ".maxBytes";
+
+    public static final String FILES_PROPERTY = AuditLog.class.getName() + ".files";
+
+    /**
+     * The default number of slots in the buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The default maximal size of a log file: 10 MiB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+
+    /**
+     * The default number of rotated files kept.
+     */
+    public static final int DEFAULT_FILES = 5;
+
+    /**
+     * Operation of {@link HardenedURIResolver}.
+     */
+    public static final String DOCUMENT = "document";
+
+    /**
+     * Operation of {@link HardenedUnparsedTextResolver}.
+     */
+    public static final String UNPARSED_TEXT = "unparsed-text";
+
+    /**
+     * Operation of {@link HardenedOutputResolver}.
+     */
+    public static final String OUTPUT = "output";
+
+    /**
+     * Operation of {@link HardenedResultDocumentResolver}.
+     */
+    public static final String RESULT_DOCUMENT = "result-document";
+
+    /**
+     * Operation of {@link HardenedCollectionFinder} for a collection.
+     */
+    public static final String COLLECTION = "collection";
+
+    /**
+     * Operation of {@link HardenedCollectionFinder} for a member of a
+     * collection.
+     */
+    public static final String COLLECTION_MEMBER = "collection-member";
+
+    /**
+     * Operation of {@link HardenedModuleURIResolver}.
+     */
+    public static final String MODULE = "module";
+
+    /**
+     * How long the background thread sleeps, when the buffer is empty.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static volatile AuditLog shared = fromPropertiesOrEnvironment();
+
+    private final Path file;
+
+    private final long maxBytes;
+
+    private final int files;
+
+    private final Slot[] slots;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next slot to claim.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The sequence number of the next slot to write. Written by the
+     * background thread only.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private long droppedReported = 0;
+
+    private Thread drainer = null;
+
+    private volatile boolean closed = false;
+
+    private Writer out = null;
+
+    private long size = 0;
+
+    private IOException error = null;
+
+    /**
+     * Make a new log. Call {@link start()} to start writing.
+     *
+     * @param file  the log file
+     * @param capacity  the number of slots, rounded up to a power of two
+     * @param maxBytes  the size of a file, at which it is rotated
+     * @param files  the number of rotated files kept
+     */
+    public AuditLog(Path file, int capacity, long maxBytes, int files) {
+	if (capacity <= 0 || capacity > (1 << 30)) {
+	    throw new IllegalArgumentException("capacity out of range: " + capacity);
+	}
+	if (maxBytes <= 0) {
+	    throw new IllegalArgumentException("maximal size must be positive");
+	}
+	if (files < 0) {
+	    throw new IllegalArgumentException("number of files must not be negative");
+	}
+	this.file = file;
+	this.maxBytes = maxBytes;
+	this.files = files;
+	int n = Integer.highestOneBit(capacity);
+	if (n < capacity) {
+	    n <<= 1;
+	}
+	this.slots = new Slot[n];
+	for (int i = 0; i < n; i++) {
+	    slots[i] = new Slot(i - n);
+	}
+	this.mask = n - 1;
+    }
+
+    /**
+     * Make the shared log from the system properties or environment,
+     * or returns <code>null</code>, if no file is set.
+     */
+    private static AuditLog fromPropertiesOrEnvironment() {
+	String path = System.getProperty(FILE_PROPERTY);
+	if (path == null) {
+	    path = System.getenv(FILE_ENVIRON);
+	}
+	if (path == null || path.isEmpty()) {
+	    return null;
+	}
+	if (path.startsWith("~")) {
+	    path = System.getProperty("user.home") + path.substring(1);
+	}
+	final AuditLog log = new AuditLog
+	    (Paths.get(path),
+	     Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+	     Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+	     Integer.getInteger(FILES_PROPERTY, DEFAULT_FILES));
+	log.start();
+	Runtime.getRuntime().addShutdownHook(new Thread(log::close, "hardened-audit-log-shutdown"));
+	return log;
+    }
+
+    /**
+     * Returns the shared log or <code>null</code>, if auditing is off.
+     */
+    public static AuditLog getShared() {
+	return shared;
+    }
+
+    /**
+     * Replace the shared log. <code>null</code> switches auditing
+     * off. The previous log is not closed.
+     */
+    public static void setShared(AuditLog log) {
+	shared = log;
+    }
+
+    /**
+     * Record a decision on a reference in the shared log, if there is
+     * one.
+     */
+    public static void log(String operation, String href, String base, boolean allowed) {
+	AuditLog log = shared;
+	if (log != null) {
+	    log.record(operation, href, base, null, allowed);
+	}
+    }
+
+    /**
+     * Record a decision on an absolute URI in the shared log, if there
+     * is one.
+     */
+    public static void log(String operation, URI uri, boolean allowed) {
+	AuditLog log = shared;
+	if (log != null) {
+	    log.record(operation, null, null, uri, allowed);
+	}
+    }
+
+    /**
+     * Record an event. Never blocks: if the buffer is full, the event
+     * is dropped.
+     */
+    public void record(String operation, String href, String base, URI uri, boolean allowed) {
+	if (closed) {
+	    dropped.increment();
+	    return;
+	}
+	long sequence;
+	do {
+	    sequence = head.get();
+	    if (sequence - tail.get() >= slots.length) {
+		dropped.increment();
+		return;
+	    }
+	} while (!head.compareAndSet(sequence, sequence + 1));
+	Slot slot = slots[(int) sequence & mask];
+	slot.time = System.currentTimeMillis();
+	slot.operation = operation;
+	slot.href = href;
+	slot.base = base;
+	slot.uri = uri;
+	slot.allowed = allowed;
+	slot.thread = Thread.currentThread().getName();
+	// publish
+	slot.sequence = sequence;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was
+     * full or the log was closed.
+     */
+    public long getDropped() {
+	return dropped.sum();
+    }
+
+    /**
+     * Returns the number of slots of the buffer.
+     */
+    public int getCapacity() {
+	return slots.length;
+    }
+
+    /**
+     * Returns the log file.
+     */
+    public Path getFile() {
+	return file;
+    }
+
+    /**
+     * Start the background thread, that writes the events.
+     */
+    public synchronized void start() {
+	if (drainer != null) {
+	    return;
+	}
+	drainer = new Thread(this::drain, "hardened-audit-log");
+	drainer.setDaemon(true);
+	drainer.start();
+    }
+
+    /**
+     * Write the recorded events and stop the background thread. Events
+     * recorded later are dropped.
+     *
+     * @throws IllegalStateException  if the log could not be written
+     */
+    public void close() {
+	Thread thread;
+	synchronized (this) {
+	    closed = true;
+	    thread = drainer;
+	}
+	if (thread != null) {
+	    LockSupport.unpark(thread);
+	    try {
+		thread.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	if (error != null) {
+	    throw new IllegalStateException("cannot write audit log " + file + ": " + error.getMessage(), error);
+	}
+    }
+
+    /**
+     * The loop of the background thread.
+     */
+    private void drain() {
+	try {
+	    while (true) {
+		boolean wasClosed = closed;
+		int n = drainAvailable();
+		if (n == 0) {
+		    reportDropped();
+		    if (out != null) {
+			out.flush();
+		    }
+		    if (wasClosed) {
+			break;
+		    }
+		    LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+	    }
+	} catch (IOException e) {
+	    error = e;
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		    if (error == null) {
+			error = e;
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write the published events. Returns their number.
+     */
+    private int drainAvailable() throws IOException {
+	int n = 0;
+	long sequence = tail.get();
+	while (true) {
+	    Slot slot = slots[(int) sequence & mask];
+	    if (slot.sequence != sequence) {
+		break;
+	    }
+	    String line = format(slot);
+	    // free the slot before writing, references are not needed any more
+	    slot.href = null;
+	    slot.base = null;
+	    slot.uri = null;
+	    sequence++;
+	    tail.lazySet(sequence);
+	    write(line);
+	    n++;
+	}
+	return n;
+    }
+
+    private void reportDropped() throws IOException {
+	long total = dropped.sum();
+	if (total > droppedReported) {
+	    StringBuilder line = new StringBuilder();
+	    line.append("{\"time\":\"").append(Instant.now()).append("\",\"dropped\":")
+		.append(total - droppedReported).append("}\n");
+	    droppedReported = total;
+	    write(line.toString());
+	}
+    }
+
+    private String format(Slot slot) {
+	String resolved = resolve(slot);
+	StringBuilder line = new StringBuilder(256);
+	line.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.time)).append('"');
+	line.append(",\"operation\":");
+	quote(line, slot.operation);
+	line.append(",\"decision\":\"").append(slot.allowed ? "allowed" : "denied").append('"');
+	line.append(",\"thread\":");
+	quote(line, slot.thread);
+	line.append(",\"href\":");
+	quote(line, slot.href != null ? slot.href : resolved);
+	line.append(",\"base\":");
+	quote(line, slot.base);
+	line.append(",\"uri\":");
+	quote(line, resolved);
+	line.append("}\n");
+	return line.toString();
+    }
+
+    /**
+     * Returns the URI an event refers to, or <code>null</code>, if it
+     * cannot be resolved.
+     */
+    private static String resolve(Slot slot) {
+	if (slot.uri != null) {
+	    return slot.uri.normalize().toString();
+	}
+	if (slot.href == null) {
+	    return null;
+	}
+	try {
+	    if (slot.base == null) {
+		return new URI(slot.href).normalize().toString();
+	    } else {
+		return new URI(slot.base).resolve(slot.href).normalize().toString();
+	    }
+	} catch (URISyntaxException e) {
+	    return null;
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    private static void quote(StringBuilder out, String value) {
+	if (value == null) {
+	    out.append("null");
+	    return;
+	}
+	out.append('"');
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    switch (c) {
+	    case '"':
+		out.append("\\\"");
+		break;
+	    case '\\':
+		out.append("\\\\");
+		break;
+	    case '\n':
+		out.append("\\n");
+		break;
+	    case '\r':
+		out.append("\\r");
+		break;
+	    case '\t':
+		out.append("\\t");
+		break;
+	    default:
+		if (c < 0x20) {
+		    out.append(String.format("\\u%04x", (int) c));
+		} else {
+		    out.append(c);
+		}
+	    }
+	}
+	out.append('"');
+    }
+
+    /**
+     * Write a line and rotate the file, if it is too large.
+     */
+    private void write(String line) throws IOException {
+	if (out == null) {
+	    Path parent = file.toAbsolutePath().getParent();
+	    if (parent != null) {
+		Files.createDirectories(parent);
+	    }
+	    size = Files.exists(file) ? Files.size(file) : 0;
+	    out = new BufferedWriter(new OutputStreamWriter
+				     (Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+				      StandardCharsets.UTF_8));
+	}
+	// approximate for non-ASCII characters
+	long bytes = line.length();
+	if (size > 0 && size + bytes > maxBytes) {
+	    rotate();
+	}
+	out.write(line);
+	size += bytes;
+    }
+
+    private void rotate() throws IOException {
+	out.close();
+	if (files == 0) {
+	    Files.deleteIfExists(file);
+	} else {
+	    Files.deleteIfExists(rotated(files));
+	    for (int i = files - 1; i >= 1; i--) {
+		if (Files.exists(rotated(i))) {
+		    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+		}
+	    }
+	    Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+	}
+	out = new BufferedWriter(new OutputStreamWriter
+				 (Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+				  StandardCharsets.UTF_8));
+	size = 0;
+    }
+
+    private Path rotated(int i) {
+	return file.resolveSibling(file.getFileName() + "." + i);
+    }
+
+    /**
+     * A preallocated entry of the ring buffer.
+     */
+    private static final class Slot {
+
+	/**
+	 * The sequence number of the event in this slot. Written last
+	 * by the producer, so that the other fields are visible to the
+	 * background thread, when it sees the sequence number.
+	 */
+	volatile long sequence;
+
+	long time;
+
+	String operation;
+
+	String href;
+
+	String base;
+
+	URI uri;
+
+	boolean allowed;
+
+	String thread;
+
+	Slot(long sequence) {
+	    this.sequence = sequence;
+	}
+    }
+
+}
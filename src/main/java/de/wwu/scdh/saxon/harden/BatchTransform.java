@@ -0,0 +1,377 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.UnparsedTextURIResolver;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.XsltController;
+
+
+/**
+ * Transforms many input files with a single stylesheet in parallel.
+ * The stylesheet is compiled once and the {@link XsltExecutable} is
+ * shared by a pool of workers. Each transformation gets its own
+ * transformer with hardened resolvers installed, so that access to
+ * the file system is restricted like with the <code>saxon.xml</code>
+ * configuration. A {@link HardenedCollectionFinder} and a {@link
+ * HardenedModuleURIResolver} are installed into the configuration,
+ * unless it has them already. Result documents are checked by a
+ * {@link HardenedResultDocumentResolver}, unless the configuration has
+ * a {@link HardenedOutputResolver}, e.g. one bound to a filter by
+ * {@link HardenedResolvers#install(Configuration, FilesystemFilter)},
+ * which is used instead.<P>
+ *
+ * A failing input file, e.g. because of a path not allowed or an
+ * exceeded {@link IOQuota}, is reported and does not abort the
+ * batch. If there is a shared quota, each file is transformed with a
+ * new quota with the same limits. Result documents written in the
+ * background are awaited per file, so that write errors are reported
+ * for the file, that caused them.<P>
+ *
+ * Usage:
+ *
+ * <pre>
+ * java de.wwu.scdh.saxon.harden.BatchTransform [-config:FILE] -xsl:FILE -s:DIR|@LIST -o:DIR
+ *     [-threads:N] [-ext:.xml] [name=value ...]
+ * </pre>
+ *
+ * <code>-s</code> is either a directory, which is searched for files
+ * ending with the extension given by <code>-ext</code>, or a file with
+ * one input path per line, prefixed with <code>@</code>. The outputs
+ * are written to the directory given by <code>-o</code>, under the
+ * same relative path as the input. Inputs with the same output path,
+ * e.g. files with the same name in a list, are transformed only once,
+ * the others are reported as failures. Parameters are passed to the
+ * stylesheet as strings.<P>
+ *
+ * The exit status is 0 if all files were transformed, 1 if some
+ * failed and 2 on usage errors.
+ */
+public class BatchTransform {
+
+    /**
+     * The default extension of input files in a directory.
+     */
+    public static final String DEFAULT_EXTENSION = ".xml";
+
+    private final Processor processor;
+
+    private final XsltExecutable executable;
+
+    private final int threads;
+
+    private final URIResolver uriResolver;
+
+    private final UnparsedTextURIResolver unparsedTextResolver;
+
+    private final boolean hardenedOutput;
+
+    private final Map<QName, XdmValue> parameters = new HashMap<>();
+
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+    /**
+     * Compile the stylesheet for a batch.
+     *
+     * @param config  the configuration, e.g. read from <code>saxon.xml</code>
+     * @param stylesheet  the stylesheet
+     * @param threads  the number of workers
+     *
+     * @throws SaxonApiException  if the stylesheet cannot be compiled
+     */
+    public BatchTransform(Configuration config, Path stylesheet, int threads) throws SaxonApiException {
+	if (threads <= 0) {
+	    throw new IllegalArgumentException("number of threads must be positive");
+	}
+	if (config.getURIResolver() instanceof HardenedURIResolver) {
+	    uriResolver = config.getURIResolver();
+	} else {
+	    HardenedURIResolver resolver = new HardenedURIResolver();
+	    resolver.setConfiguration(config);
+	    config.setURIResolver(resolver);
+	    uriResolver = resolver;
+	}
+	if (config.getUnparsedTextURIResolver() instanceof HardenedUnparsedTextResolver) {
+	    unparsedTextResolver = config.getUnparsedTextURIResolver();
+	} else {
+	    unparsedTextResolver = new HardenedUnparsedTextResolver();
+	    config.setUnparsedTextURIResolver(unparsedTextResolver);
+	}
+	// wrapped into a result document resolver by each XsltController
+	hardenedOutput = config.getOutputURIResolver() instanceof HardenedOutputResolver;
+	if (!(config.getCollectionFinder() instanceof HardenedCollectionFinder)) {
+	    config.setCollectionFinder(new HardenedCollectionFinder());
+	}
+	if (!(config.getModuleURIResolver() instanceof HardenedModuleURIResolver)) {
+	    config.setModuleURIResolver(new HardenedModuleURIResolver());
+	}
+	this.processor = new Processor(config);
+	this.executable = processor.newXsltCompiler().compile(new StreamSource(stylesheet.toFile()));
+	this.threads = threads;
+    }
+
+    /**
+     * Set a stylesheet parameter for all transformations.
+     */
+    public void setParameter(QName name, XdmValue value) {
+	parameters.put(name, value);
+    }
+
+    /**
+     * Transform the input files. The output of an input file is
+     * written to the output directory under the path of the input
+     * relative to the input directory, or under its file name, if it
+     * is not in the input directory. An input with the same output
+     * path as a previous one is not transformed but reported as a
+     * failure.
+     *
+     * @param inputs  the input files
+     * @param inputDirectory  the directory, the inputs are relative to
+     * @param outputDirectory  the directory to write to
+     *
+     * @return the number of files transformed successfully
+     */
+    public int run(List<Path> inputs, Path inputDirectory, Path outputDirectory) {
+	failures.clear();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	List<Future<?>> tasks = new ArrayList<>(inputs.size());
+	Map<Path, Path> outputs = new HashMap<>();
+	try {
+	    for (Path input : inputs) {
+		Path relative = input.getFileName();
+		if (inputDirectory != null && input.startsWith(inputDirectory)) {
+		    relative = inputDirectory.relativize(input);
+		}
+		Path output = outputDirectory.resolve(relative.toString());
+		Path previous = outputs.putIfAbsent(output.toAbsolutePath().normalize(), input);
+		if (previous != null) {
+		    // would overwrite the output of the previous input
+		    failures.add(new Failure(input, new IOException("same output " + output + " as " + previous)));
+		    continue;
+		}
+		tasks.add(pool.submit(() -> transform(input, output)));
+	    }
+	    for (Future<?> task : tasks) {
+		try {
+		    task.get();
+		} catch (ExecutionException e) {
+		    // not thrown: failures are collected by the tasks
+		    failures.add(new Failure(null, e.getCause()));
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    break;
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	return inputs.size() - (int) failures.stream().filter(f -> f.input != null).map(f -> f.input).distinct().count();
+    }
+
+    /**
+     * Transform a single file with a new {@link IOQuota}, if there is
+     * a shared one, and wait for its result documents written in the
+     * background.
+     */
+    private void transform(Path input, Path output) {
+	IOQuota quota = IOQuota.getShared();
+	AsyncResultWriter.Job job = new AsyncResultWriter.Job();
+	try {
+	    AsyncResultWriter.callWith(job, () -> {
+		    if (quota == null) {
+			runTransformer(input, output);
+		    } else {
+			IOQuota.callWith(quota.newInstance(), () -> {
+				runTransformer(input, output);
+				return null;
+			    });
+		    }
+		    return null;
+		});
+	    job.awaitCompletion();
+	} catch (Exception e) {
+	    // failures are collected by the task
+	    failures.add(new Failure(input, e));
+	}
+    }
+
+    /**
+     * Transform a single file on a new transformer.
+     */
+    private void runTransformer(Path input, Path output) {
+	try {
+	    Xslt30Transformer transformer = executable.load30();
+	    XsltController controller = transformer.getUnderlyingController();
+	    controller.setURIResolver(uriResolver);
+	    controller.setUnparsedTextURIResolver(unparsedTextResolver);
+	    if (!hardenedOutput) {
+		controller.setResultDocumentResolver(new HardenedResultDocumentResolver());
+	    }
+	    transformer.setStylesheetParameters(parameters);
+	    Path parent = output.getParent();
+	    if (parent != null) {
+		Files.createDirectories(parent);
+	    }
+	    Serializer serializer = processor.newSerializer(output.toFile());
+	    transformer.setBaseOutputURI(output.toFile().toURI().toString());
+	    transformer.transform(new StreamSource(input.toFile()), serializer);
+	} catch (SaxonApiException e) {
+	    failures.add(new Failure(input, e));
+	} catch (IOException e) {
+	    failures.add(new Failure(input, e));
+	} catch (RuntimeException e) {
+	    // a broken input must not abort the batch
+	    failures.add(new Failure(input, e));
+	}
+    }
+
+    /**
+     * Returns the failures of the last run. The input of a failure
+     * that does not belong to a single file is <code>null</code>.
+     */
+    public List<Failure> getFailures() {
+	synchronized (failures) {
+	    return new ArrayList<>(failures);
+	}
+    }
+
+    /**
+     * Returns the input files: the files with the given extension in
+     * a directory or the files listed in a file prefixed with
+     * <code>@</code>.
+     */
+    public static List<Path> listInputs(String source, String extension) throws IOException {
+	if (source.startsWith("@")) {
+	    List<Path> inputs = new ArrayList<>();
+	    for (String line : Files.readAllLines(Paths.get(source.substring(1)), StandardCharsets.UTF_8)) {
+		line = line.trim();
+		if (!line.isEmpty() && !line.startsWith("#")) {
+		    inputs.add(Paths.get(line).toAbsolutePath().normalize());
+		}
+	    }
+	    return inputs;
+	} else {
+	    Path directory = Paths.get(source).toAbsolutePath().normalize();
+	    try (Stream<Path> files = Files.walk(directory)) {
+		return files
+		    .filter(Files::isRegularFile)
+		    .filter(p -> p.getFileName().toString().endsWith(extension))
+		    .sorted()
+		    .collect(Collectors.toList());
+	    }
+	}
+    }
+
+    private static void usage(String message) {
+	System.err.println(message);
+	System.err.println("Usage: BatchTransform [-config:FILE] -xsl:FILE -s:DIR|@LIST -o:DIR"
+			   + " [-threads:N] [-ext:" + DEFAULT_EXTENSION + "] [name=value ...]");
+	System.exit(2);
+    }
+
+    public static void main(String[] args) {
+	Map<String, String> options = new HashMap<>();
+	Map<String, String> params = new HashMap<>();
+	for (String arg : args) {
+	    int colon = arg.indexOf(':');
+	    int equals = arg.indexOf('=');
+	    if (arg.startsWith("-") && colon > 0) {
+		options.put(arg.substring(1, colon), arg.substring(colon + 1));
+	    } else if (equals > 0) {
+		params.put(arg.substring(0, equals), arg.substring(equals + 1));
+	    } else {
+		usage("unknown argument: " + arg);
+	    }
+	}
+	if (!options.containsKey("xsl") || !options.containsKey("s") || !options.containsKey("o")) {
+	    usage("-xsl, -s and -o are required");
+	}
+	int threads = Runtime.getRuntime().availableProcessors();
+	if (options.containsKey("threads")) {
+	    try {
+		threads = Integer.parseInt(options.get("threads"));
+	    } catch (NumberFormatException e) {
+		usage("not a number: " + options.get("threads"));
+	    }
+	}
+	try {
+	    Configuration config;
+	    if (options.containsKey("config")) {
+		config = Configuration.readConfiguration(new StreamSource(new File(options.get("config"))));
+	    } else {
+		config = new Configuration();
+	    }
+	    BatchTransform batch = new BatchTransform(config, Paths.get(options.get("xsl")), threads);
+	    for (Map.Entry<String, String> param : params.entrySet()) {
+		batch.setParameter(QName.fromClarkName(param.getKey()), new XdmAtomicValue(param.getValue()));
+	    }
+	    String source = options.get("s");
+	    List<Path> inputs = listInputs(source, options.getOrDefault("ext", DEFAULT_EXTENSION));
+	    Path inputDirectory = source.startsWith("@") ? null : Paths.get(source).toAbsolutePath().normalize();
+	    long start = System.nanoTime();
+	    int transformed = batch.run(inputs, inputDirectory, Paths.get(options.get("o")));
+	    for (Failure failure : batch.getFailures()) {
+		System.err.println("FAILED " + (failure.input == null ? "" : failure.input + ": ")
+				   + failure.error.getMessage());
+	    }
+	    System.err.println(transformed + " of " + inputs.size() + " files transformed in "
+			       + (System.nanoTime() - start) / 1000000 + " ms");
+	    System.exit(batch.getFailures().isEmpty() ? 0 : 1);
+	} catch (XPathException e) {
+	    usage("cannot read configuration: " + e.getMessage());
+	} catch (SaxonApiException e) {
+	    usage("cannot compile stylesheet: " + e.getMessage());
+	} catch (IOException e) {
+	    usage("cannot list inputs: " + e.getMessage());
+	}
+    }
+
+    /**
+     * A failed input file.
+     */
+    public static final class Failure {
+
+	/**
+	 * The input file or <code>null</code>.
+	 */
+	public final Path input;
+
+	/**
+	 * The cause of the failure.
+	 */
+	public final Throwable error;
+
+	Failure(Path input, Throwable error) {
+	    this.input = input;
+	    this.error = error;
+	}
+    }
+
+}
@@ -0,0 +1,122 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import javax.xml.transform.Source;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Based on {@link HardenedURIResolver}, this resolver keeps the
+ * parsed trees of documents from the local file system in a {@link
+ * DocumentCache}, that is shared across transformations. So documents
+ * read with <code>doc()</code> etc. in many transformations are
+ * parsed only once, as long as the file is not changed. Entries are
+ * keyed by the real path of the file, so a file reached through a
+ * symbolic link or a differently spelled path is parsed only once,
+ * too. The cached tree keeps the system ID it was first parsed
+ * with.<P>
+ *
+ * Every access, including a cache hit, is checked by the {@link
+ * FilesystemFilter} first. So only documents from allowed locations
+ * are admitted to the cache, and cached documents are not returned
+ * any more after the allowed locations have changed.<P>
+ *
+ * Use it in a Saxon configuration file instead of {@link
+ * HardenedURIResolver}:
+ *
+ * <pre>
+ * &lt;global uriResolver="de.wwu.scdh.saxon.harden.CachingHardenedURIResolver"/&gt;
+ * </pre>
+ *
+ * @see DocumentCache#getSharedCache()
+ */
+public class CachingHardenedURIResolver extends HardenedURIResolver {
+
+    private static final String FILE_SCHEME = "file";
+
+    private final DocumentCache cache;
+
+    /**
+     * Make a resolver using the shared {@link DocumentCache}.
+     */
+    public CachingHardenedURIResolver() {
+	this(DocumentCache.getSharedCache());
+    }
+
+    /**
+     * Make a resolver using the given {@link DocumentCache}.
+     */
+    public CachingHardenedURIResolver(DocumentCache cache) {
+	this(cache, null);
+    }
+
+    /**
+     * Make a resolver using the given {@link DocumentCache}, that
+     * checks paths with the given filter.
+     *
+     * @param cache  the cache of parsed documents
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public CachingHardenedURIResolver(DocumentCache cache, FilesystemFilter filter) {
+	super(filter);
+	this.cache = cache;
+    }
+
+    /**
+     * Returns the cache of parsed documents.
+     */
+    public DocumentCache getDocumentCache() {
+	return cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Source resolve(String href, String base) throws XPathException {
+	// the hardened resolver does the check for cache hits, too
+	Source source = super.resolve(href, base);
+	if (source == null || source.getSystemId() == null || getConfiguration() == null) {
+	    return source;
+	}
+	Path path;
+	BasicFileAttributes attributes;
+	try {
+	    URI uri = new URI(source.getSystemId());
+	    if (!FILE_SCHEME.equals(uri.getScheme()) || uri.getRawQuery() != null) {
+		// parameterized URIs are not cached
+		return source;
+	    }
+	    // the same file reached by a link or another spelling shares the entry
+	    path = Paths.get(uri).toRealPath();
+	    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	} catch (URISyntaxException e) {
+	    // let Saxon report the problem
+	    return source;
+	} catch (IllegalArgumentException e) {
+	    // let Saxon report the problem
+	    return source;
+	} catch (IOException e) {
+	    // let Saxon report the problem
+	    return source;
+	}
+	String key = path.toUri().toString();
+	long modified = attributes.lastModifiedTime().toMillis();
+	long size = attributes.size();
+	NodeInfo document = cache.get(key, modified, size, getConfiguration());
+	if (document == null) {
+	    document = getConfiguration().buildDocumentTree(source).getRootNode();
+	    cache.put(key, modified, size, document);
+	}
+	return document;
+    }
+
+}
@@ -0,0 +1,176 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Resolves the real paths of files, i.e. paths without symbolic
+ * links, through a cache of the real paths of directories. The
+ * entries of the cache expire after a time to live (TTL), so that
+ * changed links are noticed eventually.<P>
+ *
+ * Resolving the real path of a file under a cached directory costs a
+ * map lookup and a single check whether the file itself is a
+ * symbolic link, instead of following the whole chain of parent
+ * directories. Files and directories that do not exist yet, e.g. the
+ * targets of result documents, are resolved against the real path of
+ * their nearest existing ancestor.
+ *
+ * @see FilesystemFilter
+ */
+public final class CanonicalPathCache {
+
+    /**
+     * The cache is cleared, when it grows beyond this number of
+     * directories.
+     */
+    public static final int MAX_ENTRIES = 65536;
+
+    private final ConcurrentHashMap<Path, Entry> directories = new ConcurrentHashMap<>();
+
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder nanos = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param ttlMillis  time to live of the cached real paths in milliseconds
+     */
+    public CanonicalPathCache(long ttlMillis) {
+	if (ttlMillis <= 0) {
+	    throw new IllegalArgumentException("time to live must be positive");
+	}
+	this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the real path of the given absolute and normalized
+     * path.
+     *
+     * @param path  an absolute normalized path
+     *
+     * @throws IOException  if the real path cannot be determined
+     */
+    public Path toRealPath(Path path) throws IOException {
+	long start = System.nanoTime();
+	try {
+	    Path parent = path.getParent();
+	    if (parent == null) {
+		// root
+		return path;
+	    }
+	    Path real = realDirectory(parent, start).resolve(path.getFileName());
+	    if (Files.isSymbolicLink(real)) {
+		real = followLink(real, start);
+	    }
+	    return real;
+	} finally {
+	    nanos.add(System.nanoTime() - start);
+	}
+    }
+
+    /**
+     * Returns the real path of a directory from the cache or resolves
+     * and caches it.
+     */
+    private Path realDirectory(Path dir, long now) throws IOException {
+	Entry entry = directories.get(dir);
+	if (entry != null && now - entry.created < ttlNanos) {
+	    hits.increment();
+	    return entry.real;
+	}
+	misses.increment();
+	Path real;
+	try {
+	    real = dir.toRealPath();
+	} catch (NoSuchFileException e) {
+	    Path parent = dir.getParent();
+	    if (parent == null) {
+		throw e;
+	    }
+	    real = realDirectory(parent, now).resolve(dir.getFileName());
+	}
+	if (directories.size() >= MAX_ENTRIES) {
+	    directories.clear();
+	}
+	directories.put(dir, new Entry(real, now));
+	return real;
+    }
+
+    private Path followLink(Path link, long now) throws IOException {
+	try {
+	    return link.toRealPath();
+	} catch (NoSuchFileException e) {
+	    // dangling link: writing would create the target
+	    Path target = link.getParent().resolve(Files.readSymbolicLink(link)).normalize();
+	    if (Files.isSymbolicLink(target)) {
+		throw new IOException("chain of dangling symbolic links: " + link);
+	    }
+	    Path parent = target.getParent();
+	    return parent == null ? target : realDirectory(parent, now).resolve(target.getFileName());
+	}
+    }
+
+    /**
+     * Remove all cached real paths. The counters are kept.
+     */
+    public void clear() {
+	directories.clear();
+    }
+
+    /**
+     * Returns the number of directory lookups answered from the cache.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of directory lookups that had to resolve the
+     * real path on the file system.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    /**
+     * Returns the ratio of hits to all directory lookups, or 0 if
+     * there were no lookups.
+     */
+    public double getHitRate() {
+	long h = hits.sum();
+	long total = h + misses.sum();
+	return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Returns the total time spent resolving real paths in nanoseconds.
+     */
+    public long getCanonicalizationNanos() {
+	return nanos.sum();
+    }
+
+    private static final class Entry {
+
+	final Path real;
+
+	final long created;
+
+	Entry(Path real, long created) {
+	    this.real = real;
+	    this.created = created;
+	}
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Reading compressed local input: gzip files, recognized by the
+ * suffix {@link GZIP_SUFFIX}, and entries of local zip or jar
+ * archives, given by <code>jar:file:...!/entry</code> URIs. Both are
+ * decompressed while streaming. Archives are opened through the
+ * shared {@link ArchiveCache}.<P>
+ *
+ * Access to an entry is decided on the path of its archive, see
+ * {@link FilesystemFilter#check(URI, java.nio.file.AccessMode)}.
+ */
+final class CompressedInput {
+
+    static final String GZIP_SUFFIX = ".gz";
+
+    private static final String FILE_SCHEME = "file";
+
+    private static final String JAR_SCHEME = "jar";
+
+    private static final String ENTRY_SEPARATOR = "!/";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Returns the URI of the archive of a <code>jar:</code> URI or
+     * <code>null</code>.
+     */
+    static URI archiveURI(URI uri) {
+	if (!JAR_SCHEME.equals(uri.getScheme())) {
+	    return null;
+	}
+	String part = uri.getRawSchemeSpecificPart();
+	int separator = part.indexOf(ENTRY_SEPARATOR);
+	if (separator < 0) {
+	    return null;
+	}
+	try {
+	    return new URI(part.substring(0, separator));
+	} catch (URISyntaxException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the decoded entry name of a <code>jar:</code> URI or
+     * <code>null</code>.
+     */
+    static String entryName(URI uri) {
+	String part = uri.getRawSchemeSpecificPart();
+	int separator = part.indexOf(ENTRY_SEPARATOR);
+	if (separator < 0) {
+	    return null;
+	}
+	try {
+	    return new URI(FILE_SCHEME + ":/" + part.substring(separator + ENTRY_SEPARATOR.length())).getPath().substring(1);
+	} catch (URISyntaxException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the local file of a <code>file:</code> URI or
+     * <code>null</code>.
+     */
+    private static File localFile(URI uri) {
+	if (uri == null || !FILE_SCHEME.equals(uri.getScheme()) || uri.isOpaque()
+	    || uri.getRawAuthority() != null || uri.getRawQuery() != null) {
+	    return null;
+	}
+	try {
+	    return new File(uri);
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns whether an absolute URI is a local gzip file or an entry
+     * of a local archive.
+     */
+    static boolean isCompressed(URI uri) {
+	if (JAR_SCHEME.equals(uri.getScheme())) {
+	    return localFile(archiveURI(uri)) != null && entryName(uri) != null;
+	}
+	return localFile(uri) != null && uri.getPath().toLowerCase(Locale.ROOT).endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Returns a stream on the uncompressed content, that is opened on
+     * the first read and counts the uncompressed bytes.
+     *
+     * @param uri  an URI, for which {@link isCompressed(URI)} is true
+     * @param counter  the counter of bytes read
+     * @param quota  the quota for the bytes read or <code>null</code>
+     */
+    static InputStream open(URI uri, LongAdder counter, IOQuota quota) {
+	if (JAR_SCHEME.equals(uri.getScheme())) {
+	    final File archive = localFile(archiveURI(uri));
+	    final String entry = entryName(uri);
+	    return new CountingFileInputStream
+		(() -> ArchiveCache.getSharedCache().getInputStream(archive, entry), uri.toString(), counter, quota);
+	} else {
+	    final File file = localFile(uri);
+	    return new CountingFileInputStream(() -> gunzip(file), file.toString(), counter, quota);
+	}
+    }
+
+    private static InputStream gunzip(File file) throws IOException {
+	InputStream in = new FileInputStream(file);
+	try {
+	    return new GZIPInputStream(in, BUFFER_SIZE);
+	} catch (IOException e) {
+	    in.close();
+	    throw e;
+	}
+    }
+
+}
@@ -0,0 +1,117 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * An input stream on a file, that adds the number of bytes read to a
+ * counter and optionally to an {@link IOQuota}. The file is opened on
+ * the first read, so that a stream, that is never read, does not hold
+ * a file descriptor, e.g. when a cached document is used instead.
+ * Instead of a plain file, the stream may read from an {@link
+ * Opener}, e.g. a decompressing stream. Then the bytes read are the
+ * uncompressed bytes.
+ */
+final class CountingFileInputStream extends InputStream {
+
+    /**
+     * Opens the underlying stream.
+     */
+    interface Opener {
+
+	InputStream open() throws IOException;
+
+    }
+
+    private final Opener opener;
+
+    private final String name;
+
+    private final LongAdder counter;
+
+    private final IOQuota quota;
+
+    private InputStream in = null;
+
+    private boolean closed = false;
+
+    CountingFileInputStream(File file, LongAdder counter) {
+	this(file, counter, null);
+    }
+
+    /**
+     * @param quota  the quota for the bytes read or <code>null</code>
+     */
+    CountingFileInputStream(File file, LongAdder counter, IOQuota quota) {
+	this(() -> new FileInputStream(file), file.toString(), counter, quota);
+    }
+
+    /**
+     * @param opener  opens the underlying stream on the first read
+     * @param name  the name of the stream for error messages
+     * @param quota  the quota for the bytes read or <code>null</code>
+     */
+    CountingFileInputStream(Opener opener, String name, LongAdder counter, IOQuota quota) {
+	this.opener = opener;
+	this.name = name;
+	this.counter = counter;
+	this.quota = quota;
+    }
+
+    private InputStream open() throws IOException {
+	if (closed) {
+	    throw new IOException("stream closed: " + name);
+	}
+	if (in == null) {
+	    in = opener.open();
+	}
+	return in;
+    }
+
+    @Override
+    public int read() throws IOException {
+	int b = open().read();
+	if (b >= 0) {
+	    counter.increment();
+	    if (quota != null) {
+		quota.readFromStream(1);
+	    }
+	}
+	return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+	int n = open().read(b, off, len);
+	if (n > 0) {
+	    counter.add(n);
+	    if (quota != null) {
+		quota.readFromStream(n);
+	    }
+	}
+	return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+	return open().skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+	return open().available();
+    }
+
+    @Override
+    public void close() throws IOException {
+	closed = true;
+	if (in != null) {
+	    in.close();
+	}
+    }
+
+}
@@ -0,0 +1,186 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded, lock-striped LRU cache of the decisions of {@link
+ * FilesystemFilter#check(String, String)}, keyed by href and base.<P>
+ *
+ * The cache is split into segments, each of which is an access
+ * ordered {@link LinkedHashMap} guarded by its own lock. So threads
+ * only contend when they hit the same segment. The least recently
+ * used entry of a segment is evicted, when the segment is full. The
+ * capacity is split among the segments, so that the cache never holds
+ * more than its capacity. A cache with a capacity below 16 has fewer
+ * segments.<P>
+ *
+ * A cache belongs to a single {@link FilesystemFilter}. Since a
+ * filter is immutable, a changed set of allowed locations means a new
+ * filter with a new and empty cache.
+ */
+public final class DecisionCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final int SEGMENT_SHIFT = 28;
+
+    private final Segment[] segments;
+
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param capacity  the maximum number of cached decisions
+     */
+    public DecisionCache(int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("capacity must be positive");
+	}
+	this.capacity = capacity;
+	// a power of two, so that the segment is selected by a mask
+	int count = Integer.highestOneBit(Math.min(SEGMENTS, capacity));
+	segments = new Segment[count];
+	for (int i = 0; i < count; i++) {
+	    segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+	}
+    }
+
+    /**
+     * Returns the cached decision for href and base or
+     * <code>null</code> if there is none.
+     */
+    public Boolean get(String href, String base) {
+	Key key = new Key(href, base);
+	Segment segment = segmentFor(key);
+	Boolean decision;
+	synchronized (segment) {
+	    decision = segment.get(key);
+	}
+	if (decision == null) {
+	    misses.increment();
+	} else {
+	    hits.increment();
+	}
+	return decision;
+    }
+
+    /**
+     * Cache a decision for href and base.
+     */
+    public void put(String href, String base, boolean decision) {
+	Key key = new Key(href, base);
+	Segment segment = segmentFor(key);
+	synchronized (segment) {
+	    segment.put(key, decision);
+	}
+    }
+
+    /**
+     * Remove all cached decisions. The counters are kept.
+     */
+    public void clear() {
+	for (Segment segment : segments) {
+	    synchronized (segment) {
+		segment.clear();
+	    }
+	}
+    }
+
+    /**
+     * Returns the current number of cached decisions.
+     */
+    public int size() {
+	int size = 0;
+	for (Segment segment : segments) {
+	    synchronized (segment) {
+		size += segment.size();
+	    }
+	}
+	return size;
+    }
+
+    /**
+     * Returns the maximum number of cached decisions.
+     */
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Returns the number of lookups that found a cached decision.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that found no cached decision.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    private Segment segmentFor(Key key) {
+	// use the high bits, the low bits are used inside the segment
+	return segments[(key.hash >>> SEGMENT_SHIFT) & (segments.length - 1)];
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, Boolean> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int capacity;
+
+	Segment(int capacity) {
+	    super(16, 0.75f, true);
+	    this.capacity = capacity;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+	    return size() > capacity;
+	}
+    }
+
+    private static final class Key {
+
+	private final String href;
+
+	private final String base;
+
+	private final int hash;
+
+	Key(String href, String base) {
+	    this.href = href;
+	    this.base = base;
+	    int h = 31 * href.hashCode() + base.hashCode();
+	    this.hash = h ^ (h >>> 16);
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    if (this == other) {
+		return true;
+	    } else if (!(other instanceof Key)) {
+		return false;
+	    } else {
+		Key key = (Key) other;
+		return hash == key.hash && href.equals(key.href) && base.equals(key.base);
+	    }
+	}
+    }
+
+}
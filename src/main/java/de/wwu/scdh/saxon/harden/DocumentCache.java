@@ -0,0 +1,198 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NodeInfo;
+
+
+/**
+ * A cache of parsed documents, that is shared across
+ * transformations. Entries are keyed by URI and stamped with the
+ * modification time and the size of the file they were parsed
+ * from. An entry is only returned, if the stamp is still the same and
+ * if the document was built by a compatible {@link Configuration}.<P>
+ *
+ * The cache has a memory budget. Each document is weighted by the
+ * size of its source file, which is an estimate of the memory used by
+ * the tree. The least recently used documents are evicted, when the
+ * total weight exceeds the budget. Documents heavier than the budget
+ * are not admitted.<P>
+ *
+ * The cache does not check access permissions. That's up to the
+ * caller, see {@link CachingHardenedURIResolver}.
+ */
+public final class DocumentCache {
+
+    /**
+     * The name of the system property for the memory budget of the
+     * shared cache in bytes.
+     */
+    public static final String BUDGET_PROPERTY = DocumentCache.class.getName() + ".budget";
+
+    /**
+     * The default memory budget of the shared cache: 256 MiB.
+     */
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private static DocumentCache shared = null;
+
+    private final long budget;
+
+    private long weight = 0;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param budget  the memory budget in bytes
+     */
+    public DocumentCache(long budget) {
+	if (budget <= 0) {
+	    throw new IllegalArgumentException("budget must be positive");
+	}
+	this.budget = budget;
+    }
+
+    /**
+     * Returns the process-wide cache. Its budget is taken from the
+     * system property {@link BUDGET_PROPERTY}.
+     */
+    public static synchronized DocumentCache getSharedCache() {
+	if (shared == null) {
+	    shared = new DocumentCache(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+	}
+	return shared;
+    }
+
+    /**
+     * Returns the cached document for the URI, if it was built from a
+     * file with the given modification time and size by a compatible
+     * configuration, or <code>null</code> otherwise.
+     *
+     * @param uri  the URI of the document
+     * @param modified  the modification time of the file
+     * @param size  the size of the file
+     * @param config  the configuration, the document will be used with
+     */
+    public NodeInfo get(String uri, long modified, long size, Configuration config) {
+	Entry entry;
+	synchronized (this) {
+	    entry = entries.get(uri);
+	}
+	if (entry != null
+	    && entry.modified == modified
+	    && entry.size == size
+	    && entry.document.getConfiguration().isCompatible(config)) {
+	    hits.increment();
+	    return entry.document;
+	} else {
+	    misses.increment();
+	    return null;
+	}
+    }
+
+    /**
+     * Add a document to the cache. Documents heavier than the budget
+     * are not admitted.
+     *
+     * @param uri  the URI of the document
+     * @param modified  the modification time of the file
+     * @param size  the size of the file, which is used as its weight
+     * @param document  the root node of the document
+     */
+    public void put(String uri, long modified, long size, NodeInfo document) {
+	if (size > budget) {
+	    return;
+	}
+	synchronized (this) {
+	    Entry old = entries.put(uri, new Entry(document, modified, size));
+	    if (old != null) {
+		weight -= old.size;
+	    }
+	    weight += size;
+	    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+	    while (weight > budget && eldest.hasNext()) {
+		weight -= eldest.next().getValue().size;
+		eldest.remove();
+		evictions.increment();
+	    }
+	}
+    }
+
+    /**
+     * Remove all documents from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+	entries.clear();
+	weight = 0;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     */
+    public synchronized int size() {
+	return entries.size();
+    }
+
+    /**
+     * Returns the total weight of the cached documents.
+     */
+    public synchronized long getWeight() {
+	return weight;
+    }
+
+    /**
+     * Returns the memory budget.
+     */
+    public long getBudget() {
+	return budget;
+    }
+
+    /**
+     * Returns the number of lookups that found a usable document.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that found no usable document.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    /**
+     * Returns the number of documents evicted to stay within the budget.
+     */
+    public long getEvictions() {
+	return evictions.sum();
+    }
+
+    private static final class Entry {
+
+	final NodeInfo document;
+
+	final long modified;
+
+	final long size;
+
+	Entry(NodeInfo document, long modified, long size) {
+	    this.document = document;
+	    this.modified = modified;
+	    this.size = size;
+	}
+    }
+
+}
@@ -0,0 +1,193 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+
+/**
+ * A {@link Reader} that decodes the content of a {@link FileChannel}
+ * directly from NIO byte buffers into the caller's character
+ * array. Large files are memory-mapped region by region, smaller
+ * files are read through a direct buffer. There are no intermediate
+ * byte arrays on the heap.<P>
+ *
+ * The decoder is used as given. So the handling of malformed input,
+ * byte order marks etc. is the same as with an {@link
+ * java.io.InputStreamReader} using the same decoder.
+ *
+ * @see HardenedUnparsedTextResolver
+ */
+final class FileChannelReader extends Reader {
+
+    /**
+     * Size of the direct buffer for reading files that are not mapped.
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Minimal size of the direct buffer, that holds the longest
+     * incomplete character sequence.
+     */
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    /**
+     * Maximum size of a mapped region.
+     */
+    static final long REGION_SIZE = 1L << 28;
+
+    private final FileChannel channel;
+
+    private final CharsetDecoder decoder;
+
+    private final boolean mapped;
+
+    private final long regionSize;
+
+    private final long size;
+
+    private ByteBuffer bytes;
+
+    /**
+     * The position of the current mapped region in the file.
+     */
+    private long regionStart = 0;
+
+    private boolean endOfInput = false;
+
+    private boolean flushed = false;
+
+    /**
+     * A decoded character, that did not fit into the caller's array.
+     */
+    private int pending = -1;
+
+    private final char[] pair = new char[2];
+
+    /**
+     * Make a reader for a channel.
+     *
+     * @param channel  an open channel positioned at 0
+     * @param decoder  the decoder for the encoding of the file
+     * @param mapped  whether to use memory mapping
+     */
+    FileChannelReader(FileChannel channel, CharsetDecoder decoder, boolean mapped) throws IOException {
+	this(channel, decoder, mapped, REGION_SIZE);
+    }
+
+    FileChannelReader(FileChannel channel, CharsetDecoder decoder, boolean mapped, long regionSize)
+	throws IOException {
+	this.channel = channel;
+	this.decoder = decoder;
+	this.mapped = mapped;
+	this.regionSize = regionSize;
+	this.size = channel.size();
+	if (mapped) {
+	    this.bytes = ByteBuffer.allocate(0);
+	} else {
+	    this.bytes = ByteBuffer.allocateDirect((int) Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, size + 1)));
+	    this.bytes.flip();
+	}
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+	if (bytes == null) {
+	    throw new IOException("reader closed");
+	} else if (len == 0) {
+	    return 0;
+	}
+	int count = 0;
+	if (pending >= 0) {
+	    cbuf[off] = (char) pending;
+	    pending = -1;
+	    off++;
+	    len--;
+	    count++;
+	    if (len == 0) {
+		return count;
+	    }
+	}
+	if (len == 1) {
+	    // a surrogate pair does not fit into a single char
+	    int n = decode(pair, 0, 2);
+	    if (n <= 0) {
+		return count > 0 ? count : n;
+	    }
+	    cbuf[off] = pair[0];
+	    if (n == 2) {
+		pending = pair[1];
+	    }
+	    return count + 1;
+	}
+	int n = decode(cbuf, off, len);
+	if (n < 0) {
+	    return count > 0 ? count : n;
+	}
+	return count + n;
+    }
+
+    /**
+     * Decode into the given array, which has room for at least two
+     * characters.
+     *
+     * @return the number of characters or -1 at the end of the file
+     */
+    private int decode(char[] cbuf, int off, int len) throws IOException {
+	CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+	while (!flushed) {
+	    CoderResult result = decoder.decode(bytes, out, endOfInput);
+	    if (result.isError()) {
+		result.throwException();
+	    } else if (result.isOverflow()) {
+		break;
+	    } else if (endOfInput) {
+		if (decoder.flush(out).isOverflow()) {
+		    break;
+		}
+		flushed = true;
+	    } else {
+		refill();
+	    }
+	}
+	int n = out.position() - off;
+	return n == 0 && flushed ? -1 : n;
+    }
+
+    /**
+     * Get more bytes. Remaining bytes, e.g. an incomplete multi-byte
+     * sequence, are kept at the start of the buffer.
+     */
+    private void refill() throws IOException {
+	if (mapped) {
+	    if (regionStart + bytes.limit() >= size) {
+		// the current region reaches the end of the file
+		endOfInput = true;
+	    } else {
+		long next = regionStart + bytes.position();
+		// the region must extend beyond an incomplete sequence
+		long length = Math.max(regionSize, bytes.remaining() + 1L);
+		bytes = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(length, size - next));
+		regionStart = next;
+	    }
+	} else {
+	    bytes.compact();
+	    int n = channel.read(bytes);
+	    bytes.flip();
+	    if (n < 0) {
+		endOfInput = true;
+	    }
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	bytes = null;
+	channel.close();
+    }
+
+}
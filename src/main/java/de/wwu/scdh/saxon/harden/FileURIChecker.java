@@ -0,0 +1,317 @@
+package de.wwu.scdh.saxon.harden;
+
+
+/**
+ * A checker for file URIs that works directly on the characters of
+ * href and base. It resolves the href against the base and normalizes
+ * <code>.</code> and <code>..</code> segments in reusable buffers, so
+ * that a check does not allocate. Invalid input is reported by a
+ * return code, not by an exception.<P>
+ *
+ * The checker gives the same decisions as the {@link java.net.URI}
+ * based implementation in {@link FilesystemFilter}, but it only
+ * decides the common cases: absolute and relative paths and
+ * <code>file:</code> URIs without authority, query, fragment or
+ * percent-encoded characters. Input, that is certainly not a valid
+ * URI, is reported as {@link INVALID}. For everything else, it
+ * returns {@link UNDECIDED}, and the caller has to fall back to the
+ * {@link java.net.URI} based check.<P>
+ *
+ * A checker is not thread-safe because of its buffers. Get one per
+ * thread from {@link FilesystemFilter#newChecker()}.
+ */
+public final class FileURIChecker {
+
+    /**
+     * The resolved href is a file under an allowed location.
+     */
+    public static final int ALLOWED = 1;
+
+    /**
+     * The resolved href is a file outside of the allowed locations.
+     */
+    public static final int DENIED = 0;
+
+    /**
+     * Href or base are not valid URIs.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * The checker cannot decide. Use the {@link java.net.URI} based
+     * check instead.
+     */
+    public static final int UNDECIDED = -2;
+
+    /**
+     * Returned by {@link scan(CharSequence)} if the characters can be handled.
+     */
+    private static final int HANDLED = 2;
+
+    private static final String FILE_SCHEME = "file:";
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final PathTrie index;
+
+    /**
+     * The base path up to its last slash followed by the href path.
+     */
+    private final StringBuilder merged = new StringBuilder(INITIAL_CAPACITY);
+
+    /**
+     * The normalized path.
+     */
+    private final StringBuilder normalized = new StringBuilder(INITIAL_CAPACITY);
+
+    /**
+     * The start positions of the segments in {@link normalized}.
+     */
+    private int[] segments = new int[32];
+
+    FileURIChecker(PathTrie index) {
+	this.index = index;
+    }
+
+    /**
+     * Resolve href against base and check if the result is allowed.
+     *
+     * @param href  the reference to be checked
+     * @param base  the base URI to be used to resolve a relative href
+     *
+     * @return {@link ALLOWED}, {@link DENIED}, {@link INVALID} or {@link UNDECIDED}
+     */
+    public int check(CharSequence href, CharSequence base) {
+	if (href == null || base == null) {
+	    return INVALID;
+	}
+	int rc = scan(href);
+	if (rc != HANDLED) {
+	    return rc;
+	}
+	rc = scan(base);
+	if (rc != HANDLED) {
+	    return rc;
+	}
+
+	// start of the path in base
+	int basePath = pathStart(base);
+	if (basePath < 0) {
+	    return basePath;
+	} else if (!isAbsolutePath(base, basePath)) {
+	    // relative base or base with authority
+	    return UNDECIDED;
+	}
+
+	// start of the path in href
+	int hrefPath = pathStart(href);
+	if (hrefPath < 0) {
+	    return hrefPath;
+	}
+
+	merged.setLength(0);
+	if (isAbsolutePath(href, hrefPath)) {
+	    merged.append(href, hrefPath, href.length());
+	} else if (hrefPath > 0) {
+	    // relative path after a scheme: opaque URI
+	    return UNDECIDED;
+	} else if (href.length() > 1 && href.charAt(0) == '/' && href.charAt(1) == '/') {
+	    // network-path reference with authority
+	    return UNDECIDED;
+	} else {
+	    // relative reference: merge with the base path
+	    int lastSlash = lastIndexOf(base, '/');
+	    merged.append(base, basePath, lastSlash + 1);
+	    merged.append(href);
+	}
+
+	normalize(merged);
+	if (index.matchesPrefix(normalized)) {
+	    return ALLOWED;
+	} else {
+	    return DENIED;
+	}
+    }
+
+    /**
+     * Returns the normalized path of the last check, that returned
+     * {@link ALLOWED} or {@link DENIED}. The characters are only valid
+     * until the next check.
+     */
+    public CharSequence getPath() {
+	return normalized;
+    }
+
+    /**
+     * Scan for characters, that are never allowed in URIs or that are
+     * not handled by this checker.
+     *
+     * @return {@link HANDLED} if all characters are handled, {@link INVALID} or {@link UNDECIDED}
+     */
+    private static int scan(CharSequence chars) {
+	int length = chars.length();
+	for (int i = 0; i < length; i++) {
+	    char c = chars.charAt(i);
+	    if (isPathChar(c)) {
+		continue;
+	    } else if (c == '%') {
+		// percent-encoded characters are decoded in the
+		// scheme specific part: leave it to java.net.URI,
+		// unless it is a malformed escape
+		if (i + 2 < length && isHex(chars.charAt(i + 1)) && isHex(chars.charAt(i + 2))) {
+		    return UNDECIDED;
+		} else {
+		    return INVALID;
+		}
+	    } else if (c <= ' ' || c == 0x7f
+		       || c == '"' || c == '<' || c == '>' || c == '\\'
+		       || c == '^' || c == '`' || c == '{' || c == '|' || c == '}') {
+		// not allowed anywhere in a URI
+		return INVALID;
+	    } else if (c > 0x7f && (Character.isISOControl(c) || Character.isSpaceChar(c))) {
+		return INVALID;
+	    } else {
+		// query, fragment, IPv6 brackets and other characters
+		return UNDECIDED;
+	    }
+	}
+	return HANDLED;
+    }
+
+    /**
+     * Returns the start of the path, i.e. 0 if there is no scheme or
+     * 5 for <code>file:</code>. Returns {@link INVALID} for a
+     * malformed scheme and {@link UNDECIDED} for other schemes.
+     */
+    private static int pathStart(CharSequence chars) {
+	int length = chars.length();
+	for (int i = 0; i < length; i++) {
+	    char c = chars.charAt(i);
+	    if (c == '/') {
+		// no scheme
+		return 0;
+	    } else if (c == ':') {
+		if (i == 0 || !isSchemeName(chars, i)) {
+		    return INVALID;
+		} else if (i + 1 == length) {
+		    // empty scheme specific part
+		    return INVALID;
+		} else if (i == FILE_SCHEME.length() - 1 && startsWith(chars, FILE_SCHEME)) {
+		    return i + 1;
+		} else {
+		    return UNDECIDED;
+		}
+	    }
+	}
+	return 0;
+    }
+
+    /**
+     * Normalize an absolute path like {@link java.net.URI#normalize()}
+     * does: remove <code>.</code> segments, remove segments followed
+     * by <code>..</code> and collapse redundant slashes. Leading
+     * <code>..</code> segments are kept.
+     */
+    private void normalize(CharSequence path) {
+	StringBuilder out = normalized;
+	out.setLength(0);
+	int depth = 0;
+	boolean dotLast = false;
+	int length = path.length();
+	int i = 0;
+	while (i < length) {
+	    if (path.charAt(i) == '/') {
+		i++;
+		continue;
+	    }
+	    int end = i;
+	    while (end < length && path.charAt(end) != '/') {
+		end++;
+	    }
+	    int segmentLength = end - i;
+	    if (segmentLength == 1 && path.charAt(i) == '.') {
+		dotLast = true;
+	    } else if (segmentLength == 2 && path.charAt(i) == '.' && path.charAt(i + 1) == '.'
+		       && depth > 0 && !isDotDot(out, segments[depth - 1])) {
+		depth--;
+		out.setLength(segments[depth]);
+		dotLast = true;
+	    } else {
+		if (depth == segments.length) {
+		    int[] grown = new int[segments.length * 2];
+		    System.arraycopy(segments, 0, grown, 0, segments.length);
+		    segments = grown;
+		}
+		segments[depth++] = out.length();
+		out.append('/');
+		out.append(path, i, end);
+		dotLast = false;
+	    }
+	    i = end;
+	}
+	if (depth == 0 || dotLast || path.charAt(length - 1) == '/') {
+	    out.append('/');
+	}
+    }
+
+    private static boolean isDotDot(StringBuilder out, int segmentStart) {
+	return out.length() - segmentStart == 3
+	    && out.charAt(segmentStart + 1) == '.'
+	    && out.charAt(segmentStart + 2) == '.';
+    }
+
+    private static boolean isAbsolutePath(CharSequence chars, int start) {
+	return start < chars.length()
+	    && chars.charAt(start) == '/'
+	    && (start + 1 == chars.length() || chars.charAt(start + 1) != '/');
+    }
+
+    private static boolean isPathChar(char c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+	    || c == '/' || c == '-' || c == '_' || c == '.' || c == '~'
+	    || c == '!' || c == '*' || c == '\'' || c == '(' || c == ')'
+	    || c == ';' || c == ':' || c == '@' || c == '&' || c == '='
+	    || c == '+' || c == '$' || c == ',';
+    }
+
+    private static boolean isSchemeName(CharSequence chars, int end) {
+	char first = chars.charAt(0);
+	if (!((first >= 'a' && first <= 'z') || (first >= 'A' && first <= 'Z'))) {
+	    return false;
+	}
+	for (int i = 1; i < end; i++) {
+	    char c = chars.charAt(i);
+	    if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+		  || c == '+' || c == '-' || c == '.')) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean isHex(char c) {
+	return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean startsWith(CharSequence chars, String prefix) {
+	if (chars.length() < prefix.length()) {
+	    return false;
+	}
+	for (int i = 0; i < prefix.length(); i++) {
+	    if (chars.charAt(i) != prefix.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static int lastIndexOf(CharSequence chars, char c) {
+	for (int i = chars.length() - 1; i >= 0; i--) {
+	    if (chars.charAt(i) == c) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+}
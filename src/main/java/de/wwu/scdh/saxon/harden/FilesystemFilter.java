@@ -1,9 +1,17 @@
 package de.wwu.scdh.saxon.harden;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.sf.saxon.functions.ResolveURI;
 import net.sf.saxon.lib.Logger;
 import net.sf.saxon.lib.StandardLogger;
 
@@ -11,9 +19,30 @@ import net.sf.saxon.lib.StandardLogger;
 /**
  * A filter that restricts access to the file system to a specific
  * paths given by configuration. Requests to URI schemes other than
- * <code>file</code> will pass the check. URIs without a specified
- * scheme will be treated as in the file scheme.
+ * <code>file</code> will pass the check, unless a shared {@link
+ * RemotePolicy} was set, when the filter was made. URIs without a
+ * specified scheme will be treated as in the file scheme. Entries of
+ * local archives, i.e. <code>jar:file:...!/entry</code> URIs, are
+ * decided on the path of the archive and are never writable.<P>
  *
+ * Besides allowed locations, which allow reading and writing
+ * everything below them, the configuration may contain access rules.
+ * A rule is a path pattern, optionally prefixed by one of {@link
+ * READ_PREFIX}, {@link WRITE_PREFIX}, {@link DENY_PREFIX}, {@link
+ * DENY_READ_PREFIX} or {@link DENY_WRITE_PREFIX}, e.g.
+ * <code>read:~/corpus/**&#47;*.xml</code> or
+ * <code>write:/scratch/*&#47;out/**</code>. A pattern without prefix
+ * allows reading and writing. In patterns, <code>?</code> and
+ * <code>*</code> match characters within a segment and
+ * <code>**</code> matches any number of segments. A pattern without
+ * these wildcards matches the file or directory itself and
+ * everything below it. A path is allowed for an {@link AccessMode},
+ * if it is under an allowed location or matches a rule allowing the
+ * mode, and if it matches no rule denying the mode. So deny rules
+ * override everything else.<P>
+ *
+ * All rules are compiled into a single automaton, see {@link
+ * PathRules}.
  */
 public class FilesystemFilter {
 
@@ -22,12 +51,98 @@ public class FilesystemFilter {
      */
     private final String allowedLocations[];
 
+    /**
+     * An index of the allowed locations for fast lookup.
+     */
+    private final PathTrie index = new PathTrie();
+
+    /**
+     * The access rules in normalized form.
+     */
+    private final String accessRules[];
+
+    /**
+     * The compiled access rules, or null if there are none.
+     */
+    private final PathRules rules;
+
+    /**
+     * An optional cache of decisions on href and base, or null.
+     */
+    private final DecisionCache cache;
+
+    /**
+     * The cache of decisions on write access. It is the same as
+     * {@link cache}, if there are no rules.
+     */
+    private final DecisionCache writeCache;
+
+    /**
+     * An optional cache for resolving symbolic links, or null.
+     */
+    private final CanonicalPathCache canonicalizer;
+
+    /**
+     * The policy for URIs in other schemes, or null.
+     */
+    private final RemotePolicy remote = RemotePolicy.getShared();
+
+    /**
+     * A checker per thread for the allocation-free fast path.
+     */
+    private final ThreadLocal<FileURIChecker> checker = new ThreadLocal<FileURIChecker>() {
+	    @Override
+	    protected FileURIChecker initialValue() {
+		return newChecker();
+	    }
+	};
+
     public static final String SEPARATOR = ",";
 
     public static final String PROPERTY = FilesystemFilter.class.getName();
 
     public static final String ENVIRON = "SAXON_ALLOWED_PATHS";
 
+    public static final String CACHE_SIZE_PROPERTY = PROPERTY + ".cacheSize";
+
+    public static final String CACHE_SIZE_ENVIRON = "SAXON_ALLOWED_PATHS_CACHE_SIZE";
+
+    public static final String CANONICAL_TTL_PROPERTY = PROPERTY + ".canonicalTtl";
+
+    public static final String CANONICAL_TTL_ENVIRON = "SAXON_ALLOWED_PATHS_CANONICAL_TTL";
+
+    /**
+     * Prefix of a rule allowing read access.
+     */
+    public static final String READ_PREFIX = "read:";
+
+    /**
+     * Prefix of a rule allowing write access.
+     */
+    public static final String WRITE_PREFIX = "write:";
+
+    /**
+     * Prefix of a rule denying read and write access.
+     */
+    public static final String DENY_PREFIX = "deny:";
+
+    /**
+     * Prefix of a rule denying read access.
+     */
+    public static final String DENY_READ_PREFIX = "deny-read:";
+
+    /**
+     * Prefix of a rule denying write access.
+     */
+    public static final String DENY_WRITE_PREFIX = "deny-write:";
+
+    private static final String[] RULE_PREFIXES =
+    { READ_PREFIX, WRITE_PREFIX, DENY_PREFIX, DENY_READ_PREFIX, DENY_WRITE_PREFIX };
+
+    private static final int[] RULE_FLAGS =
+    { PathRules.READ_ALLOWED, PathRules.WRITE_ALLOWED,
+      PathRules.READ_DENIED | PathRules.WRITE_DENIED, PathRules.READ_DENIED, PathRules.WRITE_DENIED };
+
     private static final Logger LOG = new StandardLogger();
 
     /**
@@ -36,6 +151,11 @@ public class FilesystemFilter {
     public FilesystemFilter() {
 	String empty[] = {};
 	this.allowedLocations = empty;
+	this.accessRules = empty;
+	this.rules = null;
+	this.cache = null;
+	this.writeCache = null;
+	this.canonicalizer = null;
 	notifyEmpty();
     }
 
@@ -47,55 +167,271 @@ public class FilesystemFilter {
      * healty URIs internally. Relative paths are converted to
      * absolute paths.
      *
-     * <code>~</code> can be used to point to the user's home directory.
+     * <code>~</code> can be used to point to the user's home directory.<P>
+     *
+     * Entries, that start with a rule prefix or contain wildcards,
+     * are access rules, see above.
      *
      * @param allowedLocations  locations (paths) on the file system allowed for read and write access
      */
     public FilesystemFilter (String[] allowedLocations) throws FilesystemFilterException {
+	this(allowedLocations, 0);
+    }
 
-	if (allowedLocations == null) {
-	    throw new FilesystemFilterException("allowedLocations may not be null");
+    /**
+     * Like {@link FilesystemFilter(String[])}, but with a cache of
+     * decisions made by {@link check(String, String)}. The cache
+     * holds up to <code>cacheSize</code> decisions. It is dropped
+     * together with this filter, so it never outlives the set of
+     * allowed locations it was made for.
+     *
+     * @param allowedLocations  locations (paths) on the file system allowed for read and write access
+     * @param cacheSize  maximum number of cached decisions, 0 for no cache
+     */
+    public FilesystemFilter (String[] allowedLocations, int cacheSize) throws FilesystemFilterException {
+	this(allowedLocations, cacheSize, 0);
+    }
+
+    /**
+     * Like {@link FilesystemFilter(String[], int)}, but optionally in
+     * canonicalization mode: A file URI, that passes the check of its
+     * normalized path, must also have its real path, i.e. the path
+     * with symbolic links resolved, under an allowed location. So a
+     * symbolic link inside of an allowed location can not point to
+     * somewhere else. The real paths of directories are cached for
+     * <code>canonicalTtl</code> milliseconds.<P>
+     *
+     * The real paths of the allowed locations are allowed, too.<P>
+     *
+     * In canonicalization mode, the cache of decisions is not used,
+     * since the real paths may change any time.
+     *
+     * @param allowedLocations  locations (paths) on the file system allowed for read and write access
+     * @param cacheSize  maximum number of cached decisions, 0 for no cache
+     * @param canonicalTtl  time to live of cached real paths in milliseconds, 0 for no canonicalization
+     */
+    public FilesystemFilter (String[] allowedLocations, int cacheSize, long canonicalTtl) throws FilesystemFilterException {
+
+	if (cacheSize < 0) {
+	    throw new FilesystemFilterException("cache size may not be negative");
+	} else if (cacheSize == 0 || canonicalTtl > 0) {
+	    this.cache = null;
 	} else {
-	    this.allowedLocations = new String[allowedLocations.length];
+	    this.cache = new DecisionCache(cacheSize);
 	}
 
-	if (allowedLocations.length == 0) {
-	    notifyEmpty();
+	if (canonicalTtl < 0) {
+	    throw new FilesystemFilterException("time to live may not be negative");
+	} else if (canonicalTtl == 0) {
+	    this.canonicalizer = null;
+	} else {
+	    this.canonicalizer = new CanonicalPathCache(canonicalTtl);
 	}
 
-	for (int i = 0; i < allowedLocations.length; i++) {
+	if (allowedLocations == null) {
+	    throw new FilesystemFilterException("allowedLocations may not be null");
+	}
+
+	List<String> locations = new ArrayList<>();
+	List<String> ruleEntries = new ArrayList<>();
+	PathRules pathRules = new PathRules();
 
-	    String location = allowedLocations[i];
+	for (String location : allowedLocations) {
 
 	    // check preconditions
 	    if (location == null) {
 		throw new FilesystemFilterException("configuration error: allowed location may not be null.");
-	    } else if (location.startsWith("file:")) {
-		throw new FilesystemFilterException("configuration error: allowed location may not start with 'file:'");
-	    } else if (location.isEmpty()) {
-		throw new FilesystemFilterException("configuration error: allowed location may not be the empty string");
 	    }
 
-	    if (location.startsWith("~")) {
-		location = System.getProperty("user.home") + location.substring(1);
+	    String prefix = rulePrefix(location);
+	    if (prefix != null) {
+		String pattern = normalizePattern(location.substring(prefix.length()));
+		addRule(pathRules, pattern, ruleFlags(prefix));
+		ruleEntries.add(prefix + pattern);
+		continue;
 	    }
 
-	    // make absolute
-	    File path = new File(location).getAbsoluteFile();
-	    // make URI and normalize
-	    URI uri = path.toURI().normalize();
 	    // store to field
-	    if (uri.getSchemeSpecificPart().endsWith("/")) {
-		// assert terminating path separator: a terminating
-		// slash makes the check method robust when an allowed
-		// path is the prefix of a non-allowed path
-		this.allowedLocations[i] = uri.getSchemeSpecificPart();
-	    } else {
-		this.allowedLocations[i] = uri.getSchemeSpecificPart() + "/";
+	    String allowed = toDirectory(location);
+	    locations.add(allowed);
+	    this.index.add(allowed);
+
+	    if (this.canonicalizer != null) {
+		try {
+		    this.index.add(toUriPath(toFile(location).toPath().toRealPath()) + "/");
+		} catch (IOException e) {
+		    // the location does not exist (yet)
+		}
+	    }
+	    // LOG.info(allowed + " added to allowed paths");
+	}
+
+	this.allowedLocations = locations.toArray(new String[locations.size()]);
+	this.accessRules = ruleEntries.toArray(new String[ruleEntries.size()]);
+	this.rules = pathRules.size() == 0 ? null : pathRules;
+	if (this.cache == null || this.rules == null) {
+	    this.writeCache = this.cache;
+	} else {
+	    this.writeCache = new DecisionCache(cacheSize);
+	}
+
+	if (this.allowedLocations.length == 0 && this.rules == null) {
+	    notifyEmpty();
+	}
+
+    }
+
+    /**
+     * Returns the normalized path of a location with a terminating
+     * slash.
+     */
+    private static String toDirectory(String location) throws FilesystemFilterException {
+	String path = toPath(location);
+	if (path.endsWith("/")) {
+	    return path;
+	} else {
+	    // assert terminating path separator: a terminating
+	    // slash makes the check method robust when an allowed
+	    // path is the prefix of a non-allowed path
+	    return path + "/";
+	}
+    }
+
+    /**
+     * Returns the normalized, absolute path of a location as it
+     * appears in a file URI.
+     */
+    private static String toPath(String location) throws FilesystemFilterException {
+	// make URI and normalize
+	URI uri = toFile(location).toURI().normalize();
+	return uri.getSchemeSpecificPart();
+    }
+
+    /**
+     * Returns the absolute file of a location.
+     */
+    private static File toFile(String location) throws FilesystemFilterException {
+	if (location.startsWith("file:")) {
+	    throw new FilesystemFilterException("configuration error: allowed location may not start with 'file:'");
+	} else if (location.isEmpty()) {
+	    throw new FilesystemFilterException("configuration error: allowed location may not be the empty string");
+	}
+
+	if (location.startsWith("~")) {
+	    location = System.getProperty("user.home") + location.substring(1);
+	}
+
+	// make absolute
+	return new File(location).getAbsoluteFile();
+    }
+
+    /**
+     * Returns the rule prefix of an entry, the empty string for a
+     * pattern without prefix or <code>null</code> if the entry is an
+     * allowed location.
+     */
+    private static String rulePrefix(String entry) {
+	for (String prefix : RULE_PREFIXES) {
+	    if (entry.startsWith(prefix)) {
+		return prefix;
+	    }
+	}
+	if (wildcard(entry) >= 0) {
+	    return "";
+	} else {
+	    return null;
+	}
+    }
+
+    private static int ruleFlags(String prefix) {
+	for (int i = 0; i < RULE_PREFIXES.length; i++) {
+	    if (RULE_PREFIXES[i].equals(prefix)) {
+		return RULE_FLAGS[i];
+	    }
+	}
+	return PathRules.READ_ALLOWED | PathRules.WRITE_ALLOWED;
+    }
+
+    /**
+     * Returns the position of the first wildcard or -1.
+     */
+    private static int wildcard(String pattern) {
+	for (int i = 0; i < pattern.length(); i++) {
+	    char c = pattern.charAt(i);
+	    if (c == '*' || c == '?') {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Make a pattern absolute and normalize the part before the first
+     * wildcard like an allowed location. The part after it must not
+     * contain <code>.</code> or <code>..</code> segments.
+     */
+    private static String normalizePattern(String pattern) throws FilesystemFilterException {
+	if (pattern.startsWith("~")) {
+	    pattern = System.getProperty("user.home") + pattern.substring(1);
+	}
+	int wildcard = wildcard(pattern);
+	if (wildcard < 0) {
+	    String path = toPath(pattern);
+	    return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+	int slash = Math.max(pattern.lastIndexOf('/', wildcard), pattern.lastIndexOf(File.separatorChar, wildcard));
+	String directory = slash < 0 ? "." : pattern.substring(0, slash + 1);
+	String rest = pattern.substring(slash + 1).replace(File.separatorChar, '/');
+	for (String segment : rest.split("/")) {
+	    if (segment.equals(".") || segment.equals("..")) {
+		throw new FilesystemFilterException("configuration error: relative segment after wildcard in rule '"
+						    + pattern + "'");
 	    }
-	    // LOG.info(uri.getRawSchemeSpecificPart() + " added to allowed paths");
 	}
+	if (rest.endsWith("/")) {
+	    rest = rest + "**";
+	}
+	return toDirectory(directory) + rest;
+    }
 
+    /**
+     * Compile a normalized pattern. In canonicalization mode, the
+     * pattern is compiled with the real path of its part before the
+     * first wildcard, too.
+     */
+    private void addRule(PathRules pathRules, String pattern, int flags) throws FilesystemFilterException {
+	addPattern(pathRules, pattern, flags);
+	if (this.canonicalizer == null) {
+	    return;
+	}
+	int wildcard = wildcard(pattern);
+	int end = wildcard < 0 ? pattern.length() : pattern.lastIndexOf('/', wildcard);
+	try {
+	    String real = toUriPath(Paths.get(end == 0 ? "/" : pattern.substring(0, end)).toRealPath());
+	    if (!real.equals(pattern.substring(0, end))) {
+		addPattern(pathRules, real + pattern.substring(end), flags);
+	    }
+	} catch (IOException e) {
+	    // the location does not exist (yet)
+	} catch (InvalidPathException e) {
+	    // not a local path
+	}
+    }
+
+    private static void addPattern(PathRules pathRules, String pattern, int flags) throws FilesystemFilterException {
+	try {
+	    if (wildcard(pattern) >= 0) {
+		pathRules.add(pattern, flags);
+	    } else if (pattern.equals("/")) {
+		pathRules.add("/**", flags);
+	    } else {
+		// the file or directory itself and everything below
+		pathRules.add(pattern, flags);
+		pathRules.add(pattern + "/**", flags);
+	    }
+	} catch (IllegalArgumentException e) {
+	    throw new FilesystemFilterException("configuration error: " + e.getMessage(), e);
+	}
     }
 
     /**
@@ -113,7 +449,7 @@ public class FilesystemFilter {
      */
     public static FilesystemFilter fromPropertiesOrEnvironment() {
 	try {
-	    return new FilesystemFilter(getPropOrEnv());
+	    return new FilesystemFilter(getPropOrEnv(), getCacheSize(), getCanonicalTtl());
 	} catch (FilesystemFilterException e) {
 	    LOG.error(e.getMessage());
 	    return new FilesystemFilter();
@@ -135,6 +471,45 @@ public class FilesystemFilter {
 	}
     }
 
+    /**
+     * Get the size of the decision cache from a system property or
+     * environment variable. The default is 0, i.e. no cache.
+     */
+    protected static int getCacheSize() throws FilesystemFilterException {
+	String size = System.getProperty(CACHE_SIZE_PROPERTY);
+	if (size == null) {
+	    size = System.getenv(CACHE_SIZE_ENVIRON);
+	}
+	if (size == null) {
+	    return 0;
+	}
+	try {
+	    return Integer.parseInt(size.trim());
+	} catch (NumberFormatException e) {
+	    throw new FilesystemFilterException("configuration error: invalid cache size '" + size + "'", e);
+	}
+    }
+
+    /**
+     * Get the time to live of cached real paths from a system
+     * property or environment variable. The default is 0, i.e. no
+     * canonicalization.
+     */
+    protected static long getCanonicalTtl() throws FilesystemFilterException {
+	String ttl = System.getProperty(CANONICAL_TTL_PROPERTY);
+	if (ttl == null) {
+	    ttl = System.getenv(CANONICAL_TTL_ENVIRON);
+	}
+	if (ttl == null) {
+	    return 0;
+	}
+	try {
+	    return Long.parseLong(ttl.trim());
+	} catch (NumberFormatException e) {
+	    throw new FilesystemFilterException("configuration error: invalid time to live '" + ttl + "'", e);
+	}
+    }
+
     /**
      * Notify users that no allowed paths are configured.
      */
@@ -156,18 +531,78 @@ public class FilesystemFilter {
 	return this.allowedLocations;
     }
 
+    /**
+     * Returns the access rules in normalized form, i.e. with absolute
+     * patterns.
+     */
+    public String[] getAccessRules() {
+	return this.accessRules.clone();
+    }
+
+    /**
+     * Returns the cache of decisions or <code>null</code> if there is
+     * no cache.
+     */
+    public DecisionCache getDecisionCache() {
+	return this.cache;
+    }
+
+    /**
+     * Returns the cache of real paths used in canonicalization mode
+     * or <code>null</code> if not in canonicalization mode.
+     */
+    public CanonicalPathCache getCanonicalPathCache() {
+	return this.canonicalizer;
+    }
+
+    /**
+     * Returns the policy for URIs, that are not in the
+     * <code>file</code> scheme, or <code>null</code> if they pass the
+     * check.
+     */
+    public RemotePolicy getRemotePolicy() {
+	return this.remote;
+    }
+
+    /**
+     * Returns a new {@link FileURIChecker} for the allowed locations
+     * of this filter. The checker must not be shared between threads.
+     */
+    public FileURIChecker newChecker() {
+	return new FileURIChecker(this.index);
+    }
+
     /**
      * Check if the given absolute {@link URI} is allowed. URIs in the
      * file system scheme will pass the check if the file is under one
      * of the allowed paths.  All relative file URIs will fail.  If
      * there is no scheme given for the URI, then it is treated as a
-     * file URI.  All other URIs will pass the check.
+     * file URI.  All other URIs will pass the check, unless there is
+     * a {@link RemotePolicy}.<P>
+     *
+     * This checks read access. See {@link check(URI, AccessMode)}.
      *
      * @param absolute  {@link URI} to check
      *
-     * @return false if and only if a file URI pointing outside of allowed locations
+     * @return false if and only if a file URI pointing outside of allowed locations or a remote URI not allowed
      */
     public boolean check(URI absolute) {
+	return check(absolute, AccessMode.READ);
+    }
+
+    /**
+     * Like {@link check(URI)}, but for the given access mode. File
+     * URIs pass the check, if the file is under an allowed location
+     * or matches a rule allowing the mode, and if it matches no rule
+     * denying the mode. {@link AccessMode.EXECUTE} is never allowed
+     * for file URIs.
+     *
+     * @param absolute  {@link URI} to check
+     * @param mode  {@link AccessMode.READ} or {@link AccessMode.WRITE}
+     *
+     * @return false if and only if a file URI not allowed for the mode or a remote URI not allowed
+     */
+    public boolean check(URI absolute, AccessMode mode) {
 
 	try {
 
@@ -190,18 +625,18 @@ public class FilesystemFilter {
 		    // relative URIs fail the check
 		    return false;
 		} else {
-		    boolean allowed = false;
-		    for (String location : this.allowedLocations) {
-			if (absolute.getSchemeSpecificPart().startsWith(location)) {
-			    allowed = true;
-			    break;
-			}
-		    }
-		    return allowed;
+		    return decide(absolute.getSchemeSpecificPart(), mode)
+			&& checkRealPath(absolute.getSchemeSpecificPart(), mode);
 		}
+	    } else if (absolute.getScheme().equals("jar")
+		       && CompressedInput.archiveURI(absolute) != null
+		       && "file".equals(CompressedInput.archiveURI(absolute).getScheme())) {
+		// an entry of a local archive: decide on the archive,
+		// which is never written
+		return mode == AccessMode.READ && check(CompressedInput.archiveURI(absolute), mode);
 	    } else {
 		// not a file URI
-		return true;
+		return this.remote == null || this.remote.check(absolute);
 	    }
 	} catch (NullPointerException e) {
 	    // illegal URI
@@ -215,10 +650,77 @@ public class FilesystemFilter {
 	}
     }
 
+    /**
+     * Decide on a normalized path by the allowed locations and the
+     * access rules.
+     */
+    private boolean decide(CharSequence path, AccessMode mode) {
+	if (this.rules == null) {
+	    return mode != AccessMode.EXECUTE && this.index.matchesPrefix(path);
+	}
+	int allow;
+	int deny;
+	switch (mode) {
+	case READ:
+	    allow = PathRules.READ_ALLOWED;
+	    deny = PathRules.READ_DENIED;
+	    break;
+	case WRITE:
+	    allow = PathRules.WRITE_ALLOWED;
+	    deny = PathRules.WRITE_DENIED;
+	    break;
+	default:
+	    return false;
+	}
+	int flags = this.rules.match(path);
+	if ((flags & deny) != 0) {
+	    return false;
+	}
+	return (flags & allow) != 0 || this.index.matchesPrefix(path);
+    }
+
+    /**
+     * In canonicalization mode, check if the real path of a normalized
+     * path, which is allowed, is allowed, too. Paths, whose real path
+     * cannot be determined, fail the check.
+     *
+     * @param path  the normalized path of a file URI
+     * @param mode  the access mode
+     *
+     * @return true if not in canonicalization mode
+     */
+    private boolean checkRealPath(CharSequence path, AccessMode mode) {
+	if (this.canonicalizer == null) {
+	    return true;
+	}
+	try {
+	    Path real = this.canonicalizer.toRealPath(Paths.get(path.toString()));
+	    return decide(toUriPath(real), mode);
+	} catch (IOException e) {
+	    return false;
+	} catch (InvalidPathException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Returns the path of a file URI for an absolute {@link Path}.
+     */
+    private static String toUriPath(Path path) {
+	String p = path.toString();
+	if (File.separatorChar == '/') {
+	    return p;
+	} else {
+	    return "/" + p.replace(File.separatorChar, '/');
+	}
+    }
+
     /**
      * This checks if the given <code>href</code> points to an allowed
      * file system location or is a non-file URI. A relative reference
-     * is first resolved against the URI given in the second parameter.
+     * is first resolved against the URI given in the second parameter.<P>
+     *
+     * This checks read access. See {@link check(String, String, AccessMode)}.
      *
      * @param href  the reference to be checked
      * @param base  the base URI to be used to resolve a relative href
@@ -228,14 +730,91 @@ public class FilesystemFilter {
      * @see FilesystemFilter.check(java.net.URI)
      */
     public boolean check(String href, String base) {
+	return check(href, base, AccessMode.READ);
+    }
+
+    /**
+     * Like {@link check(String, String)}, but for the given access
+     * mode.
+     *
+     * @param href  the reference to be checked
+     * @param base  the base URI to be used to resolve a relative href
+     * @param mode  {@link AccessMode.READ} or {@link AccessMode.WRITE}
+     *
+     * @return false if and only if a file URI not allowed for the mode
+     *
+     * @see FilesystemFilter.check(java.net.URI, AccessMode)
+     */
+    public boolean check(String href, String base, AccessMode mode) {
+	DecisionCache cache = mode == AccessMode.WRITE ? this.writeCache : this.cache;
+	if (cache == null || href == null || base == null || mode == AccessMode.EXECUTE) {
+	    return checkUncached(href, base, mode);
+	}
+	Boolean decision = cache.get(href, base);
+	if (decision == null) {
+	    decision = checkUncached(href, base, mode);
+	    cache.put(href, base, decision);
+	}
+	return decision;
+    }
+
+    /**
+     * Like {@link check(String, String, AccessMode)}, but without
+     * looking up the decision cache. The common cases are decided by a
+     * {@link FileURIChecker} without allocating {@link URI} objects or
+     * catching exceptions. The other cases are decided by {@link
+     * checkByURI(String, String, AccessMode)}.
+     */
+    private boolean checkUncached(String href, String base, AccessMode mode) {
+	FileURIChecker checker = this.checker.get();
+	int rc = checker.check(href, base);
+	if (this.rules != null && (rc == FileURIChecker.ALLOWED || rc == FileURIChecker.DENIED)) {
+	    // the checker only knows the allowed locations
+	    rc = decide(checker.getPath(), mode) ? FileURIChecker.ALLOWED : FileURIChecker.DENIED;
+	} else if (rc == FileURIChecker.ALLOWED && mode == AccessMode.EXECUTE) {
+	    rc = FileURIChecker.DENIED;
+	}
+	switch (rc) {
+	case FileURIChecker.ALLOWED:
+	    return checkRealPath(checker.getPath(), mode);
+	case FileURIChecker.DENIED:
+	case FileURIChecker.INVALID:
+	    return false;
+	default:
+	    return checkByURI(href, base, mode);
+	}
+    }
+
+    /**
+     * Like {@link check(String, String)}, but based on {@link URI}
+     * objects only. Invalid input results in false.
+     */
+    boolean checkByURI(String href, String base) {
+	return checkByURI(href, base, AccessMode.READ);
+    }
+
+    /**
+     * Like {@link check(String, String, AccessMode)}, but based on
+     * {@link URI} objects only. Invalid input results in false.
+     */
+    boolean checkByURI(String href, String base, AccessMode mode) {
 	try {
 	    // resolve relative href
 	    URI baseUri = new URI(base);
-	    URI absolute = baseUri.resolve(href);
+	    URI absolute;
+	    if (baseUri.isOpaque()) {
+		// e.g. an entry of an archive, resolved like Saxon does
+		absolute = ResolveURI.makeAbsolute(href, base);
+	    } else {
+		absolute = baseUri.resolve(href);
+	    }
 	    // check URI
-	    return check(absolute);
+	    return check(absolute, mode);
 	} catch (URISyntaxException e) {
 	    return false;
+	} catch (IllegalArgumentException e) {
+	    // invalid href
+	    return false;
 	} catch (NullPointerException e) {
 	    return false;
 	}
@@ -0,0 +1,295 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+
+
+/**
+ * A process-wide registry that hands out a shared {@link
+ * FilesystemFilter}. The hardened resolvers get their filter from
+ * here, so that the allowed locations are read and canonicalized only
+ * once per JVM and not once per resolver instance.<P>
+ *
+ * A {@link FilesystemFilter} is immutable. Changing the policy means
+ * replacing the current filter by a new snapshot, which is done
+ * atomically. Resolvers get the current snapshot on each access and
+ * thus do not need to be rebuilt.<P>
+ *
+ * The initial filter is made from a policy file, if the system
+ * property {@link FILE_PROPERTY} or the environment variable {@link
+ * FILE_ENVIRON} is set. Then the file is watched for changes, too.
+ * Otherwise it is made by {@link
+ * FilesystemFilter#fromPropertiesOrEnvironment()}.<P>
+ *
+ * A policy file contains one allowed path or access rule, see {@link
+ * FilesystemFilter}, per line. Empty lines and lines starting with
+ * <code>#</code> are ignored.<P>
+ *
+ * A task can be run with a different filter by {@link
+ * callWith(FilesystemFilter, Callable)}. This filter is returned to
+ * the thread running the task only, e.g. for a request with its own
+ * allowed paths in {@link TransformDaemon}.
+ */
+public final class FilesystemFilterRegistry {
+
+    public static final String FILE_PROPERTY = FilesystemFilter.PROPERTY + ".file";
+
+    public static final String FILE_ENVIRON = "SAXON_ALLOWED_PATHS_FILE";
+
+    private static final String COMMENT = "#";
+
+    private static final Logger LOG = new StandardLogger();
+
+    private static final AtomicReference<FilesystemFilter> current = new AtomicReference<>();
+
+    private static final Object lock = new Object();
+
+    private static PolicyWatcher watcher = null;
+
+    private static final ThreadLocal<FilesystemFilter> threadFilter = new ThreadLocal<>();
+
+    private FilesystemFilterRegistry() {
+    }
+
+    /**
+     * Returns the current filter. On first access, the filter is
+     * initialized from a policy file or from the system properties
+     * or environment. Inside of {@link callWith(FilesystemFilter,
+     * Callable)}, the filter passed there is returned.
+     */
+    public static FilesystemFilter getFilter() {
+	FilesystemFilter filter = threadFilter.get();
+	if (filter != null) {
+	    return filter;
+	}
+	filter = current.get();
+	if (filter == null) {
+	    synchronized (lock) {
+		filter = current.get();
+		if (filter == null) {
+		    filter = initialFilter();
+		    current.set(filter);
+		}
+	    }
+	}
+	return filter;
+    }
+
+    /**
+     * Atomically replace the current filter by a new one.
+     *
+     * @param filter  the new filter
+     */
+    public static void setFilter(FilesystemFilter filter) {
+	if (filter == null) {
+	    throw new IllegalArgumentException("filter may not be null");
+	}
+	current.set(filter);
+    }
+
+    /**
+     * Run a task on the current thread with the given filter instead
+     * of the current one.
+     *
+     * @param filter  the filter for the task
+     * @param task  the task
+     *
+     * @return the result of the task
+     */
+    public static <T> T callWith(FilesystemFilter filter, Callable<T> task) throws Exception {
+	if (filter == null) {
+	    throw new IllegalArgumentException("filter may not be null");
+	}
+	FilesystemFilter previous = threadFilter.get();
+	threadFilter.set(filter);
+	try {
+	    return task.call();
+	} finally {
+	    if (previous == null) {
+		threadFilter.remove();
+	    } else {
+		threadFilter.set(previous);
+	    }
+	}
+    }
+
+    /**
+     * Make a filter from the initial configuration.
+     */
+    private static FilesystemFilter initialFilter() {
+	String file = System.getProperty(FILE_PROPERTY);
+	if (file == null) {
+	    file = System.getenv(FILE_ENVIRON);
+	}
+	if (file != null) {
+	    Path path = Paths.get(file);
+	    try {
+		FilesystemFilter filter = load(path);
+		startWatching(path);
+		return filter;
+	    } catch (FilesystemFilterException e) {
+		LOG.error(e.getMessage());
+		return new FilesystemFilter();
+	    }
+	} else {
+	    return FilesystemFilter.fromPropertiesOrEnvironment();
+	}
+    }
+
+    /**
+     * Make a {@link FilesystemFilter} from a policy file.
+     *
+     * @param file  the policy file
+     */
+    public static FilesystemFilter load(Path file) throws FilesystemFilterException {
+	List<String> lines;
+	try {
+	    lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+	} catch (IOException e) {
+	    throw new FilesystemFilterException("failed to read policy file " + file, e);
+	}
+	List<String> locations = new ArrayList<>();
+	for (String line : lines) {
+	    String location = line.trim();
+	    if (!location.isEmpty() && !location.startsWith(COMMENT)) {
+		locations.add(location);
+	    }
+	}
+	return new FilesystemFilter(locations.toArray(new String[locations.size()]),
+				    FilesystemFilter.getCacheSize(),
+				    FilesystemFilter.getCanonicalTtl());
+    }
+
+    /**
+     * Load the policy file, make it the current filter and watch the
+     * file for changes. A changed policy file is loaded and replaces
+     * the current filter. If the changed file cannot be loaded, the
+     * current filter is kept. A formerly watched file is not watched
+     * any more.
+     *
+     * @param file  the policy file
+     */
+    public static void watch(Path file) throws FilesystemFilterException {
+	synchronized (lock) {
+	    setFilter(load(file));
+	    startWatching(file);
+	}
+    }
+
+    /**
+     * Stop watching the policy file. The current filter is kept.
+     */
+    public static void stopWatching() {
+	synchronized (lock) {
+	    if (watcher != null) {
+		watcher.close();
+		watcher = null;
+	    }
+	}
+    }
+
+    private static void startWatching(Path file) throws FilesystemFilterException {
+	stopWatching();
+	try {
+	    watcher = new PolicyWatcher(file.toAbsolutePath());
+	} catch (IOException e) {
+	    throw new FilesystemFilterException("failed to watch policy file " + file, e);
+	}
+	watcher.start();
+    }
+
+    /**
+     * A daemon thread that reloads the policy file on changes.
+     */
+    private static final class PolicyWatcher extends Thread {
+
+	private static final long QUIET_MILLIS = 100;
+
+	private final Path file;
+
+	private final WatchService service;
+
+	PolicyWatcher(Path file) throws IOException {
+	    super("hardening-saxon-policy-watcher");
+	    setDaemon(true);
+	    this.file = file;
+	    this.service = FileSystems.getDefault().newWatchService();
+	    file.getParent().register
+		(service,
+		 StandardWatchEventKinds.ENTRY_CREATE,
+		 StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	@Override
+	public void run() {
+	    try {
+		while (true) {
+		    WatchKey key = service.take();
+		    boolean changed = false;
+		    // a file is usually written in several steps: wait
+		    // until there are no more events, then reload once
+		    while (key != null) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+			    if (file.getFileName().equals(event.context())) {
+				changed = true;
+			    }
+			}
+			key.reset();
+			key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+		    }
+		    if (changed) {
+			reload();
+		    }
+		}
+	    } catch (InterruptedException e) {
+		// stop watching
+	    } catch (ClosedWatchServiceException e) {
+		// stop watching
+	    }
+	}
+
+	/**
+	 * Load the policy file and make it the current filter, unless
+	 * watching was stopped or moved to another file meanwhile.
+	 */
+	private void reload() {
+	    synchronized (lock) {
+		if (watcher != this) {
+		    return;
+		}
+		try {
+		    setFilter(load(file));
+		    LOG.info("reloaded allowed locations from " + file);
+		} catch (FilesystemFilterException e) {
+		    LOG.error(e.getMessage() + ", keeping previous allowed locations");
+		}
+	    }
+	}
+
+	void close() {
+	    try {
+		service.close();
+	    } catch (IOException e) {
+		LOG.warning("failed to close watch service: " + e.getMessage());
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,430 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.functions.URIQueryParameters;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Resource;
+import net.sf.saxon.lib.ResourceCollection;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.resource.AbstractResourceCollection;
+import net.sf.saxon.resource.XmlResource;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * A collection made by {@link HardenedCollectionFinder}: the members
+ * of a directory or of another collection, that are allowed by a
+ * {@link FilesystemFilter}. A directory is walked lazily while the
+ * members are iterated, so that only the listings of the directories
+ * on the current path are held in memory. Local XML members, which
+ * may be gzip files, are parsed in parallel on a fork-join pool ahead
+ * of the iteration, other members are made as by Saxon when they are
+ * iterated.
+ */
+final class HardenedCollection extends AbstractResourceCollection {
+
+    private static final String FILE_PREFIX = "file:";
+
+    private final FilesystemFilter filter;
+
+    private final IOQuota quota;
+
+    private final ForkJoinPool pool;
+
+    private final File directory;
+
+    private final ResourceCollection delegate;
+
+    /**
+     * Make a collection of the files in a directory.
+     */
+    HardenedCollection(Configuration config, String collectionURI, URIQueryParameters params,
+		       FilesystemFilter filter, IOQuota quota, ForkJoinPool pool, File directory) {
+	this(config, collectionURI, params, filter, quota, pool, directory, null);
+    }
+
+    /**
+     * Make a collection of the members of another collection.
+     */
+    HardenedCollection(Configuration config, String collectionURI, URIQueryParameters params,
+		       FilesystemFilter filter, IOQuota quota, ForkJoinPool pool, ResourceCollection delegate) {
+	this(config, collectionURI, params, filter, quota, pool, null, delegate);
+    }
+
+    private HardenedCollection(Configuration config, String collectionURI, URIQueryParameters params,
+			       FilesystemFilter filter, IOQuota quota, ForkJoinPool pool,
+			       File directory, ResourceCollection delegate) {
+	super(config);
+	this.collectionURI = collectionURI;
+	this.params = params;
+	this.filter = filter;
+	this.quota = quota;
+	this.pool = pool;
+	this.directory = directory;
+	this.delegate = delegate;
+    }
+
+    /**
+     * {@inheritDoc} Only the members allowed by the filter are
+     * returned.
+     */
+    @Override
+    public Iterator<String> getResourceURIs(XPathContext context) throws XPathException {
+	Iterator<String> members;
+	if (directory != null) {
+	    FilenameFilter select = params == null ? null : params.getFilenameFilter();
+	    boolean recurse = params != null && Boolean.TRUE.equals(params.getRecurse());
+	    members = new Walk(directory, select, recurse, filter);
+	} else {
+	    members = delegate.getResourceURIs(context);
+	}
+	return new AllowedIterator(members);
+    }
+
+    /**
+     * {@inheritDoc} Local XML members are parsed ahead of the
+     * iteration.
+     */
+    @Override
+    public Iterator<Resource> getResources(XPathContext context) throws XPathException {
+	ParseOptions options = optionsFromQueryParameters(params, context);
+	Integer onError = params == null ? null : params.getOnError();
+	return new ResourceIterator(getResourceURIs(context), options,
+				    onError == null ? URIQueryParameters.ON_ERROR_FAIL : onError);
+    }
+
+    /**
+     * Returns the local file of a member URI or <code>null</code>.
+     */
+    private static File localFile(String uri) {
+	if (!uri.startsWith(FILE_PREFIX)) {
+	    return null;
+	}
+	try {
+	    URI absoluteURI = new URI(uri);
+	    if (absoluteURI.getRawAuthority() != null || absoluteURI.getRawQuery() != null) {
+		return null;
+	    }
+	    return new File(absoluteURI);
+	} catch (URISyntaxException e) {
+	    return null;
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    private static boolean isXml(String contentType) {
+	return contentType != null
+	    && (contentType.equals("application/xml") || contentType.equals("text/xml") || contentType.endsWith("+xml"));
+    }
+
+    /**
+     * Iterates the files of a directory tree. Each directory is
+     * listed, when the iteration reaches it. The members are in the
+     * order of a depth-first walk with the entries of each directory
+     * sorted by name.
+     */
+    private static final class Walk implements Iterator<String> {
+
+	private final FilenameFilter select;
+
+	private final boolean recurse;
+
+	private final FilesystemFilter filter;
+
+	/**
+	 * The directories on the current path, innermost first.
+	 */
+	private final ArrayDeque<Listing> path = new ArrayDeque<>();
+
+	private String next = null;
+
+	Walk(File directory, FilenameFilter select, boolean recurse, FilesystemFilter filter) {
+	    this.select = select;
+	    this.recurse = recurse;
+	    this.filter = filter;
+	    enter(directory);
+	}
+
+	private void enter(File directory) {
+	    String[] names = directory.list();
+	    if (names != null) {
+		Arrays.sort(names);
+		path.push(new Listing(directory, names));
+	    }
+	}
+
+	@Override
+	public boolean hasNext() {
+	    while (next == null && !path.isEmpty()) {
+		Listing listing = path.peek();
+		if (listing.index == listing.names.length) {
+		    path.pop();
+		    continue;
+		}
+		String name = listing.names[listing.index++];
+		File file = new File(listing.directory, name);
+		if (file.isDirectory()) {
+		    if (recurse && !Files.isSymbolicLink(file.toPath()) && filter.check(file.toURI(), AccessMode.READ)) {
+			enter(file);
+		    }
+		} else if (select == null || select.accept(listing.directory, name)) {
+		    next = file.toURI().toString();
+		}
+	    }
+	    return next != null;
+	}
+
+	@Override
+	public String next() {
+	    if (!hasNext()) {
+		throw new NoSuchElementException();
+	    }
+	    String member = next;
+	    next = null;
+	    return member;
+	}
+    }
+
+    /**
+     * The sorted entries of a directory and the position of the walk.
+     */
+    private static final class Listing {
+
+	final File directory;
+
+	final String[] names;
+
+	int index = 0;
+
+	Listing(File directory, String[] names) {
+	    this.directory = directory;
+	    this.names = names;
+	}
+    }
+
+    /**
+     * Leaves out the members, that are not allowed by the filter.
+     */
+    private final class AllowedIterator implements Iterator<String> {
+
+	private final Iterator<String> members;
+
+	private String next = null;
+
+	AllowedIterator(Iterator<String> members) {
+	    this.members = members;
+	}
+
+	@Override
+	public boolean hasNext() {
+	    while (next == null && members.hasNext()) {
+		String member = members.next();
+		ResolverMetrics metrics = ResolverMetrics.COLLECTION_FINDER;
+		long start = metrics.start();
+		boolean allowed;
+		URI uri = null;
+		try {
+		    uri = new URI(member);
+		    allowed = filter.check(uri, AccessMode.READ);
+		} catch (URISyntaxException e) {
+		    allowed = false;
+		}
+		metrics.checked(start, allowed);
+		if (uri != null) {
+		    AuditLog.log(AuditLog.COLLECTION_MEMBER, uri, allowed);
+		} else {
+		    AuditLog.log(AuditLog.COLLECTION_MEMBER, member, collectionURI, allowed);
+		}
+		if (allowed) {
+		    next = member;
+		}
+	    }
+	    return next != null;
+	}
+
+	@Override
+	public String next() {
+	    if (!hasNext()) {
+		throw new NoSuchElementException();
+	    }
+	    String member = next;
+	    next = null;
+	    return member;
+	}
+    }
+
+    /**
+     * Makes the resources of the members. At most as many local XML
+     * members as the pool has threads are parsed ahead.
+     */
+    private final class ResourceIterator implements Iterator<Resource> {
+
+	private final Iterator<String> members;
+
+	private final ParseOptions options;
+
+	private final int onError;
+
+	private final ArrayDeque<Future<Resource>> window = new ArrayDeque<>();
+
+	private Resource next = null;
+
+	ResourceIterator(Iterator<String> members, ParseOptions options, int onError) {
+	    this.members = members;
+	    this.options = options;
+	    this.onError = onError;
+	}
+
+	@Override
+	public boolean hasNext() {
+	    while (next == null) {
+		while (window.size() < pool.getParallelism() && members.hasNext()) {
+		    window.add(submit(members.next()));
+		}
+		if (window.isEmpty()) {
+		    return false;
+		}
+		next = take(window.poll());
+	    }
+	    return true;
+	}
+
+	@Override
+	public Resource next() {
+	    if (!hasNext()) {
+		throw new NoSuchElementException();
+	    }
+	    Resource resource = next;
+	    next = null;
+	    return resource;
+	}
+
+	/**
+	 * Start making the resource of a member. This is done on the
+	 * thread of the transformation, so that the quota is charged
+	 * in order.
+	 */
+	private Future<Resource> submit(final String member) {
+	    try {
+		File file = localFile(member);
+		boolean gzip = file != null && CompressedInput.isCompressed(file.toURI());
+		String name = gzip ? member.substring(0, member.length() - CompressedInput.GZIP_SUFFIX.length()) : member;
+		String contentType = params != null && params.getContentType() != null
+		    ? params.getContentType() : guessContentTypeFromName(name);
+		if (quota != null) {
+		    quota.documentOpened();
+		}
+		if (file != null && isXml(contentType)) {
+		    return pool.submit(() -> parse(member, file, gzip));
+		}
+		if (file != null && quota != null) {
+		    quota.read(file.length());
+		}
+		return CompletableFuture.completedFuture(makeResource(config, member));
+	    } catch (XPathException e) {
+		return CompletableFuture.completedFuture(failed(member, e));
+	    }
+	}
+
+	private Resource parse(String member, File file, boolean gzip) {
+	    LongAdder counter = ResolverMetrics.COLLECTION_FINDER.getBytesReadCounter();
+	    StreamSource source = new StreamSource
+		(gzip ? CompressedInput.open(file.toURI(), counter, quota) : new CountingFileInputStream(file, counter, quota),
+		 member);
+	    try {
+		TreeInfo tree = config.buildDocumentTree(source, new ParseOptions(options));
+		return new XmlResource(config, tree.getRootNode());
+	    } catch (XPathException e) {
+		return failed(member, e);
+	    } finally {
+		try {
+		    source.getInputStream().close();
+		} catch (IOException e) {
+		    // nothing was written
+		}
+	    }
+	}
+
+	private Resource take(Future<Resource> future) {
+	    try {
+		return future.get();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return new FailedResource(null, new XPathException("interrupted while reading collection " + collectionURI));
+	    } catch (ExecutionException e) {
+		return new FailedResource(null, new XPathException(e.getCause()));
+	    }
+	}
+
+	/**
+	 * Returns a resource, that throws the error, or
+	 * <code>null</code>, if errors are ignored.
+	 */
+	private Resource failed(String member, XPathException error) {
+	    switch (onError) {
+	    case URIQueryParameters.ON_ERROR_IGNORE:
+		return null;
+	    case URIQueryParameters.ON_ERROR_WARNING:
+		config.getLogger().warning("collection member " + member + " skipped: " + error.getMessage());
+		return null;
+	    default:
+		return new FailedResource(member, error);
+	    }
+	}
+    }
+
+    /**
+     * A member, that could not be read.
+     */
+    private static final class FailedResource implements Resource {
+
+	private final String uri;
+
+	private final XPathException error;
+
+	FailedResource(String uri, XPathException error) {
+	    this.uri = uri;
+	    this.error = error;
+	}
+
+	@Override
+	public String getResourceURI() {
+	    return uri;
+	}
+
+	@Override
+	public Item getItem(XPathContext context) throws XPathException {
+	    if (error.getErrorCodeLocalPart() == null) {
+		error.setErrorCode("FODC0002");
+	    }
+	    throw error;
+	}
+
+	@Override
+	public String getContentType() {
+	    return null;
+	}
+    }
+
+}
@@ -0,0 +1,180 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.util.concurrent.ForkJoinPool;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.functions.ResolveURI;
+import net.sf.saxon.functions.URIQueryParameters;
+import net.sf.saxon.lib.CollectionFinder;
+import net.sf.saxon.lib.ResourceCollection;
+import net.sf.saxon.resource.CatalogCollection;
+import net.sf.saxon.resource.JarCollection;
+import net.sf.saxon.resource.StandardCollectionFinder;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * A collection finder for <code>collection()</code> and
+ * <code>uri-collection()</code>, that restricts the access to the
+ * local file system by using a {@link FilesystemFilter}, like the
+ * hardened resolvers do. Saxon's standard collection finder reads
+ * members of a collection directly and does not use the URI
+ * resolver.<P>
+ *
+ * The collection URI is checked first. For a directory, each
+ * subdirectory and each member is checked, too. Subdirectories, that
+ * are not allowed, are not descended into; members, that are not
+ * allowed, are left out of the collection. For catalog files and jar
+ * archives, which are handled by Saxon's standard collection finder,
+ * the members are checked. Collections registered with the
+ * configuration are returned as they are.<P>
+ *
+ * Directories are walked lazily while the collection is iterated, so
+ * the first member is returned without listing the whole tree. Member
+ * XML documents are parsed on a fork-join pool ahead of the
+ * iteration, but
+ * at most {@link PARALLELISM_PROPERTY} documents at a time, so that
+ * a huge collection is streamed through a bounded window of parsed
+ * documents, and an iteration, that stops early, does not parse the
+ * rest. Symbolic links to directories are not followed when walking
+ * subdirectories.<P>
+ *
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}. Decisions
+ * are recorded in {@link ResolverMetrics#COLLECTION_FINDER} and in the
+ * {@link AuditLog}. Members are accounted for in the current {@link
+ * IOQuota}.<P>
+ *
+ * Use it in a Saxon configuration file:
+ *
+ * <pre>
+ * &lt;global collectionFinder="de.wwu.scdh.saxon.harden.HardenedCollectionFinder"/&gt;
+ * </pre>
+ *
+ * @see FilesystemFilter
+ * @see FilesystemFilterRegistry
+ */
+public class HardenedCollectionFinder implements CollectionFinder {
+
+    /**
+     * The name of the system property for the number of threads
+     * parsing members, which is also the
+     * maximum number of members parsed ahead. Defaults to the number
+     * of processors.
+     */
+    public static final String PARALLELISM_PROPERTY = HardenedCollectionFinder.class.getName() + ".parallelism";
+
+    private static volatile ForkJoinPool sharedPool = null;
+
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a collection finder, that checks paths with the current
+     * filter of the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedCollectionFinder() {
+	this(null);
+    }
+
+    /**
+     * Make a collection finder, that checks paths with the given
+     * filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedCollectionFinder(FilesystemFilter filter) {
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
+
+    /**
+     * Returns the pool for parsing members,
+     * which is made on first use.
+     */
+    static ForkJoinPool getSharedPool() {
+	ForkJoinPool pool = sharedPool;
+	if (pool == null) {
+	    synchronized (HardenedCollectionFinder.class) {
+		pool = sharedPool;
+		if (pool == null) {
+		    int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+		    pool = new ForkJoinPool(Math.max(1, parallelism));
+		    sharedPool = pool;
+		}
+	    }
+	}
+	return pool;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResourceCollection findCollection(XPathContext context, String collectionURI) throws XPathException {
+	StandardCollectionFinder.checkNotNull(collectionURI, context);
+	ResolverMetrics metrics = ResolverMetrics.COLLECTION_FINDER;
+	long start = metrics.start();
+	FilesystemFilter filter = getFilter();
+	Configuration config = context.getConfiguration();
+	URIQueryParameters params = null;
+	String location = collectionURI;
+	int q = collectionURI.indexOf('?');
+	if (q >= 0) {
+	    params = new URIQueryParameters(collectionURI.substring(q + 1), config);
+	    location = collectionURI.substring(0, q);
+	}
+	URI absoluteURI;
+	try {
+	    absoluteURI = new URI(ResolveURI.escapeSpaces(location));
+	} catch (URISyntaxException e) {
+	    XPathException err = new XPathException("Invalid collection URI: " + collectionURI);
+	    err.setErrorCode("FODC0004");
+	    err.setXPathContext(context);
+	    throw err;
+	}
+	boolean allowed = filter.check(absoluteURI, AccessMode.READ);
+	metrics.checked(start, allowed);
+	AuditLog.log(AuditLog.COLLECTION, absoluteURI, allowed);
+	try {
+	    if (!allowed) {
+		throw new XPathException("path not allowed: " + collectionURI);
+	    }
+	    IOQuota quota = IOQuota.current();
+	    if ("file".equals(absoluteURI.getScheme())) {
+		File file;
+		try {
+		    file = new File(absoluteURI);
+		} catch (IllegalArgumentException e) {
+		    throw new XPathException("Invalid collection URI: " + collectionURI, e);
+		}
+		StandardCollectionFinder.checkFileExists(file, absoluteURI, context);
+		if (file.isDirectory()) {
+		    return new HardenedCollection(config, collectionURI, params, filter, quota, getSharedPool(), file);
+		}
+	    }
+	    ResourceCollection collection = config.getStandardCollectionFinder().findCollection(context, collectionURI);
+	    if (collection instanceof CatalogCollection || collection instanceof JarCollection) {
+		return new HardenedCollection(config, collectionURI, params, filter, quota, getSharedPool(), collection);
+	    } else {
+		// registered with the configuration
+		return collection;
+	    }
+	} finally {
+	    metrics.resolved(start);
+	}
+    }
+
+}
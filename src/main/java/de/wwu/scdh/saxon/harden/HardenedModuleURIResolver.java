@@ -0,0 +1,251 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.functions.ResolveURI;
+import net.sf.saxon.lib.ModuleURIResolver;
+import net.sf.saxon.lib.StandardModuleURIResolver;
+import net.sf.saxon.query.QueryReader;
+import net.sf.saxon.serialize.charcode.XMLCharacterData;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Based on {@link StandardModuleURIResolver}, this resolver for the
+ * locations of XQuery library modules in <code>import module</code>
+ * restricts the access to the local file system by using a {@link
+ * FilesystemFilter}.<P>
+ *
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}, see {@link
+ * HardenedResolvers} for a filter per configuration.<P>
+ *
+ * All locations of a module are checked, before any is read. Local
+ * files are read and decoded like Saxon does, honoring the encoding
+ * declaration of the module. If the system property {@link
+ * CACHE_PROPERTY} is <code>true</code> or if a cache is set, the
+ * decoded text is kept in the shared {@link TextCache}, so that a
+ * query server does not read the same library modules for every query
+ * it compiles. If the filter has a
+ * {@link RemotePolicy}, <code>http</code> and <code>https</code>
+ * locations are fetched by the shared {@link RemoteFetcher}. Other
+ * allowed locations are left to Saxon's standard module resolver.<P>
+ *
+ * Decisions, latencies and the sizes of the modules read are recorded
+ * in {@link ResolverMetrics#MODULE_RESOLVER} and the decisions in the
+ * {@link AuditLog}. Modules opened and their sizes are accounted for
+ * in the current {@link IOQuota}, even if they are taken from the
+ * cache.<P>
+ *
+ * Use it in a Saxon configuration file:
+ *
+ * <pre>
+ * &lt;xquery moduleUriResolver="de.wwu.scdh.saxon.harden.HardenedModuleURIResolver"/&gt;
+ * </pre>
+ *
+ * @see FilesystemFilter
+ * @see FilesystemFilterRegistry
+ */
+public class HardenedModuleURIResolver implements ModuleURIResolver {
+
+    /**
+     * The name of the system property for switching on the shared
+     * {@link TextCache}.
+     */
+    public static final String CACHE_PROPERTY = HardenedModuleURIResolver.class.getName() + ".cache";
+
+    /**
+     * The label of module texts in the {@link TextCache}, which cannot
+     * clash with a requested encoding, because the encoding of a
+     * module is given by its declaration.
+     */
+    private static final String CACHE_LABEL = "#xquery";
+
+    private static final String ERROR_CODE = "XQST0059";
+
+    private TextCache cache = Boolean.getBoolean(CACHE_PROPERTY) ? TextCache.getSharedCache() : null;
+
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a resolver, that checks paths with the current filter of
+     * the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedModuleURIResolver() {
+	this(null);
+    }
+
+    /**
+     * Make a resolver, that checks paths with the given filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedModuleURIResolver(FilesystemFilter filter) {
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
+
+    /**
+     * Set the cache of module texts. <code>null</code> switches
+     * caching off.
+     */
+    public void setCache(TextCache cache) {
+	this.cache = cache;
+    }
+
+    /**
+     * Returns the cache of module texts or <code>null</code>.
+     */
+    public TextCache getCache() {
+	return cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamSource[] resolve(String moduleURI, String baseURI, String[] locations) throws XPathException {
+	if (locations.length == 0) {
+	    throw staticError("Cannot locate module for namespace " + moduleURI, null);
+	}
+	ResolverMetrics metrics = ResolverMetrics.MODULE_RESOLVER;
+	FilesystemFilter filter = getFilter();
+	IOQuota quota = IOQuota.current();
+	URI[] absoluteURIs = new URI[locations.length];
+	boolean handled = true;
+	for (int i = 0; i < locations.length; i++) {
+	    long start = metrics.start();
+	    try {
+		try {
+		    absoluteURIs[i] = ResolveURI.makeAbsolute(locations[i], baseURI);
+		} catch (URISyntaxException e) {
+		    throw staticError("Cannot resolve relative URI " + locations[i], e);
+		}
+		boolean allowed = filter.check(absoluteURIs[i], AccessMode.READ);
+		metrics.checked(start, allowed);
+		AuditLog.log(AuditLog.MODULE, absoluteURIs[i], allowed);
+		if (!allowed) {
+		    throw new XPathException("path not allowed: " + locations[i]);
+		}
+		if (quota != null) {
+		    quota.documentOpened();
+		}
+	    } finally {
+		metrics.resolved(start);
+	    }
+	    handled &= isLocal(absoluteURIs[i])
+		|| (filter.getRemotePolicy() != null && RemoteFetcher.isHttp(absoluteURIs[i].toString()));
+	}
+	if (!handled) {
+	    // all locations are allowed: let Saxon's standard resolver read them
+	    return null;
+	}
+	StreamSource[] sources = new StreamSource[locations.length];
+	for (int i = 0; i < locations.length; i++) {
+	    if (isLocal(absoluteURIs[i])) {
+		sources[i] = readLocal(absoluteURIs[i], quota);
+	    } else {
+		sources[i] = fetchRemote(absoluteURIs[i], quota, filter.getRemotePolicy());
+	    }
+	}
+	return sources;
+    }
+
+    private static boolean isLocal(URI uri) {
+	return "file".equals(uri.getScheme())
+	    && !uri.isOpaque()
+	    && uri.getAuthority() == null
+	    && uri.getQuery() == null;
+    }
+
+    /**
+     * Returns the text of a local module, from the cache if it is
+     * unchanged.
+     */
+    private StreamSource readLocal(URI absoluteURI, IOQuota quota) throws XPathException {
+	Path path;
+	BasicFileAttributes attributes;
+	try {
+	    path = Paths.get(absoluteURI).toRealPath();
+	    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	} catch (IllegalArgumentException e) {
+	    throw staticError("Cannot locate module " + absoluteURI, e);
+	} catch (IOException e) {
+	    throw staticError("Cannot locate module " + absoluteURI, e);
+	}
+	long size = attributes.size();
+	if (quota != null) {
+	    // fail before reading
+	    quota.read(size);
+	}
+	ResolverMetrics.MODULE_RESOLVER.read(size);
+	String key = path.toFile().toURI().toString();
+	long modified = attributes.lastModifiedTime().toMillis();
+	TextCache textCache = cache;
+	Reader reader = textCache != null ? textCache.get(key, CACHE_LABEL, modified, size) : null;
+	if (reader == null) {
+	    String text;
+	    try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+		text = QueryReader.readInputStream(in, null, XMLCharacterData::isValid11);
+	    } catch (IOException e) {
+		throw staticError("Cannot read module " + absoluteURI, e);
+	    }
+	    if (textCache != null) {
+		textCache.put(key, CACHE_LABEL, modified, size, text.toCharArray(), text.length());
+	    }
+	    reader = new StringReader(text);
+	}
+	return new StreamSource(reader, absoluteURI.toString());
+    }
+
+    /**
+     * Fetch an <code>http</code> or <code>https</code> module with the
+     * {@link RemoteFetcher}.
+     */
+    private static StreamSource fetchRemote(URI absoluteURI, IOQuota quota, RemotePolicy policy)
+	throws XPathException {
+	RemoteFetcher.Response response;
+	try {
+	    response = RemoteFetcher.getSharedFetcher()
+		.fetch(absoluteURI, policy, quota == null ? Long.MAX_VALUE : quota.getRemainingBytesRead());
+	} catch (SecurityException e) {
+	    throw new XPathException("path not allowed: " + e.getMessage());
+	} catch (IOException e) {
+	    throw staticError("Cannot read module " + absoluteURI, e);
+	}
+	if (quota != null) {
+	    quota.read(response.getLength());
+	}
+	ResolverMetrics.MODULE_RESOLVER.read(response.getLength());
+	return new StreamSource(response.getInputStream(), absoluteURI.toString());
+    }
+
+    private static XPathException staticError(String message, Throwable cause) {
+	XPathException err = cause != null ? new XPathException(message, cause) : new XPathException(message);
+	err.setErrorCode(ERROR_CODE);
+	err.setIsStaticError(true);
+	return err;
+    }
+
+}
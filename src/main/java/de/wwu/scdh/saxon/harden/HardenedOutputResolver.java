@@ -1,7 +1,12 @@
 package de.wwu.scdh.saxon.harden;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
 import javax.xml.transform.Result;
-
+import javax.xml.transform.stream.StreamResult;
 
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.lib.StandardOutputResolver;
@@ -11,33 +16,148 @@ import net.sf.saxon.lib.StandardOutputResolver;
  * access to the local file system by using a {@link
  * FilesystemFilter}.<P>
  *
- * The allowed locations are set from a system property or an
- * environment variable, which define a list of paths.  The name of
- * the system property is {@link FileSystemFilter.PROPERTY}. The name
- * of the environment variable is {@link FilesystemFilter.ENVIRON}.
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}, see {@link
+ * HardenedResolvers} for a filter per configuration or
+ * transformation. By default, its allowed locations are
+ * set from a system property or an environment variable, which define
+ * a list of paths.  The name of the system property is {@link
+ * FileSystemFilter.PROPERTY}. The name of the environment variable is
+ * {@link FilesystemFilter.ENVIRON}.
  * Paths are separated by {@link FilesystemFilter.SEPARATOR}.<P>
  *
  * Configuration errors result in an empty set of allowed paths,
  * but will be notified on stderr.<P>
  *
- * <code>~</code> can be used to point to the user's home directory.
+ * <code>~</code> can be used to point to the user's home directory.<P>
+ *
+ * Decisions, latencies and the sizes of written local files are
+ * recorded in {@link ResolverMetrics#OUTPUT_RESOLVER} and the decisions in
+ * the {@link AuditLog}. Result documents and the bytes written are
+ * accounted for in the current {@link IOQuota}.<P>
+ *
+ * If a {@link ResultSink} is set, allowed results with
+ * <code>file:</code> URIs are written into the sink instead of files,
+ * see {@link ZipResultSink}, which is the default, and {@link
+ * ResultCapture}. The path is checked as if the file was written.
  *
  * @see FilesystemFilter
  * @see FilesystemFilter.fromPropertyOrEnviron()
+ * @see FilesystemFilterRegistry
  */
 public class HardenedOutputResolver extends StandardOutputResolver {
 
-    private FilesystemFilter filter = FilesystemFilter.fromPropertiesOrEnvironment();;
+    private ResultSink sink = ZipResultSink.getShared();
+
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a resolver, that checks paths with the current filter of
+     * the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedOutputResolver() {
+	this(null);
+    }
+
+    /**
+     * Make a resolver, that checks paths with the given filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedOutputResolver(FilesystemFilter filter) {
+	super();
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
+
+    /**
+     * Set the sink for results. <code>null</code> switches back to
+     * writing files.
+     */
+    public void setSink(ResultSink sink) {
+	this.sink = sink;
+    }
+
+    /**
+     * Returns the sink for results or <code>null</code>.
+     */
+    public ResultSink getSink() {
+	return sink;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public Result resolve(String href, String base) throws XPathException {
-	if (filter.check(href, base)) {
-	    return super.resolve(href, base);
-	} else {
-	    throw new XPathException("path not allowed: " + href);
+	ResolverMetrics metrics = ResolverMetrics.OUTPUT_RESOLVER;
+	long start = metrics.start();
+	boolean allowed = getFilter().check(href, base, AccessMode.WRITE);
+	metrics.checked(start, allowed);
+	AuditLog.log(AuditLog.OUTPUT, href, base, allowed);
+	try {
+	    if (allowed) {
+		IOQuota quota = IOQuota.current();
+		if (quota != null) {
+		    quota.resultDocumentCreated();
+		}
+		return super.resolve(href, base);
+	    } else {
+		throw new XPathException("path not allowed: " + href);
+	    }
+	} finally {
+	    metrics.resolved(start);
+	}
+    }
+
+    /**
+     * {@inheritDoc} If there is a current {@link IOQuota}, a local file
+     * is written through a stream, that accounts for the bytes. If a
+     * sink is set, a local file is written into the sink.
+     */
+    @Override
+    protected Result createResult(URI absoluteURI) throws XPathException, IOException {
+	ResultSink resultSink = sink;
+	if (resultSink != null && "file".equals(absoluteURI.getScheme())) {
+	    StreamResult result = new StreamResult
+		(resultSink.newEntry(absoluteURI, ResolverMetrics.OUTPUT_RESOLVER, IOQuota.current()));
+	    result.setSystemId(absoluteURI.toASCIIString());
+	    return result;
+	}
+	Result result = super.createResult(absoluteURI);
+	if (result instanceof StreamResult) {
+	    QuotaOutputStream.setOn((StreamResult) result, absoluteURI);
+	}
+	return result;
+    }
+
+    /**
+     * {@inheritDoc} The size of a written local file is recorded as
+     * bytes written. An entry of a sink records its size itself.
+     */
+    @Override
+    public void close(Result result) throws XPathException {
+	super.close(result);
+	if (result instanceof StreamResult && ((StreamResult) result).getOutputStream() instanceof SinkEntry) {
+	    return;
+	}
+	if (ResolverMetrics.ENABLED && result.getSystemId() != null && result.getSystemId().startsWith("file:")) {
+	    try {
+		ResolverMetrics.OUTPUT_RESOLVER.written(new File(new URI(result.getSystemId())).length());
+	    } catch (URISyntaxException e) {
+		// not a local file
+	    } catch (IllegalArgumentException e) {
+		// not a local file
+	    }
 	}
     }
 
@@ -0,0 +1,145 @@
+package de.wwu.scdh.saxon.harden;
+
+import javax.xml.transform.URIResolver;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.lib.ResultDocumentResolver;
+import net.sf.saxon.lib.UnparsedTextURIResolver;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.trans.XsltController;
+
+
+/**
+ * Installs hardened resolvers bound to a {@link FilesystemFilter}
+ * into a Saxon {@link Configuration}, a {@link Controller} or an XSLT
+ * transformer. This scopes a policy to a configuration or to a single
+ * transformation, so that tenants with different allowed locations
+ * can share one JVM and even one compiled stylesheet.<P>
+ *
+ * A filter is looked up in this order: the filter installed on the
+ * controller of the transformation, the filter installed on the
+ * configuration, which Saxon copies into each new controller, the
+ * filter of the thread set by {@link
+ * FilesystemFilterRegistry#callWith(FilesystemFilter, Callable)} and
+ * the global filter of the {@link FilesystemFilterRegistry}. The
+ * first two are fixed in the resolvers, the others are looked up on
+ * each access.<P>
+ *
+ * Settings of hardened resolvers, that are replaced, are kept: the
+ * document cache of a {@link CachingHardenedURIResolver}, the reading
+ * options of a {@link HardenedUnparsedTextResolver}, the writer and
+ * the sink of a {@link HardenedResultDocumentResolver} and the text
+ * cache of a {@link HardenedModuleURIResolver}.
+ */
+public final class HardenedResolvers {
+
+    private HardenedResolvers() {
+    }
+
+    /**
+     * Install resolvers, a {@link HardenedCollectionFinder} and a
+     * {@link HardenedModuleURIResolver} checking paths with the given
+     * filter into a configuration. They are used by all controllers
+     * and query compilations of the configuration afterwards.
+     *
+     * @param config  the configuration
+     * @param filter  the filter
+     */
+    // setOutputURIResolver is deprecated, but still wrapped by each XsltController
+    @SuppressWarnings("deprecation")
+    public static void install(Configuration config, FilesystemFilter filter) {
+	if (filter == null) {
+	    throw new IllegalArgumentException("filter may not be null");
+	}
+	config.setURIResolver(uriResolver(config, config.getURIResolver(), filter));
+	config.setUnparsedTextURIResolver(unparsedTextResolver(config.getUnparsedTextURIResolver(), filter));
+	// wrapped into a result document resolver by each XsltController
+	HardenedOutputResolver outputResolver = new HardenedOutputResolver(filter);
+	if (config.getOutputURIResolver() instanceof HardenedOutputResolver) {
+	    outputResolver.setSink(((HardenedOutputResolver) config.getOutputURIResolver()).getSink());
+	}
+	config.setOutputURIResolver(outputResolver);
+	config.setCollectionFinder(new HardenedCollectionFinder(filter));
+	HardenedModuleURIResolver moduleResolver = new HardenedModuleURIResolver(filter);
+	if (config.getModuleURIResolver() instanceof HardenedModuleURIResolver) {
+	    moduleResolver.setCache(((HardenedModuleURIResolver) config.getModuleURIResolver()).getCache());
+	}
+	config.setModuleURIResolver(moduleResolver);
+    }
+
+    /**
+     * Install resolvers checking paths with the given filter into a
+     * controller, i.e. for a single transformation or query. Other
+     * controllers made from the same executable are not affected.
+     *
+     * @param controller  the controller
+     * @param filter  the filter
+     */
+    public static void install(Controller controller, FilesystemFilter filter) {
+	if (filter == null) {
+	    throw new IllegalArgumentException("filter may not be null");
+	}
+	controller.setURIResolver(uriResolver(controller.getConfiguration(), controller.getURIResolver(), filter));
+	controller.setUnparsedTextURIResolver(unparsedTextResolver(controller.getUnparsedTextURIResolver(), filter));
+	if (controller instanceof XsltController) {
+	    XsltController xsltController = (XsltController) controller;
+	    ResultDocumentResolver previous = xsltController.getResultDocumentResolver();
+	    HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver(filter);
+	    if (previous instanceof HardenedResultDocumentResolver) {
+		resolver.setWriter(((HardenedResultDocumentResolver) previous).getWriter());
+		resolver.setSink(((HardenedResultDocumentResolver) previous).getSink());
+	    }
+	    xsltController.setResultDocumentResolver(resolver);
+	}
+    }
+
+    /**
+     * Install resolvers checking paths with the given filter into the
+     * controller of an XSLT transformer.
+     *
+     * @param transformer  the transformer
+     * @param filter  the filter
+     *
+     * @see install(Controller, FilesystemFilter)
+     */
+    public static void install(XsltTransformer transformer, FilesystemFilter filter) {
+	install(transformer.getUnderlyingController(), filter);
+    }
+
+    /**
+     * Install resolvers checking paths with the given filter into the
+     * controller of an XSLT 3.0 transformer.
+     *
+     * @param transformer  the transformer
+     * @param filter  the filter
+     *
+     * @see install(Controller, FilesystemFilter)
+     */
+    public static void install(Xslt30Transformer transformer, FilesystemFilter filter) {
+	install(transformer.getUnderlyingController(), filter);
+    }
+
+    private static HardenedURIResolver uriResolver(Configuration config, URIResolver previous, FilesystemFilter filter) {
+	HardenedURIResolver resolver;
+	if (previous instanceof CachingHardenedURIResolver) {
+	    resolver = new CachingHardenedURIResolver(((CachingHardenedURIResolver) previous).getDocumentCache(), filter);
+	} else {
+	    resolver = new HardenedURIResolver(filter);
+	}
+	resolver.setConfiguration(config);
+	return resolver;
+    }
+
+    private static HardenedUnparsedTextResolver unparsedTextResolver(UnparsedTextURIResolver previous, FilesystemFilter filter) {
+	HardenedUnparsedTextResolver resolver = new HardenedUnparsedTextResolver(filter);
+	if (previous instanceof HardenedUnparsedTextResolver) {
+	    resolver.setNio(((HardenedUnparsedTextResolver) previous).isNio());
+	    resolver.setMapThreshold(((HardenedUnparsedTextResolver) previous).getMapThreshold());
+	    resolver.setCache(((HardenedUnparsedTextResolver) previous).getCache());
+	}
+	return resolver;
+    }
+
+}
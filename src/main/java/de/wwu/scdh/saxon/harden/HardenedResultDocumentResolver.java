@@ -1,10 +1,17 @@
 package de.wwu.scdh.saxon.harden;
 
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AccessMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import javax.xml.transform.stream.StreamResult;
 
+import net.sf.saxon.event.ProxyReceiver;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.serialize.SerializationProperties;
 import net.sf.saxon.trans.XPathException;
@@ -16,31 +23,139 @@ import net.sf.saxon.event.Receiver;
  * restricts the access to the local file system by using a {@link
  * FilesystemFilter}.<P>
  *
- * The allowed locations are set from a system property or an
- * environment variable, which define a list of paths.  The name of
- * the system property is {@link FileSystemFilter.PROPERTY}. The name
- * of the environment variable is {@link FilesystemFilter.ENVIRON}.
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}, see {@link
+ * HardenedResolvers} for a filter per configuration or
+ * transformation. By default, its allowed locations are
+ * set from a system property or an environment variable, which define
+ * a list of paths.  The name of the system property is {@link
+ * FileSystemFilter.PROPERTY}. The name of the environment variable is
+ * {@link FilesystemFilter.ENVIRON}.
  * Paths are separated by {@link FilesystemFilter.SEPARATOR}.<P>
  *
  * Configuration errors result in an empty set of allowed paths,
  * but will be notified on stderr.<P>
  *
- * <code>~</code> can be used to point to the user's home directory.
+ * <code>~</code> can be used to point to the user's home directory.<P>
+ *
+ * If the system property {@link ASYNC_PROPERTY} is
+ * <code>true</code> or if a writer is set, allowed result documents
+ * with <code>file:</code> URIs are serialized into memory and written
+ * by an {@link AsyncResultWriter} in the background. The path is
+ * checked before the document is queued. The document belongs to the
+ * {@link AsyncResultWriter.Job} of the transformation thread, whose
+ * {@link AsyncResultWriter.Job#awaitCompletion()} throws the write
+ * errors and should be called after the transformation.<P>
+ *
+ * If a {@link ResultSink} is set, allowed result documents with
+ * <code>file:</code> URIs are written into the sink instead of files:
+ * into a zip archive by the shared {@link ZipResultSink}, which is
+ * the default, or into memory by a {@link ResultCapture}. The path
+ * is checked as if the file was written.<P>
+ *
+ * Decisions, latencies and the bytes written are recorded in {@link
+ * ResolverMetrics#RESULT_DOCUMENT_RESOLVER}, when called through
+ * {@link resolve(XPathContext, String, String,
+ * SerializationProperties)}, which is the way Saxon calls it. There,
+ * the decisions are recorded in the {@link AuditLog}, too, and the
+ * result documents and the bytes written are accounted for in the
+ * current {@link IOQuota}.
  *
  * @see FilesystemFilter
  * @see FilesystemFilter.fromPropertyOrEnviron()
+ * @see FilesystemFilterRegistry
  */
 public class HardenedResultDocumentResolver extends StandardResultDocumentResolver {
 
-    private static FilesystemFilter filter = FilesystemFilter.fromPropertiesOrEnvironment();;
+    /**
+     * The name of the system property for switching on writing result
+     * documents with the shared {@link AsyncResultWriter}.
+     */
+    public static final String ASYNC_PROPERTY = HardenedResultDocumentResolver.class.getName() + ".async";
+
+    private AsyncResultWriter writer =
+	Boolean.getBoolean(ASYNC_PROPERTY) ? AsyncResultWriter.getSharedWriter() : null;
+
+    private ResultSink sink = ZipResultSink.getShared();
+
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a resolver, that checks paths with the current filter of
+     * the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedResultDocumentResolver() {
+	this(null);
+    }
+
+    /**
+     * Make a resolver, that checks paths with the given filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedResultDocumentResolver(FilesystemFilter filter) {
+	super();
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
+
+    /**
+     * Set the writer for writing result documents in the
+     * background. <code>null</code> switches back to writing on the
+     * transformation thread.
+     */
+    public void setWriter(AsyncResultWriter writer) {
+	this.writer = writer;
+    }
+
+    /**
+     * Returns the writer for writing result documents in the
+     * background or <code>null</code>.
+     */
+    public AsyncResultWriter getWriter() {
+	return writer;
+    }
+
+    /**
+     * Set the sink for result documents. <code>null</code> switches
+     * back to writing files.
+     */
+    public void setSink(ResultSink sink) {
+	this.sink = sink;
+    }
+
+    /**
+     * Returns the sink for result documents or <code>null</code>.
+     */
+    public ResultSink getSink() {
+	return sink;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public StreamResult createResult(URI absoluteURI) throws XPathException, IOException {
-	if (filter.check(absoluteURI)) {
-	    return super.createResult(absoluteURI);
+	if (getFilter().check(absoluteURI, AccessMode.WRITE)) {
+	    ResultSink resultSink = sink;
+	    if (resultSink != null && "file".equals(absoluteURI.getScheme())) {
+		StreamResult result = new StreamResult
+		    (resultSink.newEntry(absoluteURI, ResolverMetrics.RESULT_DOCUMENT_RESOLVER, IOQuota.current()));
+		result.setSystemId(absoluteURI.toASCIIString());
+		return result;
+	    }
+	    StreamResult result = super.createResult(absoluteURI);
+	    QuotaOutputStream.setOn(result, absoluteURI);
+	    return result;
 	} else {
 	    throw new XPathException("path not allowed: " + absoluteURI.toString());
 	}
@@ -51,7 +166,7 @@ public class HardenedResultDocumentResolver extends StandardResultDocumentResolv
      */
     // @Override
     public static StreamResult makeOutputFile(URI absoluteURI) throws XPathException {
-	if (filter.check(absoluteURI)) {
+	if (FilesystemFilterRegistry.getFilter().check(absoluteURI, AccessMode.WRITE)) {
 	    return StandardResultDocumentResolver.makeOutputFile(absoluteURI);
 	} else {
 	    throw new XPathException("path not allowed: " + absoluteURI.toString());
@@ -63,7 +178,7 @@ public class HardenedResultDocumentResolver extends StandardResultDocumentResolv
      */
     @Override
     public StreamResult resolve(String href, String base) throws XPathException {
-	if (filter.check(href, base)) {
+	if (getFilter().check(href, base, AccessMode.WRITE)) {
 	    return super.resolve(href, base);
 	} else {
 	    throw new XPathException("path not allowed: " + href);
@@ -76,11 +191,143 @@ public class HardenedResultDocumentResolver extends StandardResultDocumentResolv
     @Override
     public Receiver resolve(XPathContext context, String href, String base, SerializationProperties properties)
 	throws XPathException {
-	if (filter.check(href, base)) {
-	    return super.resolve(context, href, base, properties);
-	} else {
-	    throw new XPathException("path not allowed: " + href);
+	ResolverMetrics metrics = ResolverMetrics.RESULT_DOCUMENT_RESOLVER;
+	long start = metrics.start();
+	boolean allowed = getFilter().check(href, base, AccessMode.WRITE);
+	metrics.checked(start, allowed);
+	AuditLog.log(AuditLog.RESULT_DOCUMENT, href, base, allowed);
+	try {
+	    if (allowed) {
+		IOQuota quota = IOQuota.current();
+		if (quota != null) {
+		    quota.resultDocumentCreated();
+		}
+		AsyncResultWriter asyncWriter = writer;
+		if (asyncWriter != null && sink == null) {
+		    URI absoluteURI = absoluteURI(href, base);
+		    if ("file".equals(absoluteURI.getScheme())) {
+			return writeBehind(context, absoluteURI, properties, asyncWriter, quota);
+		    }
+		}
+		// like super.resolve(context, href, base, properties), but
+		// keeping the result for closing its stream
+		StreamResult result = resolve(href, base);
+		Receiver receiver = context.getConfiguration().getSerializerFactory()
+		    .getReceiver(result, properties, context.getController().makePipelineConfiguration());
+		if (ResolverMetrics.ENABLED || closeable(result)) {
+		    return closing(receiver, result, absoluteURI(href, base));
+		}
+		return receiver;
+	    } else {
+		throw new XPathException("path not allowed: " + href);
+	    }
+	} finally {
+	    metrics.resolved(start);
+	}
+    }
+
+    /**
+     * Returns whether the stream of a result was set by {@link
+     * createResult(URI)} and must be closed by the resolver.
+     */
+    private static boolean closeable(StreamResult result) {
+	return result.getOutputStream() instanceof QuotaOutputStream
+	    || result.getOutputStream() instanceof SinkEntry;
+    }
+
+    /**
+     * Returns a receiver, that closes the stream set by {@link
+     * createResult(URI)} and records the size of a local file as bytes
+     * written on close. Entries of a {@link ResultSink} record their
+     * size themselves.
+     */
+    private static Receiver closing(Receiver receiver, StreamResult result, URI absoluteURI) {
+	final OutputStream stream = closeable(result) ? result.getOutputStream() : null;
+	File local = null;
+	if ("file".equals(absoluteURI.getScheme()) && !(stream instanceof SinkEntry)) {
+	    try {
+		local = new File(absoluteURI);
+	    } catch (IllegalArgumentException e) {
+		// not a local file
+	    }
+	}
+	if (stream == null && local == null) {
+	    return receiver;
+	}
+	final File file = local;
+	return new ProxyReceiver(receiver) {
+	    @Override
+	    public void close() throws XPathException {
+		try {
+		    super.close();
+		} finally {
+		    if (stream != null) {
+			try {
+			    stream.close();
+			} catch (IOException e) {
+			    // the quota was exceeded while flushing, or a write error
+			    throw new XPathException("Failed to close output file " + absoluteURI, e);
+			}
+		    }
+		}
+		if (file != null) {
+		    ResolverMetrics.RESULT_DOCUMENT_RESOLVER.written(file.length());
+		}
+	    }
+	};
+    }
+
+    /**
+     * Resolve href against base like {@link
+     * StandardResultDocumentResolver#resolve(String, String)} does.
+     */
+    private static URI absoluteURI(String href, String base) throws XPathException {
+	try {
+	    URI absoluteURI = new URI(href);
+	    if (!absoluteURI.isAbsolute()) {
+		if (base == null || base.isEmpty()) {
+		    throw new XPathException("The system identifier of the principal output file is unknown");
+		}
+		absoluteURI = new URI(base).resolve(href);
+	    }
+	    return absoluteURI;
+	} catch (URISyntaxException e) {
+	    throw new XPathException("Invalid syntax for URI: " + href, e);
+	}
+    }
+
+    /**
+     * Returns a receiver, that serializes into a buffer and submits
+     * it to the writer on close.
+     */
+    private Receiver writeBehind(XPathContext context, URI absoluteURI, SerializationProperties properties,
+				 AsyncResultWriter asyncWriter, IOQuota quota)
+	throws XPathException {
+	if (!getFilter().check(absoluteURI, AccessMode.WRITE)) {
+	    throw new XPathException("path not allowed: " + absoluteURI.toString());
+	}
+	final Path path;
+	try {
+	    path = Paths.get(absoluteURI);
+	} catch (IllegalArgumentException e) {
+	    throw new XPathException("Cannot write to URI " + absoluteURI, e);
 	}
+	final AsyncResultWriter.Buffer buffer = asyncWriter.newBuffer();
+	StreamResult result = new StreamResult(buffer);
+	result.setSystemId(absoluteURI.toASCIIString());
+	Receiver serializer = context.getConfiguration().getSerializerFactory()
+	    .getReceiver(result, properties, context.getController().makePipelineConfiguration());
+	return new ProxyReceiver(serializer) {
+	    @Override
+	    public void close() throws XPathException {
+		super.close();
+		if (quota != null) {
+		    quota.written(buffer.size());
+		}
+		ResolverMetrics.RESULT_DOCUMENT_RESOLVER.written(buffer.size());
+		asyncWriter.submit(path, buffer);
+	    }
+	};
     }
 
 }
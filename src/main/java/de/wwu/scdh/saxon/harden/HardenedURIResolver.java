@@ -1,6 +1,14 @@
 package de.wwu.scdh.saxon.harden;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
 import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.InputSource;
 
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.lib.StandardURIResolver;
@@ -10,33 +18,173 @@ import net.sf.saxon.lib.StandardURIResolver;
  * access to the local file system by using a {@link
  * FilesystemFilter}.<P>
  *
- * The allowed locations are set from a system property or an
- * environment variable, which define a list of paths.  The name of
- * the system property is {@link FileSystemFilter.PROPERTY}. The name
- * of the environment variable is {@link FilesystemFilter.ENVIRON}.
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}, see {@link
+ * HardenedResolvers} for a filter per configuration or
+ * transformation. By default, its allowed locations are
+ * set from a system property or an environment variable, which define
+ * a list of paths.  The name of the system property is {@link
+ * FileSystemFilter.PROPERTY}. The name of the environment variable is
+ * {@link FilesystemFilter.ENVIRON}.
  * Paths are separated by {@link FilesystemFilter.SEPARATOR}.<P>
  *
  * Configuration errors result in an empty set of allowed paths,
  * but will be notified on stderr.<P>
  *
- * <code>~</code> can be used to point to the user's home directory.
+ * <code>~</code> can be used to point to the user's home directory.<P>
+ *
+ * Decisions, latencies and the bytes read from local files are
+ * recorded in {@link ResolverMetrics#URI_RESOLVER} and the decisions in
+ * the {@link AuditLog}.<P>
+ *
+ * If the filter has a {@link RemotePolicy}, <code>http</code> and
+ * <code>https</code> URIs are fetched by the shared {@link
+ * RemoteFetcher}, which checks redirects, too.<P>
+ *
+ * Documents opened and bytes read are accounted for in the current
+ * {@link IOQuota}. Documents resolved while a {@link StylesheetCache}
+ * compiles a stylesheet are recorded as its modules.
  *
  * @see FilesystemFilter
  * @see FilesystemFilter.fromPropertyOrEnviron()
+ * @see FilesystemFilterRegistry
  */
 public class HardenedURIResolver extends StandardURIResolver {
 
-    private FilesystemFilter filter = FilesystemFilter.fromPropertiesOrEnvironment();;
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a resolver, that checks paths with the current filter of
+     * the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedURIResolver() {
+	this(null);
+    }
+
+    /**
+     * Make a resolver, that checks paths with the given filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedURIResolver(FilesystemFilter filter) {
+	super();
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public Source resolve(String href, String base) throws XPathException {
-	if (filter.check(href, base)) {
-	    return super.resolve(href, base);
-	} else {
-	    throw new XPathException("path not allowed: " + href);
+	ResolverMetrics metrics = ResolverMetrics.URI_RESOLVER;
+	long start = metrics.start();
+	FilesystemFilter filter = getFilter();
+	boolean allowed = filter.check(href, base, AccessMode.READ);
+	metrics.checked(start, allowed);
+	AuditLog.log(AuditLog.DOCUMENT, href, base, allowed);
+	try {
+	    if (allowed) {
+		IOQuota quota = IOQuota.current();
+		if (quota != null) {
+		    quota.documentOpened();
+		}
+		Source source = super.resolve(href, base);
+		if (filter.getRemotePolicy() != null && source instanceof SAXSource) {
+		    fetchRemote((SAXSource) source, filter.getRemotePolicy());
+		}
+		if (source != null && source.getSystemId() != null) {
+		    StylesheetCache.recordModule(source.getSystemId());
+		}
+		return source;
+	    } else {
+		throw new XPathException("path not allowed: " + href);
+	    }
+	} finally {
+	    metrics.resolved(start);
+	}
+    }
+
+    /**
+     * Fetch an <code>http</code> or <code>https</code> source with the
+     * {@link RemoteFetcher} and set the byte stream of the source.
+     */
+    private static void fetchRemote(SAXSource source, RemotePolicy policy) throws XPathException {
+	InputSource input = source.getInputSource();
+	String systemId = source.getSystemId();
+	if (input == null || input.getByteStream() != null || input.getCharacterStream() != null
+	    || systemId == null || !RemoteFetcher.isHttp(systemId)) {
+	    return;
+	}
+	try {
+	    IOQuota quota = IOQuota.current();
+	    RemoteFetcher.Response response = RemoteFetcher.getSharedFetcher()
+		.fetch(new URI(systemId), policy, quota == null ? Long.MAX_VALUE : quota.getRemainingBytesRead());
+	    ResolverMetrics.URI_RESOLVER.read(response.getLength());
+	    if (quota != null) {
+		quota.read(response.getLength());
+	    }
+	    input.setByteStream(response.getInputStream());
+	} catch (SecurityException e) {
+	    throw new XPathException("path not allowed: " + e.getMessage());
+	} catch (URISyntaxException e) {
+	    throw new XPathException("Invalid URI: " + systemId, e);
+	} catch (IOException e) {
+	    throw new XPathException("cannot fetch " + systemId + ": " + e.getMessage(), e);
+	}
+    }
+
+    /**
+     * {@inheritDoc} Local files are read through a stream, that
+     * counts the bytes. Gzip files and entries of local archives are
+     * decompressed while reading, see {@link CompressedInput}.
+     */
+    @Override
+    protected void setSAXInputSource(SAXSource source, String uriString) {
+	super.setSAXInputSource(source, uriString);
+	IOQuota quota = IOQuota.current();
+	if (source.getInputSource() == null
+	    || source.getInputSource().getByteStream() != null
+	    || source.getInputSource().getCharacterStream() != null) {
+	    return;
+	}
+	if (uriString.startsWith("jar:")
+	    || uriString.regionMatches(true, uriString.length() - CompressedInput.GZIP_SUFFIX.length(),
+				       CompressedInput.GZIP_SUFFIX, 0, CompressedInput.GZIP_SUFFIX.length())) {
+	    try {
+		URI uri = new URI(uriString);
+		if (CompressedInput.isCompressed(uri)) {
+		    source.getInputSource().setByteStream
+			(CompressedInput.open(uri, ResolverMetrics.URI_RESOLVER.getBytesReadCounter(), quota));
+		    return;
+		}
+	    } catch (URISyntaxException e) {
+		// let the parser report the problem
+	    }
+	}
+	if ((ResolverMetrics.ENABLED || quota != null) && uriString.startsWith("file:")) {
+	    try {
+		URI uri = new URI(uriString);
+		if (uri.getRawAuthority() == null && uri.getRawQuery() == null && uri.getRawFragment() == null) {
+		    source.getInputSource().setByteStream
+			(new CountingFileInputStream(new File(uri),
+						     ResolverMetrics.URI_RESOLVER.getBytesReadCounter(),
+						     quota));
+		}
+	    } catch (URISyntaxException e) {
+		// let the parser report the problem
+	    } catch (IllegalArgumentException e) {
+		// let the parser report the problem
+	    }
 	}
     }
 
@@ -1,7 +1,31 @@
 package de.wwu.scdh.saxon.harden;
 
 import java.net.URI;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 
 import net.sf.saxon.Configuration;
 import net.sf.saxon.trans.XPathException;
@@ -12,33 +36,497 @@ import net.sf.saxon.lib.StandardUnparsedTextResolver;
  * access to the local file system by using a {@link
  * FilesystemFilter}.<P>
  *
- * The allowed locations are set from a system property or an
- * environment variable, which define a list of paths.  The name of
- * the system property is {@link FileSystemFilter.PROPERTY}. The name
- * of the environment variable is {@link FilesystemFilter.ENVIRON}.
+ * The filter is the one passed to the constructor or else the
+ * current one from the {@link FilesystemFilterRegistry}, see {@link
+ * HardenedResolvers} for a filter per configuration or
+ * transformation. By default, its allowed locations are
+ * set from a system property or an environment variable, which define
+ * a list of paths.  The name of the system property is {@link
+ * FileSystemFilter.PROPERTY}. The name of the environment variable is
+ * {@link FilesystemFilter.ENVIRON}.
  * Paths are separated by {@link FilesystemFilter.SEPARATOR}.<P>
  *
  * Configuration errors result in an empty set of allowed paths,
  * but will be notified on stderr.<P>
  *
- * <code>~</code> can be used to point to the user's home directory.
+ * <code>~</code> can be used to point to the user's home directory.<P>
+ *
+ * If the system property {@link NIO_PROPERTY} is <code>true</code>,
+ * allowed <code>file:</code> URIs are read through a {@link
+ * FileChannel} instead of a stream. Files of at least {@link
+ * MAP_THRESHOLD_PROPERTY} bytes are memory-mapped. The encoding is
+ * inferred like {@link StandardUnparsedTextResolver} does and byte
+ * order marks are passed on to Saxon like before.<P>
+ *
+ * Decisions, latencies and the sizes of the local files read are
+ * recorded in {@link ResolverMetrics#UNPARSED_TEXT_RESOLVER} and the
+ * decisions in the {@link AuditLog}.<P>
+ *
+ * If the filter has a {@link RemotePolicy}, <code>http</code> and
+ * <code>https</code> URIs are fetched by the shared {@link
+ * RemoteFetcher}.<P>
+ *
+ * Gzip files and entries of local archives are decompressed while
+ * reading, see {@link CompressedInput}.<P>
+ *
+ * If the system property {@link CACHE_PROPERTY} is <code>true</code>
+ * or if a cache is set, the decoded texts of allowed local files are
+ * kept in the shared {@link TextCache} for later transformations.
+ * Every lookup is checked by the filter first.<P>
+ *
+ * Texts opened and their sizes are accounted for in the current
+ * {@link IOQuota} before they are read, even if they are taken from
+ * the cache. Compressed texts are accounted for while reading.
  *
  * @see FilesystemFilter
  * @see FilesystemFilter.fromPropertyOrEnviron()
+ * @see FilesystemFilterRegistry
  */
 public class HardenedUnparsedTextResolver extends StandardUnparsedTextResolver {
 
-    private FilesystemFilter filter = FilesystemFilter.fromPropertiesOrEnvironment();;
+    /**
+     * The name of the system property for switching on reading
+     * through file channels.
+     */
+    public static final String NIO_PROPERTY = HardenedUnparsedTextResolver.class.getName() + ".nio";
+
+    /**
+     * The name of the system property for the minimal size in bytes
+     * of files that are memory-mapped.
+     */
+    public static final String MAP_THRESHOLD_PROPERTY = HardenedUnparsedTextResolver.class.getName() + ".mapThreshold";
+
+    /**
+     * The default minimal size of memory-mapped files: 16 MiB.
+     */
+    public static final long DEFAULT_MAP_THRESHOLD = 16L * 1024 * 1024;
+
+    /**
+     * The name of the system property for switching on the shared
+     * {@link TextCache}.
+     */
+    public static final String CACHE_PROPERTY = HardenedUnparsedTextResolver.class.getName() + ".cache";
+
+    /**
+     * Number of bytes used for inferring the encoding, the same as in
+     * {@link StandardUnparsedTextResolver#inferStreamEncoding}.
+     */
+    private static final int INFER_BYTES = 100;
+
+    private boolean nio = Boolean.getBoolean(NIO_PROPERTY);
+
+    private long mapThreshold = Long.getLong(MAP_THRESHOLD_PROPERTY, DEFAULT_MAP_THRESHOLD);
+
+    private TextCache cache = Boolean.getBoolean(CACHE_PROPERTY) ? TextCache.getSharedCache() : null;
+
+    private final FilesystemFilter filter;
+
+    /**
+     * Make a resolver, that checks paths with the current filter of
+     * the {@link FilesystemFilterRegistry}.
+     */
+    public HardenedUnparsedTextResolver() {
+	this(null);
+    }
+
+    /**
+     * Make a resolver, that checks paths with the given filter.
+     *
+     * @param filter  the filter or <code>null</code> for the current
+     * filter of the {@link FilesystemFilterRegistry}
+     */
+    public HardenedUnparsedTextResolver(FilesystemFilter filter) {
+	super();
+	this.filter = filter;
+    }
+
+    /**
+     * Returns the filter for checking paths: the one passed to the
+     * constructor or else the current one of the {@link
+     * FilesystemFilterRegistry}.
+     */
+    protected FilesystemFilter getFilter() {
+	return filter != null ? filter : FilesystemFilterRegistry.getFilter();
+    }
+
+    /**
+     * Switch reading <code>file:</code> URIs through file channels on
+     * or off.
+     */
+    public void setNio(boolean nio) {
+	this.nio = nio;
+    }
+
+    /**
+     * Returns whether <code>file:</code> URIs are read through file
+     * channels.
+     */
+    public boolean isNio() {
+	return nio;
+    }
+
+    /**
+     * Set the minimal size in bytes of files that are memory-mapped
+     * when reading through file channels.
+     */
+    public void setMapThreshold(long mapThreshold) {
+	this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Returns the minimal size in bytes of memory-mapped files.
+     */
+    public long getMapThreshold() {
+	return mapThreshold;
+    }
+
+    /**
+     * Set the cache of decoded texts. <code>null</code> switches
+     * caching off.
+     */
+    public void setCache(TextCache cache) {
+	this.cache = cache;
+    }
+
+    /**
+     * Returns the cache of decoded texts or <code>null</code>.
+     */
+    public TextCache getCache() {
+	return cache;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public Reader resolve(URI absoluteURI, String encoding, Configuration config) throws XPathException {
-	if (filter.check(absoluteURI)) {
-	    return super.resolve(absoluteURI, encoding, config);
-	} else {
-	    throw new XPathException("path not allowed: " + absoluteURI.toString());
+	ResolverMetrics metrics = ResolverMetrics.UNPARSED_TEXT_RESOLVER;
+	long start = metrics.start();
+	FilesystemFilter filter = getFilter();
+	boolean allowed = filter.check(absoluteURI, AccessMode.READ);
+	metrics.checked(start, allowed);
+	AuditLog.log(AuditLog.UNPARSED_TEXT, absoluteURI, allowed);
+	try {
+	    if (allowed) {
+		IOQuota quota = IOQuota.current();
+		if (quota != null) {
+		    quota.documentOpened();
+		}
+		if (filter.getRemotePolicy() != null && RemoteFetcher.isHttp(absoluteURI.toString())) {
+		    return fetchRemote(absoluteURI, encoding, config, filter.getRemotePolicy());
+		}
+		if (CompressedInput.isCompressed(absoluteURI)) {
+		    return openCompressed(absoluteURI, encoding, config, quota);
+		}
+		boolean local = "file".equals(absoluteURI.getScheme())
+		    && absoluteURI.isAbsolute()
+		    && !absoluteURI.isOpaque()
+		    && absoluteURI.getAuthority() == null
+		    && absoluteURI.getQuery() == null;
+		TextCache textCache = cache;
+		if (textCache != null && local && config.getAllowedUriTest().test(absoluteURI)) {
+		    return openCached(absoluteURI, encoding, config, quota, textCache);
+		}
+		return open(absoluteURI, encoding, config, quota, local);
+	    } else {
+		throw new XPathException("path not allowed: " + absoluteURI.toString());
+	    }
+	} finally {
+	    metrics.resolved(start);
+	}
+    }
+
+    /**
+     * Open a reader on a URI, that is not compressed or remote.
+     */
+    private Reader open(URI absoluteURI, String encoding, Configuration config, IOQuota quota, boolean local)
+	throws XPathException {
+	if (nio && local && config.getAllowedUriTest().test(absoluteURI)) {
+	    return openChannel(absoluteURI, encoding, config);
+	}
+	long size = -1;
+	if ((ResolverMetrics.ENABLED || quota != null) && local) {
+	    try {
+		size = new File(absoluteURI).length();
+	    } catch (IllegalArgumentException e) {
+		// not a local file
+	    }
+	}
+	if (quota != null && size >= 0) {
+	    // fail before reading
+	    quota.read(size);
+	}
+	Reader reader = super.resolve(absoluteURI, encoding, config);
+	if (size >= 0) {
+	    ResolverMetrics.UNPARSED_TEXT_RESOLVER.read(size);
+	}
+	return reader;
+    }
+
+    /**
+     * Open a reader on the cached text of a local file. On a miss,
+     * the file is read and decoded completely and added to the
+     * cache. A read error is thrown by the returned reader, like it
+     * would be without the cache, and the text is not cached.
+     */
+    private Reader openCached(URI absoluteURI, String encoding, Configuration config, IOQuota quota, TextCache textCache)
+	throws XPathException {
+	Path path;
+	BasicFileAttributes attributes;
+	try {
+	    path = Paths.get(absoluteURI).toRealPath();
+	    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	} catch (IllegalArgumentException e) {
+	    // let the standard resolver report the problem
+	    return open(absoluteURI, encoding, config, quota, true);
+	} catch (IOException e) {
+	    // let the standard resolver report the problem
+	    return open(absoluteURI, encoding, config, quota, true);
+	}
+	if (!attributes.isRegularFile()) {
+	    return open(absoluteURI, encoding, config, quota, true);
+	}
+	String key = path.toUri().toString();
+	long modified = attributes.lastModifiedTime().toMillis();
+	long size = attributes.size();
+	Reader cached = textCache.get(key, encoding, modified, size);
+	if (cached != null) {
+	    if (quota != null) {
+		quota.read(size);
+	    }
+	    ResolverMetrics.UNPARSED_TEXT_RESOLVER.read(size);
+	    return cached;
+	}
+	Reader reader = open(absoluteURI, encoding, config, quota, true);
+	char[] text = new char[(int) Math.min(Math.min(Math.max(size, 16), textCache.getBudget() / 2 + 1),
+					      Integer.MAX_VALUE - 8)];
+	int length = 0;
+	try {
+	    int n;
+	    while ((n = reader.read(text, length, text.length - length)) >= 0) {
+		length += n;
+		if (length == text.length) {
+		    if (2L * length > textCache.getBudget()) {
+			// too large for the cache: go on reading from the file
+			return new SequenceReader(new CharArrayReader(text, 0, length), reader);
+		    }
+		    text = Arrays.copyOf(text, (int) Math.min(2L * text.length, Integer.MAX_VALUE - 8));
+		}
+	    }
+	} catch (IOException e) {
+	    closeQuietly(reader);
+	    return new FailingReader(new CharArrayReader(text, 0, length), e);
+	}
+	closeQuietly(reader);
+	textCache.put(key, encoding, modified, size, text, length);
+	return new CharArrayReader(text, 0, length);
+    }
+
+    /**
+     * Open a reader on a file channel. Error codes are the same as in
+     * {@link StandardUnparsedTextResolver}.
+     */
+    private Reader openChannel(URI absoluteURI, String encoding, Configuration config) throws XPathException {
+	Path path;
+	try {
+	    path = Paths.get(absoluteURI);
+	} catch (IllegalArgumentException e) {
+	    XPathException err = new XPathException("Cannot convert absolute URI " + absoluteURI + " to path", e);
+	    err.setErrorCode("FOUT1170");
+	    throw err;
+	}
+	FileChannel channel;
+	try {
+	    channel = FileChannel.open(path, StandardOpenOption.READ);
+	} catch (IOException e) {
+	    XPathException err = new XPathException("Failed to read input file " + absoluteURI, e);
+	    err.setErrorCode("FOUT1170");
+	    throw err;
+	}
+	try {
+	    if (encoding == null) {
+		// positional read: the channel stays at position 0
+		ByteBuffer head = ByteBuffer.allocate(INFER_BYTES);
+		int n = 0;
+		while (head.hasRemaining() && n >= 0) {
+		    n = channel.read(head, head.position());
+		}
+		encoding = inferStreamEncoding(new ByteArrayInputStream(head.array(), 0, head.position()),
+					       config.getLogger());
+		if (encoding == null) {
+		    encoding = "UTF-8";
+		}
+	    }
+	    CharsetDecoder decoder = newDecoder(encoding);
+	    long size = channel.size();
+	    IOQuota quota = IOQuota.current();
+	    if (quota != null) {
+		quota.read(size);
+	    }
+	    ResolverMetrics.UNPARSED_TEXT_RESOLVER.read(size);
+	    boolean mapped = size >= mapThreshold;
+	    return new BufferedReader(new FileChannelReader(channel, decoder, mapped));
+	} catch (IOException e) {
+	    closeQuietly(channel);
+	    throw new XPathException(e.getMessage(), "FOUT1170");
+	} catch (XPathException e) {
+	    closeQuietly(channel);
+	    throw e;
+	}
+    }
+
+    /**
+     * Open a reader on a gzip file or an entry of an archive. Error
+     * codes are the same as in {@link StandardUnparsedTextResolver}.
+     */
+    private Reader openCompressed(URI absoluteURI, String encoding, Configuration config, IOQuota quota)
+	throws XPathException {
+	InputStream in = new BufferedInputStream
+	    (CompressedInput.open(absoluteURI, ResolverMetrics.UNPARSED_TEXT_RESOLVER.getBytesReadCounter(), quota));
+	try {
+	    if (encoding == null) {
+		encoding = inferStreamEncoding(in, config.getLogger());
+		if (encoding == null) {
+		    encoding = "UTF-8";
+		}
+	    }
+	    return new BufferedReader(new InputStreamReader(in, newDecoder(encoding)));
+	} catch (IOException e) {
+	    closeQuietly(in);
+	    XPathException err = new XPathException("Failed to read input file " + absoluteURI, e);
+	    err.setErrorCode("FOUT1170");
+	    throw err;
+	} catch (XPathException e) {
+	    closeQuietly(in);
+	    throw e;
+	}
+    }
+
+    /**
+     * Fetch an <code>http</code> or <code>https</code> URI with the
+     * {@link RemoteFetcher}. The charset of the content type takes
+     * precedence over the requested encoding.
+     */
+    private Reader fetchRemote(URI absoluteURI, String encoding, Configuration config, RemotePolicy policy)
+	throws XPathException {
+	IOQuota quota = IOQuota.current();
+	RemoteFetcher.Response response;
+	try {
+	    response = RemoteFetcher.getSharedFetcher()
+		.fetch(absoluteURI, policy, quota == null ? Long.MAX_VALUE : quota.getRemainingBytesRead());
+	} catch (SecurityException e) {
+	    throw new XPathException("path not allowed: " + e.getMessage());
+	} catch (IOException e) {
+	    XPathException err = new XPathException("Failed to read input file " + absoluteURI, e);
+	    err.setErrorCode("FOUT1170");
+	    throw err;
+	}
+	if (quota != null) {
+	    quota.read(response.getLength());
+	}
+	ResolverMetrics.UNPARSED_TEXT_RESOLVER.read(response.getLength());
+	if (response.getCharset() != null) {
+	    encoding = response.getCharset();
+	} else if (encoding == null) {
+	    try {
+		encoding = inferStreamEncoding(response.getInputStream(), config.getLogger());
+	    } catch (IOException e) {
+		// not thrown for a byte array
+		encoding = null;
+	    }
+	    if (encoding == null) {
+		encoding = "UTF-8";
+	    }
+	}
+	return new BufferedReader(new InputStreamReader(response.getInputStream(), newDecoder(encoding)));
+    }
+
+    /**
+     * Returns a decoder, that reports malformed input.
+     */
+    private static CharsetDecoder newDecoder(String encoding) throws XPathException {
+	try {
+	    return Charset.forName(encoding).newDecoder()
+		.onMalformedInput(CodingErrorAction.REPORT)
+		.onUnmappableCharacter(CodingErrorAction.REPORT);
+	} catch (IllegalCharsetNameException e) {
+	    throw new XPathException("Invalid encoding name: " + encoding, "FOUT1190");
+	} catch (UnsupportedCharsetException e) {
+	    throw new XPathException("Invalid encoding name: " + encoding, "FOUT1190");
+	}
+    }
+
+    /**
+     * A reader, that reads the characters read so far and then throws
+     * the error, that occurred while reading them.
+     */
+    private static final class FailingReader extends FilterReader {
+
+	private final IOException error;
+
+	FailingReader(Reader head, IOException error) {
+	    super(head);
+	    this.error = error;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    int c = super.read();
+	    if (c < 0) {
+		throw error;
+	    }
+	    return c;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+	    int n = super.read(cbuf, off, len);
+	    if (n < 0) {
+		throw error;
+	    }
+	    return n;
+	}
+    }
+
+    /**
+     * A reader on the characters read so far followed by the rest of
+     * the underlying reader.
+     */
+    private static final class SequenceReader extends Reader {
+
+	private Reader head;
+
+	private final Reader tail;
+
+	SequenceReader(Reader head, Reader tail) {
+	    this.head = head;
+	    this.tail = tail;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+	    if (head != null) {
+		int n = head.read(cbuf, off, len);
+		if (n >= 0) {
+		    return n;
+		}
+		head = null;
+	    }
+	    return tail.read(cbuf, off, len);
+	}
+
+	@Override
+	public void close() throws IOException {
+	    head = null;
+	    tail.close();
+	}
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+	try {
+	    closeable.close();
+	} catch (IOException e) {
+	    // nothing to do
 	}
     }
 
@@ -0,0 +1,330 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * Limits on the I/O of a transformation: the bytes read, the bytes
+ * written, the number of documents opened and the number of result
+ * documents created. The hardened resolvers account for the I/O they
+ * do in the current quota and fail with an {@link XPathException} as
+ * soon as a limit is exceeded. Bytes read and written through
+ * streams are counted while reading and writing; a stream fails with
+ * an {@link IOException}, which Saxon reports as an error of the
+ * transformation.<P>
+ *
+ * Documents are opened by <code>doc()</code>, <code>document()</code>,
+ * <code>unparsed-text()</code> and by including or importing
+ * stylesheet modules. Result documents are created by
+ * <code>xsl:result-document</code>.<P>
+ *
+ * The current quota of a thread is the one passed to {@link
+ * callWith(IOQuota, Callable)} or else the shared quota. The shared
+ * quota is set from the system properties {@link
+ * MAX_BYTES_READ_PROPERTY}, {@link MAX_BYTES_WRITTEN_PROPERTY},
+ * {@link MAX_DOCUMENTS_PROPERTY} and {@link
+ * MAX_RESULT_DOCUMENTS_PROPERTY} or the environment variables {@link
+ * MAX_BYTES_READ_ENVIRON} etc. If no limit is set, there is no shared
+ * quota and I/O is not limited. The shared quota is never reset, so
+ * it limits the I/O of the whole process, not of a single
+ * transformation. {@link TransformDaemon} and {@link BatchTransform}
+ * run each transformation with a new quota with the same limits, see
+ * {@link newInstance()}. Embedders, that want per-transformation
+ * limits, must do the same with {@link callWith(IOQuota,
+ * Callable)}.<P>
+ *
+ * Accounting is done with atomic counters, so a quota can be shared
+ * by threads.
+ */
+public final class IOQuota {
+
+    public static final String MAX_BYTES_READ_PROPERTY = IOQuota.class.getName() + ".maxBytesRead";
+
+    public static final String MAX_BYTES_READ_ENVIRON = "SAXON_MAX_BYTES_READ";
+
+    public static final String MAX_BYTES_WRITTEN_PROPERTY = IOQuota.class.getName() + ".maxBytesWritten";
+
+    public static final String MAX_BYTES_WRITTEN_ENVIRON = "SAXON_MAX_BYTES_WRITTEN";
+
+    public static final String MAX_DOCUMENTS_PROPERTY = IOQuota.class.getName() + ".maxDocuments";
+
+    public static final String MAX_DOCUMENTS_ENVIRON = "SAXON_MAX_DOCUMENTS";
+
+    public static final String MAX_RESULT_DOCUMENTS_PROPERTY = IOQuota.class.getName() + ".maxResultDocuments";
+
+    public static final String MAX_RESULT_DOCUMENTS_ENVIRON = "SAXON_MAX_RESULT_DOCUMENTS";
+
+    /**
+     * A limit, that is never exceeded.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final Logger LOG = new StandardLogger();
+
+    private static volatile IOQuota shared = fromPropertiesOrEnvironment();
+
+    private static final ThreadLocal<IOQuota> threadQuota = new ThreadLocal<>();
+
+    private final long maxBytesRead;
+
+    private final long maxBytesWritten;
+
+    private final long maxDocuments;
+
+    private final long maxResultDocuments;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong documents = new AtomicLong();
+
+    private final AtomicLong resultDocuments = new AtomicLong();
+
+    /**
+     * Make a new quota.
+     *
+     * @param maxBytesRead  maximum number of bytes read
+     * @param maxBytesWritten  maximum number of bytes written
+     * @param maxDocuments  maximum number of documents opened
+     * @param maxResultDocuments  maximum number of result documents created
+     */
+    public IOQuota(long maxBytesRead, long maxBytesWritten, long maxDocuments, long maxResultDocuments) {
+	if (maxBytesRead < 0 || maxBytesWritten < 0 || maxDocuments < 0 || maxResultDocuments < 0) {
+	    throw new IllegalArgumentException("limits may not be negative");
+	}
+	this.maxBytesRead = maxBytesRead;
+	this.maxBytesWritten = maxBytesWritten;
+	this.maxDocuments = maxDocuments;
+	this.maxResultDocuments = maxResultDocuments;
+    }
+
+    /**
+     * Returns a quota with the limits from the system properties or
+     * environment variables, or <code>null</code>, if no limit is
+     * set. An invalid limit is notified on stderr and results in a
+     * limit of 0.
+     */
+    public static IOQuota fromPropertiesOrEnvironment() {
+	long read = getLimit(MAX_BYTES_READ_PROPERTY, MAX_BYTES_READ_ENVIRON);
+	long written = getLimit(MAX_BYTES_WRITTEN_PROPERTY, MAX_BYTES_WRITTEN_ENVIRON);
+	long docs = getLimit(MAX_DOCUMENTS_PROPERTY, MAX_DOCUMENTS_ENVIRON);
+	long results = getLimit(MAX_RESULT_DOCUMENTS_PROPERTY, MAX_RESULT_DOCUMENTS_ENVIRON);
+	if (read == UNLIMITED && written == UNLIMITED && docs == UNLIMITED && results == UNLIMITED) {
+	    return null;
+	}
+	return new IOQuota(read, written, docs, results);
+    }
+
+    private static long getLimit(String property, String environ) {
+	String limit = System.getProperty(property);
+	if (limit == null) {
+	    limit = System.getenv(environ);
+	}
+	if (limit == null || limit.trim().isEmpty()) {
+	    return UNLIMITED;
+	}
+	try {
+	    long value = Long.parseLong(limit.trim());
+	    if (value < 0) {
+		throw new NumberFormatException("negative");
+	    }
+	    return value;
+	} catch (NumberFormatException e) {
+	    LOG.error("configuration error: invalid limit '" + limit + "' for " + property);
+	    return 0;
+	}
+    }
+
+    /**
+     * Returns the shared quota or <code>null</code>, if I/O is not
+     * limited.
+     */
+    public static IOQuota getShared() {
+	return shared;
+    }
+
+    /**
+     * Replace the shared quota.
+     */
+    public static void setShared(IOQuota quota) {
+	shared = quota;
+    }
+
+    /**
+     * Returns the quota of the current thread or <code>null</code>, if
+     * I/O is not limited.
+     */
+    public static IOQuota current() {
+	IOQuota quota = threadQuota.get();
+	return quota != null ? quota : shared;
+    }
+
+    /**
+     * Run a task on the current thread with the given quota instead
+     * of the shared one.
+     *
+     * @param quota  the quota for the task
+     * @param task  the task
+     *
+     * @return the result of the task
+     */
+    public static <T> T callWith(IOQuota quota, Callable<T> task) throws Exception {
+	if (quota == null) {
+	    throw new IllegalArgumentException("quota may not be null");
+	}
+	IOQuota previous = threadQuota.get();
+	threadQuota.set(quota);
+	try {
+	    return task.call();
+	} finally {
+	    if (previous == null) {
+		threadQuota.remove();
+	    } else {
+		threadQuota.set(previous);
+	    }
+	}
+    }
+
+    /**
+     * Returns a new quota with the same limits and nothing used up.
+     */
+    public IOQuota newInstance() {
+	return new IOQuota(maxBytesRead, maxBytesWritten, maxDocuments, maxResultDocuments);
+    }
+
+    /**
+     * Account for a document opened.
+     *
+     * @throws XPathException  if the limit is exceeded
+     */
+    public void documentOpened() throws XPathException {
+	String message = add(documents, 1, maxDocuments, "documents opened");
+	if (message != null) {
+	    throw new XPathException(message);
+	}
+    }
+
+    /**
+     * Account for a result document created.
+     *
+     * @throws XPathException  if the limit is exceeded
+     */
+    public void resultDocumentCreated() throws XPathException {
+	String message = add(resultDocuments, 1, maxResultDocuments, "result documents created");
+	if (message != null) {
+	    throw new XPathException(message);
+	}
+    }
+
+    /**
+     * Account for bytes read, e.g. for a file before reading it.
+     *
+     * @throws XPathException  if the limit is exceeded
+     */
+    public void read(long n) throws XPathException {
+	String message = add(bytesRead, n, maxBytesRead, "bytes read");
+	if (message != null) {
+	    throw new XPathException(message);
+	}
+    }
+
+    /**
+     * Account for bytes written, e.g. for a buffer before writing it.
+     *
+     * @throws XPathException  if the limit is exceeded
+     */
+    public void written(long n) throws XPathException {
+	String message = add(bytesWritten, n, maxBytesWritten, "bytes written");
+	if (message != null) {
+	    throw new XPathException(message);
+	}
+    }
+
+    /**
+     * Like {@link read(long)}, but for streams.
+     */
+    void readFromStream(long n) throws IOException {
+	String message = add(bytesRead, n, maxBytesRead, "bytes read");
+	if (message != null) {
+	    throw new IOException(message);
+	}
+    }
+
+    /**
+     * Like {@link written(long)}, but for streams.
+     */
+    void writtenToStream(long n) throws IOException {
+	String message = add(bytesWritten, n, maxBytesWritten, "bytes written");
+	if (message != null) {
+	    throw new IOException(message);
+	}
+    }
+
+    /**
+     * Add to a counter and return an error message, if the limit is
+     * exceeded, or <code>null</code>.
+     */
+    private static String add(AtomicLong counter, long n, long limit, String what) {
+	long used = counter.addAndGet(n);
+	if (used > limit) {
+	    return "quota exceeded: more than " + limit + " " + what;
+	} else {
+	    return null;
+	}
+    }
+
+    public long getBytesRead() {
+	return bytesRead.get();
+    }
+
+    /**
+     * Returns the number of bytes, that may still be read.
+     */
+    public long getRemainingBytesRead() {
+	return Math.max(0, maxBytesRead - bytesRead.get());
+    }
+
+    public long getBytesWritten() {
+	return bytesWritten.get();
+    }
+
+    public long getDocuments() {
+	return documents.get();
+    }
+
+    public long getResultDocuments() {
+	return resultDocuments.get();
+    }
+
+    public long getMaxBytesRead() {
+	return maxBytesRead;
+    }
+
+    public long getMaxBytesWritten() {
+	return maxBytesWritten;
+    }
+
+    public long getMaxDocuments() {
+	return maxDocuments;
+    }
+
+    public long getMaxResultDocuments() {
+	return maxResultDocuments;
+    }
+
+    @Override
+    public String toString() {
+	return "bytes read " + getBytesRead() + "/" + maxBytesRead
+	    + ", bytes written " + getBytesWritten() + "/" + maxBytesWritten
+	    + ", documents " + getDocuments() + "/" + maxDocuments
+	    + ", result documents " + getResultDocuments() + "/" + maxResultDocuments;
+    }
+
+}
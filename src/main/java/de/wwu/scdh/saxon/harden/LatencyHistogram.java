@@ -0,0 +1,136 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of latencies in nanoseconds, that can be updated by
+ * many threads without locking. The buckets are powers of two: bucket
+ * <code>i</code> counts the values from <code>2^(i-1)</code> up to
+ * <code>2^i - 1</code>, bucket 0 counts zeros. Percentiles are
+ * reported as the upper bound of the bucket they fall into, i.e.,
+ * they are accurate up to a factor of two.<P>
+ *
+ * Recording a value adds to three {@link LongAdder}s and one {@link
+ * LongAccumulator}, which are striped under contention.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets: one for zero and one for each bit of a
+     * positive long.
+     */
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+	for (int i = 0; i < BUCKETS; i++) {
+	    buckets[i] = new LongAdder();
+	}
+    }
+
+    /**
+     * Record a latency. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+	if (nanos < 0) {
+	    nanos = 0;
+	}
+	buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+	count.increment();
+	total.add(nanos);
+	max.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+	return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded values in nanoseconds.
+     */
+    public long getTotalNanos() {
+	return total.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded values in nanoseconds or 0, if
+     * there are none.
+     */
+    public long getMeanNanos() {
+	long n = count.sum();
+	return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * Returns the largest recorded value in nanoseconds.
+     */
+    public long getMaxNanos() {
+	return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket, that contains the given
+     * percentile, or 0, if there are no values. The result does not
+     * exceed the largest recorded value.
+     *
+     * @param percentile  the percentile, from 0 to 100
+     */
+    public long getPercentileNanos(double percentile) {
+	long[] counts = getBuckets();
+	long n = 0;
+	for (long c : counts) {
+	    n += c;
+	}
+	if (n == 0) {
+	    return 0;
+	}
+	long rank = (long) Math.ceil(n * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+	rank = Math.max(rank, 1);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		long upper = i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+		return Math.min(upper, getMaxNanos());
+	    }
+	}
+	return getMaxNanos();
+    }
+
+    /**
+     * Returns a snapshot of the bucket counts. Values recorded while
+     * taking the snapshot may or may not be included.
+     */
+    public long[] getBuckets() {
+	long[] counts = new long[BUCKETS];
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts[i] = buckets[i].sum();
+	}
+	return counts;
+    }
+
+    /**
+     * Reset the histogram. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+	for (LongAdder bucket : buckets) {
+	    bucket.reset();
+	}
+	count.reset();
+	total.reset();
+	max.reset();
+    }
+
+}
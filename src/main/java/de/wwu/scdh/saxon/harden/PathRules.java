@@ -0,0 +1,353 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A set of glob patterns over absolute paths, each of which carries
+ * permission flags. It is used for the access rules of {@link
+ * FilesystemFilter}.<P>
+ *
+ * In a pattern, <code>?</code> matches a single character other than
+ * <code>/</code>, <code>*</code> matches any number of characters
+ * other than <code>/</code> and <code>**</code> as a whole segment
+ * matches any number of segments. All other characters match
+ * themselves.<P>
+ *
+ * All patterns are compiled into a single nondeterministic
+ * automaton. A lookup runs the deterministic automaton, that is made
+ * from it by subset construction. Its states are built lazily on the
+ * first lookup that needs them and are memoized, so that a lookup
+ * costs O(path length), no matter how many patterns have been added.
+ * The number of memoized states is bounded by {@link MAX_STATES};
+ * beyond that, states are computed on each lookup.<P>
+ *
+ * Lookups work on arbitrary {@link CharSequence}s. The set is not
+ * thread-safe while patterns are added, but lookups on a set that is
+ * not modified any more are.
+ */
+final class PathRules {
+
+    static final int READ_ALLOWED = 1;
+
+    static final int WRITE_ALLOWED = 2;
+
+    static final int READ_DENIED = 4;
+
+    static final int WRITE_DENIED = 8;
+
+    static final int MAX_STATES = 4096;
+
+    private static final char SLASH = '/';
+
+    /**
+     * Test of a state without a transition on characters.
+     */
+    private static final int NONE = 0;
+
+    /**
+     * Test of a state, that has a transition on its literal character.
+     */
+    private static final int LITERAL = 1;
+
+    /**
+     * Test of a state, that has a transition on all characters but
+     * the slash.
+     */
+    private static final int NOT_SLASH = 2;
+
+    /**
+     * Test of a state, that has a transition on all characters.
+     */
+    private static final int ANY = 3;
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    private final BitSet starts = new BitSet();
+
+    private final List<String> patterns = new ArrayList<>();
+
+    /**
+     * The character classes: a sorted array of all literal
+     * characters. Class 0 are all other characters, class
+     * <code>i + 1</code> is the character at position <code>i</code>.
+     */
+    private char[] alphabet = { SLASH };
+
+    /**
+     * The classes of the ASCII characters.
+     */
+    private final int[] asciiClasses = new int[128];
+
+    private final Map<BitSet, State> states = new HashMap<>();
+
+    private volatile State start = null;
+
+    /**
+     * Add a pattern.
+     *
+     * @param pattern  an absolute path pattern
+     * @param flags  the permission flags of paths matching the pattern
+     *
+     * @throws IllegalArgumentException  if the pattern is not valid
+     */
+    void add(String pattern, int flags) {
+	if (pattern.isEmpty() || pattern.charAt(0) != SLASH) {
+	    throw new IllegalArgumentException("pattern must be absolute: " + pattern);
+	}
+	int first = nodes.size();
+	List<Node> added = new ArrayList<>();
+	int length = pattern.length();
+	int i = 0;
+	while (i < length) {
+	    char c = pattern.charAt(i);
+	    int next = first + added.size() + 1;
+	    if (c == '*' && i + 1 < length && pattern.charAt(i + 1) == '*') {
+		if (pattern.charAt(i - 1) != SLASH || (i + 2 < length && pattern.charAt(i + 2) != SLASH)) {
+		    throw new IllegalArgumentException("'**' must be a whole segment: " + pattern);
+		}
+		if (i + 2 == length) {
+		    // trailing "**": everything
+		    added.add(new Node(ANY, '\0', next - 1, next));
+		    i += 2;
+		} else {
+		    // "**/": nothing or any segments, each followed by a slash
+		    added.add(new Node(NONE, '\0', -1, next, next + 2));
+		    added.add(new Node(ANY, '\0', next, next + 1));
+		    added.add(new Node(LITERAL, SLASH, next + 2));
+		    i += 3;
+		}
+	    } else if (c == '*') {
+		added.add(new Node(NOT_SLASH, '\0', next - 1, next));
+		i++;
+	    } else if (c == '?') {
+		added.add(new Node(NOT_SLASH, '\0', next));
+		i++;
+	    } else {
+		added.add(new Node(LITERAL, c, next));
+		i++;
+	    }
+	}
+	Node accept = new Node(NONE, '\0', -1);
+	accept.flags = flags;
+	added.add(accept);
+	nodes.addAll(added);
+	starts.set(first);
+	patterns.add(pattern);
+	updateAlphabet(added);
+	synchronized (this) {
+	    states.clear();
+	    start = null;
+	}
+    }
+
+    /**
+     * Returns the number of patterns.
+     */
+    int size() {
+	return patterns.size();
+    }
+
+    /**
+     * Returns the number of memoized states of the deterministic
+     * automaton.
+     */
+    synchronized int getStateCount() {
+	return states.size();
+    }
+
+    /**
+     * Returns the union of the flags of all patterns matching the
+     * whole path.
+     *
+     * @param path  the path to look up
+     *
+     * @return the flags or 0 if no pattern matches
+     */
+    int match(CharSequence path) {
+	State state = start;
+	if (state == null) {
+	    state = initialState();
+	}
+	int length = path.length();
+	for (int i = 0; i < length && !state.dead; i++) {
+	    int c = classOf(path.charAt(i));
+	    State next = state.next.get(c);
+	    if (next == null) {
+		next = step(state, c);
+	    }
+	    state = next;
+	}
+	return state.flags;
+    }
+
+    private int classOf(char c) {
+	if (c < asciiClasses.length) {
+	    return asciiClasses[c];
+	}
+	int i = Arrays.binarySearch(alphabet, c);
+	return i < 0 ? 0 : i + 1;
+    }
+
+    private void updateAlphabet(List<Node> added) {
+	TreeSet<Character> chars = new TreeSet<>();
+	for (char c : alphabet) {
+	    chars.add(c);
+	}
+	for (Node node : added) {
+	    if (node.test == LITERAL) {
+		chars.add(node.literal);
+	    }
+	}
+	alphabet = new char[chars.size()];
+	int i = 0;
+	for (Character c : chars) {
+	    alphabet[i++] = c;
+	}
+	Arrays.fill(asciiClasses, 0);
+	for (i = 0; i < alphabet.length; i++) {
+	    if (alphabet[i] < asciiClasses.length) {
+		asciiClasses[alphabet[i]] = i + 1;
+	    }
+	}
+    }
+
+    private synchronized State initialState() {
+	if (start == null) {
+	    start = intern(closure(starts));
+	}
+	return start;
+    }
+
+    /**
+     * Compute the transition of a state on a character class and
+     * memoize it.
+     */
+    private synchronized State step(State state, int c) {
+	State next = state.next.get(c);
+	if (next != null) {
+	    return next;
+	}
+	BitSet targets = new BitSet();
+	int slash = classOf(SLASH);
+	for (int n = state.nfa.nextSetBit(0); n >= 0; n = state.nfa.nextSetBit(n + 1)) {
+	    Node node = nodes.get(n);
+	    boolean matches;
+	    switch (node.test) {
+	    case LITERAL:
+		matches = classOf(node.literal) == c;
+		break;
+	    case NOT_SLASH:
+		matches = c != slash;
+		break;
+	    case ANY:
+		matches = true;
+		break;
+	    default:
+		matches = false;
+	    }
+	    if (matches) {
+		targets.set(node.target);
+	    }
+	}
+	next = intern(closure(targets));
+	if (states.get(next.nfa) == next) {
+	    // only link memoized states
+	    state.next.set(c, next);
+	}
+	return next;
+    }
+
+    private BitSet closure(BitSet set) {
+	BitSet closure = (BitSet) set.clone();
+	int[] stack = new int[nodes.size()];
+	int top = 0;
+	for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+	    stack[top++] = n;
+	}
+	while (top > 0) {
+	    Node node = nodes.get(stack[--top]);
+	    for (int e : node.epsilon) {
+		if (!closure.get(e)) {
+		    closure.set(e);
+		    stack[top++] = e;
+		}
+	    }
+	}
+	return closure;
+    }
+
+    private State intern(BitSet nfa) {
+	State state = states.get(nfa);
+	if (state == null) {
+	    int flags = 0;
+	    for (int n = nfa.nextSetBit(0); n >= 0; n = nfa.nextSetBit(n + 1)) {
+		flags |= nodes.get(n).flags;
+	    }
+	    state = new State(nfa, flags, alphabet.length + 1);
+	    if (states.size() < MAX_STATES) {
+		states.put(nfa, state);
+	    }
+	}
+	return state;
+    }
+
+    @Override
+    public String toString() {
+	return patterns.toString();
+    }
+
+    /**
+     * A state of the nondeterministic automaton with at most one
+     * transition on characters.
+     */
+    private static final class Node {
+
+	final int test;
+
+	final char literal;
+
+	final int target;
+
+	final int[] epsilon;
+
+	int flags = 0;
+
+	Node(int test, char literal, int target, int... epsilon) {
+	    this.test = test;
+	    this.literal = literal;
+	    this.target = target;
+	    this.epsilon = epsilon;
+	}
+    }
+
+    /**
+     * A state of the deterministic automaton, i.e. a set of states of
+     * the nondeterministic one.
+     */
+    private static final class State {
+
+	final BitSet nfa;
+
+	final int flags;
+
+	final boolean dead;
+
+	final AtomicReferenceArray<State> next;
+
+	State(BitSet nfa, int flags, int classes) {
+	    this.nfa = nfa;
+	    this.flags = flags;
+	    this.dead = nfa.isEmpty();
+	    this.next = new AtomicReferenceArray<>(classes);
+	}
+    }
+
+}
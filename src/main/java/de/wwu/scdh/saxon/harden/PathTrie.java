@@ -0,0 +1,180 @@
+package de.wwu.scdh.saxon.harden;
+
+/**
+ * A prefix tree over the <code>/</code>-separated segments of
+ * paths. It is used as an index of allowed locations in {@link
+ * FilesystemFilter}: A lookup costs O(path depth), no matter how many
+ * prefixes have been added.<P>
+ *
+ * Prefixes must end with a <code>/</code>. A path matches, if and
+ * only if it starts with one of the prefixes in the sense of {@link
+ * String#startsWith(String)}. Since the prefixes end with a slash,
+ * this is the same as matching all the segments of a prefix.<P>
+ *
+ * Lookups work on arbitrary {@link CharSequence}s and do not
+ * allocate. The tree is not thread-safe while it is being built, but
+ * lookups on a tree that is not modified any more are.
+ */
+final class PathTrie {
+
+    private static final char SLASH = '/';
+
+    private final Node root = new Node();
+
+    private int size = 0;
+
+    /**
+     * Add a prefix to the tree.
+     *
+     * @param prefix  a path ending with a <code>/</code>
+     */
+    void add(String prefix) {
+	if (prefix.isEmpty() || prefix.charAt(prefix.length() - 1) != SLASH) {
+	    throw new IllegalArgumentException("prefix must end with '/': " + prefix);
+	}
+	Node node = root;
+	int start = 0;
+	int end;
+	while ((end = prefix.indexOf(SLASH, start)) >= 0) {
+	    node = node.getOrAdd(prefix.substring(start, end));
+	    start = end + 1;
+	}
+	if (!node.terminal) {
+	    node.terminal = true;
+	    size++;
+	}
+    }
+
+    /**
+     * Returns the number of distinct prefixes in the tree.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Check if the given path starts with one of the prefixes.
+     *
+     * @param path  the path to check
+     *
+     * @return true if and only if a prefix of the path is in the tree
+     */
+    boolean matchesPrefix(CharSequence path) {
+	return matchesPrefix(path, 0, path.length());
+    }
+
+    /**
+     * Check if the path in the given range of a {@link CharSequence}
+     * starts with one of the prefixes.
+     *
+     * @param path  characters containing the path
+     * @param from  start of the path (inclusive)
+     * @param to  end of the path (exclusive)
+     *
+     * @return true if and only if a prefix of the path is in the tree
+     */
+    boolean matchesPrefix(CharSequence path, int from, int to) {
+	Node node = root;
+	int start = from;
+	for (int i = from; i < to; i++) {
+	    if (path.charAt(i) == SLASH) {
+		// only segments terminated by a slash are looked up,
+		// since all prefixes end with a slash
+		node = node.get(path, start, i);
+		if (node == null) {
+		    return false;
+		} else if (node.terminal) {
+		    return true;
+		}
+		start = i + 1;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * A node of the tree. The children are kept in an open addressing
+     * hash table, so that they can be looked up by a range of
+     * characters without creating a {@link String} first.
+     */
+    private static final class Node {
+
+	private String[] keys = new String[2];
+
+	private Node[] children = new Node[2];
+
+	private int count = 0;
+
+	private boolean terminal = false;
+
+	Node get(CharSequence chars, int from, int to) {
+	    int mask = keys.length - 1;
+	    int i = hash(chars, from, to) & mask;
+	    String key;
+	    while ((key = keys[i]) != null) {
+		if (equals(key, chars, from, to)) {
+		    return children[i];
+		}
+		i = (i + 1) & mask;
+	    }
+	    return null;
+	}
+
+	Node getOrAdd(String segment) {
+	    Node child = get(segment, 0, segment.length());
+	    if (child == null) {
+		if (2 * (count + 1) > keys.length) {
+		    grow();
+		}
+		child = new Node();
+		put(segment, child);
+		count++;
+	    }
+	    return child;
+	}
+
+	private void put(String segment, Node child) {
+	    int mask = keys.length - 1;
+	    int i = hash(segment, 0, segment.length()) & mask;
+	    while (keys[i] != null) {
+		i = (i + 1) & mask;
+	    }
+	    keys[i] = segment;
+	    children[i] = child;
+	}
+
+	private void grow() {
+	    String[] oldKeys = keys;
+	    Node[] oldChildren = children;
+	    keys = new String[oldKeys.length * 2];
+	    children = new Node[oldChildren.length * 2];
+	    for (int i = 0; i < oldKeys.length; i++) {
+		if (oldKeys[i] != null) {
+		    put(oldKeys[i], oldChildren[i]);
+		}
+	    }
+	}
+
+	private static int hash(CharSequence chars, int from, int to) {
+	    // same as String.hashCode(), spread like in HashMap
+	    int h = 0;
+	    for (int i = from; i < to; i++) {
+		h = 31 * h + chars.charAt(i);
+	    }
+	    return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(String key, CharSequence chars, int from, int to) {
+	    if (key.length() != to - from) {
+		return false;
+	    }
+	    for (int i = 0; i < key.length(); i++) {
+		if (key.charAt(i) != chars.charAt(from + i)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import javax.xml.transform.stream.StreamResult;
+
+
+/**
+ * An output stream, that accounts for the bytes written in an {@link
+ * IOQuota}. Bytes are accounted for before they are written, so that
+ * a write exceeding the quota fails without writing.
+ */
+final class QuotaOutputStream extends FilterOutputStream {
+
+    private final IOQuota quota;
+
+    QuotaOutputStream(OutputStream out, IOQuota quota) {
+	super(out);
+	this.quota = quota;
+    }
+
+    /**
+     * If there is a current {@link IOQuota}, set a stream on a local
+     * file to a result, which has neither a stream nor a writer. The
+     * serializer does not close a stream, that was set on the result,
+     * so the caller has to.
+     *
+     * @param result  the result for a file
+     * @param absoluteURI  the URI of the file
+     *
+     * @return true if a stream was set
+     */
+    static boolean setOn(StreamResult result, URI absoluteURI) throws IOException {
+	IOQuota quota = IOQuota.current();
+	if (quota == null
+	    || !"file".equals(absoluteURI.getScheme())
+	    || result.getOutputStream() != null
+	    || result.getWriter() != null) {
+	    return false;
+	}
+	File file;
+	try {
+	    file = new File(absoluteURI);
+	} catch (IllegalArgumentException e) {
+	    // let the serializer report the problem
+	    return false;
+	}
+	// like the serializer does for a result without a stream
+	File parent = file.getParentFile();
+	if (parent != null && !parent.exists()) {
+	    parent.mkdirs();
+	}
+	result.setOutputStream(new QuotaOutputStream(new FileOutputStream(file), quota));
+	return true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+	quota.writtenToStream(1);
+	out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+	quota.writtenToStream(len);
+	out.write(b, off, len);
+    }
+
+}
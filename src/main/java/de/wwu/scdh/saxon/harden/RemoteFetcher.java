@@ -0,0 +1,505 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Fetches <code>http</code> and <code>https</code> URIs for the
+ * hardened resolvers.<P>
+ *
+ * Every request and every redirect is checked by a {@link
+ * RemotePolicy}, redirects are not followed automatically. A response
+ * larger than the maximal length passed to {@link fetch(URI,
+ * RemotePolicy, long)}, e.g. the bytes left in the {@link IOQuota} of
+ * the transformation, is rejected by its <code>Content-Length</code>
+ * before reading or as soon as more bytes arrive. Responses are read
+ * completely, so that the connection goes back to the
+ * keep-alive pool of {@link HttpURLConnection}, whose size per host is
+ * set from {@link MAX_PER_HOST_PROPERTY}, if <code>http.maxConnections</code>
+ * is not set. The number of concurrent requests per host and port is
+ * limited to the same number.<P>
+ *
+ * Optionally, responses with an <code>ETag</code> or
+ * <code>Last-Modified</code> header are stored in a cache directory.
+ * Later requests for the same URI are conditional, and the stored
+ * response is used, if the server answers <code>304 Not
+ * Modified</code>. The cache directory is set by the system property
+ * {@link CACHE_PROPERTY} or the environment variable {@link
+ * CACHE_ENVIRON}.
+ */
+public final class RemoteFetcher {
+
+    public static final String CACHE_PROPERTY = RemoteFetcher.class.getName() + ".cache";
+
+    public static final String CACHE_ENVIRON = "SAXON_HTTP_CACHE";
+
+    /**
+     * The name of the system property for the maximal number of
+     * concurrent requests and pooled connections per host.
+     */
+    public static final String MAX_PER_HOST_PROPERTY = RemoteFetcher.class.getName() + ".maxPerHost";
+
+    /**
+     * The name of the system property for the connect and read
+     * timeouts in milliseconds.
+     */
+    public static final String TIMEOUT_PROPERTY = RemoteFetcher.class.getName() + ".timeout";
+
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    /**
+     * The maximal number of redirects followed.
+     */
+    public static final int MAX_REDIRECTS = 5;
+
+    private static final String USER_AGENT = "hardening-saxon";
+
+    private static RemoteFetcher shared = null;
+
+    private final Path cacheDirectory;
+
+    private final int maxPerHost;
+
+    private final int timeout;
+
+    private final ConcurrentHashMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Make a new fetcher.
+     *
+     * @param cacheDirectory  the cache directory or <code>null</code> for no cache
+     * @param maxPerHost  the maximal number of concurrent requests per host
+     * @param timeout  the connect and read timeouts in milliseconds
+     */
+    public RemoteFetcher(Path cacheDirectory, int maxPerHost, int timeout) {
+	if (maxPerHost <= 0) {
+	    throw new IllegalArgumentException("number of requests per host must be positive");
+	}
+	if (timeout < 0) {
+	    throw new IllegalArgumentException("timeout must not be negative");
+	}
+	this.cacheDirectory = cacheDirectory;
+	this.maxPerHost = maxPerHost;
+	this.timeout = timeout;
+    }
+
+    /**
+     * Returns the process-wide fetcher, set up from the system
+     * properties and environment.
+     */
+    public static synchronized RemoteFetcher getSharedFetcher() {
+	if (shared == null) {
+	    String cache = System.getProperty(CACHE_PROPERTY);
+	    if (cache == null) {
+		cache = System.getenv(CACHE_ENVIRON);
+	    }
+	    Path cacheDirectory = null;
+	    if (cache != null && !cache.isEmpty()) {
+		if (cache.startsWith("~")) {
+		    cache = System.getProperty("user.home") + cache.substring(1);
+		}
+		cacheDirectory = Paths.get(cache);
+	    }
+	    int maxPerHost = Integer.getInteger(MAX_PER_HOST_PROPERTY, DEFAULT_MAX_PER_HOST);
+	    if (System.getProperty("http.maxConnections") == null) {
+		// read once by the keep-alive cache of the JDK
+		System.setProperty("http.maxConnections", Integer.toString(maxPerHost));
+	    }
+	    shared = new RemoteFetcher(cacheDirectory, maxPerHost, Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+	}
+	return shared;
+    }
+
+    /**
+     * Returns whether a URI is an <code>http</code> or
+     * <code>https</code> URI.
+     */
+    public static boolean isHttp(String uri) {
+	return uri.regionMatches(true, 0, "http:", 0, 5) || uri.regionMatches(true, 0, "https:", 0, 6);
+    }
+
+    /**
+     * Returns the cache directory or <code>null</code>.
+     */
+    public Path getCacheDirectory() {
+	return cacheDirectory;
+    }
+
+    /**
+     * Fetch a URI.
+     *
+     * @param uri  an absolute <code>http</code> or <code>https</code> URI
+     * @param policy  the policy, that the URI and all redirects must pass
+     *
+     * @return the response
+     *
+     * @throws SecurityException  if the URI or a redirect is not allowed
+     * @throws IOException  if the request fails or does not succeed
+     */
+    public Response fetch(URI uri, RemotePolicy policy) throws IOException {
+	return fetch(uri, policy, Long.MAX_VALUE);
+    }
+
+    /**
+     * Fetch a URI, whose body must not exceed a maximal length.
+     *
+     * @param uri  an absolute <code>http</code> or <code>https</code> URI
+     * @param policy  the policy, that the URI and all redirects must pass
+     * @param maxLength  the maximal length of the body in bytes
+     *
+     * @return the response
+     *
+     * @throws SecurityException  if the URI or a redirect is not allowed
+     * @throws IOException  if the request fails or does not succeed or
+     * if the body is too long
+     */
+    public Response fetch(URI uri, RemotePolicy policy, long maxLength) throws IOException {
+	URI current = uri;
+	for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+	    if (!policy.check(current)) {
+		throw new SecurityException("host not allowed: " + current);
+	    }
+	    Semaphore permits = hosts.computeIfAbsent
+		(current.getHost().toLowerCase(Locale.ROOT) + ":" + current.getPort(), k -> new Semaphore(maxPerHost));
+	    try {
+		permits.acquire();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new IOException("interrupted while waiting for " + current, e);
+	    }
+	    URI location;
+	    try {
+		Object result = request(current, maxLength);
+		if (result instanceof Response) {
+		    return (Response) result;
+		}
+		location = (URI) result;
+	    } finally {
+		permits.release();
+	    }
+	    current = location;
+	}
+	throw new IOException("too many redirects: " + uri);
+    }
+
+    /**
+     * Do a single request. Returns the response or the location of a
+     * redirect.
+     */
+    private Object request(URI uri, long maxLength) throws IOException {
+	Path key = cacheDirectory == null ? null : cacheDirectory.resolve(key(uri));
+	Properties cached = key == null ? null : readMeta(key);
+	URLConnection plain = uri.toURL().openConnection();
+	if (!(plain instanceof HttpURLConnection)) {
+	    throw new IOException("not an HTTP URI: " + uri);
+	}
+	HttpURLConnection connection = (HttpURLConnection) plain;
+	connection.setInstanceFollowRedirects(false);
+	connection.setUseCaches(false);
+	connection.setConnectTimeout(timeout);
+	connection.setReadTimeout(timeout);
+	connection.setRequestProperty("User-Agent", USER_AGENT);
+	if (cached != null) {
+	    if (cached.getProperty("etag") != null) {
+		connection.setRequestProperty("If-None-Match", cached.getProperty("etag"));
+	    }
+	    if (cached.getProperty("lastModified") != null) {
+		connection.setRequestProperty("If-Modified-Since", cached.getProperty("lastModified"));
+	    }
+	}
+	int status = connection.getResponseCode();
+	if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+	    drain(connection.getInputStream());
+	    if (storedLength(cached) > maxLength) {
+		throw tooLong(uri, maxLength);
+	    }
+	    byte[] body = readBody(key, cached);
+	    if (body != null) {
+		return new Response(uri, cached.getProperty("contentType"), body, true);
+	    }
+	    // the body has gone: fetch unconditionally
+	    Files.deleteIfExists(meta(key));
+	    return request(uri, maxLength);
+	}
+	if (status >= 300 && status < 400 && connection.getHeaderField("Location") != null) {
+	    drain(connection.getErrorStream() != null ? connection.getErrorStream() : connection.getInputStream());
+	    try {
+		return uri.resolve(new URI(connection.getHeaderField("Location")));
+	    } catch (URISyntaxException e) {
+		throw new IOException("invalid redirect from " + uri + ": " + e.getMessage(), e);
+	    }
+	}
+	if (status != HttpURLConnection.HTTP_OK) {
+	    drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+	    throw new IOException("HTTP status " + status + " for " + uri);
+	}
+	if (connection.getContentLengthLong() > maxLength) {
+	    // not drained, the connection is not reused
+	    connection.disconnect();
+	    throw tooLong(uri, maxLength);
+	}
+	byte[] body;
+	try (InputStream in = connection.getInputStream()) {
+	    body = readAll(in, uri, maxLength);
+	}
+	String contentType = connection.getContentType();
+	String etag = connection.getHeaderField("ETag");
+	String lastModified = connection.getHeaderField("Last-Modified");
+	if (key != null && (etag != null || lastModified != null)) {
+	    store(key, uri, contentType, etag, lastModified, body);
+	}
+	return new Response(uri, contentType, body, false);
+    }
+
+    /**
+     * Read a stream to its end and close it, so that the connection
+     * can be reused.
+     */
+    private static void drain(InputStream in) {
+	if (in == null) {
+	    return;
+	}
+	try {
+	    byte[] buffer = new byte[8192];
+	    while (in.read(buffer) >= 0) {
+		// discard
+	    }
+	} catch (IOException e) {
+	    // the connection is not reused
+	} finally {
+	    try {
+		in.close();
+	    } catch (IOException e) {
+		// nothing to do
+	    }
+	}
+    }
+
+    /**
+     * Read a stream, that must not exceed a maximal length.
+     */
+    private static byte[] readAll(InputStream in, URI uri, long maxLength) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	byte[] buffer = new byte[8192];
+	int n;
+	while ((n = in.read(buffer)) >= 0) {
+	    if (out.size() + (long) n > maxLength) {
+		throw tooLong(uri, maxLength);
+	    }
+	    out.write(buffer, 0, n);
+	}
+	return out.toByteArray();
+    }
+
+    private static IOException tooLong(URI uri, long maxLength) {
+	return new IOException("quota exceeded: response of " + uri + " longer than " + maxLength + " bytes");
+    }
+
+    /**
+     * Returns the name of the cache entry of a URI.
+     */
+    private static String key(URI uri) {
+	try {
+	    byte[] digest = MessageDigest.getInstance("SHA-256").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+	    StringBuilder hex = new StringBuilder();
+	    for (byte b : digest) {
+		hex.append(String.format("%02x", b & 0xff));
+	    }
+	    return hex.toString();
+	} catch (NoSuchAlgorithmException e) {
+	    // every JVM has SHA-256
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    private static Path meta(Path key) {
+	return key.resolveSibling(key.getFileName() + ".meta");
+    }
+
+    private static Path body(Path key) {
+	return key.resolveSibling(key.getFileName() + ".body");
+    }
+
+    private static Properties readMeta(Path key) {
+	Path meta = meta(key);
+	if (!Files.exists(meta)) {
+	    return null;
+	}
+	Properties properties = new Properties();
+	try (InputStream in = Files.newInputStream(meta)) {
+	    properties.load(in);
+	    return properties;
+	} catch (IOException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the length of a stored body or -1, if it is unknown.
+     */
+    private static long storedLength(Properties meta) {
+	try {
+	    return Long.parseLong(meta.getProperty("length", "-1"));
+	} catch (NumberFormatException e) {
+	    return -1;
+	}
+    }
+
+    /**
+     * Returns the stored body or <code>null</code>, if it is missing
+     * or does not belong to the meta data.
+     */
+    private static byte[] readBody(Path key, Properties meta) {
+	try {
+	    byte[] body = Files.readAllBytes(body(key));
+	    if (!Long.toString(body.length).equals(meta.getProperty("length"))) {
+		return null;
+	    }
+	    return body;
+	} catch (IOException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Store a response. The body is stored first, so that the meta
+     * data never refer to a body not yet written. Errors are ignored,
+     * the response is just not cached then.
+     */
+    private static void store(Path key, URI uri, String contentType, String etag, String lastModified, byte[] body) {
+	try {
+	    Files.createDirectories(key.getParent());
+	    Path tmp = Files.createTempFile(key.getParent(), key.getFileName().toString(), ".tmp");
+	    Files.write(tmp, body);
+	    move(tmp, body(key));
+	    Properties meta = new Properties();
+	    meta.setProperty("uri", uri.toString());
+	    meta.setProperty("length", Long.toString(body.length));
+	    if (contentType != null) {
+		meta.setProperty("contentType", contentType);
+	    }
+	    if (etag != null) {
+		meta.setProperty("etag", etag);
+	    }
+	    if (lastModified != null) {
+		meta.setProperty("lastModified", lastModified);
+	    }
+	    tmp = Files.createTempFile(key.getParent(), key.getFileName().toString(), ".tmp");
+	    try (OutputStream out = Files.newOutputStream(tmp)) {
+		meta.store(out, null);
+	    }
+	    move(tmp, meta(key));
+	} catch (IOException e) {
+	    // not cached
+	}
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+	try {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    /**
+     * A successful response.
+     */
+    public static final class Response {
+
+	private final URI uri;
+
+	private final String contentType;
+
+	private final byte[] body;
+
+	private final boolean fromCache;
+
+	Response(URI uri, String contentType, byte[] body, boolean fromCache) {
+	    this.uri = uri;
+	    this.contentType = contentType;
+	    this.body = body;
+	    this.fromCache = fromCache;
+	}
+
+	/**
+	 * Returns the URI of the response, which differs from the
+	 * requested URI after redirects.
+	 */
+	public URI getURI() {
+	    return uri;
+	}
+
+	/**
+	 * Returns the content type or <code>null</code>.
+	 */
+	public String getContentType() {
+	    return contentType;
+	}
+
+	/**
+	 * Returns the charset parameter of the content type or
+	 * <code>null</code>.
+	 */
+	public String getCharset() {
+	    if (contentType == null) {
+		return null;
+	    }
+	    for (String parameter : contentType.split(";")) {
+		String[] pair = parameter.trim().split("=", 2);
+		if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+		    String charset = pair[1].trim();
+		    if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+			charset = charset.substring(1, charset.length() - 1);
+		    }
+		    return charset;
+		}
+	    }
+	    return null;
+	}
+
+	/**
+	 * Returns the length of the body.
+	 */
+	public int getLength() {
+	    return body.length;
+	}
+
+	/**
+	 * Returns a new stream on the body.
+	 */
+	public InputStream getInputStream() {
+	    return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * Returns whether the body was taken from the cache.
+	 */
+	public boolean isFromCache() {
+	    return fromCache;
+	}
+    }
+
+}
@@ -0,0 +1,282 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.net.URI;
+import java.util.Locale;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+
+
+/**
+ * A policy for URIs, that are not in the <code>file</code> scheme.
+ * Only <code>http</code> and <code>https</code> URIs to allowed hosts
+ * pass. All other schemes are denied, e.g. <code>ftp:</code> or
+ * <code>jar:</code> on a remote archive. Entries of local archives
+ * are decided by the {@link FilesystemFilter} on the path of the
+ * archive.<P>
+ *
+ * An allowed host is given as
+ * <code>[SCHEME://]HOST[:PORT]</code>. Without a scheme, both
+ * <code>http</code> and <code>https</code> are allowed. Without a
+ * port, only the default port of the scheme is allowed.
+ * <code>*</code> as port allows any port. A host starting with
+ * <code>*.</code> allows all subdomains, e.g.
+ * <code>*.example.org</code>.<P>
+ *
+ * The shared policy is set from the system property {@link PROPERTY}
+ * or the environment variable {@link ENVIRON}, which define a list of
+ * hosts separated by {@link FilesystemFilter.SEPARATOR}. If none is
+ * set, there is no shared policy and all URIs other than
+ * <code>file</code> URIs pass the check of a {@link
+ * FilesystemFilter}, like before. An empty list denies all remote
+ * access.<P>
+ *
+ * A {@link FilesystemFilter} takes the shared policy at its
+ * construction.
+ */
+public final class RemotePolicy {
+
+    public static final String PROPERTY = RemotePolicy.class.getName();
+
+    public static final String ENVIRON = "SAXON_ALLOWED_HOSTS";
+
+    private static final Logger LOG = new StandardLogger();
+
+    /**
+     * Port of a rule without port: the default port of the scheme.
+     */
+    private static final int DEFAULT_PORT = -1;
+
+    /**
+     * Port of a rule with <code>*</code> as port.
+     */
+    private static final int ANY_PORT = -2;
+
+    private static volatile RemotePolicy shared = fromPropertiesOrEnvironment();
+
+    private final String[] allowedHosts;
+
+    private final Rule[] rules;
+
+    /**
+     * Make a new policy.
+     *
+     * @param allowedHosts  the allowed hosts
+     */
+    public RemotePolicy(String[] allowedHosts) throws FilesystemFilterException {
+	if (allowedHosts == null) {
+	    throw new FilesystemFilterException("allowedHosts may not be null");
+	}
+	int n = 0;
+	Rule[] parsed = new Rule[allowedHosts.length];
+	for (String host : allowedHosts) {
+	    if (host != null && !host.trim().isEmpty()) {
+		parsed[n++] = parse(host.trim());
+	    }
+	}
+	this.rules = new Rule[n];
+	this.allowedHosts = new String[n];
+	System.arraycopy(parsed, 0, this.rules, 0, n);
+	for (int i = 0; i < n; i++) {
+	    this.allowedHosts[i] = this.rules[i].toString();
+	}
+    }
+
+    /**
+     * Returns the policy made from the system property or environment
+     * variable, or <code>null</code>, if none is set. Configuration
+     * errors result in a policy, that denies all remote access, but
+     * are notified on stderr.
+     */
+    public static RemotePolicy fromPropertiesOrEnvironment() {
+	String hosts = System.getProperty(PROPERTY);
+	if (hosts == null) {
+	    hosts = System.getenv(ENVIRON);
+	}
+	if (hosts == null) {
+	    return null;
+	}
+	try {
+	    return new RemotePolicy(hosts.split(FilesystemFilter.SEPARATOR));
+	} catch (FilesystemFilterException e) {
+	    LOG.error(e.getMessage());
+	    String none[] = {};
+	    try {
+		return new RemotePolicy(none);
+	    } catch (FilesystemFilterException ee) {
+		// not thrown for an empty list
+		throw new IllegalStateException(ee);
+	    }
+	}
+    }
+
+    /**
+     * Returns the shared policy or <code>null</code>, if remote URIs
+     * are not restricted.
+     */
+    public static RemotePolicy getShared() {
+	return shared;
+    }
+
+    /**
+     * Replace the shared policy. It is used by filters made
+     * afterwards.
+     */
+    public static void setShared(RemotePolicy policy) {
+	shared = policy;
+    }
+
+    /**
+     * Returns the allowed hosts in normalized form.
+     */
+    public String[] getAllowedHosts() {
+	return allowedHosts.clone();
+    }
+
+    /**
+     * Check if an absolute URI is an <code>http</code> or
+     * <code>https</code> URI to an allowed host.
+     */
+    public boolean check(URI uri) {
+	String scheme = uri.getScheme();
+	String host = uri.getHost();
+	if (scheme == null || host == null) {
+	    return false;
+	}
+	scheme = scheme.toLowerCase(Locale.ROOT);
+	int defaultPort = defaultPort(scheme);
+	if (defaultPort < 0) {
+	    return false;
+	}
+	host = host.toLowerCase(Locale.ROOT);
+	int port = uri.getPort() == -1 ? defaultPort : uri.getPort();
+	for (Rule rule : rules) {
+	    if (rule.matches(scheme, host, port, defaultPort)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private static int defaultPort(String scheme) {
+	if ("http".equals(scheme)) {
+	    return 80;
+	} else if ("https".equals(scheme)) {
+	    return 443;
+	} else {
+	    return -1;
+	}
+    }
+
+    private static Rule parse(String entry) throws FilesystemFilterException {
+	String rest = entry.toLowerCase(Locale.ROOT);
+	String scheme = null;
+	int separator = rest.indexOf("://");
+	if (separator >= 0) {
+	    scheme = rest.substring(0, separator);
+	    rest = rest.substring(separator + 3);
+	    if (defaultPort(scheme) < 0) {
+		throw new FilesystemFilterException("configuration error: scheme not supported for allowed host '"
+						    + entry + "'");
+	    }
+	}
+	if (rest.endsWith("/")) {
+	    rest = rest.substring(0, rest.length() - 1);
+	}
+	String host = rest;
+	String port = null;
+	if (rest.startsWith("[")) {
+	    // IPv6 address
+	    int close = rest.indexOf(']');
+	    if (close < 0) {
+		throw new FilesystemFilterException("configuration error: invalid allowed host '" + entry + "'");
+	    }
+	    host = rest.substring(0, close + 1);
+	    if (close + 1 < rest.length()) {
+		if (rest.charAt(close + 1) != ':') {
+		    throw new FilesystemFilterException("configuration error: invalid allowed host '" + entry + "'");
+		}
+		port = rest.substring(close + 2);
+	    }
+	} else {
+	    int colon = rest.lastIndexOf(':');
+	    if (colon >= 0) {
+		host = rest.substring(0, colon);
+		port = rest.substring(colon + 1);
+	    }
+	}
+	if (host.isEmpty() || host.indexOf('/') >= 0 || host.indexOf('@') >= 0
+	    || (host.indexOf('*') >= 0 && !(host.startsWith("*.") && host.lastIndexOf('*') == 0))) {
+	    throw new FilesystemFilterException("configuration error: invalid allowed host '" + entry + "'");
+	}
+	int portNumber = DEFAULT_PORT;
+	if (port != null) {
+	    if (port.equals("*")) {
+		portNumber = ANY_PORT;
+	    } else {
+		try {
+		    portNumber = Integer.parseInt(port);
+		} catch (NumberFormatException e) {
+		    throw new FilesystemFilterException("configuration error: invalid port in allowed host '"
+							+ entry + "'", e);
+		}
+		if (portNumber < 0 || portNumber > 65535) {
+		    throw new FilesystemFilterException("configuration error: invalid port in allowed host '"
+							+ entry + "'");
+		}
+	    }
+	}
+	return new Rule(scheme, host, portNumber);
+    }
+
+    /**
+     * An allowed host.
+     */
+    private static final class Rule {
+
+	/**
+	 * The scheme or <code>null</code> for both.
+	 */
+	final String scheme;
+
+	/**
+	 * The host or the suffix of subdomains, starting with a dot.
+	 */
+	final String host;
+
+	final boolean subdomains;
+
+	final int port;
+
+	Rule(String scheme, String host, int port) {
+	    this.scheme = scheme;
+	    this.subdomains = host.startsWith("*.");
+	    this.host = subdomains ? host.substring(1) : host;
+	    this.port = port;
+	}
+
+	boolean matches(String scheme, String host, int port, int defaultPort) {
+	    if (this.scheme != null && !this.scheme.equals(scheme)) {
+		return false;
+	    }
+	    if (subdomains ? !host.endsWith(this.host) : !host.equals(this.host)) {
+		return false;
+	    }
+	    if (this.port == ANY_PORT) {
+		return true;
+	    } else if (this.port == DEFAULT_PORT) {
+		return port == defaultPort;
+	    } else {
+		return port == this.port;
+	    }
+	}
+
+	@Override
+	public String toString() {
+	    return (scheme == null ? "" : scheme + "://")
+		+ (subdomains ? "*" : "") + host
+		+ (port == DEFAULT_PORT ? "" : ":" + (port == ANY_PORT ? "*" : Integer.toString(port)));
+	}
+    }
+
+}
@@ -0,0 +1,382 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+
+
+/**
+ * Access metrics of a hardened resolver: counts of allowed and denied
+ * decisions, latencies of the filter check and of the whole
+ * resolution, and the bytes read or written. There is one instance
+ * per kind of resolver, shared by all resolvers of that kind.<P>
+ *
+ * All counters are {@link LongAdder}s, so that updating them from
+ * many transformation threads does not contend on a single cache
+ * line. The overhead is two calls of {@link System#nanoTime()} per
+ * resolution. Metrics can be switched off by setting the system
+ * property {@link #ENABLED_PROPERTY} to <code>false</code>.<P>
+ *
+ * If the system property {@link #JMX_PROPERTY} is <code>true</code>,
+ * the metrics are registered as MBeans under the domain
+ * <code>de.wwu.scdh.saxon.harden</code>. If the system property
+ * {@link #DUMP_PROPERTY} is set to a number of seconds, the metrics are
+ * printed to stderr periodically.
+ */
+public final class ResolverMetrics implements ResolverMetricsMBean {
+
+    /**
+     * The name of the system property for switching metrics off.
+     */
+    public static final String ENABLED_PROPERTY = ResolverMetrics.class.getName() + ".enabled";
+
+    /**
+     * The name of the system property for registering the metrics
+     * with the platform MBean server.
+     */
+    public static final String JMX_PROPERTY = ResolverMetrics.class.getName() + ".jmx";
+
+    /**
+     * The name of the system property for the interval in seconds of
+     * printing the metrics to stderr.
+     */
+    public static final String DUMP_PROPERTY = ResolverMetrics.class.getName() + ".dump";
+
+    /**
+     * The JMX domain of the metrics.
+     */
+    public static final String DOMAIN = "de.wwu.scdh.saxon.harden";
+
+    /**
+     * Whether metrics are recorded. Constant, so that the JIT can
+     * remove the recording when switched off.
+     */
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+
+    /**
+     * Metrics of {@link HardenedURIResolver}.
+     */
+    public static final ResolverMetrics URI_RESOLVER = new ResolverMetrics("uriResolver");
+
+    /**
+     * Metrics of {@link HardenedUnparsedTextResolver}.
+     */
+    public static final ResolverMetrics UNPARSED_TEXT_RESOLVER = new ResolverMetrics("unparsedTextResolver");
+
+    /**
+     * Metrics of {@link HardenedOutputResolver}.
+     */
+    public static final ResolverMetrics OUTPUT_RESOLVER = new ResolverMetrics("outputResolver");
+
+    /**
+     * Metrics of {@link HardenedResultDocumentResolver}.
+     */
+    public static final ResolverMetrics RESULT_DOCUMENT_RESOLVER = new ResolverMetrics("resultDocumentResolver");
+
+    /**
+     * Metrics of {@link HardenedCollectionFinder}.
+     */
+    public static final ResolverMetrics COLLECTION_FINDER = new ResolverMetrics("collectionFinder");
+
+    /**
+     * Metrics of {@link HardenedModuleURIResolver}.
+     */
+    public static final ResolverMetrics MODULE_RESOLVER = new ResolverMetrics("moduleResolver");
+
+    private static final ResolverMetrics[] ALL = {
+	URI_RESOLVER, UNPARSED_TEXT_RESOLVER, OUTPUT_RESOLVER, RESULT_DOCUMENT_RESOLVER, COLLECTION_FINDER,
+	MODULE_RESOLVER
+    };
+
+    private static final Logger LOG = new StandardLogger();
+
+    private static boolean registered = false;
+
+    private static Thread dumper = null;
+
+    static {
+	if (ENABLED && Boolean.getBoolean(JMX_PROPERTY)) {
+	    register();
+	}
+	if (ENABLED && Long.getLong(DUMP_PROPERTY, 0) > 0) {
+	    startDump(System.err, Long.getLong(DUMP_PROPERTY, 0));
+	}
+    }
+
+    private final String name;
+
+    private final LongAdder allowed = new LongAdder();
+
+    private final LongAdder denied = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LatencyHistogram check = new LatencyHistogram();
+
+    private final LatencyHistogram resolve = new LatencyHistogram();
+
+    private ResolverMetrics(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Returns the metrics of all kinds of resolvers.
+     */
+    public static ResolverMetrics[] getAll() {
+	return ALL.clone();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. Does
+     * nothing, if they are already registered.
+     */
+    public static synchronized void register() {
+	if (registered) {
+	    return;
+	}
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	for (ResolverMetrics metrics : ALL) {
+	    try {
+		server.registerMBean(metrics, metrics.getObjectName());
+	    } catch (InstanceAlreadyExistsException e) {
+		// registered by another class loader
+	    } catch (JMException e) {
+		LOG.error("cannot register resolver metrics: " + e.getMessage());
+	    }
+	}
+	registered = true;
+    }
+
+    /**
+     * Start a daemon thread, that prints the metrics periodically. Does
+     * nothing, if there is one already.
+     *
+     * @param out  the stream to print to
+     * @param seconds  the interval
+     */
+    public static synchronized void startDump(final PrintStream out, final long seconds) {
+	if (dumper != null || seconds <= 0) {
+	    return;
+	}
+	dumper = new Thread(() -> {
+	    try {
+		while (true) {
+		    Thread.sleep(seconds * 1000);
+		    dump(out);
+		}
+	    } catch (InterruptedException e) {
+		// stopped
+	    }
+	}, "hardened-resolver-metrics");
+	dumper.setDaemon(true);
+	dumper.start();
+    }
+
+    /**
+     * Print the metrics of all kinds of resolvers, one line each.
+     */
+    public static void dump(PrintStream out) {
+	StringBuilder lines = new StringBuilder();
+	for (ResolverMetrics metrics : ALL) {
+	    lines.append(metrics.toString()).append(System.lineSeparator());
+	}
+	out.print(lines);
+	out.flush();
+    }
+
+    /**
+     * Returns the name, under which the metrics are registered.
+     */
+    public ObjectName getObjectName() throws JMException {
+	return new ObjectName(DOMAIN + ":type=ResolverMetrics,name=" + name);
+    }
+
+    /**
+     * Returns the start time of a resolution, or 0, if metrics are
+     * switched off.
+     */
+    public long start() {
+	return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the decision of the filter.
+     *
+     * @param start  the time returned by {@link start()} before the check
+     * @param isAllowed  the decision
+     */
+    public void checked(long start, boolean isAllowed) {
+	if (ENABLED) {
+	    check.record(System.nanoTime() - start);
+	    if (isAllowed) {
+		allowed.increment();
+	    } else {
+		denied.increment();
+	    }
+	}
+    }
+
+    /**
+     * Record the end of a resolution, including the check.
+     *
+     * @param start  the time returned by {@link start()}
+     */
+    public void resolved(long start) {
+	if (ENABLED) {
+	    resolve.record(System.nanoTime() - start);
+	}
+    }
+
+    /**
+     * Record bytes read.
+     */
+    public void read(long bytes) {
+	if (ENABLED && bytes > 0) {
+	    bytesRead.add(bytes);
+	}
+    }
+
+    /**
+     * Record bytes written.
+     */
+    public void written(long bytes) {
+	if (ENABLED && bytes > 0) {
+	    bytesWritten.add(bytes);
+	}
+    }
+
+    /**
+     * Returns the counter of bytes read, e.g. for counting streams.
+     */
+    LongAdder getBytesReadCounter() {
+	return bytesRead;
+    }
+
+    /**
+     * Returns the histogram of check latencies.
+     */
+    public LatencyHistogram getCheckHistogram() {
+	return check;
+    }
+
+    /**
+     * Returns the histogram of resolution latencies.
+     */
+    public LatencyHistogram getResolveHistogram() {
+	return resolve;
+    }
+
+    @Override
+    public String getName() {
+	return name;
+    }
+
+    @Override
+    public long getAllowed() {
+	return allowed.sum();
+    }
+
+    @Override
+    public long getDenied() {
+	return denied.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+	return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+	return bytesWritten.sum();
+    }
+
+    @Override
+    public long getCheckCount() {
+	return check.getCount();
+    }
+
+    @Override
+    public long getCheckMeanNanos() {
+	return check.getMeanNanos();
+    }
+
+    @Override
+    public long getCheckP50Nanos() {
+	return check.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getCheckP99Nanos() {
+	return check.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getCheckMaxNanos() {
+	return check.getMaxNanos();
+    }
+
+    @Override
+    public long getResolveCount() {
+	return resolve.getCount();
+    }
+
+    @Override
+    public long getResolveMeanNanos() {
+	return resolve.getMeanNanos();
+    }
+
+    @Override
+    public long getResolveP50Nanos() {
+	return resolve.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getResolveP99Nanos() {
+	return resolve.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getResolveMaxNanos() {
+	return resolve.getMaxNanos();
+    }
+
+    @Override
+    public void reset() {
+	allowed.reset();
+	denied.reset();
+	bytesRead.reset();
+	bytesWritten.reset();
+	check.reset();
+	resolve.reset();
+    }
+
+    /**
+     * Returns the metrics in one line. Latencies are in microseconds.
+     */
+    @Override
+    public String toString() {
+	return String.format("%s: allowed=%d denied=%d check(n=%d mean=%.1fus p99=%.1fus max=%.1fus)"
+			     + " resolve(n=%d mean=%.1fus p99=%.1fus max=%.1fus) read=%dB written=%dB",
+			     name, getAllowed(), getDenied(),
+			     check.getCount(), micros(check.getMeanNanos()),
+			     micros(check.getPercentileNanos(99)), micros(check.getMaxNanos()),
+			     resolve.getCount(), micros(resolve.getMeanNanos()),
+			     micros(resolve.getPercentileNanos(99)), micros(resolve.getMaxNanos()),
+			     getBytesRead(), getBytesWritten());
+    }
+
+    private static double micros(long nanos) {
+	return nanos / 1000.0;
+    }
+
+}
@@ -0,0 +1,45 @@
+package de.wwu.scdh.saxon.harden;
+
+
+/**
+ * The management interface of {@link ResolverMetrics}. Latencies are
+ * in nanoseconds.
+ */
+public interface ResolverMetricsMBean {
+
+    String getName();
+
+    long getAllowed();
+
+    long getDenied();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getCheckCount();
+
+    long getCheckMeanNanos();
+
+    long getCheckP50Nanos();
+
+    long getCheckP99Nanos();
+
+    long getCheckMaxNanos();
+
+    long getResolveCount();
+
+    long getResolveMeanNanos();
+
+    long getResolveP50Nanos();
+
+    long getResolveP99Nanos();
+
+    long getResolveMaxNanos();
+
+    /**
+     * Reset all counters and histograms.
+     */
+    void reset();
+
+}
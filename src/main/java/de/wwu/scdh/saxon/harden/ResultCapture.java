@@ -0,0 +1,225 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Captures result documents in memory instead of writing them to
+ * files. This is for services, that return the result documents of a
+ * transformation to their clients: the results are taken from the
+ * capture after the transformation, without writing and reading
+ * files.<P>
+ *
+ * Result documents are keyed by their absolute URI, i.e. the
+ * <code>href</code> resolved against the base output URI. The
+ * resolvers check the URI against the {@link FilesystemFilter}, as if
+ * the file was written, so a capture does not change what a
+ * stylesheet is allowed to produce.<P>
+ *
+ * The total size of the captured documents is capped. The bytes
+ * buffered by documents, that are still being written, are reserved
+ * in the capture on each write and count against the cap, too, even
+ * if they replace a captured document. So a document, that exceeds
+ * the cap, fails the transformation before more than the cap is held
+ * in memory, even with nested or concurrent result documents.
+ * Typically, there is a capture per transformation:
+ *
+ * <pre>
+ * ResultCapture capture = new ResultCapture(16 * 1024 * 1024);
+ * HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver();
+ * resolver.setSink(capture);
+ * transformer.getUnderlyingController().setResultDocumentResolver(resolver);
+ * ...
+ * byte[] doc = capture.get(uri);
+ * </pre>
+ */
+public final class ResultCapture implements ResultSink {
+
+    /**
+     * The value of the cap for capturing without limit.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, byte[]> results = new LinkedHashMap<>();
+
+    private long bytes = 0;
+
+    private long reserved = 0;
+
+    /**
+     * Make a capture without a cap.
+     */
+    public ResultCapture() {
+	this(UNLIMITED);
+    }
+
+    /**
+     * Make a capture.
+     *
+     * @param maxBytes  the maximum total size of the captured documents
+     */
+    public ResultCapture(long maxBytes) {
+	if (maxBytes < 0) {
+	    throw new IllegalArgumentException("maximum size must not be negative");
+	}
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * {@inheritDoc} The document is captured under its URI.
+     */
+    @Override
+    public OutputStream newEntry(URI absoluteURI, ResolverMetrics metrics, IOQuota quota) {
+	return new Entry(absoluteURI.toString(), metrics, quota);
+    }
+
+    /**
+     * Reserve bytes for a document being written.
+     *
+     * @throws IOException  if the captured and reserved bytes would
+     * exceed the cap
+     */
+    private synchronized void reserve(String uri, long n) throws IOException {
+	if (n > maxBytes - bytes - reserved) {
+	    throw new IOException("captured result documents exceed " + maxBytes + " bytes: " + uri);
+	}
+	reserved += n;
+    }
+
+    private synchronized void unreserve(long n) {
+	reserved -= n;
+    }
+
+    /**
+     * Capture a document. Its bytes are still reserved, so the cap
+     * is kept.
+     */
+    private synchronized void add(String uri, byte[] content) {
+	byte[] previous = results.put(uri, content);
+	bytes += content.length - (previous != null ? previous.length : 0);
+    }
+
+    /**
+     * Returns a captured result document or <code>null</code>.
+     *
+     * @param uri  the absolute URI of the result document
+     */
+    public synchronized byte[] get(String uri) {
+	return results.get(uri);
+    }
+
+    /**
+     * Returns a captured result document or <code>null</code>.
+     *
+     * @param uri  the absolute URI of the result document
+     */
+    public byte[] get(URI uri) {
+	return get(uri.toString());
+    }
+
+    /**
+     * Returns the URIs of the captured result documents in the order
+     * they were completed.
+     */
+    public synchronized List<String> getURIs() {
+	return new ArrayList<>(results.keySet());
+    }
+
+    /**
+     * Returns a copy of the captured result documents by URI in the
+     * order they were completed.
+     */
+    public synchronized Map<String, byte[]> getResults() {
+	return new LinkedHashMap<>(results);
+    }
+
+    /**
+     * Remove a captured result document and release its memory.
+     *
+     * @param uri  the absolute URI of the result document
+     *
+     * @return the result document or <code>null</code>
+     */
+    public synchronized byte[] remove(String uri) {
+	byte[] content = results.remove(uri);
+	if (content != null) {
+	    bytes -= content.length;
+	}
+	return content;
+    }
+
+    /**
+     * Remove all captured result documents.
+     */
+    public synchronized void clear() {
+	results.clear();
+	bytes = 0;
+    }
+
+    /**
+     * Returns the number of captured result documents.
+     */
+    public synchronized int size() {
+	return results.size();
+    }
+
+    /**
+     * Returns the total size of the captured result documents.
+     */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    /**
+     * Returns the number of bytes buffered by documents, that are
+     * still being written.
+     */
+    public synchronized long getReservedBytes() {
+	return reserved;
+    }
+
+    public long getMaxBytes() {
+	return maxBytes;
+    }
+
+    /**
+     * A result document in memory, that is captured on close.
+     */
+    private final class Entry extends SinkEntry {
+
+	private final String uri;
+
+	private long reservedSize = 0;
+
+	Entry(String uri, ResolverMetrics metrics, IOQuota quota) {
+	    super(metrics, quota);
+	    this.uri = uri;
+	}
+
+	@Override
+	protected void checkSize(long size) throws IOException {
+	    reserve(uri, size - reservedSize);
+	    reservedSize = size;
+	}
+
+	@Override
+	protected void store() {
+	    add(uri, toByteArray());
+	}
+
+	@Override
+	protected void release() {
+	    unreserve(reservedSize);
+	    reservedSize = 0;
+	}
+    }
+
+}
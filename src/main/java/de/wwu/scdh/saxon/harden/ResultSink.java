@@ -0,0 +1,34 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.OutputStream;
+import java.net.URI;
+
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * A destination for result documents other than files, that is used
+ * by {@link HardenedResultDocumentResolver} and {@link
+ * HardenedOutputResolver} for allowed <code>file:</code> URIs. The
+ * resolvers check the URI, as if the file was written, before they
+ * ask the sink for a stream.
+ *
+ * @see ZipResultSink
+ * @see ResultCapture
+ */
+public interface ResultSink {
+
+    /**
+     * Returns a stream for a result document, that is stored, when
+     * the stream is closed. On close, the bytes are accounted for in
+     * the quota and recorded in the metrics.
+     *
+     * @param absoluteURI  the absolute <code>file:</code> URI of the result document
+     * @param metrics  the metrics, where the bytes written are recorded
+     * @param quota  the quota for the bytes written or <code>null</code>
+     *
+     * @throws XPathException  if the result document cannot be stored
+     */
+    OutputStream newEntry(URI absoluteURI, ResolverMetrics metrics, IOQuota quota) throws XPathException;
+
+}
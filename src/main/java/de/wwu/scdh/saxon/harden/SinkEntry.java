@@ -0,0 +1,128 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A result document of a {@link ResultSink}, that is serialized into
+ * memory and stored as a whole, when it is closed. The resolvers
+ * close it after serialization.<P>
+ *
+ * Bytes are accounted for in the {@link IOQuota} before they are
+ * buffered, like by {@link QuotaOutputStream}, so that a document
+ * exceeding the quota fails as soon as it does, not after it was
+ * serialized completely. A sink with a limit of its own checks it in
+ * {@link checkSize(long)} the same way. A document, whose write
+ * failed, is not stored.
+ */
+abstract class SinkEntry extends OutputStream {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+    private final ResolverMetrics metrics;
+
+    private final IOQuota quota;
+
+    private boolean done = false;
+
+    SinkEntry(ResolverMetrics metrics, IOQuota quota) {
+	this.metrics = metrics;
+	this.quota = quota;
+    }
+
+    /**
+     * Store the content, see {@link writeTo(OutputStream)} and {@link
+     * toByteArray()}.
+     */
+    protected abstract void store() throws IOException;
+
+    /**
+     * Check the size, the document will have after a write, before
+     * the bytes are buffered. Does nothing by default.
+     *
+     * @param size  the size of the document after the write
+     *
+     * @throws IOException  if the size exceeds a limit of the sink
+     */
+    protected void checkSize(long size) throws IOException {
+    }
+
+    /**
+     * Called once, when the document was stored or a write failed,
+     * e.g. for releasing what was reserved in {@link
+     * checkSize(long)}. Does nothing by default.
+     */
+    protected void release() {
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+	written(1);
+	buffer.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+	written(len);
+	buffer.write(b, off, len);
+    }
+
+    /**
+     * Account for bytes before they are buffered.
+     *
+     * @throws IOException  if the quota is exceeded
+     */
+    private void written(int len) throws IOException {
+	if (done) {
+	    throw new IOException("result document closed");
+	}
+	try {
+	    checkSize((long) buffer.size() + len);
+	    if (quota != null) {
+		quota.writtenToStream(len);
+	    }
+	} catch (IOException e) {
+	    done = true;
+	    release();
+	    throw e;
+	}
+    }
+
+    /**
+     * Returns the number of bytes buffered.
+     */
+    public int size() {
+	return buffer.size();
+    }
+
+    /**
+     * Write the buffered bytes to a stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+	buffer.writeTo(out);
+    }
+
+    /**
+     * Returns a copy of the buffered bytes.
+     */
+    public byte[] toByteArray() {
+	return buffer.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (done) {
+	    return;
+	}
+	done = true;
+	try {
+	    store();
+	    metrics.written(size());
+	} finally {
+	    release();
+	}
+    }
+
+}
@@ -0,0 +1,360 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * A cache of compiled stylesheets, that is shared across
+ * transformations. Services, that compile stylesheets on demand,
+ * compile each stylesheet only once, as long as neither the
+ * stylesheet nor any of its modules are changed.<P>
+ *
+ * Entries are keyed by the real path URI of the main stylesheet.
+ * While a stylesheet is compiled, the {@link HardenedURIResolver}
+ * records every module it resolves, i.e. the targets of
+ * <code>xsl:import</code> and <code>xsl:include</code> and documents
+ * read at compile time. Each module and the main stylesheet are
+ * stamped with the modification time and the size of their
+ * files. An entry is only returned, if all stamps are still the
+ * same, and if it was compiled by the same {@link Processor}.
+ * Stylesheets with modules, that are not local files, are compiled
+ * each time. So are stylesheets compiled with a URI resolver, that is
+ * not a {@link HardenedURIResolver}, since their modules are not
+ * recorded.<P>
+ *
+ * Every lookup, including a cache hit, checks the main stylesheet and
+ * all recorded modules with the {@link FilesystemFilter} of the
+ * compiler's hardened URI resolver, so a cached stylesheet is only
+ * returned, if it could be compiled with the current filter.<P>
+ *
+ * The compiler's settings, e.g. static parameters, are not part of
+ * the key. Use a cache per set of settings. The least recently used
+ * stylesheets are evicted, when there are more than the maximum
+ * number of entries.
+ */
+public final class StylesheetCache {
+
+    /**
+     * The name of the system property for the maximum number of
+     * stylesheets in the shared cache.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = StylesheetCache.class.getName() + ".maxEntries";
+
+    /**
+     * The default maximum number of stylesheets in the shared cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final String FILE_SCHEME = "file";
+
+    private static final ThreadLocal<List<Module>> recording = new ThreadLocal<>();
+
+    private static StylesheetCache shared = null;
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param maxEntries  the maximum number of stylesheets
+     */
+    public StylesheetCache(int maxEntries) {
+	if (maxEntries <= 0) {
+	    throw new IllegalArgumentException("maximum number of entries must be positive");
+	}
+	this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the process-wide cache. Its maximum number of entries
+     * is taken from the system property {@link MAX_ENTRIES_PROPERTY}.
+     */
+    public static synchronized StylesheetCache getSharedCache() {
+	if (shared == null) {
+	    shared = new StylesheetCache(Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+	}
+	return shared;
+    }
+
+    /**
+     * Record a module resolved on the current thread, if a stylesheet
+     * is being compiled by a cache.
+     *
+     * @param systemId  the absolute URI of the module
+     */
+    static void recordModule(String systemId) {
+	List<Module> modules = recording.get();
+	if (modules != null) {
+	    modules.add(Module.stamp(systemId));
+	}
+    }
+
+    /**
+     * Returns the compiled stylesheet from the cache or compiles it
+     * with the given compiler.
+     *
+     * @param compiler  the compiler
+     * @param stylesheet  the main stylesheet
+     *
+     * @throws SaxonApiException  if the stylesheet or a module is not
+     * allowed or if the stylesheet cannot be compiled
+     */
+    public XsltExecutable compile(XsltCompiler compiler, Path stylesheet) throws SaxonApiException {
+	HardenedURIResolver resolver = getResolver(compiler);
+	FilesystemFilter filter = resolver != null ? resolver.getFilter() : FilesystemFilterRegistry.getFilter();
+	Module main = Module.stamp(stylesheet.toFile().toURI().toString());
+	if (main.path == null) {
+	    throw new SaxonApiException("Failed to read stylesheet " + stylesheet);
+	}
+	if (!filter.check(main.uri, main.uri, AccessMode.READ)) {
+	    throw new SaxonApiException(new XPathException("path not allowed: " + stylesheet));
+	}
+	if (resolver == null) {
+	    // modules are not recorded, so compiled each time
+	    misses.increment();
+	    return compiler.compile(new StreamSource(main.path.toFile()));
+	}
+	String key = main.path.toFile().toURI().toString();
+	Entry entry;
+	synchronized (this) {
+	    entry = entries.get(key);
+	}
+	if (entry != null) {
+	    if (entry.processor == compiler.getProcessor() && entry.isValid(main)) {
+		for (Module module : entry.modules) {
+		    if (!filter.check(module.uri, module.uri, AccessMode.READ)) {
+			throw new SaxonApiException(new XPathException("path not allowed: " + module.uri));
+		    }
+		}
+		hits.increment();
+		return entry.executable;
+	    }
+	    invalidations.increment();
+	    synchronized (this) {
+		entries.remove(key, entry);
+	    }
+	}
+	misses.increment();
+	List<Module> previous = recording.get();
+	List<Module> modules = new ArrayList<>();
+	recording.set(modules);
+	XsltExecutable executable;
+	try {
+	    executable = compiler.compile(new StreamSource(main.path.toFile()));
+	} finally {
+	    if (previous == null) {
+		recording.remove();
+	    } else {
+		recording.set(previous);
+		previous.addAll(modules);
+	    }
+	}
+	for (Module module : modules) {
+	    if (module.path == null) {
+		// not stamped, so compiled each time
+		return executable;
+	    }
+	}
+	synchronized (this) {
+	    entries.put(key, new Entry(executable, compiler.getProcessor(), main, modules));
+	    if (entries.size() > maxEntries) {
+		entries.remove(entries.keySet().iterator().next());
+	    }
+	}
+	return executable;
+    }
+
+    /**
+     * Returns the compiler's URI resolver, if it is hardened, or else
+     * <code>null</code>.
+     */
+    private static HardenedURIResolver getResolver(XsltCompiler compiler) {
+	URIResolver resolver = compiler.getURIResolver();
+	if (resolver == null) {
+	    resolver = compiler.getProcessor().getUnderlyingConfiguration().getURIResolver();
+	}
+	if (resolver instanceof HardenedURIResolver) {
+	    return (HardenedURIResolver) resolver;
+	} else {
+	    return null;
+	}
+    }
+
+    /**
+     * Returns the URIs of the recorded modules of a cached stylesheet
+     * or <code>null</code>.
+     *
+     * @param stylesheet  the main stylesheet
+     */
+    public List<String> getModules(Path stylesheet) {
+	Module main = Module.stamp(stylesheet.toFile().toURI().toString());
+	if (main.path == null) {
+	    return null;
+	}
+	Entry entry;
+	synchronized (this) {
+	    entry = entries.get(main.path.toFile().toURI().toString());
+	}
+	if (entry == null) {
+	    return null;
+	}
+	List<String> uris = new ArrayList<>();
+	for (Module module : entry.modules) {
+	    uris.add(module.uri);
+	}
+	return uris;
+    }
+
+    /**
+     * Remove all stylesheets from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+	entries.clear();
+    }
+
+    /**
+     * Returns the number of cached stylesheets.
+     */
+    public synchronized int size() {
+	return entries.size();
+    }
+
+    public int getMaxEntries() {
+	return maxEntries;
+    }
+
+    /**
+     * Returns the number of lookups that found a usable stylesheet.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that compiled the stylesheet.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries dropped, because the stylesheet
+     * or a module was changed.
+     */
+    public long getInvalidations() {
+	return invalidations.sum();
+    }
+
+    /**
+     * A stylesheet module and the stamp of its file. The path is
+     * <code>null</code>, if it is not a local file.
+     */
+    private static final class Module {
+
+	final String uri;
+
+	final Path path;
+
+	final long modified;
+
+	final long size;
+
+	private Module(String uri, Path path, long modified, long size) {
+	    this.uri = uri;
+	    this.path = path;
+	    this.modified = modified;
+	    this.size = size;
+	}
+
+	static Module stamp(String uri) {
+	    try {
+		URI parsed = new URI(uri);
+		if (FILE_SCHEME.equals(parsed.getScheme()) && parsed.getRawQuery() == null) {
+		    Path path = Paths.get(parsed).toRealPath();
+		    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		    return new Module(uri, path, attributes.lastModifiedTime().toMillis(), attributes.size());
+		}
+	    } catch (URISyntaxException e) {
+		// not stamped
+	    } catch (IllegalArgumentException e) {
+		// not stamped
+	    } catch (IOException e) {
+		// not stamped
+	    }
+	    return new Module(uri, null, -1, -1);
+	}
+
+	boolean isCurrent() {
+	    try {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		return attributes.lastModifiedTime().toMillis() == modified && attributes.size() == size;
+	    } catch (IOException e) {
+		return false;
+	    }
+	}
+    }
+
+    private static final class Entry {
+
+	final XsltExecutable executable;
+
+	final Processor processor;
+
+	final Module main;
+
+	final List<Module> modules;
+
+	Entry(XsltExecutable executable, Processor processor, Module main, List<Module> modules) {
+	    this.executable = executable;
+	    this.processor = processor;
+	    this.main = main;
+	    this.modules = Collections.unmodifiableList(modules);
+	}
+
+	/**
+	 * Returns whether the main stylesheet, which was just stamped,
+	 * and all modules are unchanged.
+	 */
+	boolean isValid(Module current) {
+	    if (current.modified != main.modified || current.size != main.size) {
+		return false;
+	    }
+	    for (Module module : modules) {
+		if (!module.isCurrent()) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+}
@@ -0,0 +1,268 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A cache of decoded texts for <code>unparsed-text()</code> and
+ * friends, that is shared across transformations. Mapping tables and
+ * configuration files, which are read in every transformation, are
+ * read and decoded only once, as long as the file is not changed.<P>
+ *
+ * Entries are keyed by the real path URI of the file and the
+ * requested encoding and stamped with the modification time and the
+ * size of the file. An entry is only returned, if the stamp is still
+ * the same.<P>
+ *
+ * The decoded characters are kept in direct buffers outside of the
+ * Java heap, so that large cached tables do not add to the work of
+ * the garbage collector. The cache has a budget. Each text is
+ * weighted by the bytes of its buffer, i.e. two bytes per
+ * character. The least recently used texts are evicted, when the
+ * total weight exceeds the budget. Texts heavier than the budget are
+ * not admitted. The memory of an evicted text is released, when the
+ * last reader on it is gone.<P>
+ *
+ * The cache does not check access permissions. That's up to the
+ * caller, see {@link HardenedUnparsedTextResolver}.
+ */
+public final class TextCache {
+
+    /**
+     * The name of the system property for the budget of the shared
+     * cache in bytes.
+     */
+    public static final String BUDGET_PROPERTY = TextCache.class.getName() + ".budget";
+
+    /**
+     * The default budget of the shared cache: 64 MiB.
+     */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static TextCache shared = null;
+
+    private final long budget;
+
+    private long weight = 0;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Make a new cache.
+     *
+     * @param budget  the budget in bytes
+     */
+    public TextCache(long budget) {
+	if (budget <= 0) {
+	    throw new IllegalArgumentException("budget must be positive");
+	}
+	this.budget = budget;
+    }
+
+    /**
+     * Returns the process-wide cache. Its budget is taken from the
+     * system property {@link BUDGET_PROPERTY}.
+     */
+    public static synchronized TextCache getSharedCache() {
+	if (shared == null) {
+	    shared = new TextCache(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+	}
+	return shared;
+    }
+
+    private static String key(String uri, String encoding) {
+	return (encoding == null ? "" : encoding.toUpperCase(Locale.ROOT)) + " " + uri;
+    }
+
+    /**
+     * Returns a reader on the cached text, if it was decoded from a
+     * file with the given modification time and size, or
+     * <code>null</code> otherwise.
+     *
+     * @param uri  the URI of the file
+     * @param encoding  the requested encoding or <code>null</code>, if inferred
+     * @param modified  the modification time of the file
+     * @param size  the size of the file
+     */
+    public Reader get(String uri, String encoding, long modified, long size) {
+	Entry entry;
+	synchronized (this) {
+	    entry = entries.get(key(uri, encoding));
+	}
+	if (entry != null && entry.modified == modified && entry.size == size) {
+	    hits.increment();
+	    return new CharBufferReader(entry.text.duplicate());
+	} else {
+	    misses.increment();
+	    return null;
+	}
+    }
+
+    /**
+     * Add a text to the cache. Texts heavier than the budget are not
+     * admitted.
+     *
+     * @param uri  the URI of the file
+     * @param encoding  the requested encoding or <code>null</code>, if inferred
+     * @param modified  the modification time of the file
+     * @param size  the size of the file
+     * @param text  the decoded characters
+     * @param length  the number of decoded characters
+     */
+    public void put(String uri, String encoding, long modified, long size, char[] text, int length) {
+	long bytes = 2L * length;
+	if (bytes > budget) {
+	    return;
+	}
+	CharBuffer buffer = ByteBuffer.allocateDirect((int) bytes).asCharBuffer();
+	buffer.put(text, 0, length);
+	buffer.flip();
+	Entry entry = new Entry(buffer.asReadOnlyBuffer(), modified, size, bytes);
+	synchronized (this) {
+	    Entry old = entries.put(key(uri, encoding), entry);
+	    if (old != null) {
+		weight -= old.weight;
+	    }
+	    weight += bytes;
+	    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+	    while (weight > budget && eldest.hasNext()) {
+		weight -= eldest.next().getValue().weight;
+		eldest.remove();
+		evictions.increment();
+	    }
+	}
+    }
+
+    /**
+     * Remove all texts from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+	entries.clear();
+	weight = 0;
+    }
+
+    /**
+     * Returns the number of cached texts.
+     */
+    public synchronized int size() {
+	return entries.size();
+    }
+
+    /**
+     * Returns the total weight of the cached texts in bytes.
+     */
+    public synchronized long getWeight() {
+	return weight;
+    }
+
+    /**
+     * Returns the budget.
+     */
+    public long getBudget() {
+	return budget;
+    }
+
+    /**
+     * Returns the number of lookups that found a usable text.
+     */
+    public long getHits() {
+	return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that found no usable text.
+     */
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    /**
+     * Returns the number of texts evicted to stay within the budget.
+     */
+    public long getEvictions() {
+	return evictions.sum();
+    }
+
+    private static final class Entry {
+
+	final CharBuffer text;
+
+	final long modified;
+
+	final long size;
+
+	final long weight;
+
+	Entry(CharBuffer text, long modified, long size, long weight) {
+	    this.text = text;
+	    this.modified = modified;
+	    this.size = size;
+	    this.weight = weight;
+	}
+    }
+
+    /**
+     * A reader on a buffer of its own, that shares the characters.
+     */
+    private static final class CharBufferReader extends Reader {
+
+	private CharBuffer text;
+
+	CharBufferReader(CharBuffer text) {
+	    this.text = text;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) {
+	    if (text == null || !text.hasRemaining()) {
+		return -1;
+	    }
+	    int n = Math.min(len, text.remaining());
+	    text.get(cbuf, off, n);
+	    return n;
+	}
+
+	@Override
+	public int read() {
+	    if (text == null || !text.hasRemaining()) {
+		return -1;
+	    }
+	    return text.get();
+	}
+
+	@Override
+	public long skip(long n) {
+	    if (text == null || n <= 0) {
+		return 0;
+	    }
+	    int skipped = (int) Math.min(n, text.remaining());
+	    text.position(text.position() + skipped);
+	    return skipped;
+	}
+
+	@Override
+	public boolean ready() {
+	    return text != null;
+	}
+
+	@Override
+	public void close() {
+	    // let go of the buffer, so that an evicted text can be released
+	    text = null;
+	}
+    }
+
+}
@@ -0,0 +1,714 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.AccessMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.sf.saxon.Query;
+import net.sf.saxon.Transform;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * A long-running JVM, that runs Saxon's command line tools {@link
+ * Transform} and {@link Query} with the hardened configuration on
+ * behalf of clients. This saves the start up time of a JVM per
+ * call.<P>
+ *
+ * The daemon listens on the loopback interface only. A client sends a
+ * <code>POST</code> request to <code>/run</code> with the command line
+ * arguments in the body, one per line. The first line is the name of
+ * the tool, i.e. <code>net.sf.saxon.Transform</code> or
+ * <code>net.sf.saxon.Query</code>. The following headers are read:
+ *
+ * <ul>
+ * <li>{@link TOKEN_HEADER}: the secret token of the daemon (required)</li>
+ * <li>{@link DIRECTORY_HEADER}: the working directory of the client,
+ * against which relative paths in the arguments are resolved</li>
+ * <li>{@link ALLOWED_PATHS_HEADER}: allowed paths for this request,
+ * separated by {@link FilesystemFilter.SEPARATOR}. They must be under
+ * the allowed paths of the daemon.</li>
+ * </ul>
+ *
+ * The response contains the exit status in the header {@link
+ * EXIT_STATUS_HEADER}. The body is the standard output followed by
+ * the standard error output of the tool. The length of the former is
+ * given in the header {@link STDOUT_LENGTH_HEADER}.<P>
+ *
+ * The files given on the command line, i.e. the values of
+ * <code>-s</code>, <code>-xsl</code>, <code>-q</code> and document
+ * parameters <code>+name=file</code> for reading and of
+ * <code>-o</code>, <code>-TP</code> and <code>-traceout</code> for
+ * writing, are checked against the allowed paths of the request or
+ * else of the daemon. A request with a file not allowed is rejected
+ * with status 403.<P>
+ *
+ * The configuration file of the daemon is used for every request.
+ * Options that would replace it or parts of it, like
+ * <code>-config</code>, <code>-r</code> or <code>--feature</code>
+ * options, are rejected.<P>
+ *
+ * The port and the token are written to a state file, which is only
+ * readable by the user running the daemon. The wrapper scripts read
+ * it in their client mode.<P>
+ *
+ * If there is a shared {@link IOQuota}, each request runs with a new
+ * quota with the same limits. Each request runs with an {@link
+ * AsyncResultWriter.Job} of its own and responds only after its
+ * result documents written in the background are written. Their
+ * write errors make the request fail with exit status 2.<P>
+ *
+ * When started by {@link main(String[])}, the daemon registers the
+ * {@link ResolverMetrics} with the platform MBean server.
+ *
+ * @see FilesystemFilterRegistry#callWith(FilesystemFilter, java.util.concurrent.Callable)
+ */
+public class TransformDaemon {
+
+    public static final String TOKEN_HEADER = "X-Saxon-Token";
+
+    public static final String DIRECTORY_HEADER = "X-Saxon-Working-Directory";
+
+    public static final String ALLOWED_PATHS_HEADER = "X-Saxon-Allowed-Paths";
+
+    public static final String EXIT_STATUS_HEADER = "X-Saxon-Exit-Status";
+
+    public static final String STDOUT_LENGTH_HEADER = "X-Saxon-Stdout-Length";
+
+    /**
+     * The name of the environment variable for the location of the
+     * state file.
+     */
+    public static final String STATE_ENVIRON = "SAXON_DAEMON_FILE";
+
+    /**
+     * The default location of the state file.
+     */
+    public static final String DEFAULT_STATE = System.getProperty("user.home") + File.separator + ".saxon-daemon";
+
+    /**
+     * Maximal size of a request body.
+     */
+    private static final int MAX_REQUEST = 1 << 20;
+
+    /**
+     * Options that must not be given by a client, because they would
+     * replace the hardened configuration or the resolvers.
+     */
+    private static final Set<String> FORBIDDEN_OPTIONS =
+	new HashSet<>(Arrays.asList("config", "r", "x", "y", "init", "catalog", "mr"));
+
+    /**
+     * Options whose values are file names.
+     */
+    private static final Set<String> FILE_OPTIONS =
+	new HashSet<>(Arrays.asList("s", "o", "xsl", "q", "TP", "traceout"));
+
+    /**
+     * Options whose values are files written by the tool.
+     */
+    private static final Set<String> OUTPUT_OPTIONS =
+	new HashSet<>(Arrays.asList("o", "TP", "traceout"));
+
+    /**
+     * Pattern of values, that are URIs and not file names.
+     */
+    private static final String URI_PATTERN = "[a-zA-Z][a-zA-Z0-9+.-]+:.*";
+
+    private static final String TRANSFORM = Transform.class.getName();
+
+    private static final String QUERY = Query.class.getName();
+
+    private final Path config;
+
+    private final int port;
+
+    private final int threads;
+
+    private final String token;
+
+    private HttpServer server = null;
+
+    private ExecutorService executor = null;
+
+    private PrintStream originalOut = null;
+
+    private PrintStream originalErr = null;
+
+    /**
+     * Make a new daemon.
+     *
+     * @param config  the hardened Saxon configuration file
+     * @param port  the port to listen on, 0 for any free port
+     * @param threads  the number of requests served in parallel
+     */
+    public TransformDaemon(Path config, int port, int threads) {
+	if (threads <= 0) {
+	    throw new IllegalArgumentException("number of threads must be positive");
+	}
+	this.config = config.toAbsolutePath().normalize();
+	this.port = port;
+	this.threads = threads;
+	byte[] secret = new byte[16];
+	new SecureRandom().nextBytes(secret);
+	StringBuilder hex = new StringBuilder();
+	for (byte b : secret) {
+	    hex.append(String.format("%02x", b));
+	}
+	this.token = hex.toString();
+    }
+
+    /**
+     * Returns the secret token, that clients have to send.
+     */
+    public String getToken() {
+	return token;
+    }
+
+    /**
+     * Start serving requests. The standard output and standard error
+     * streams are replaced by streams, that route the output of a
+     * request to its response.
+     *
+     * @return the port
+     */
+    public synchronized int start() throws IOException {
+	server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+	server.createContext("/run", this::handle);
+	executor = Executors.newFixedThreadPool(threads);
+	server.setExecutor(executor);
+	originalOut = System.out;
+	originalErr = System.err;
+	System.setOut(new PrintStream(new RoutingOutputStream(originalOut, true), true));
+	System.setErr(new PrintStream(new RoutingOutputStream(originalErr, false), true));
+	server.start();
+	return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving requests and restore the standard streams.
+     */
+    public synchronized void stop() {
+	if (server != null) {
+	    server.stop(0);
+	    executor.shutdownNow();
+	    System.setOut(originalOut);
+	    System.setErr(originalErr);
+	    server = null;
+	}
+    }
+
+    /**
+     * Write the port and the token to the state file, readable by the
+     * current user only.
+     */
+    public void writeState(Path state, int actualPort) throws IOException {
+	Files.deleteIfExists(state);
+	if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+	    Files.createFile(state, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+	} else {
+	    Files.createFile(state);
+	}
+	Files.write(state, (actualPort + " " + token + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+	try {
+	    if (!"POST".equals(exchange.getRequestMethod())) {
+		respond(exchange, 405, "only POST is supported\n");
+		return;
+	    }
+	    if (!token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+		respond(exchange, 401, "invalid token\n");
+		return;
+	    }
+	    List<String> lines = readLines(exchange.getRequestBody());
+	    if (lines == null) {
+		respond(exchange, 413, "request too large\n");
+		return;
+	    } else if (lines.isEmpty()) {
+		respond(exchange, 400, "no tool given\n");
+		return;
+	    }
+	    String tool = lines.get(0);
+	    if (!TRANSFORM.equals(tool) && !(QUERY.equals(tool) && DaemonQuery.EXIT_DISABLED)) {
+		respond(exchange, 400, "tool not supported: " + tool + "\n");
+		return;
+	    }
+	    String directory = exchange.getRequestHeaders().getFirst(DIRECTORY_HEADER);
+	    Path workingDirectory = directory == null ? Paths.get("").toAbsolutePath() : Paths.get(directory);
+	    String[] args;
+	    FilesystemFilter filter;
+	    try {
+		args = rewriteArguments(lines.subList(1, lines.size()), workingDirectory);
+		filter = requestFilter(exchange.getRequestHeaders().getFirst(ALLOWED_PATHS_HEADER), workingDirectory);
+		checkArguments(args, filter);
+	    } catch (IllegalArgumentException e) {
+		respond(exchange, 400, e.getMessage() + "\n");
+		return;
+	    } catch (SecurityException e) {
+		respond(exchange, 403, e.getMessage() + "\n");
+		return;
+	    }
+	    run(exchange, tool, args, filter);
+	} finally {
+	    exchange.close();
+	}
+    }
+
+    /**
+     * Run the tool with stdout and stderr routed into buffers and
+     * send the response.
+     */
+    private void run(HttpExchange exchange, String tool, String[] args, FilesystemFilter filter)
+	throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ByteArrayOutputStream err = new ByteArrayOutputStream();
+	RoutingOutputStream.route(out, err);
+	int status;
+	AsyncResultWriter.Job job = new AsyncResultWriter.Job();
+	Callable<Integer> task = () -> AsyncResultWriter.callWith(job, () -> {
+		try {
+		    if (TRANSFORM.equals(tool)) {
+			new DaemonTransform().doTransform(args, "transform");
+		    } else {
+			new DaemonQuery().run(args);
+		    }
+		    return 0;
+		} catch (Exit e) {
+		    return e.status;
+		}
+	    });
+	// each request gets a quota of its own
+	IOQuota quota = IOQuota.getShared();
+	try {
+	    try {
+		if (quota == null) {
+		    status = FilesystemFilterRegistry.callWith(filter, task);
+		} else {
+		    status = FilesystemFilterRegistry.callWith(filter, () -> IOQuota.callWith(quota.newInstance(), task));
+		}
+	    } catch (Exception e) {
+		System.err.println(e.toString());
+		status = 2;
+	    }
+	    // result documents written in the background belong to the request
+	    try {
+		job.awaitCompletion();
+	    } catch (XPathException e) {
+		System.err.println(e.getMessage());
+		status = 2;
+	    }
+	} finally {
+	    System.out.flush();
+	    System.err.flush();
+	    RoutingOutputStream.unroute();
+	}
+	exchange.getResponseHeaders().set(EXIT_STATUS_HEADER, Integer.toString(status));
+	exchange.getResponseHeaders().set(STDOUT_LENGTH_HEADER, Integer.toString(out.size()));
+	exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+	exchange.sendResponseHeaders(200, out.size() + err.size());
+	try (OutputStream body = exchange.getResponseBody()) {
+	    out.writeTo(body);
+	    err.writeTo(body);
+	}
+    }
+
+    private static void respond(HttpExchange exchange, int code, String message) throws IOException {
+	byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+	exchange.sendResponseHeaders(code, bytes.length);
+	try (OutputStream body = exchange.getResponseBody()) {
+	    body.write(bytes);
+	}
+    }
+
+    /**
+     * Read the lines of the request body, or <code>null</code> if it
+     * is too large.
+     */
+    private static List<String> readLines(InputStream in) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	byte[] buffer = new byte[8192];
+	int n;
+	while ((n = in.read(buffer)) >= 0) {
+	    bytes.write(buffer, 0, n);
+	    if (bytes.size() > MAX_REQUEST) {
+		return null;
+	    }
+	}
+	List<String> lines = new ArrayList<>();
+	for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+	    if (!line.isEmpty()) {
+		lines.add(line);
+	    }
+	}
+	return lines;
+    }
+
+    /**
+     * Reject forbidden options, resolve relative file names against
+     * the working directory of the client and put the configuration
+     * of the daemon in front.
+     *
+     * @throws IllegalArgumentException  for forbidden options
+     */
+    String[] rewriteArguments(List<String> args, Path workingDirectory) {
+	List<String> result = new ArrayList<>(args.size() + 1);
+	result.add("-config:" + config);
+	for (String arg : args) {
+	    if (arg.startsWith("--")) {
+		throw new IllegalArgumentException("option not allowed: " + arg);
+	    } else if (arg.startsWith("-")) {
+		int colon = arg.indexOf(':');
+		String name = colon < 0 ? arg.substring(1) : arg.substring(1, colon);
+		if (FORBIDDEN_OPTIONS.contains(name)) {
+		    throw new IllegalArgumentException("option not allowed: " + arg);
+		} else if (colon > 0 && FILE_OPTIONS.contains(name)) {
+		    arg = "-" + name + ":" + resolve(arg.substring(colon + 1), workingDirectory);
+		}
+	    } else if (arg.startsWith("+") && arg.indexOf('=') > 0) {
+		// document parameter
+		int equals = arg.indexOf('=');
+		arg = arg.substring(0, equals + 1) + resolve(arg.substring(equals + 1), workingDirectory);
+	    }
+	    result.add(arg);
+	}
+	return result.toArray(new String[result.size()]);
+    }
+
+    private static String resolve(String file, Path workingDirectory) {
+	if (file.isEmpty() || file.startsWith("#") || file.matches(URI_PATTERN)) {
+	    // URI or special value like -traceout:#null
+	    return file;
+	}
+	if (file.startsWith("~")) {
+	    // not expanded by the client's shell after -name:
+	    return System.getProperty("user.home") + file.substring(1);
+	}
+	return workingDirectory.resolve(file).toString();
+    }
+
+    /**
+     * Check the files of rewritten arguments against the filter of
+     * the request: input files and document parameters for reading,
+     * output files for writing. URIs are checked like by the
+     * resolvers, i.e. remote URIs by the {@link RemotePolicy} of the
+     * filter.
+     *
+     * @throws SecurityException  if a file is not allowed
+     * @throws IllegalArgumentException  if a URI is malformed
+     */
+    void checkArguments(String[] args, FilesystemFilter filter) {
+	// the first argument is the configuration of the daemon
+	for (int i = 1; i < args.length; i++) {
+	    String arg = args[i];
+	    String file;
+	    AccessMode mode;
+	    if (arg.startsWith("-")) {
+		int colon = arg.indexOf(':');
+		String name = colon < 0 ? arg.substring(1) : arg.substring(1, colon);
+		if (colon < 0 || !FILE_OPTIONS.contains(name)) {
+		    continue;
+		}
+		file = arg.substring(colon + 1);
+		mode = OUTPUT_OPTIONS.contains(name) ? AccessMode.WRITE : AccessMode.READ;
+	    } else if (arg.startsWith("+") && arg.indexOf('=') > 0) {
+		file = arg.substring(arg.indexOf('=') + 1);
+		mode = AccessMode.READ;
+	    } else {
+		continue;
+	    }
+	    if (file.isEmpty() || file.startsWith("#")) {
+		continue;
+	    }
+	    URI uri;
+	    if (file.matches(URI_PATTERN)) {
+		try {
+		    uri = new URI(file);
+		} catch (URISyntaxException e) {
+		    throw new IllegalArgumentException("invalid URI: " + file, e);
+		}
+	    } else {
+		uri = new File(file).getAbsoluteFile().toURI();
+	    }
+	    if (!filter.check(uri, mode)) {
+		throw new SecurityException("path not allowed: " + file);
+	    }
+	}
+    }
+
+    /**
+     * Make the filter for a request. Without allowed paths, it is the
+     * filter of the daemon.
+     *
+     * @throws SecurityException  if an allowed path is not allowed by the daemon
+     * @throws IllegalArgumentException  if the allowed paths are malformed
+     */
+    FilesystemFilter requestFilter(String allowedPaths, Path workingDirectory) {
+	FilesystemFilter daemonFilter = FilesystemFilterRegistry.getFilter();
+	if (allowedPaths == null || allowedPaths.trim().isEmpty()) {
+	    return daemonFilter;
+	}
+	List<String> locations = new ArrayList<>();
+	for (String location : allowedPaths.split(FilesystemFilter.SEPARATOR)) {
+	    location = location.trim();
+	    if (location.isEmpty()) {
+		continue;
+	    }
+	    if (location.startsWith("~")) {
+		location = System.getProperty("user.home") + location.substring(1);
+	    }
+	    File path = workingDirectory.resolve(location).toFile().getAbsoluteFile();
+	    URI uri = path.toURI().normalize();
+	    if (!uri.getPath().endsWith("/")) {
+		uri = URI.create(uri.toString() + "/");
+	    }
+	    if (!daemonFilter.check(uri, AccessMode.READ) || !daemonFilter.check(uri, AccessMode.WRITE)) {
+		throw new SecurityException("path not allowed by daemon: " + location);
+	    }
+	    locations.add(path.toString());
+	}
+	// the deny rules of the daemon still apply
+	for (String rule : daemonFilter.getAccessRules()) {
+	    if (rule.startsWith(FilesystemFilter.DENY_PREFIX)
+		|| rule.startsWith(FilesystemFilter.DENY_READ_PREFIX)
+		|| rule.startsWith(FilesystemFilter.DENY_WRITE_PREFIX)) {
+		locations.add(rule);
+	    }
+	}
+	try {
+	    return new FilesystemFilter(locations.toArray(new String[locations.size()]),
+					FilesystemFilter.getCacheSize(),
+					FilesystemFilter.getCanonicalTtl());
+	} catch (FilesystemFilterException e) {
+	    throw new IllegalArgumentException(e.getMessage(), e);
+	}
+    }
+
+    private static void usage(String message) {
+	System.err.println(message);
+	System.err.println("Usage: TransformDaemon -config:FILE [-port:N] [-threads:N] [-state:FILE]");
+	System.exit(2);
+    }
+
+    public static void main(String[] args) {
+	String config = null;
+	int port = 0;
+	int threads = Runtime.getRuntime().availableProcessors();
+	String state = System.getenv(STATE_ENVIRON);
+	if (state == null) {
+	    state = DEFAULT_STATE;
+	}
+	try {
+	    for (String arg : args) {
+		if (arg.startsWith("-config:")) {
+		    config = arg.substring(8);
+		} else if (arg.startsWith("-port:")) {
+		    port = Integer.parseInt(arg.substring(6));
+		} else if (arg.startsWith("-threads:")) {
+		    threads = Integer.parseInt(arg.substring(9));
+		} else if (arg.startsWith("-state:")) {
+		    state = arg.substring(7);
+		} else {
+		    usage("unknown argument: " + arg);
+		}
+	    }
+	} catch (NumberFormatException e) {
+	    usage("not a number: " + e.getMessage());
+	}
+	if (config == null) {
+	    usage("-config is required");
+	}
+	final Path statePath = Paths.get(state);
+	TransformDaemon daemon = new TransformDaemon(Paths.get(config), port, threads);
+	try {
+	    int actualPort = daemon.start();
+	    ResolverMetrics.register();
+	    daemon.writeState(statePath, actualPort);
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+		try {
+		    Files.deleteIfExists(statePath);
+		} catch (IOException e) {
+		    // nothing to do
+		}
+	    }));
+	    daemon.originalErr.println("listening on 127.0.0.1:" + actualPort + ", state in " + statePath);
+	} catch (IOException e) {
+	    daemon.stop();
+	    usage("cannot start daemon: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Thrown instead of exiting the JVM.
+     */
+    private static final class Exit extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	final int status;
+
+	Exit(int status) {
+	    super(null, null, false, false);
+	    this.status = status;
+	}
+    }
+
+    /**
+     * {@link Transform}, that does not exit the JVM.
+     */
+    private static final class DaemonTransform extends Transform {
+
+	DaemonTransform() {
+	    allowExit = false;
+	}
+
+	@Override
+	protected void quit(String message, int code) {
+	    System.err.println(message);
+	    throw new Exit(code);
+	}
+
+	@Override
+	protected void badUsage(String message) {
+	    if (!message.isEmpty()) {
+		System.err.println(message);
+	    }
+	    throw new Exit(2);
+	}
+    }
+
+    /**
+     * {@link Query}, that does not exit the JVM.
+     */
+    private static final class DaemonQuery extends Query {
+
+	/**
+	 * Whether exiting could be disabled. Query has no setter for
+	 * it. If this fails, the daemon does not run queries.
+	 */
+	static final boolean EXIT_DISABLED = canDisableExit();
+
+	DaemonQuery() {
+	    disableExit(this);
+	}
+
+	void run(String[] args) {
+	    doQuery(args, "query");
+	}
+
+	@Override
+	protected void quit(String message, int code) {
+	    System.err.println(message);
+	    throw new Exit(code);
+	}
+
+	@Override
+	protected void badUsage(String message) {
+	    if (!message.isEmpty()) {
+		System.err.println(message);
+	    }
+	    throw new Exit(2);
+	}
+
+	private static boolean canDisableExit() {
+	    try {
+		disableExit(new Query());
+		return true;
+	    } catch (RuntimeException e) {
+		return false;
+	    }
+	}
+
+	private static void disableExit(Query query) {
+	    try {
+		Field allowExit = Query.class.getDeclaredField("allowExit");
+		allowExit.setAccessible(true);
+		allowExit.setBoolean(query, false);
+	    } catch (NoSuchFieldException e) {
+		throw new IllegalStateException(e);
+	    } catch (IllegalAccessException e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+    }
+
+    /**
+     * An output stream, that writes to the stream routed to the
+     * current thread, or to the original stream otherwise.
+     */
+    private static final class RoutingOutputStream extends OutputStream {
+
+	private static final ThreadLocal<OutputStream[]> routes = new ThreadLocal<>();
+
+	private final OutputStream original;
+
+	private final boolean stdout;
+
+	RoutingOutputStream(OutputStream original, boolean stdout) {
+	    this.original = original;
+	    this.stdout = stdout;
+	}
+
+	static void route(OutputStream out, OutputStream err) {
+	    OutputStream[] streams = { out, err };
+	    routes.set(streams);
+	}
+
+	static void unroute() {
+	    routes.remove();
+	}
+
+	private OutputStream target() {
+	    OutputStream[] streams = routes.get();
+	    if (streams == null) {
+		return original;
+	    }
+	    return stdout ? streams[0] : streams[1];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+	    target().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+	    target().write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+	    target().flush();
+	}
+    }
+
+}
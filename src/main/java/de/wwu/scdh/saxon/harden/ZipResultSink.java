@@ -0,0 +1,254 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.StandardLogger;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * Collects result documents as entries of a single zip archive
+ * instead of writing a file for each of them. This saves the
+ * creation of a file, its directory entry and an open and close per
+ * document, which dominates the cost of writing many small documents
+ * on shared storage.<P>
+ *
+ * The name of an entry is the path of the result document relative
+ * to the root directory of the sink, so the directory structure is
+ * preserved in the archive. Paths outside of the root keep their
+ * full path without the leading slash. Each document is serialized
+ * into memory and appended to the archive as a whole, when it is
+ * closed, so that documents written by concurrent transformations or
+ * nested <code>xsl:result-document</code> instructions do not
+ * interleave.<P>
+ *
+ * The sink does not check access permissions. That's up to the
+ * caller: {@link HardenedResultDocumentResolver} and {@link
+ * HardenedOutputResolver} check the result document's URI, as if the
+ * file was written.<P>
+ *
+ * The shared sink is made from the system property {@link
+ * FILE_PROPERTY} or the environment variable {@link FILE_ENVIRON},
+ * which name the archive. Its root is the directory given by {@link
+ * ROOT_PROPERTY} or else the directory of the archive. It is closed
+ * before the JVM exits.
+ */
+public final class ZipResultSink implements ResultSink {
+
+    public static final String FILE_PROPERTY = ZipResultSink.class.getName() + ".file";
+
+    public static final String FILE_ENVIRON = "SAXON_RESULT_ZIP";
+
+    public static final String ROOT_PROPERTY = ZipResultSink.class.getName() + ".root";
+
+    /**
+     * The name of the system property for the compression level of
+     * the shared sink, from 0 (stored uncompressed) to 9.
+     */
+    public static final String LEVEL_PROPERTY = ZipResultSink.class.getName() + ".level";
+
+    private static final Logger LOG = new StandardLogger();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static ZipResultSink shared = null;
+
+    private static boolean sharedInitialized = false;
+
+    private final Path archive;
+
+    private final Path root;
+
+    private final ZipOutputStream out;
+
+    private long entries = 0;
+
+    private long bytes = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Make a new sink, which creates the archive.
+     *
+     * @param archive  the path of the archive
+     * @param root  the directory, that becomes the root of the archive
+     * @param level  the compression level, see {@link Deflater}
+     *
+     * @throws IOException  if the archive cannot be created
+     */
+    public ZipResultSink(Path archive, Path root, int level) throws IOException {
+	this.archive = archive.toAbsolutePath().normalize();
+	this.root = root.toAbsolutePath().normalize();
+	if (this.archive.getParent() != null) {
+	    Files.createDirectories(this.archive.getParent());
+	}
+	this.out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(this.archive), BUFFER_SIZE));
+	this.out.setLevel(level);
+    }
+
+    /**
+     * Returns the process-wide sink or <code>null</code>, if result
+     * documents are written to files. The sink is made on first
+     * access. Errors are logged and result in no sink.
+     */
+    public static synchronized ZipResultSink getShared() {
+	if (!sharedInitialized) {
+	    sharedInitialized = true;
+	    String file = System.getProperty(FILE_PROPERTY);
+	    if (file == null) {
+		file = System.getenv(FILE_ENVIRON);
+	    }
+	    if (file != null && !file.trim().isEmpty()) {
+		try {
+		    Path path = Paths.get(file.trim()).toAbsolutePath();
+		    String root = System.getProperty(ROOT_PROPERTY);
+		    final ZipResultSink sink = new ZipResultSink
+			(path, root != null ? Paths.get(root) : path.getParent(),
+			 Integer.getInteger(LEVEL_PROPERTY, Deflater.DEFAULT_COMPRESSION));
+		    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+			    sink.close();
+			} catch (IOException e) {
+			    LOG.error("failed to close " + sink.getArchive() + ": " + e.getMessage());
+			}
+		    }, "hardened-zip-sink"));
+		    shared = sink;
+		} catch (IOException e) {
+		    LOG.error("configuration error: cannot create result archive " + file + ": " + e.getMessage());
+		} catch (InvalidPathException e) {
+		    LOG.error("configuration error: invalid result archive " + file);
+		} catch (IllegalArgumentException e) {
+		    LOG.error("configuration error: invalid compression level for " + file);
+		}
+	    }
+	}
+	return shared;
+    }
+
+    /**
+     * Replace the shared sink. <code>null</code> switches back to
+     * writing files. The previous sink is not closed.
+     */
+    public static synchronized void setShared(ZipResultSink sink) {
+	sharedInitialized = true;
+	shared = sink;
+    }
+
+    /**
+     * Returns the name of the entry for a result document.
+     *
+     * @param absoluteURI  the absolute <code>file:</code> URI of the result document
+     *
+     * @throws XPathException  if the URI is not a local file
+     */
+    public String entryName(URI absoluteURI) throws XPathException {
+	if (!"file".equals(absoluteURI.getScheme())) {
+	    throw new XPathException("Cannot write to URI " + absoluteURI + ": not a local file");
+	}
+	Path path;
+	try {
+	    path = Paths.get(absoluteURI).normalize();
+	} catch (IllegalArgumentException e) {
+	    // including an InvalidPathException
+	    throw new XPathException("Cannot write to URI " + absoluteURI, e);
+	}
+	Path relative;
+	if (path.startsWith(root)) {
+	    relative = root.relativize(path);
+	} else {
+	    relative = path.getRoot() == null ? path : path.getRoot().relativize(path);
+	}
+	StringBuilder name = new StringBuilder();
+	for (Path segment : relative) {
+	    if (name.length() > 0) {
+		name.append('/');
+	    }
+	    name.append(segment.toString());
+	}
+	if (name.length() == 0) {
+	    throw new XPathException("Cannot write to URI " + absoluteURI + ": root of the result archive");
+	}
+	return name.toString();
+    }
+
+    /**
+     * {@inheritDoc} The document is appended to the archive.
+     */
+    @Override
+    public OutputStream newEntry(URI absoluteURI, ResolverMetrics metrics, IOQuota quota) throws XPathException {
+	return new Entry(entryName(absoluteURI), metrics, quota);
+    }
+
+    private synchronized void add(String name, SinkEntry entry) throws IOException {
+	if (closed) {
+	    throw new IOException("result archive closed: " + archive);
+	}
+	out.putNextEntry(new ZipEntry(name));
+	entry.writeTo(out);
+	out.closeEntry();
+	entries++;
+	bytes += entry.size();
+    }
+
+    /**
+     * Finish the archive. Entries closed afterwards fail.
+     */
+    public synchronized void close() throws IOException {
+	if (!closed) {
+	    closed = true;
+	    out.close();
+	}
+    }
+
+    public Path getArchive() {
+	return archive;
+    }
+
+    public Path getRoot() {
+	return root;
+    }
+
+    /**
+     * Returns the number of entries written.
+     */
+    public synchronized long getEntries() {
+	return entries;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written.
+     */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    /**
+     * A result document in memory, that is appended on close.
+     */
+    private final class Entry extends SinkEntry {
+
+	private final String name;
+
+	Entry(String name, ResolverMetrics metrics, IOQuota quota) {
+	    super(metrics, quota);
+	    this.name = name;
+	}
+
+	@Override
+	protected void store() throws IOException {
+	    add(name, this);
+	}
+    }
+
+}
@@ -0,0 +1,130 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+
+public class AsyncResultWriterTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:for-each select='1 to 50'>"
+	+ "<xsl:result-document href='out/doc{.}.xml' method='xml' omit-xml-declaration='yes'>"
+	+ "<doc n='{.}'/>"
+	+ "</xsl:result-document>"
+	+ "</xsl:for-each>"
+	+ "<done/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private AsyncResultWriter writer;
+
+    private XsltExecutable executable;
+
+    private Processor processor;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException, SaxonApiException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.write(tmp.resolve("main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	// a small budget for exercising the backpressure
+	writer = new AsyncResultWriter(2, 64, 4);
+	processor = new Processor(false);
+	executable = processor.newXsltCompiler().compile(new StreamSource(tmp.resolve("main.xsl").toFile()));
+    }
+
+    @AfterEach
+    public void reset() throws XPathException {
+	FilesystemFilterRegistry.setFilter(previous);
+	writer.close();
+    }
+
+    private void transform(String dir) throws SaxonApiException {
+	Xslt30Transformer transformer = executable.load30();
+	HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver();
+	resolver.setWriter(writer);
+	transformer.getUnderlyingController().setResultDocumentResolver(resolver);
+	transformer.setBaseOutputURI(tmp.resolve(dir).resolve("main.xml").toFile().toURI().toString());
+	StringWriter out = new StringWriter();
+	transformer.callTemplate(null, processor.newSerializer(out));
+    }
+
+    @Test
+    public void writeBehind() throws SaxonApiException, XPathException, IOException {
+	transform("allowed");
+	writer.awaitCompletion();
+	assertEquals(0, writer.getPendingFiles());
+	assertEquals(0, writer.getPendingBytes());
+	for (int i = 1; i <= 50; i++) {
+	    String content = new String(Files.readAllBytes(tmp.resolve("allowed/out/doc" + i + ".xml")),
+					StandardCharsets.UTF_8);
+	    assertEquals("<doc n=\"" + i + "\"/>", content);
+	}
+    }
+
+    @Test
+    public void notAllowed() throws XPathException {
+	assertThrows(SaxonApiException.class, () -> transform("other"));
+	writer.awaitCompletion();
+	assertFalse(Files.exists(tmp.resolve("other")));
+    }
+
+    @Test
+    public void writeErrors() throws IOException, SaxonApiException {
+	// a regular file where the output directory should be
+	Files.createDirectories(tmp.resolve("allowed"));
+	Files.write(tmp.resolve("allowed/out"), new byte[0]);
+	transform("allowed");
+	XPathException e = assertThrows(XPathException.class, () -> writer.awaitCompletion());
+	assertTrue(e.getMessage().contains("50"));
+	assertEquals(49, e.getSuppressed().length);
+    }
+
+    @Test
+    public void jobsAreSeparate() throws Exception {
+	Files.createDirectories(tmp.resolve("allowed/failing"));
+	Files.write(tmp.resolve("allowed/failing/out"), new byte[0]);
+	AsyncResultWriter.Job failing = new AsyncResultWriter.Job();
+	AsyncResultWriter.Job good = new AsyncResultWriter.Job();
+	AsyncResultWriter.callWith(failing, () -> {
+		transform("allowed/failing");
+		return null;
+	    });
+	AsyncResultWriter.callWith(good, () -> {
+		transform("allowed/good");
+		return null;
+	    });
+	good.awaitCompletion();
+	assertEquals(0, good.getPendingFiles());
+	assertTrue(Files.exists(tmp.resolve("allowed/good/out/doc50.xml")));
+	XPathException e = assertThrows(XPathException.class, () -> failing.awaitCompletion());
+	assertEquals(49, e.getSuppressed().length);
+	// nothing left for the default job
+	writer.awaitCompletion();
+    }
+
+}
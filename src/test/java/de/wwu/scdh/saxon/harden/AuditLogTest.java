@@ -0,0 +1,114 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.trans.XPathException;
+
+
+public class AuditLogTest {
+
+    @TempDir
+    Path tmp;
+
+    private List<String> lines(Path file) throws IOException {
+	return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void record() throws IOException {
+	Path file = tmp.resolve("logs/audit.log");
+	AuditLog log = new AuditLog(file, 16, 1024 * 1024, 2);
+	log.start();
+	log.record(AuditLog.DOCUMENT, "b.xml", "file:/x/a.xsl", null, true);
+	log.record(AuditLog.UNPARSED_TEXT, null, null, URI.create("file:/x/../y/q.txt"), false);
+	log.record(AuditLog.DOCUMENT, "a \"b\"\t", null, null, false);
+	log.close();
+	List<String> lines = lines(file);
+	assertEquals(3, lines.size());
+	assertTrue(lines.get(0).startsWith("{\"time\":\""));
+	assertTrue(lines.get(0).contains("\"operation\":\"document\",\"decision\":\"allowed\""));
+	assertTrue(lines.get(0).contains("\"thread\":\"" + Thread.currentThread().getName() + "\""));
+	assertTrue(lines.get(0).endsWith("\"href\":\"b.xml\",\"base\":\"file:/x/a.xsl\",\"uri\":\"file:/x/b.xml\"}"));
+	assertTrue(lines.get(1).contains("\"decision\":\"denied\""));
+	assertTrue(lines.get(1).endsWith("\"base\":null,\"uri\":\"file:/y/q.txt\"}"));
+	// not a URI
+	assertTrue(lines.get(2).endsWith("\"href\":\"a \\\"b\\\"\\t\",\"base\":null,\"uri\":null}"));
+	assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    public void dropWhenFull() throws IOException {
+	Path file = tmp.resolve("audit.log");
+	AuditLog log = new AuditLog(file, 3, 1024 * 1024, 2);
+	assertEquals(4, log.getCapacity());
+	// not started: nothing is drained
+	for (int i = 0; i < 10; i++) {
+	    log.record(AuditLog.OUTPUT, "out" + i + ".xml", "file:/x/", null, true);
+	}
+	assertEquals(6, log.getDropped());
+	log.start();
+	log.close();
+	log.record(AuditLog.OUTPUT, "late.xml", "file:/x/", null, true);
+	assertEquals(7, log.getDropped());
+	List<String> lines = lines(file);
+	assertEquals(5, lines.size());
+	assertTrue(lines.get(3).contains("out3.xml"));
+	assertTrue(lines.get(4).endsWith("\"dropped\":6}"));
+    }
+
+    @Test
+    public void rotate() throws IOException {
+	Path file = tmp.resolve("audit.log");
+	AuditLog log = new AuditLog(file, 1024, 1000, 2);
+	log.start();
+	for (int i = 0; i < 100; i++) {
+	    log.record(AuditLog.RESULT_DOCUMENT, "out" + i + ".xml", "file:/x/", null, true);
+	}
+	log.close();
+	assertTrue(Files.exists(tmp.resolve("audit.log.1")));
+	assertTrue(Files.exists(tmp.resolve("audit.log.2")));
+	assertFalse(Files.exists(tmp.resolve("audit.log.3")));
+	assertTrue(Files.size(file) <= 1000);
+	List<String> last = lines(file);
+	assertTrue(last.get(last.size() - 1).contains("out99.xml"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void resolvers() throws IOException, FilesystemFilterException {
+	Path file = tmp.resolve("audit.log");
+	AuditLog log = new AuditLog(file, 16, 1024 * 1024, 0);
+	log.start();
+	AuditLog previousLog = AuditLog.getShared();
+	FilesystemFilter previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	AuditLog.setShared(log);
+	try {
+	    String base = tmp.resolve("allowed/main.xsl").toFile().toURI().toString();
+	    HardenedURIResolver resolver = new HardenedURIResolver();
+	    assertThrows(XPathException.class, () -> resolver.resolve("../secret.xml", base));
+	} finally {
+	    AuditLog.setShared(previousLog);
+	    FilesystemFilterRegistry.setFilter(previous);
+	}
+	log.close();
+	List<String> lines = lines(file);
+	assertEquals(1, lines.size());
+	assertTrue(lines.get(0).contains("\"operation\":\"document\",\"decision\":\"denied\""));
+	assertTrue(lines.get(0).contains("\"uri\":\"" + tmp.resolve("secret.xml").toFile().toURI() + "\""));
+    }
+
+}
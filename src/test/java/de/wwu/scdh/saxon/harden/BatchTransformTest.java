@@ -0,0 +1,149 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+
+
+public class BatchTransformTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:param name='label'/>"
+	+ "<xsl:output method='text'/>"
+	+ "<xsl:template match='/'>"
+	+ "<xsl:value-of select='$label, count(//item), /*/@load ! count(doc(resolve-uri(., base-uri(.)))//*)'/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    private static final String RESULT_XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:output method='text'/>"
+	+ "<xsl:template match='/'>"
+	+ "<xsl:result-document href='side.txt' method='text'>side</xsl:result-document>"
+	+ "<xsl:text>main</xsl:text>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("allowed/in/sub"));
+	Files.createDirectories(tmp.resolve("denied"));
+	write("main.xsl", XSL);
+	write("allowed/lookup.xml", "<lookup><a/><b/></lookup>");
+	write("denied/secret.xml", "<secret/>");
+	write("allowed/in/one.xml", "<items><item/></items>");
+	write("allowed/in/sub/two.xml", "<items><item/><item/></items>");
+	write("allowed/in/lookup.xml", "<items load='../lookup.xml'/>");
+	write("allowed/in/secret.xml", "<items load='../../denied/secret.xml'/>");
+	write("allowed/in/broken.xml", "<items>");
+	write("allowed/in/ignored.txt", "not xml");
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private void write(String path, String content) throws IOException {
+	Files.write(tmp.resolve(path), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(String path) throws IOException {
+	return new String(Files.readAllBytes(tmp.resolve(path)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void batch() throws IOException, SaxonApiException {
+	Path in = tmp.resolve("allowed/in");
+	List<Path> inputs = BatchTransform.listInputs(in.toString(), ".xml");
+	assertEquals(5, inputs.size());
+	BatchTransform batch = new BatchTransform(new Configuration(), tmp.resolve("main.xsl"), 3);
+	batch.setParameter(new QName("label"), new XdmAtomicValue("n"));
+	assertEquals(3, batch.run(inputs, in.toAbsolutePath(), tmp.resolve("out")));
+	assertEquals("n 1", read("out/one.xml"));
+	assertEquals("n 2", read("out/sub/two.xml"));
+	assertEquals("n 0 3", read("out/lookup.xml"));
+	assertEquals(2, batch.getFailures().size());
+	for (BatchTransform.Failure failure : batch.getFailures()) {
+	    String name = failure.input.getFileName().toString();
+	    assertTrue(name.equals("secret.xml") || name.equals("broken.xml"), name);
+	}
+    }
+
+    @Test
+    public void hardenedConfiguration() throws SaxonApiException {
+	Configuration config = new Configuration();
+	new BatchTransform(config, tmp.resolve("main.xsl"), 1);
+	assertTrue(config.getURIResolver() instanceof HardenedURIResolver);
+	assertTrue(config.getUnparsedTextURIResolver() instanceof HardenedUnparsedTextResolver);
+	assertTrue(config.getCollectionFinder() instanceof HardenedCollectionFinder);
+	assertTrue(config.getModuleURIResolver() instanceof HardenedModuleURIResolver);
+    }
+
+    @Test
+    public void configurationFilter() throws IOException, SaxonApiException, FilesystemFilterException {
+	write("result.xsl", RESULT_XSL);
+	// the global filter allows the result document, the filter of
+	// the configuration does not
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(new String[] { tmp.toString() }));
+	Configuration config = new Configuration();
+	HardenedResolvers.install(config, new FilesystemFilter(new String[] { tmp.resolve("allowed").toString() }));
+	BatchTransform batch = new BatchTransform(config, tmp.resolve("result.xsl"), 1);
+	List<Path> inputs = Arrays.asList(tmp.resolve("allowed/in/one.xml"));
+	assertEquals(0, batch.run(inputs, null, tmp.resolve("out")));
+	assertEquals(1, batch.getFailures().size());
+	assertFalse(Files.exists(tmp.resolve("out/side.txt")));
+	assertEquals(1, batch.run(inputs, null, tmp.resolve("allowed/out")));
+	assertEquals("side", read("allowed/out/side.txt"));
+    }
+
+    @Test
+    public void sameOutput() throws IOException, SaxonApiException {
+	Files.createDirectories(tmp.resolve("allowed/other"));
+	write("allowed/other/one.xml", "<items><item/><item/><item/></items>");
+	write("list.txt", tmp.resolve("allowed/in/one.xml") + "\n" + tmp.resolve("allowed/other/one.xml") + "\n");
+	List<Path> inputs = BatchTransform.listInputs("@" + tmp.resolve("list.txt"), ".xml");
+	BatchTransform batch = new BatchTransform(new Configuration(), tmp.resolve("main.xsl"), 2);
+	assertEquals(1, batch.run(inputs, null, tmp.resolve("out")));
+	assertEquals(" 1", read("out/one.xml"));
+	assertEquals(1, batch.getFailures().size());
+	assertEquals(tmp.resolve("allowed/other/one.xml"), batch.getFailures().get(0).input);
+    }
+
+    @Test
+    public void fileList() throws IOException, SaxonApiException {
+	write("list.txt", "# inputs\n"
+	      + tmp.resolve("allowed/in/one.xml") + "\n\n"
+	      + tmp.resolve("allowed/in/sub/two.xml") + "\n");
+	List<Path> inputs = BatchTransform.listInputs("@" + tmp.resolve("list.txt"), ".xml");
+	assertEquals(2, inputs.size());
+	BatchTransform batch = new BatchTransform(new Configuration(), tmp.resolve("main.xsl"), 2);
+	assertEquals(2, batch.run(inputs, null, tmp.resolve("out")));
+	assertEquals(" 1", read("out/one.xml"));
+	assertEquals(" 2", read("out/two.xml"));
+    }
+
+}
@@ -0,0 +1,139 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+
+
+public class CachingHardenedURIResolverTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:value-of select=\"count(doc('authority.xml')//person)\"/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private DocumentCache cache;
+
+    private XsltExecutable executable;
+
+    private Processor processor;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException, SaxonApiException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.write(tmp.resolve("main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	writeAuthority(2);
+	cache = new DocumentCache(1024 * 1024);
+	Configuration config = new Configuration();
+	config.setURIResolver(new CachingHardenedURIResolver(cache));
+	processor = new Processor(config);
+	executable = processor.newXsltCompiler().compile(new StreamSource(tmp.resolve("main.xsl").toFile()));
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private void writeAuthority(int persons) throws IOException {
+	StringBuilder xml = new StringBuilder("<persons>");
+	for (int i = 0; i < persons; i++) {
+	    xml.append("<person id='p").append(i).append("'/>");
+	}
+	xml.append("</persons>");
+	Files.write(tmp.resolve("authority.xml"), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String transform() throws SaxonApiException {
+	StringWriter out = new StringWriter();
+	executable.load30().callTemplate(null, processor.newSerializer(out));
+	return out.toString().replaceAll("<\\?xml[^>]*>", "");
+    }
+
+    @Test
+    public void sharedAcrossTransformations() throws SaxonApiException {
+	assertEquals("2", transform());
+	assertEquals(1, cache.size());
+	assertEquals(0, cache.getHits());
+	assertEquals("2", transform());
+	assertEquals("2", transform());
+	assertEquals(2, cache.getHits());
+	assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void changedFile() throws SaxonApiException, IOException {
+	assertEquals("2", transform());
+	writeAuthority(3);
+	assertEquals("3", transform());
+	assertEquals(0, cache.getHits());
+	assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keyedByRealPath() throws SaxonApiException, IOException {
+	Files.createDirectories(tmp.resolve("sub"));
+	Files.createSymbolicLink(tmp.resolve("link.xml"), tmp.resolve("authority.xml"));
+	assertEquals("2", transform());
+	assertEquals("2", transform("link.xml"));
+	assertEquals("2", transform("sub/../authority.xml"));
+	assertEquals(1, cache.size());
+	assertEquals(2, cache.getHits());
+    }
+
+    private String transform(String href) throws SaxonApiException, IOException {
+	Path xsl = tmp.resolve("other.xsl");
+	Files.write(xsl, XSL.replace("authority.xml", href).getBytes(StandardCharsets.UTF_8));
+	XsltExecutable other = processor.newXsltCompiler().compile(new StreamSource(xsl.toFile()));
+	StringWriter out = new StringWriter();
+	other.load30().callTemplate(null, processor.newSerializer(out));
+	return out.toString().replaceAll("<\\?xml[^>]*>", "");
+    }
+
+    @Test
+    public void checkedOnHit() throws SaxonApiException, FilesystemFilterException {
+	assertEquals("2", transform());
+	assertEquals(1, cache.size());
+	String allowed[] = { tmp.resolve("other").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	assertThrows(SaxonApiException.class, () -> transform());
+	assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void budget() {
+	DocumentCache small = new DocumentCache(100);
+	Configuration config = new Configuration();
+	small.put("file:/a.xml", 1, 60, null);
+	small.put("file:/b.xml", 1, 60, null);
+	assertEquals(1, small.size());
+	assertEquals(1, small.getEvictions());
+	small.put("file:/c.xml", 1, 1000, null);
+	assertEquals(1, small.size());
+	assertNull(small.get("file:/c.xml", 1, 1000, config));
+    }
+
+}
@@ -0,0 +1,195 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+
+
+public class CompressedInputTest {
+
+    private static final String TEXT = "gr\u00fc\u00dfe";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Path corpus;
+
+    private XPathCompiler xpath;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	corpus = tmp.resolve("corpus");
+	Files.createDirectories(corpus);
+	gzip(corpus.resolve("a.xml.gz"), "<doc>a</doc>");
+	gzip(corpus.resolve("t.txt.gz"), TEXT);
+	zip(corpus.resolve("c.zip"), "dir/b.xml", "<doc>b</doc>",
+	    "dir/c.xml", "<doc>c</doc>", "t.txt", TEXT);
+	Files.createDirectories(tmp.resolve("secret"));
+	zip(tmp.resolve("secret/s.zip"), "s.xml", "<doc>s</doc>");
+	String allowed[] = { corpus.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Configuration config = new Configuration();
+	HardenedURIResolver uriResolver = new HardenedURIResolver();
+	uriResolver.setConfiguration(config);
+	config.setURIResolver(uriResolver);
+	config.setUnparsedTextURIResolver(new HardenedUnparsedTextResolver());
+	xpath = new Processor(config).newXPathCompiler();
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static void gzip(Path path, String content) throws IOException {
+	try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(path))) {
+	    out.write(content.getBytes(StandardCharsets.UTF_8));
+	}
+    }
+
+    private static void zip(Path path, String... entries) throws IOException {
+	try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(path))) {
+	    for (int i = 0; i < entries.length; i += 2) {
+		out.putNextEntry(new ZipEntry(entries[i]));
+		out.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+		out.closeEntry();
+	    }
+	}
+    }
+
+    private String entry(Path archive, String name) {
+	return "jar:" + archive.toFile().toURI() + "!/" + name;
+    }
+
+    private String evaluate(String expression) throws SaxonApiException {
+	return xpath.evaluateSingle(expression, null).getStringValue();
+    }
+
+    private static void assertDenied(Throwable e) {
+	boolean denied = false;
+	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    denied |= cause.getMessage() != null && cause.getMessage().contains("path not allowed");
+	}
+	assertTrue(denied, e.toString());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void filter() throws FilesystemFilterException {
+	FilesystemFilter filter = FilesystemFilterRegistry.getFilter();
+	assertTrue(filter.check(URI.create(entry(corpus.resolve("c.zip"), "dir/b.xml"))));
+	assertFalse(filter.check(URI.create(entry(corpus.resolve("c.zip"), "dir/b.xml")), AccessMode.WRITE));
+	assertFalse(filter.check(URI.create(entry(tmp.resolve("secret/s.zip"), "s.xml"))));
+	assertFalse(filter.check(URI.create("jar:" + corpus.toFile().toURI() + "../secret/s.zip!/s.xml")));
+	// relative to an entry
+	assertTrue(filter.check("c.xml", entry(corpus.resolve("c.zip"), "dir/b.xml")));
+	assertTrue(filter.check("../t.txt", entry(corpus.resolve("c.zip"), "dir/b.xml")));
+	assertFalse(filter.check(tmp.resolve("secret/s.xml").toFile().toURI().toString(),
+				 entry(corpus.resolve("c.zip"), "dir/b.xml")));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void gzipFiles() throws SaxonApiException {
+	assertEquals("a", evaluate("string(doc('" + corpus.resolve("a.xml.gz").toFile().toURI() + "'))"));
+	assertEquals(TEXT, evaluate("unparsed-text('" + corpus.resolve("t.txt.gz").toFile().toURI() + "')"));
+	assertEquals(TEXT, evaluate("unparsed-text('" + corpus.resolve("t.txt.gz").toFile().toURI() + "', 'UTF-8')"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void archiveEntries() throws SaxonApiException {
+	ArchiveCache shared = ArchiveCache.getSharedCache();
+	long hits = shared.getHits();
+	String b = entry(corpus.resolve("c.zip"), "dir/b.xml");
+	assertEquals("b", evaluate("string(doc('" + b + "'))"));
+	// relative to the entry
+	assertEquals("c", evaluate("string(doc(resolve-uri('c.xml', '" + b + "')))"));
+	assertEquals(TEXT, evaluate("unparsed-text('" + entry(corpus.resolve("c.zip"), "t.txt") + "')"));
+	// read through the shared cache without rescanning the archive
+	assertTrue(shared.getHits() >= hits + 2);
+	assertThrows(SaxonApiException.class, () -> evaluate("string(doc('" + entry(corpus.resolve("c.zip"), "missing.xml") + "'))"));
+	assertDenied(assertThrows(SaxonApiException.class,
+				  () -> evaluate("string(doc('" + entry(tmp.resolve("secret/s.zip"), "s.xml") + "'))")));
+	assertDenied(assertThrows(SaxonApiException.class,
+				  () -> evaluate("unparsed-text('" + entry(tmp.resolve("secret/s.zip"), "s.xml") + "')")));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void quota() throws Exception {
+	IOQuota quota = new IOQuota(100, IOQuota.UNLIMITED, IOQuota.UNLIMITED, IOQuota.UNLIMITED);
+	String text = "unparsed-text('" + entry(corpus.resolve("c.zip"), "t.txt") + "')";
+	assertEquals(TEXT, IOQuota.callWith(quota, () -> evaluate(text)));
+	// the uncompressed bytes
+	assertEquals(TEXT.getBytes(StandardCharsets.UTF_8).length, quota.getBytesRead());
+	IOQuota small = new IOQuota(3, IOQuota.UNLIMITED, IOQuota.UNLIMITED, IOQuota.UNLIMITED);
+	assertThrows(SaxonApiException.class, () -> IOQuota.callWith(small, () -> evaluate(text)));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void archiveCache() throws IOException {
+	ArchiveCache cache = new ArchiveCache(1);
+	for (int i = 0; i < 3; i++) {
+	    try (InputStream in = cache.getInputStream(corpus.resolve("c.zip").toFile(), "dir/c.xml")) {
+		assertEquals("<doc>c</doc>", new String(readAll(in), StandardCharsets.UTF_8));
+	    }
+	}
+	assertEquals(1, cache.getMisses());
+	assertEquals(2, cache.getHits());
+	// an open stream survives the eviction of its archive
+	InputStream open = cache.getInputStream(corpus.resolve("c.zip").toFile(), "t.txt");
+	cache.getInputStream(tmp.resolve("secret/s.zip").toFile(), "s.xml").close();
+	assertEquals(1, cache.size());
+	assertEquals(TEXT, new String(readAll(open), StandardCharsets.UTF_8));
+	open.close();
+	// a changed archive is opened again
+	zip(corpus.resolve("c.zip"), "dir/c.xml", "<doc>changed</doc>");
+	assertTrue(corpus.resolve("c.zip").toFile().setLastModified(System.currentTimeMillis() + 10000));
+	long misses = cache.getMisses();
+	try (InputStream in = cache.getInputStream(corpus.resolve("c.zip").toFile(), "dir/c.xml")) {
+	    assertEquals("<doc>changed</doc>", new String(readAll(in), StandardCharsets.UTF_8));
+	}
+	assertEquals(misses + 1, cache.getMisses());
+	assertThrows(IOException.class, () -> cache.getInputStream(corpus.resolve("c.zip").toFile(), "t.txt"));
+	cache.clear();
+	assertEquals(0, cache.size());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	byte[] buffer = new byte[1024];
+	int n;
+	while ((n = in.read(buffer)) >= 0) {
+	    out.write(buffer, 0, n);
+	}
+	return out.toByteArray();
+    }
+
+}
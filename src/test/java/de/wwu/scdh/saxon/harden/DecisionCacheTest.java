@@ -0,0 +1,66 @@
+package de.wwu.scdh.saxon.harden;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class DecisionCacheTest {
+
+    @Test
+    public void construct() {
+	assertThrows(IllegalArgumentException.class, () -> new DecisionCache(0));
+	assertEquals(10, new DecisionCache(10).getCapacity());
+    }
+
+    @Test
+    public void getAndPut() {
+	DecisionCache cache = new DecisionCache(100);
+	assertNull(cache.get("a.xml", "/x/b.xsl"));
+	cache.put("a.xml", "/x/b.xsl", true);
+	cache.put("a.xml", "/y/b.xsl", false);
+	assertEquals(Boolean.TRUE, cache.get("a.xml", "/x/b.xsl"));
+	assertEquals(Boolean.FALSE, cache.get("a.xml", "/y/b.xsl"));
+	assertNull(cache.get("/x/b.xsl", "a.xml"));
+	assertEquals(2, cache.getHits());
+	assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void bounded() {
+	DecisionCache cache = new DecisionCache(64);
+	for (int i = 0; i < 10000; i++) {
+	    cache.put("doc" + i + ".xml", "/x/main.xsl", true);
+	}
+	// each segment holds at most its share of the capacity
+	assertTrue(cache.size() <= 64);
+	assertTrue(cache.size() > 0);
+	assertNotNull(cache.get("doc9999.xml", "/x/main.xsl"));
+    }
+
+    @Test
+    public void boundedBelowSegments() {
+	for (int capacity = 1; capacity <= 20; capacity++) {
+	    DecisionCache cache = new DecisionCache(capacity);
+	    for (int i = 0; i < 1000; i++) {
+		cache.put("doc" + i + ".xml", "/x/main.xsl", true);
+	    }
+	    assertTrue(cache.size() <= capacity, "capacity " + capacity);
+	}
+	DecisionCache cache = new DecisionCache(1);
+	cache.put("a.xml", "/x/b.xsl", true);
+	cache.put("c.xml", "/x/b.xsl", false);
+	assertEquals(1, cache.size());
+	assertEquals(Boolean.FALSE, cache.get("c.xml", "/x/b.xsl"));
+	assertNull(cache.get("a.xml", "/x/b.xsl"));
+    }
+
+    @Test
+    public void clear() {
+	DecisionCache cache = new DecisionCache(10);
+	cache.put("a.xml", "/x/b.xsl", true);
+	cache.clear();
+	assertEquals(0, cache.size());
+	assertNull(cache.get("a.xml", "/x/b.xsl"));
+    }
+
+}
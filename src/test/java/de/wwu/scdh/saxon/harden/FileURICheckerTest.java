@@ -0,0 +1,151 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+
+/**
+ * Differential tests: the {@link FileURIChecker} must decide like the
+ * {@link java.net.URI} based check in {@link FilesystemFilter}.
+ */
+@DisabledOnOs(OS.WINDOWS)
+public class FileURICheckerTest {
+
+    private static final String ALLOWED[] = { "/application/xsl", "/application/docs", "/" + "a" };
+
+    /**
+     * The href and base pairs from {@link FilesystemFilterTest}.
+     */
+    private static final String CASES[][] = {
+	{ "other/brother.xsl", "/application/xsl/id.xsl" },
+	{ "../docs/brother.xml", "/application/xsl/id.xsl" },
+	{ "../other/secret", "/application/xsl/id.xsl" },
+	{ "shadow", "/etc/passwd" },
+	{ "/application/xsl/brother.xsl", "/application/xsl/id.xsl" },
+	{ "/application/xsl/../docs/brother.xml", "/application/xsl/id.xsl" },
+	{ "/application/../other/secret", "/application/xsl/id.xsl" },
+	{ "/etc/shadow", "/etc/passwd" },
+	{ "", "" },
+	{ "other.xsl", "http://example.com/xsl/id.xsl" },
+	{ "other.xml", "https://example.com/xsl/id.xsl" },
+	{ "id.xsl", "relative.xsl" },
+	{ "id.xsl", null },
+	{ null, "/application/xsl/id.xsl" },
+	{ "/application/xsl/id.xsl", null },
+	{ "file:/etc/passwd", "/application/xsl/id.xsl" },
+	{ "file:xsl/id.xsl", "/application/xsl/id.xsl" },
+	{ "/application/xslt/id.xsl", "/application/xsl/id.xsl" },
+	{ "/etc/../application/xsl/id.xsl", "file:/application/xsl/id.xsl" },
+	{ "", "/application/xsl/id.xsl" },
+	{ ".", "/application/xsl/id.xsl" },
+	{ "..", "/application/xsl/id.xsl" },
+	{ "../..", "/application/xsl/id.xsl" },
+	{ "../../..", "/application/xsl/id.xsl" },
+	{ "../../a/x", "/application/xsl/id.xsl" },
+	{ "x//y/../z", "/application/xsl/id.xsl" },
+	{ "../d", "/application//xsl/id.xsl" },
+	{ "x/.", "/application/xsl/id.xsl" },
+	{ "x/..", "/application/xsl/id.xsl" },
+	{ "x", "/application/xsl/." },
+	{ "x", "/application/xsl/.." },
+	{ "", "/application/xsl/.." },
+	{ "a:b", "/application/xsl/id.xsl" },
+	{ ":b", "/application/xsl/id.xsl" },
+	{ "file:", "/application/xsl/id.xsl" },
+	{ "file:///application/xsl/id.xsl", "/application/xsl/id.xsl" },
+	{ "//host/application/xsl/id.xsl", "file:/application/xsl/id.xsl" },
+	{ "a b.xml", "/application/xsl/id.xsl" },
+	{ "a.xml", "/application/xsl/id 1.xsl" },
+	{ "%2e%2e/secret", "/application/xsl/id.xsl" },
+	{ "%zz", "/application/xsl/id.xsl" },
+	{ "a.xml#frag", "/application/xsl/id.xsl" },
+	{ "a.xml?q=1", "/application/xsl/id.xsl" },
+	{ "ä.xml", "/application/xsl/id.xsl" },
+    };
+
+    /**
+     * Tokens for the fuzzed corpus.
+     */
+    private static final String TOKENS[] = {
+	"/", "/", "/", ".", "..", "./", "../", "//", "a", "xsl", "docs", "application", "id.xsl",
+	"file:", "FILE:", "http:", "http://example.com", ":", "~", "-", "+", "@", "$", ";", "=",
+	"%2e", "%2F", "%", "%z", " ", "#", "?", "[", "]", "\\", "|", "ä", " ", " ",
+	"...", "*", "'", "(", ")", "!", "&", ",", "1",
+    };
+
+    private static String fuzz(Random random) {
+	StringBuilder s = new StringBuilder();
+	int n = random.nextInt(8);
+	for (int i = 0; i < n; i++) {
+	    s.append(TOKENS[random.nextInt(TOKENS.length)]);
+	}
+	return s.toString();
+    }
+
+    private static String fuzzBase(Random random) {
+	switch (random.nextInt(4)) {
+	case 0:
+	    return "/" + fuzz(random);
+	case 1:
+	    return "file:/" + fuzz(random);
+	case 2:
+	    return "/application/xsl/" + fuzz(random);
+	default:
+	    return fuzz(random);
+	}
+    }
+
+    private static void assertSameDecision(FilesystemFilter filter, String href, String base) {
+	assertEquals(filter.checkByURI(href, base), filter.check(href, base),
+		     "href: '" + href + "', base: '" + base + "'");
+    }
+
+    @Test
+    public void sameDecisions() throws FilesystemFilterException {
+	FilesystemFilter filter = new FilesystemFilter(ALLOWED);
+	for (String[] c : CASES) {
+	    assertSameDecision(filter, c[0], c[1]);
+	}
+    }
+
+    @Test
+    public void sameDecisionsFuzzed() throws FilesystemFilterException {
+	FilesystemFilter filter = new FilesystemFilter(ALLOWED);
+	FileURIChecker checker = filter.newChecker();
+	Random random = new Random(20231018L);
+	int decided = 0;
+	int n = 200000;
+	for (int i = 0; i < n; i++) {
+	    String href = fuzz(random);
+	    String base = fuzzBase(random);
+	    assertSameDecision(filter, href, base);
+	    if (checker.check(href, base) != FileURIChecker.UNDECIDED) {
+		decided++;
+	    }
+	}
+	// the fast path must decide a substantial part of the corpus
+	assertTrue(decided > n / 4, "decided " + decided + " of " + n);
+    }
+
+    @Test
+    public void returnCodes() throws FilesystemFilterException {
+	FileURIChecker checker = new FilesystemFilter(ALLOWED).newChecker();
+	assertEquals(FileURIChecker.ALLOWED, checker.check("../docs/brother.xml", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.ALLOWED, checker.check("brother.xml", "file:/application/docs/id.xsl"));
+	assertEquals(FileURIChecker.ALLOWED, checker.check("file:/application/docs/x.xml", "/etc/passwd"));
+	assertEquals(FileURIChecker.DENIED, checker.check("../../etc/passwd", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.DENIED, checker.check("/application/xslt/id.xsl", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.INVALID, checker.check("a b", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.INVALID, checker.check("%zz", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.INVALID, checker.check(":a", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.INVALID, checker.check("a", null));
+	assertEquals(FileURIChecker.UNDECIDED, checker.check("http://example.com/a", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.UNDECIDED, checker.check("%2e%2e/x", "/application/xsl/id.xsl"));
+	assertEquals(FileURIChecker.UNDECIDED, checker.check("a.xml", "relative.xsl"));
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+
+public class FilesystemFilterRegistryTest {
+
+    @TempDir
+    Path tmp;
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.stopWatching();
+    }
+
+    @Test
+    public void shared() {
+	FilesystemFilter filter = FilesystemFilterRegistry.getFilter();
+	assertNotNull(filter);
+	assertSame(filter, FilesystemFilterRegistry.getFilter());
+	assertSame(filter, new HardenedURIResolver().getFilter());
+	assertSame(filter, new HardenedResultDocumentResolver().getFilter());
+    }
+
+    @Test
+    public void setFilter() throws FilesystemFilterException {
+	String allowed[] = { "/application/xsl" };
+	FilesystemFilter filter = new FilesystemFilter(allowed);
+	FilesystemFilterRegistry.setFilter(filter);
+	assertSame(filter, FilesystemFilterRegistry.getFilter());
+	assertThrows(IllegalArgumentException.class, () -> FilesystemFilterRegistry.setFilter(null));
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void load() throws IOException, FilesystemFilterException {
+	Path file = tmp.resolve("policy");
+	Files.write(file, Arrays.asList("# allowed paths", "/application/xsl", "", "  /application/docs  "),
+		    StandardCharsets.UTF_8);
+	FilesystemFilter filter = FilesystemFilterRegistry.load(file);
+	assertEquals(2, filter.getAllowedLocations().length);
+	assertEquals("/application/xsl/", filter.getAllowedLocations()[0]);
+	assertEquals("/application/docs/", filter.getAllowedLocations()[1]);
+    }
+
+    @Test
+    public void loadMissing() {
+	assertThrows(FilesystemFilterException.class, () -> FilesystemFilterRegistry.load(tmp.resolve("missing")));
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void watch() throws IOException, FilesystemFilterException, URISyntaxException, InterruptedException {
+	Path file = tmp.resolve("policy");
+	Files.write(file, Arrays.asList("/application/xsl"), StandardCharsets.UTF_8);
+	FilesystemFilterRegistry.watch(file);
+	FilesystemFilter before = FilesystemFilterRegistry.getFilter();
+	assertTrue(before.check(new URI("/application/xsl/id.xsl")));
+	assertFalse(before.check(new URI("/application/docs/hello.xml")));
+
+	Files.write(file, Arrays.asList("/application/docs"), StandardCharsets.UTF_8);
+	// the watch service may be polling, so wait for the new snapshot
+	long deadline = System.currentTimeMillis() + 30000;
+	while (!FilesystemFilterRegistry.getFilter().check(new URI("/application/docs/hello.xml"))
+	       && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(50);
+	}
+	FilesystemFilter after = FilesystemFilterRegistry.getFilter();
+	assertNotSame(before, after);
+	assertFalse(after.check(new URI("/application/xsl/id.xsl")));
+	assertTrue(after.check(new URI("/application/docs/hello.xml")));
+	// the old snapshot is unchanged
+	assertTrue(before.check(new URI("/application/xsl/id.xsl")));
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void stopWatching() throws IOException, FilesystemFilterException, InterruptedException {
+	Path file = tmp.resolve("policy");
+	Files.write(file, Arrays.asList("/application/xsl"), StandardCharsets.UTF_8);
+	FilesystemFilterRegistry.watch(file);
+	FilesystemFilterRegistry.stopWatching();
+	FilesystemFilter explicit = new FilesystemFilter(new String[] { "/application/docs" });
+	FilesystemFilterRegistry.setFilter(explicit);
+	Files.write(file, Arrays.asList("/application/other"), StandardCharsets.UTF_8);
+	Thread.sleep(500);
+	// a stopped watcher does not replace the filter
+	assertSame(explicit, FilesystemFilterRegistry.getFilter());
+    }
+
+}
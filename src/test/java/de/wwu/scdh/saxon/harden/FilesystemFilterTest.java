@@ -1,17 +1,26 @@
 package de.wwu.scdh.saxon.harden;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.AccessMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.OS;
 
+import net.sf.saxon.trans.XPathException;
+
 
 
 public class FilesystemFilterTest {
 
+    @TempDir
+    Path tmp;
 
     @Test
     public void constructDefault() {
@@ -214,4 +223,211 @@ public class FilesystemFilterTest {
 	assertFalse(filter.check("/application/xsl/id.xsl", null)); // TODO?
     }
 
+    @Test
+    public void constructNegativeCacheSize() {
+	String allowed[] = { "/application/xsl" };
+	assertThrows(FilesystemFilterException.class, () -> new FilesystemFilter(allowed, -1));
+    }
+
+    @Test
+    public void noCacheByDefault() throws FilesystemFilterException {
+	String allowed[] = { "/application/xsl" };
+	assertNull(new FilesystemFilter(allowed).getDecisionCache());
+	assertNull(new FilesystemFilter(allowed, 0).getDecisionCache());
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void cachedDecisions() throws FilesystemFilterException {
+	String allowed[] = { "/application/xsl", "/application/docs" };
+	FilesystemFilter filter = new FilesystemFilter(allowed, 100);
+	DecisionCache cache = filter.getDecisionCache();
+	assertNotNull(cache);
+	for (int i = 0; i < 3; i++) {
+	    assertTrue(filter.check("other/brother.xsl", "/application/xsl/id.xsl"));
+	    assertTrue(filter.check("../docs/brother.xml", "/application/xsl/id.xsl"));
+	    assertFalse(filter.check("../other/secret", "/application/xsl/id.xsl"));
+	    assertFalse(filter.check("shadow", "/etc/passwd"));
+	    assertTrue(filter.check("other.xsl", "http://example.com/xsl/id.xsl"));
+	    assertFalse(filter.check("id.xsl", null));
+	    assertFalse(filter.check(null, "/application/xsl/id.xsl"));
+	}
+	assertEquals(5, cache.getMisses());
+	assertEquals(10, cache.getHits());
+	assertEquals(5, cache.size());
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void cacheNotShared() throws FilesystemFilterException {
+	String before[] = { "/application/xsl" };
+	String after[] = { "/application/docs" };
+	FilesystemFilter filter = new FilesystemFilter(before, 100);
+	assertTrue(filter.check("id.xsl", "/application/xsl/main.xsl"));
+	// a new set of allowed locations comes with a new cache
+	filter = new FilesystemFilter(after, 100);
+	assertFalse(filter.check("id.xsl", "/application/xsl/main.xsl"));
+	assertEquals(0, filter.getDecisionCache().getHits());
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void canonicalize() throws FilesystemFilterException, IOException {
+	Path allowedDir = Files.createDirectories(tmp.resolve("allowed/docs"));
+	Path secretDir = Files.createDirectories(tmp.resolve("secret"));
+	Files.write(secretDir.resolve("key"), "secret".getBytes());
+	Files.write(allowedDir.resolve("doc.xml"), "<doc/>".getBytes());
+	Files.createSymbolicLink(allowedDir.resolve("link"), secretDir.resolve("key"));
+	Files.createSymbolicLink(allowedDir.resolve("dir"), secretDir);
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	String base = allowedDir.resolve("main.xsl").toFile().toURI().toString();
+
+	// lexically, the links are allowed
+	FilesystemFilter lexical = new FilesystemFilter(allowed);
+	assertNull(lexical.getCanonicalPathCache());
+	assertTrue(lexical.check("link", base));
+	assertTrue(lexical.check("dir/key", base));
+
+	FilesystemFilter filter = new FilesystemFilter(allowed, 100, 60000);
+	assertNull(filter.getDecisionCache());
+	CanonicalPathCache cache = filter.getCanonicalPathCache();
+	assertNotNull(cache);
+	assertTrue(filter.check("doc.xml", base));
+	assertFalse(filter.check("link", base));
+	assertFalse(filter.check("dir/key", base));
+	assertFalse(filter.check(allowedDir.resolve("dir/key").toFile().toURI()));
+	// not existing files, e.g. for output
+	assertTrue(filter.check("out/new/result.xml", base));
+	assertFalse(filter.check("dir/new/result.xml", base));
+	// non-file URIs are not affected
+	assertTrue(filter.check("http://example.com/doc.xml", base));
+
+	long misses = cache.getMisses();
+	for (int i = 0; i < 10; i++) {
+	    assertTrue(filter.check("doc.xml", base));
+	}
+	assertEquals(misses, cache.getMisses());
+	assertTrue(cache.getHits() >= 10);
+	assertTrue(cache.getHitRate() > 0.0);
+	assertTrue(cache.getCanonicalizationNanos() > 0);
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void canonicalizeAllowedLocation() throws FilesystemFilterException, IOException {
+	Path realDir = Files.createDirectories(tmp.resolve("real"));
+	Files.createSymbolicLink(tmp.resolve("alias"), realDir);
+	String allowed[] = { tmp.resolve("alias").toString() };
+	String base = tmp.resolve("alias/main.xsl").toFile().toURI().toString();
+	FilesystemFilter filter = new FilesystemFilter(allowed, 0, 60000);
+	// the real path of an allowed location is allowed, too
+	assertTrue(filter.check("doc.xml", base));
+	assertEquals(1, filter.getAllowedLocations().length);
+    }
+
+    @Test
+    public void constructNegativeTtl() {
+	String allowed[] = { "/application/xsl" };
+	assertThrows(FilesystemFilterException.class, () -> new FilesystemFilter(allowed, 0, -1));
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void accessRules() throws FilesystemFilterException {
+	String allowed[] = {
+	    "/application/xsl",
+	    "read:/corpus/**/*.xml",
+	    "write:/scratch/*/out/**",
+	    "/shared/*.txt",
+	    "deny:/corpus/private",
+	    "deny-write:/application/xsl/lib/**"
+	};
+	FilesystemFilter filter = new FilesystemFilter(allowed, 100);
+	assertArrayEquals(new String[] { "/application/xsl/" }, filter.getAllowedLocations());
+	assertEquals(5, filter.getAccessRules().length);
+	assertEquals("deny:/corpus/private", filter.getAccessRules()[3]);
+	String base = "file:/application/xsl/main.xsl";
+	for (int i = 0; i < 2; i++) {
+	    // second round from the decision caches
+	    assertTrue(filter.check("/corpus/a/b.xml", base, AccessMode.READ));
+	    assertFalse(filter.check("/corpus/a/b.xml", base, AccessMode.WRITE));
+	    assertFalse(filter.check("/corpus/a/b.txt", base, AccessMode.READ));
+	    assertFalse(filter.check("/corpus/private/b.xml", base, AccessMode.READ));
+	    assertFalse(filter.check("/corpus/private", base, AccessMode.READ));
+	    assertTrue(filter.check("/scratch/job/out/index.html", base, AccessMode.WRITE));
+	    assertFalse(filter.check("/scratch/job/out/index.html", base, AccessMode.READ));
+	    assertTrue(filter.check("/shared/a.txt", base, AccessMode.READ));
+	    assertTrue(filter.check("/shared/a.txt", base, AccessMode.WRITE));
+	    assertTrue(filter.check("lib/a.xsl", base, AccessMode.READ));
+	    assertFalse(filter.check("lib/a.xsl", base, AccessMode.WRITE));
+	    assertTrue(filter.check("out.xml", base, AccessMode.WRITE));
+	    assertFalse(filter.check("out.xml", base, AccessMode.EXECUTE));
+	}
+	// the URI based check gives the same decisions
+	assertTrue(filter.check(URI.create("file:/corpus/a/../b.xml"), AccessMode.READ));
+	assertFalse(filter.check(URI.create("file:/corpus/b.xml"), AccessMode.WRITE));
+	assertFalse(filter.check(URI.create("file:/corpus/x/../private/b.xml")));
+	assertTrue(filter.check(URI.create("file:/scratch/job%201/out/a.html"), AccessMode.WRITE));
+	assertTrue(filter.check("/scratch/job%201/out/a.html", base, AccessMode.WRITE));
+	// read access by default
+	assertTrue(filter.check("/corpus/b.xml", base));
+	assertFalse(filter.check("/scratch/job/out/index.html", base));
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void accessRulesResolvers() throws FilesystemFilterException {
+	String allowed[] = { "read:" + tmp + "/in/**", "write:" + tmp + "/out/**" };
+	FilesystemFilter previous = FilesystemFilterRegistry.getFilter();
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	try {
+	    String base = tmp.resolve("in/main.xsl").toFile().toURI().toString();
+	    HardenedOutputResolver output = new HardenedOutputResolver();
+	    assertThrows(XPathException.class, () -> output.resolve("result.xml", base));
+	    HardenedResultDocumentResolver resultDocument = new HardenedResultDocumentResolver();
+	    assertThrows(XPathException.class, () -> resultDocument.resolve("result.xml", base));
+	    assertThrows(XPathException.class, () -> new HardenedURIResolver().resolve("../out/a.xml", base));
+	} finally {
+	    FilesystemFilterRegistry.setFilter(previous);
+	}
+    }
+
+    @Test
+    public void accessRulesInvalid() {
+	String rules[][] = {
+	    { "read:" }, { "read:file:/a/*" }, { "/a/b**" }, { "/a/*/../b" }
+	};
+	for (String[] rule : rules) {
+	    assertThrows(FilesystemFilterException.class, () -> new FilesystemFilter(rule));
+	}
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void accessRulesNormalized() throws FilesystemFilterException {
+	String allowed[] = { "read:~/corpus/*.xml", "deny:/a/b/../c/", "/x/./y/*" };
+	FilesystemFilter filter = new FilesystemFilter(allowed);
+	String rules[] = filter.getAccessRules();
+	assertEquals("read:" + System.getProperty("user.home") + "/corpus/*.xml", rules[0]);
+	assertEquals("deny:/a/c", rules[1]);
+	assertEquals("/x/y/*", rules[2]);
+	assertEquals(0, filter.getAllowedLocations().length);
+    }
+
+    @DisabledOnOs(OS.WINDOWS)
+    @Test
+    public void canonicalizeAccessRules() throws FilesystemFilterException, IOException {
+	Path realDir = Files.createDirectories(tmp.resolve("real/docs"));
+	Path secretDir = Files.createDirectories(tmp.resolve("secret"));
+	Files.createSymbolicLink(tmp.resolve("alias"), tmp.resolve("real"));
+	Files.createSymbolicLink(realDir.resolve("link.xml"), secretDir.resolve("key.xml"));
+	String allowed[] = { "read:" + tmp.resolve("alias") + "/**/*.xml" };
+	FilesystemFilter filter = new FilesystemFilter(allowed, 0, 60000);
+	String base = tmp.resolve("alias/docs/main.xsl").toFile().toURI().toString();
+	// the real path of the part before the wildcard is allowed, too
+	assertTrue(filter.check("doc.xml", base, AccessMode.READ));
+	assertFalse(filter.check("doc.xml", base, AccessMode.WRITE));
+	assertFalse(filter.check("link.xml", base, AccessMode.READ));
+    }
+
 }
@@ -0,0 +1,168 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+
+
+public class HardenedCollectionFinderTest {
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Path corpus;
+
+    private XPathCompiler xpath;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	corpus = tmp.resolve("corpus");
+	write(corpus.resolve("a.xml"), "<doc>a</doc>");
+	write(corpus.resolve("b.xml"), "<doc>b</doc>");
+	write(corpus.resolve("sub/c.xml"), "<doc>c</doc>");
+	write(corpus.resolve("sub/d.txt"), "d");
+	write(corpus.resolve("private/p.xml"), "<doc>p</doc>");
+	write(tmp.resolve("secret/s.xml"), "<doc>s</doc>");
+	String allowed[] = { corpus.toString(), "deny:" + corpus.resolve("private") };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Configuration config = new Configuration();
+	config.setCollectionFinder(new HardenedCollectionFinder());
+	xpath = new Processor(config).newXPathCompiler();
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static void write(Path path, String content) throws IOException {
+	Files.createDirectories(path.getParent());
+	Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String uri(Path path) {
+	return path.toFile().toURI().toString();
+    }
+
+    private String evaluate(String expression) throws SaxonApiException {
+	XdmValue result = xpath.evaluate(expression, null);
+	return result.itemAt(0).getStringValue();
+    }
+
+    private static void assertDenied(Throwable e) {
+	boolean denied = false;
+	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    denied |= cause.getMessage() != null && cause.getMessage().contains("path not allowed");
+	}
+	assertTrue(denied, e.toString());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void directory() throws SaxonApiException {
+	assertEquals("a b", evaluate("string-join(collection('" + uri(corpus) + "?select=*.xml'), ' ')"));
+	assertEquals("a b c", evaluate("string-join(collection('" + uri(corpus) + "?select=*.xml;recurse=yes'), ' ')"));
+	assertEquals("a.xml b.xml c.xml d.txt",
+		     evaluate("string-join(uri-collection('" + uri(corpus) + "?recurse=yes') ! tokenize(., '/')[last()], ' ')"));
+	assertDenied(assertThrows(SaxonApiException.class, () -> evaluate("count(collection('" + uri(tmp.resolve("secret")) + "'))")));
+	assertDenied(assertThrows(SaxonApiException.class, () -> evaluate("count(collection('" + uri(corpus.resolve("private")) + "'))")));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void lazyWalk() throws Exception {
+	Configuration config = new Configuration();
+	XPathContext context = new Controller(config).newXPathContext();
+	Iterator<String> members = new HardenedCollectionFinder()
+	    .findCollection(context, uri(corpus) + "?recurse=yes")
+	    .getResourceURIs(context);
+	assertTrue(members.next().endsWith("/a.xml"));
+	// not listed yet
+	write(corpus.resolve("sub/e.xml"), "<doc>e</doc>");
+	assertTrue(members.next().endsWith("/b.xml"));
+	assertTrue(members.next().endsWith("/sub/c.xml"));
+	assertTrue(members.next().endsWith("/sub/d.txt"));
+	assertTrue(members.next().endsWith("/sub/e.xml"));
+	assertFalse(members.hasNext());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void catalog() throws IOException, SaxonApiException {
+	Path catalog = corpus.resolve("catalog.xml");
+	write(catalog, "<collection>"
+	      + "<doc href='a.xml'/><doc href='../secret/s.xml'/><doc href='private/p.xml'/><doc href='sub/c.xml'/>"
+	      + "</collection>");
+	assertEquals("a c", evaluate("string-join(collection('" + uri(catalog) + "'), ' ')"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void manyMembers() throws IOException, SaxonApiException {
+	StringBuilder expected = new StringBuilder();
+	for (int i = 0; i < 300; i++) {
+	    String name = String.format("%02d/%03d.xml", i % 17, i);
+	    write(corpus.resolve("many/" + name), "<doc>" + i + "</doc>");
+	}
+	for (int d = 0; d < 17; d++) {
+	    for (int i = d; i < 300; i += 17) {
+		expected.append(i).append(' ');
+	    }
+	}
+	assertEquals(expected.toString().trim(),
+		     evaluate("string-join(collection('" + uri(corpus.resolve("many")) + "?recurse=yes'), ' ')"));
+	// stops early
+	assertEquals("0", evaluate("string(head(collection('" + uri(corpus.resolve("many")) + "?recurse=yes')))"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void onError() throws IOException, SaxonApiException {
+	write(corpus.resolve("broken.xml"), "<doc>");
+	assertThrows(SaxonApiException.class, () -> evaluate("string-join(collection('" + uri(corpus) + "?select=*.xml'), ' ')"));
+	assertEquals("a b", evaluate("string-join(collection('" + uri(corpus) + "?select=*.xml;on-error=ignore'), ' ')"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void quota() throws Exception {
+	IOQuota quota = new IOQuota(IOQuota.UNLIMITED, IOQuota.UNLIMITED, 2, IOQuota.UNLIMITED);
+	String expression = "string-join(collection('" + uri(corpus) + "?select=*.xml'), ' ')";
+	assertEquals("a b", IOQuota.callWith(quota, () -> evaluate(expression)));
+	assertEquals(2, quota.getDocuments());
+	assertEquals(24, quota.getBytesRead());
+	IOQuota small = quota.newInstance();
+	assertThrows(SaxonApiException.class, () -> IOQuota.callWith(small, () -> evaluate(expression + " || string-join(collection('"
+											       + uri(corpus.resolve("sub")) + "'))")));
+    }
+
+    @Test
+    public void configurationFile() throws Exception {
+	Configuration config = Configuration.readConfiguration(new StreamSource(new File("saxon.xml")));
+	assertTrue(config.getCollectionFinder() instanceof HardenedCollectionFinder);
+    }
+
+}
@@ -0,0 +1,139 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XQueryCompiler;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.trans.XPathException;
+
+
+public class HardenedModuleURIResolverTest {
+
+    private static final String QUERY =
+	"import module namespace lib='urn:lib' at '%s';"
+	+ "lib:hello()";
+
+    private static final String LIB =
+	"xquery version '3.1' encoding 'iso-8859-1';"
+	+ "module namespace lib='urn:lib';"
+	+ "declare function lib:hello() { '%s' };";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    private HardenedModuleURIResolver resolver;
+
+    private TextCache cache;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("allowed"));
+	Files.createDirectories(tmp.resolve("other"));
+	writeLib("allowed/lib.xqm", "gr\u00fc\u00df dich");
+	writeLib("other/lib.xqm", "secret");
+	processor = new Processor(false);
+	resolver = new HardenedModuleURIResolver();
+	cache = new TextCache(1024 * 1024);
+	resolver.setCache(cache);
+	processor.getUnderlyingConfiguration().setModuleURIResolver(resolver);
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private void writeLib(String path, String greeting) throws IOException {
+	Files.write(tmp.resolve(path), String.format(LIB, greeting).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private String query(Processor processor, String location) throws SaxonApiException {
+	XQueryCompiler compiler = processor.newXQueryCompiler();
+	compiler.setBaseURI(tmp.resolve("main.xq").toFile().toURI());
+	XQueryEvaluator evaluator = compiler.compile(String.format(QUERY, location)).load();
+	return evaluator.evaluateSingle().getStringValue();
+    }
+
+    @Test
+    public void allowed() throws SaxonApiException {
+	assertEquals("gr\u00fc\u00df dich", query(processor, "allowed/lib.xqm"));
+    }
+
+    @Test
+    public void notAllowed() {
+	assertThrows(SaxonApiException.class, () -> query(processor, "other/lib.xqm"));
+	assertThrows(SaxonApiException.class, () -> query(processor, "allowed/../other/lib.xqm"));
+	assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void missing() {
+	assertThrows(SaxonApiException.class, () -> query(processor, "allowed/missing.xqm"));
+    }
+
+    @Test
+    public void cached() throws SaxonApiException, IOException {
+	assertEquals("gr\u00fc\u00df dich", query(processor, "allowed/lib.xqm"));
+	assertEquals("gr\u00fc\u00df dich", query(processor, "allowed/lib.xqm"));
+	assertEquals(1, cache.size());
+	assertEquals(1, cache.getHits());
+	Path lib = tmp.resolve("allowed/lib.xqm");
+	writeLib("allowed/lib.xqm", "hallo");
+	Files.setLastModifiedTime(lib, FileTime.fromMillis(Files.getLastModifiedTime(lib).toMillis() + 2000));
+	assertEquals("hallo", query(processor, "allowed/lib.xqm"));
+	assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void cacheOptIn() {
+	assertNull(new HardenedModuleURIResolver().getCache());
+	System.setProperty(HardenedModuleURIResolver.CACHE_PROPERTY, "true");
+	try {
+	    assertSame(TextCache.getSharedCache(), new HardenedModuleURIResolver().getCache());
+	} finally {
+	    System.clearProperty(HardenedModuleURIResolver.CACHE_PROPERTY);
+	}
+    }
+
+    @Test
+    public void checkedOnHit() throws SaxonApiException, FilesystemFilterException {
+	assertEquals("gr\u00fc\u00df dich", query(processor, "allowed/lib.xqm"));
+	String allowed[] = { tmp.resolve("other").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	assertThrows(SaxonApiException.class, () -> query(processor, "allowed/lib.xqm"));
+	assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void configurationFile() throws XPathException, SaxonApiException {
+	Configuration config = Configuration.readConfiguration
+	    (new StreamSource(new File("saxon.xml").getAbsoluteFile()));
+	assertTrue(config.getModuleURIResolver() instanceof HardenedModuleURIResolver);
+	Processor configured = new Processor(config);
+	assertEquals("gr\u00fc\u00df dich", query(configured, "allowed/lib.xqm"));
+	assertThrows(SaxonApiException.class, () -> query(configured, "other/lib.xqm"));
+    }
+
+}
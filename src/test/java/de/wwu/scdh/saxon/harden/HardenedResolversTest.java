@@ -0,0 +1,174 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+
+
+public class HardenedResolversTest {
+
+    private static final String STYLESHEET =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:param name='dir'/>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:result-document href='{$dir}/out.xml'><out><xsl:value-of select=\"doc($dir || '/in.xml')\"/></out></xsl:result-document>"
+	+ "<xsl:value-of select=\"unparsed-text($dir || '/in.xml')\"/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    /**
+     * The input file as text in the main result.
+     */
+    private static final String TEXT_A = "&lt;in&gt;a&lt;/in&gt;";
+
+    private static final String TEXT_B = "&lt;in&gt;b&lt;/in&gt;";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    private XsltExecutable executable;
+
+    @BeforeEach
+    public void setup() throws IOException, SaxonApiException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	// the global filter allows nothing of the tenants
+	String nothing[] = { tmp.resolve("nothing").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(nothing));
+	for (String tenant : new String[] { "a", "b" }) {
+	    Files.createDirectories(tmp.resolve(tenant));
+	    Files.write(tmp.resolve(tenant).resolve("in.xml"), ("<in>" + tenant + "</in>").getBytes(StandardCharsets.UTF_8));
+	}
+	Configuration config = new Configuration();
+	HardenedURIResolver uriResolver = new HardenedURIResolver();
+	uriResolver.setConfiguration(config);
+	config.setURIResolver(uriResolver);
+	config.setUnparsedTextURIResolver(new HardenedUnparsedTextResolver());
+	processor = new Processor(config);
+	executable = processor.newXsltCompiler().compile(new StreamSource(new StringReader(STYLESHEET)));
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private FilesystemFilter tenantFilter(String tenant) throws FilesystemFilterException {
+	String allowed[] = { tmp.resolve(tenant).toString() };
+	return new FilesystemFilter(allowed);
+    }
+
+    private String transform(XsltExecutable executable, String dir, FilesystemFilter filter) throws SaxonApiException {
+	Xslt30Transformer transformer = executable.load30();
+	if (filter != null) {
+	    HardenedResolvers.install(transformer, filter);
+	}
+	transformer.setStylesheetParameters(Collections.singletonMap(new QName("dir"), new XdmAtomicValue(dir)));
+	transformer.setBaseOutputURI(tmp.resolve("main.xml").toFile().toURI().toString());
+	StringWriter out = new StringWriter();
+	transformer.callTemplate(null, executable.getProcessor().newSerializer(out));
+	return out.toString();
+    }
+
+    private static void assertDenied(Throwable e) {
+	boolean denied = false;
+	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    denied |= cause.getMessage() != null && cause.getMessage().contains("path not allowed");
+	}
+	assertTrue(denied, e.toString());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void perTransformer() throws Exception {
+	String a = tmp.resolve("a").toFile().toURI().toString();
+	String b = tmp.resolve("b").toFile().toURI().toString();
+	FilesystemFilter filterA = tenantFilter("a");
+	FilesystemFilter filterB = tenantFilter("b");
+	assertTrue(transform(executable, a, filterA).endsWith(TEXT_A));
+	assertTrue(Files.exists(tmp.resolve("a/out.xml")));
+	// the same executable with another policy
+	assertDenied(assertThrows(SaxonApiException.class, () -> transform(executable, a, filterB)));
+	assertTrue(transform(executable, b, filterB).endsWith(TEXT_B));
+	// the global filter
+	assertDenied(assertThrows(SaxonApiException.class, () -> transform(executable, a, null)));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void concurrentTenants() throws Exception {
+	String dirs[] = { tmp.resolve("a").toFile().toURI().toString(), tmp.resolve("b").toFile().toURI().toString() };
+	FilesystemFilter filters[] = { tenantFilter("a"), tenantFilter("b") };
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+	try {
+	    List<Future<String>> allowed = new ArrayList<>();
+	    List<Future<String>> denied = new ArrayList<>();
+	    for (int i = 0; i < 20; i++) {
+		final int t = i % 2;
+		allowed.add(executor.submit(() -> transform(executable, dirs[t], filters[t])));
+		denied.add(executor.submit(() -> transform(executable, dirs[1 - t], filters[t])));
+	    }
+	    for (int i = 0; i < 20; i++) {
+		assertTrue(allowed.get(i).get().endsWith(i % 2 == 0 ? TEXT_A : TEXT_B));
+		final Future<String> future = denied.get(i);
+		assertDenied(assertThrows(Exception.class, () -> future.get()));
+	    }
+	} finally {
+	    executor.shutdown();
+	    executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void perConfiguration() throws Exception {
+	String a = tmp.resolve("a").toFile().toURI().toString();
+	Configuration config = new Configuration();
+	CachingHardenedURIResolver caching = new CachingHardenedURIResolver(new DocumentCache(1 << 20));
+	caching.setConfiguration(config);
+	config.setURIResolver(caching);
+	HardenedResolvers.install(config, tenantFilter("a"));
+	assertTrue(config.getURIResolver() instanceof CachingHardenedURIResolver);
+	assertSame(caching.getDocumentCache(), ((CachingHardenedURIResolver) config.getURIResolver()).getDocumentCache());
+	Processor tenantProcessor = new Processor(config);
+	XsltExecutable tenantExecutable =
+	    tenantProcessor.newXsltCompiler().compile(new StreamSource(new StringReader(STYLESHEET)));
+	assertTrue(transform(tenantExecutable, a, null).endsWith(TEXT_A));
+	assertTrue(Files.exists(tmp.resolve("a/out.xml")));
+	String b = tmp.resolve("b").toFile().toURI().toString();
+	assertDenied(assertThrows(SaxonApiException.class, () -> transform(tenantExecutable, b, null)));
+	// the other configuration is not affected
+	assertDenied(assertThrows(SaxonApiException.class, () -> transform(executable, a, null)));
+    }
+
+}
@@ -0,0 +1,146 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.StandardUnparsedTextResolver;
+import net.sf.saxon.trans.XPathException;
+
+
+public class HardenedUnparsedTextResolverTest {
+
+    private static final String TEXT = "a,b\u00e4,c\u20ac,\ud83d\ude00\nline 2\r\nline 3";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Configuration config;
+
+    @BeforeEach
+    public void setup() throws FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	config = new Configuration();
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static String readAll(Reader reader, int chunk) throws IOException {
+	StringBuilder result = new StringBuilder();
+	char[] buffer = new char[chunk];
+	int n;
+	try {
+	    while ((n = reader.read(buffer, 0, chunk)) >= 0) {
+		result.append(buffer, 0, n);
+	    }
+	} finally {
+	    reader.close();
+	}
+	return result.toString();
+    }
+
+    private String readStandard(Path file, String encoding) throws XPathException, IOException {
+	return readAll(new StandardUnparsedTextResolver().resolve(file.toFile().toURI(), encoding, config), 1024);
+    }
+
+    private String readNio(Path file, String encoding, long mapThreshold) throws XPathException, IOException {
+	HardenedUnparsedTextResolver resolver = new HardenedUnparsedTextResolver();
+	resolver.setNio(true);
+	resolver.setMapThreshold(mapThreshold);
+	return readAll(resolver.resolve(file.toFile().toURI(), encoding, config), 1024);
+    }
+
+    @Test
+    public void sameAsStandard() throws XPathException, IOException {
+	byte[][] contents = {
+	    TEXT.getBytes(StandardCharsets.UTF_8),
+	    ("\uFEFF" + TEXT).getBytes(StandardCharsets.UTF_8),
+	    ("\uFEFF" + TEXT).getBytes(StandardCharsets.UTF_16LE),
+	    ("\uFEFF" + TEXT).getBytes(StandardCharsets.UTF_16BE),
+	    ("<?xml version='1.0' encoding='iso-8859-1'?>\u00e4").getBytes(StandardCharsets.ISO_8859_1),
+	    new byte[0]
+	};
+	for (int i = 0; i < contents.length; i++) {
+	    Path file = tmp.resolve("file" + i + ".txt");
+	    Files.write(file, contents[i]);
+	    String expected = readStandard(file, null);
+	    assertEquals(expected, readNio(file, null, Long.MAX_VALUE), "channel " + i);
+	    assertEquals(expected, readNio(file, null, 0), "mapped " + i);
+	}
+	Path file = tmp.resolve("latin1.txt");
+	Files.write(file, "\u00e4\u00f6\u00fc".getBytes(StandardCharsets.ISO_8859_1));
+	assertEquals("\u00e4\u00f6\u00fc", readNio(file, "iso-8859-1", 0));
+	assertEquals(readStandard(file, "iso-8859-1"), readNio(file, "iso-8859-1", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void regionBoundaries() throws IOException {
+	StringBuilder text = new StringBuilder();
+	for (int i = 0; i < 20; i++) {
+	    text.append(TEXT);
+	}
+	Path file = tmp.resolve("large.txt");
+	Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+	for (long region = 1; region < 8; region++) {
+	    for (int chunk = 1; chunk < 4; chunk++) {
+		Reader reader = new FileChannelReader(FileChannel.open(file, StandardOpenOption.READ),
+						      StandardCharsets.UTF_8.newDecoder(), true, region);
+		assertEquals(text.toString(), readAll(reader, chunk), "region " + region + " chunk " + chunk);
+	    }
+	}
+	Reader reader = new FileChannelReader(FileChannel.open(file, StandardOpenOption.READ),
+					      StandardCharsets.UTF_8.newDecoder(), false);
+	assertEquals(text.toString(), readAll(reader, 1));
+    }
+
+    @Test
+    public void malformed() throws IOException {
+	Path file = tmp.resolve("malformed.txt");
+	Files.write(file, new byte[] { 'a', 'b', (byte) 0xe2, (byte) 0x82 });
+	for (int i = 0; i < 2; i++) {
+	    Reader reader = new FileChannelReader(FileChannel.open(file, StandardOpenOption.READ),
+						  StandardCharsets.UTF_8.newDecoder()
+						  .onMalformedInput(CodingErrorAction.REPORT),
+						  i == 0);
+	    assertThrows(CharacterCodingException.class, () -> readAll(reader, 16));
+	}
+    }
+
+    @Test
+    public void errors() throws IOException {
+	HardenedUnparsedTextResolver resolver = new HardenedUnparsedTextResolver();
+	resolver.setNio(true);
+	Path missing = tmp.resolve("missing.txt");
+	XPathException e = assertThrows(XPathException.class,
+					() -> resolver.resolve(missing.toFile().toURI(), null, config));
+	assertEquals("FOUT1170", e.getErrorCodeLocalPart());
+	Path file = tmp.resolve("file.txt");
+	Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+	e = assertThrows(XPathException.class,
+			 () -> resolver.resolve(file.toFile().toURI(), "no-such-encoding", config));
+	assertEquals("FOUT1190", e.getErrorCodeLocalPart());
+	Path outside = tmp.getParent().resolve("outside.txt");
+	assertThrows(XPathException.class, () -> resolver.resolve(outside.toFile().toURI(), null, config));
+    }
+
+}
@@ -0,0 +1,193 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+
+public class IOQuotaTest {
+
+    private static final long U = IOQuota.UNLIMITED;
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	for (int i = 0; i < 5; i++) {
+	    Files.write(tmp.resolve("doc" + i + ".xml"), "<doc>0123456789</doc>".getBytes(StandardCharsets.UTF_8));
+	}
+	Configuration config = new Configuration();
+	HardenedURIResolver uriResolver = new HardenedURIResolver();
+	uriResolver.setConfiguration(config);
+	config.setURIResolver(uriResolver);
+	config.setUnparsedTextURIResolver(new HardenedUnparsedTextResolver());
+	processor = new Processor(config);
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static String stylesheet(String body) {
+	return "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	    + "<xsl:template name='xsl:initial-template'>" + body + "</xsl:template>"
+	    + "</xsl:stylesheet>";
+    }
+
+    private String transform(String body, IOQuota quota) throws Exception {
+	Path xsl = tmp.resolve("main.xsl");
+	Files.write(xsl, stylesheet(body).getBytes(StandardCharsets.UTF_8));
+	XsltExecutable executable = processor.newXsltCompiler().compile(new StreamSource(xsl.toFile()));
+	Xslt30Transformer transformer = executable.load30();
+	transformer.getUnderlyingController().setResultDocumentResolver(new HardenedResultDocumentResolver());
+	transformer.setBaseOutputURI(tmp.resolve("out/main.xml").toFile().toURI().toString());
+	StringWriter out = new StringWriter();
+	return IOQuota.callWith(quota, () -> {
+		transformer.callTemplate(null, processor.newSerializer(out));
+		return out.toString();
+	    });
+    }
+
+    private static void assertQuotaExceeded(Throwable e) {
+	boolean exceeded = false;
+	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    exceeded |= cause.getMessage() != null && cause.getMessage().contains("quota exceeded");
+	}
+	assertTrue(exceeded, e.toString());
+    }
+
+    @Test
+    public void accounting() throws XPathException, IOException {
+	IOQuota quota = new IOQuota(100, 50, 2, 1);
+	quota.documentOpened();
+	quota.documentOpened();
+	XPathException e = assertThrows(XPathException.class, () -> quota.documentOpened());
+	assertEquals("quota exceeded: more than 2 documents opened", e.getMessage());
+	quota.resultDocumentCreated();
+	assertThrows(XPathException.class, () -> quota.resultDocumentCreated());
+	quota.read(60);
+	quota.readFromStream(40);
+	assertThrows(IOException.class, () -> quota.readFromStream(1));
+	quota.written(50);
+	assertThrows(XPathException.class, () -> quota.written(1));
+	assertEquals(101, quota.getBytesRead());
+	assertEquals(3, quota.getDocuments());
+	IOQuota fresh = quota.newInstance();
+	assertEquals(0, fresh.getDocuments());
+	assertEquals(2, fresh.getMaxDocuments());
+	assertThrows(IllegalArgumentException.class, () -> new IOQuota(-1, 0, 0, 0));
+    }
+
+    @Test
+    public void callWith() throws Exception {
+	IOQuota previousShared = IOQuota.getShared();
+	IOQuota shared = new IOQuota(U, U, U, U);
+	IOQuota.setShared(shared);
+	try {
+	    IOQuota own = shared.newInstance();
+	    assertSame(own, IOQuota.callWith(own, () -> IOQuota.current()));
+	    assertSame(shared, IOQuota.current());
+	} finally {
+	    IOQuota.setShared(previousShared);
+	}
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void documents() throws Exception {
+	String body = "<xsl:value-of select=\"for $i in 0 to 4 return doc('doc' || $i || '.xml')\"/>";
+	IOQuota quota = new IOQuota(U, U, 5, U);
+	assertTrue(transform(body, quota).endsWith("0123456789 0123456789 0123456789 0123456789 0123456789"));
+	assertEquals(5, quota.getDocuments());
+	// the stylesheet is opened by the compiler outside of the quota
+	Exception e = assertThrows(Exception.class, () -> transform(body, new IOQuota(U, U, 4, U)));
+	assertQuotaExceeded(e);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void bytesRead() throws Exception {
+	String docs = "<xsl:value-of select=\"for $i in 0 to 4 return doc('doc' || $i || '.xml')\"/>";
+	IOQuota quota = new IOQuota(1000, U, U, U);
+	transform(docs, quota);
+	assertEquals(5 * 21, quota.getBytesRead());
+	assertQuotaExceeded(assertThrows(Exception.class, () -> transform(docs, new IOQuota(100, U, U, U))));
+	String texts = "<xsl:value-of select=\"for $i in 0 to 4 return unparsed-text('doc' || $i || '.xml')\"/>";
+	quota = new IOQuota(105, U, U, U);
+	transform(texts, quota);
+	assertEquals(105, quota.getBytesRead());
+	assertQuotaExceeded(assertThrows(Exception.class, () -> transform(texts, new IOQuota(104, U, U, U))));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void resultDocuments() throws Exception {
+	String body = "<xsl:for-each select='1 to 3'>"
+	    + "<xsl:result-document href='r{.}.xml'><r><xsl:value-of select='.'/></r></xsl:result-document>"
+	    + "</xsl:for-each>";
+	IOQuota quota = new IOQuota(U, U, U, 3);
+	transform(body, quota);
+	assertEquals(3, quota.getResultDocuments());
+	assertTrue(quota.getBytesWritten() > 0);
+	assertTrue(Files.exists(tmp.resolve("out/r3.xml")));
+	assertQuotaExceeded(assertThrows(Exception.class, () -> transform(body, new IOQuota(U, U, U, 2))));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void bytesWritten() throws Exception {
+	String body = "<xsl:result-document href='big.xml'>"
+	    + "<xsl:for-each select='1 to 10000'><line><xsl:value-of select='.'/></line></xsl:for-each>"
+	    + "</xsl:result-document>";
+	IOQuota quota = new IOQuota(U, 1000, U, U);
+	assertQuotaExceeded(assertThrows(Exception.class, () -> transform(body, quota)));
+	assertTrue(Files.size(tmp.resolve("out/big.xml")) <= 1000);
+	// with the write-behind buffer
+	Path xsl = tmp.resolve("main.xsl");
+	XsltExecutable executable = processor.newXsltCompiler().compile(new StreamSource(xsl.toFile()));
+	Xslt30Transformer transformer = executable.load30();
+	HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver();
+	AsyncResultWriter writer = new AsyncResultWriter(1, 1 << 20, 4);
+	resolver.setWriter(writer);
+	transformer.getUnderlyingController().setResultDocumentResolver(resolver);
+	transformer.setBaseOutputURI(tmp.resolve("async/main.xml").toFile().toURI().toString());
+	try {
+	    SaxonApiException e = assertThrows(SaxonApiException.class, () -> IOQuota.callWith(quota.newInstance(), () -> {
+			transformer.callTemplate(null, processor.newSerializer(new StringWriter()));
+			return null;
+		    }));
+	    assertQuotaExceeded(e);
+	} finally {
+	    writer.close();
+	}
+	assertFalse(Files.exists(tmp.resolve("async/big.xml")));
+    }
+
+}
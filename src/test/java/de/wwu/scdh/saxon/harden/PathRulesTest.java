@@ -0,0 +1,101 @@
+package de.wwu.scdh.saxon.harden;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class PathRulesTest {
+
+    private static final int R = PathRules.READ_ALLOWED;
+
+    private static final int W = PathRules.WRITE_ALLOWED;
+
+    private static final int D = PathRules.READ_DENIED;
+
+    @Test
+    public void empty() {
+	PathRules rules = new PathRules();
+	assertEquals(0, rules.size());
+	assertEquals(0, rules.match("/etc/passwd"));
+	assertEquals(0, rules.match(""));
+    }
+
+    @Test
+    public void star() {
+	PathRules rules = new PathRules();
+	rules.add("/corpus/*.xml", R);
+	assertEquals(R, rules.match("/corpus/a.xml"));
+	assertEquals(R, rules.match("/corpus/.xml"));
+	assertEquals(0, rules.match("/corpus/a/b.xml"));
+	assertEquals(0, rules.match("/corpus/a.xsl"));
+	assertEquals(0, rules.match("/corpus/a.xml.bak"));
+	assertEquals(0, rules.match("/corpus.xml"));
+    }
+
+    @Test
+    public void questionMark() {
+	PathRules rules = new PathRules();
+	rules.add("/logs/day?.txt", R);
+	assertEquals(R, rules.match("/logs/day1.txt"));
+	assertEquals(0, rules.match("/logs/day.txt"));
+	assertEquals(0, rules.match("/logs/day12.txt"));
+	assertEquals(0, rules.match("/logs/day/.txt"));
+    }
+
+    @Test
+    public void doubleStar() {
+	PathRules rules = new PathRules();
+	rules.add("/corpus/**/*.xml", R);
+	rules.add("/scratch/*/out/**", W);
+	assertEquals(R, rules.match("/corpus/a.xml"));
+	assertEquals(R, rules.match("/corpus/a/b/c.xml"));
+	assertEquals(0, rules.match("/corpus/a/b/c.xsl"));
+	assertEquals(0, rules.match("/corpusa.xml"));
+	assertEquals(W, rules.match("/scratch/job/out/"));
+	assertEquals(W, rules.match("/scratch/job/out/a/b.html"));
+	assertEquals(0, rules.match("/scratch/job/out"));
+	assertEquals(0, rules.match("/scratch/a/b/out/c.html"));
+	assertThrows(IllegalArgumentException.class, () -> rules.add("/a/b**", R));
+	assertThrows(IllegalArgumentException.class, () -> rules.add("/a/**b", R));
+	assertThrows(IllegalArgumentException.class, () -> rules.add("a/*", R));
+    }
+
+    @Test
+    public void union() {
+	PathRules rules = new PathRules();
+	rules.add("/corpus/**", R);
+	rules.add("/corpus/**/*.xml", W);
+	rules.add("/corpus/private/**", D);
+	assertEquals(R | W, rules.match("/corpus/a.xml"));
+	assertEquals(R, rules.match("/corpus/a.txt"));
+	assertEquals(R | W | D, rules.match("/corpus/private/a.xml"));
+	assertEquals(3, rules.size());
+    }
+
+    @Test
+    public void nonAscii() {
+	PathRules rules = new PathRules();
+	rules.add("/k\u00f6ln/*/\u00e4.xml", R);
+	assertEquals(R, rules.match("/k\u00f6ln/\u00fc/\u00e4.xml"));
+	assertEquals(0, rules.match("/k\u00f6ln/a/\u00fc.xml"));
+	assertEquals(0, rules.match("/koln/a/\u00e4.xml"));
+    }
+
+    @Test
+    public void memoizedStates() {
+	PathRules rules = new PathRules();
+	for (int i = 0; i < 100; i++) {
+	    rules.add("/projects/p" + i + "/**/*.xml", R);
+	}
+	assertEquals(R, rules.match("/projects/p42/a/b.xml"));
+	int states = rules.getStateCount();
+	assertEquals(R, rules.match("/projects/p42/a/b.xml"));
+	assertEquals(0, rules.match("/projects/p42/a/b.xsl"));
+	assertEquals(0, rules.match("/projects/p100/a.xml"));
+	// no new states for a path that has been seen
+	assertEquals(R, rules.match("/projects/p42/a/b.xml"));
+	assertTrue(rules.getStateCount() >= states);
+	assertTrue(rules.getStateCount() <= PathRules.MAX_STATES);
+    }
+
+}
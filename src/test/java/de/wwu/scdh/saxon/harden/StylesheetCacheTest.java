@@ -0,0 +1,173 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+
+
+public class StylesheetCacheTest {
+
+    private static final String MAIN =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:import href='lib/a.xsl'/>"
+	+ "<xsl:template name='xsl:initial-template'><out><xsl:call-template name='b'/></out></xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    private static final String A =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:include href='b.xsl'/>"
+	+ "</xsl:stylesheet>";
+
+    private static final String B =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:template name='b'>%s</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Processor processor;
+
+    private StylesheetCache cache;
+
+    private Path main;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("lib"));
+	main = tmp.resolve("main.xsl");
+	Files.write(main, MAIN.getBytes(StandardCharsets.UTF_8));
+	Files.write(tmp.resolve("lib/a.xsl"), A.getBytes(StandardCharsets.UTF_8));
+	Files.write(tmp.resolve("lib/b.xsl"), String.format(B, "one").getBytes(StandardCharsets.UTF_8));
+	processor = newProcessor();
+	cache = new StylesheetCache(8);
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static Processor newProcessor() {
+	Configuration config = new Configuration();
+	HardenedURIResolver resolver = new HardenedURIResolver();
+	resolver.setConfiguration(config);
+	config.setURIResolver(resolver);
+	return new Processor(config);
+    }
+
+    private String run(XsltExecutable executable) throws SaxonApiException {
+	StringWriter out = new StringWriter();
+	executable.load30().callTemplate(null, processor.newSerializer(out));
+	return out.toString();
+    }
+
+    private XsltExecutable compile(Processor processor) throws SaxonApiException {
+	XsltCompiler compiler = processor.newXsltCompiler();
+	return cache.compile(compiler, main);
+    }
+
+    @Test
+    public void hits() throws SaxonApiException {
+	XsltExecutable first = compile(processor);
+	assertTrue(run(first).contains("<out>one</out>"));
+	assertSame(first, compile(processor));
+	assertSame(first, compile(processor));
+	assertEquals(2, cache.getHits());
+	assertEquals(1, cache.getMisses());
+	List<String> modules = cache.getModules(main);
+	assertEquals(2, modules.size());
+	assertTrue(modules.get(0).endsWith("/lib/a.xsl"));
+	assertTrue(modules.get(1).endsWith("/lib/b.xsl"));
+    }
+
+    @Test
+    public void moduleChanged() throws SaxonApiException, IOException {
+	XsltExecutable first = compile(processor);
+	Path b = tmp.resolve("lib/b.xsl");
+	Files.write(b, String.format(B, "two").getBytes(StandardCharsets.UTF_8));
+	Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 2000));
+	XsltExecutable second = compile(processor);
+	assertNotSame(first, second);
+	assertTrue(run(second).contains("<out>two</out>"));
+	assertEquals(1, cache.getInvalidations());
+	assertSame(second, compile(processor));
+    }
+
+    @Test
+    public void mainChanged() throws SaxonApiException, IOException {
+	XsltExecutable first = compile(processor);
+	Files.write(main, (MAIN + " ").getBytes(StandardCharsets.UTF_8));
+	assertNotSame(first, compile(processor));
+	assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void checkedOnHit() throws SaxonApiException, FilesystemFilterException {
+	compile(processor);
+	// the main stylesheet is still allowed, its modules are not
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(new String[] { main.toString() }));
+	assertThrows(SaxonApiException.class, () -> compile(processor));
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(new String[] { tmp.resolve("lib").toString() }));
+	assertThrows(SaxonApiException.class, () -> compile(processor));
+	assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void otherProcessor() throws SaxonApiException {
+	XsltExecutable first = compile(processor);
+	assertNotSame(first, compile(newProcessor()));
+	assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void notHardened() throws SaxonApiException {
+	// modules are not recorded by Saxon's resolver
+	Processor plain = new Processor(new Configuration());
+	XsltExecutable first = cache.compile(plain.newXsltCompiler(), main);
+	assertNotSame(first, cache.compile(plain.newXsltCompiler(), main));
+	assertEquals(0, cache.size());
+	assertNull(cache.getModules(main));
+	assertEquals(0, cache.getHits());
+	assertEquals(2, cache.getMisses());
+	// nor by another resolver set on the compiler
+	XsltCompiler compiler = processor.newXsltCompiler();
+	compiler.setURIResolver((href, base) -> null);
+	cache.compile(compiler, main);
+	assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictions() throws SaxonApiException, IOException {
+	StylesheetCache small = new StylesheetCache(1);
+	Path other = tmp.resolve("other.xsl");
+	Files.write(other, MAIN.getBytes(StandardCharsets.UTF_8));
+	small.compile(processor.newXsltCompiler(), main);
+	small.compile(processor.newXsltCompiler(), other);
+	assertEquals(1, small.size());
+	assertNull(small.getModules(main));
+	assertNotNull(small.getModules(other));
+    }
+
+}
@@ -0,0 +1,160 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.StandardUnparsedTextResolver;
+import net.sf.saxon.trans.XPathException;
+
+
+public class TextCacheTest {
+
+    private static final String TEXT = "key,value\n\u00e4,\u20ac\n\ud83d\ude00,x\n";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private Configuration config;
+
+    private TextCache cache;
+
+    private HardenedUnparsedTextResolver resolver;
+
+    @BeforeEach
+    public void setup() throws FilesystemFilterException, IOException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("allowed"));
+	config = new Configuration();
+	cache = new TextCache(1024);
+	resolver = new HardenedUnparsedTextResolver();
+	resolver.setCache(cache);
+    }
+
+    @AfterEach
+    public void reset() {
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+	StringBuilder result = new StringBuilder();
+	char[] buffer = new char[7];
+	int n;
+	try {
+	    while ((n = reader.read(buffer, 0, buffer.length)) >= 0) {
+		result.append(buffer, 0, n);
+	    }
+	} finally {
+	    reader.close();
+	}
+	return result.toString();
+    }
+
+    private String read(Path file, String encoding) throws XPathException, IOException {
+	return readAll(resolver.resolve(file.toFile().toURI(), encoding, config));
+    }
+
+    @Test
+    public void hits() throws XPathException, IOException {
+	Path file = tmp.resolve("allowed/table.csv");
+	Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+	assertEquals(TEXT, read(file, null));
+	assertEquals(0, cache.getHits());
+	assertEquals(1, cache.size());
+	assertEquals(2L * TEXT.length(), cache.getWeight());
+	assertEquals(TEXT, read(file, null));
+	assertEquals(TEXT, read(file, null));
+	assertEquals(2, cache.getHits());
+	// another encoding is another entry
+	assertEquals(new String(TEXT.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1),
+		     read(file, "iso-8859-1"));
+	assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void sameAsStandard() throws XPathException, IOException {
+	Path file = tmp.resolve("allowed/bom.txt");
+	Files.write(file, ("\ufeff" + TEXT).getBytes(StandardCharsets.UTF_16LE));
+	String expected = readAll(new StandardUnparsedTextResolver().resolve(file.toFile().toURI(), null, config));
+	assertEquals(expected, read(file, null));
+	assertEquals(expected, read(file, null));
+	assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void changed() throws XPathException, IOException {
+	Path file = tmp.resolve("allowed/table.csv");
+	Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+	assertEquals(TEXT, read(file, null));
+	Files.write(file, "changed".getBytes(StandardCharsets.UTF_8));
+	Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+	assertEquals("changed", read(file, null));
+	assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void checkedOnHit() throws XPathException, IOException, FilesystemFilterException {
+	Path file = tmp.resolve("allowed/table.csv");
+	Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+	assertEquals(TEXT, read(file, null));
+	String allowed[] = { tmp.resolve("other").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	assertThrows(XPathException.class, () -> read(file, null));
+	assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void quotaOnHit() throws Exception {
+	Path file = tmp.resolve("allowed/table.csv");
+	Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+	assertEquals(TEXT, read(file, null));
+	IOQuota quota = new IOQuota(10, IOQuota.UNLIMITED, IOQuota.UNLIMITED, IOQuota.UNLIMITED);
+	assertThrows(XPathException.class, () -> IOQuota.callWith(quota, () -> read(file, null)));
+    }
+
+    @Test
+    public void budget() throws XPathException, IOException {
+	StringBuilder large = new StringBuilder();
+	for (int i = 0; i < 100; i++) {
+	    large.append("line ").append(i).append('\n');
+	}
+	Path file = tmp.resolve("allowed/large.txt");
+	Files.write(file, large.toString().getBytes(StandardCharsets.UTF_8));
+	// heavier than the budget: read from the file every time
+	assertEquals(large.toString(), read(file, null));
+	assertEquals(large.toString(), read(file, null));
+	assertEquals(0, cache.size());
+	// evicting the least recently used
+	for (int i = 0; i < 4; i++) {
+	    Path small = tmp.resolve("allowed/small" + i + ".txt");
+	    Files.write(small, new byte[150]);
+	    read(small, null);
+	}
+	assertEquals(3, cache.size());
+	assertEquals(1, cache.getEvictions());
+	assertTrue(cache.getWeight() <= cache.getBudget());
+    }
+
+    @Test
+    public void readError() throws XPathException, IOException {
+	Path file = tmp.resolve("allowed/bad.txt");
+	Files.write(file, new byte[] { 'a', (byte) 0xff, 'b' });
+	assertThrows(IOException.class, () -> read(file, "utf-8"));
+	assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,205 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+@DisabledOnOs(OS.WINDOWS)
+public class TransformDaemonTest {
+
+    private static final String CONFIG =
+	"<configuration xmlns='http://saxon.sf.net/ns/configuration' edition='HE'>"
+	+ "<global unparsedTextUriResolver='de.wwu.scdh.saxon.harden.HardenedUnparsedTextResolver'"
+	+ " uriResolver='de.wwu.scdh.saxon.harden.HardenedURIResolver'/>"
+	+ "<xslt outputUriResolver='de.wwu.scdh.saxon.harden.HardenedOutputResolver'/>"
+	+ "</configuration>";
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:param name='load' select='()'/>"
+	+ "<xsl:output method='text'/>"
+	+ "<xsl:template match='/'>"
+	+ "<xsl:value-of select='count(//item), $load ! count(doc(.)//*)'/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private TransformDaemon daemon;
+
+    private int port;
+
+    private static final class Response {
+	int code;
+	int status;
+	String out;
+	String err;
+    }
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.createDirectories(tmp.resolve("allowed/narrow"));
+	Files.write(tmp.resolve("saxon.xml"), CONFIG.getBytes(StandardCharsets.UTF_8));
+	Files.write(tmp.resolve("allowed/main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	Files.write(tmp.resolve("allowed/in.xml"), "<items><item/><item/></items>".getBytes(StandardCharsets.UTF_8));
+	Files.write(tmp.resolve("allowed/lookup.xml"), "<a><b/></a>".getBytes(StandardCharsets.UTF_8));
+	Files.copy(tmp.resolve("allowed/main.xsl"), tmp.resolve("allowed/narrow/main.xsl"));
+	Files.copy(tmp.resolve("allowed/in.xml"), tmp.resolve("allowed/narrow/in.xml"));
+	daemon = new TransformDaemon(tmp.resolve("saxon.xml"), 0, 2);
+	port = daemon.start();
+    }
+
+    @AfterEach
+    public void reset() {
+	daemon.stop();
+	FilesystemFilterRegistry.setFilter(previous);
+    }
+
+    private Response post(String token, String allowedPaths, String... lines) throws IOException {
+	HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/run").openConnection();
+	connection.setRequestMethod("POST");
+	connection.setDoOutput(true);
+	connection.setRequestProperty(TransformDaemon.TOKEN_HEADER, token);
+	connection.setRequestProperty(TransformDaemon.DIRECTORY_HEADER, tmp.resolve("allowed").toString());
+	if (allowedPaths != null) {
+	    connection.setRequestProperty(TransformDaemon.ALLOWED_PATHS_HEADER, allowedPaths);
+	}
+	try (OutputStream body = connection.getOutputStream()) {
+	    body.write(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+	}
+	Response response = new Response();
+	response.code = connection.getResponseCode();
+	if (response.code != 200) {
+	    return response;
+	}
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try (InputStream in = connection.getInputStream()) {
+	    byte[] buffer = new byte[4096];
+	    int n;
+	    while ((n = in.read(buffer)) >= 0) {
+		bytes.write(buffer, 0, n);
+	    }
+	}
+	String body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	int length = Integer.parseInt(connection.getHeaderField(TransformDaemon.STDOUT_LENGTH_HEADER));
+	response.status = Integer.parseInt(connection.getHeaderField(TransformDaemon.EXIT_STATUS_HEADER));
+	response.out = body.substring(0, length);
+	response.err = body.substring(length);
+	return response;
+    }
+
+    @Test
+    public void transform() throws IOException {
+	Response response = post(daemon.getToken(), null,
+				 "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml", "load=lookup.xml");
+	assertEquals(200, response.code);
+	assertEquals(0, response.status, response.err);
+	assertEquals("2 2", response.out);
+	// the JVM is reused
+	response = post(daemon.getToken(), null, "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml");
+	assertEquals("2", response.out);
+    }
+
+    @Test
+    public void outputFile() throws IOException {
+	Response response = post(daemon.getToken(), null,
+				 "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml", "-o:out.txt");
+	assertEquals(0, response.status, response.err);
+	assertEquals("", response.out);
+	assertEquals("2", new String(Files.readAllBytes(tmp.resolve("allowed/out.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void requestPaths() throws IOException {
+	Response response = post(daemon.getToken(), tmp.resolve("allowed/narrow").toString(),
+				 "net.sf.saxon.Transform", "-xsl:narrow/main.xsl", "-s:narrow/in.xml", "load=../lookup.xml");
+	assertEquals(200, response.code);
+	assertNotEquals(0, response.status);
+	assertTrue(response.err.contains("path not allowed"), response.err);
+	response = post(daemon.getToken(), tmp.toString(),
+			"net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml");
+	assertEquals(403, response.code);
+    }
+
+    @Test
+    public void argumentsChecked() throws IOException {
+	String narrow = tmp.resolve("allowed/narrow").toString();
+	// outside of the request's allowed paths
+	assertEquals(403, post(daemon.getToken(), narrow,
+			       "net.sf.saxon.Transform", "-xsl:narrow/main.xsl", "-s:in.xml").code);
+	assertEquals(403, post(daemon.getToken(), narrow,
+			       "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:narrow/in.xml").code);
+	assertEquals(403, post(daemon.getToken(), narrow,
+			       "net.sf.saxon.Transform", "-xsl:narrow/main.xsl", "-s:narrow/in.xml", "-o:out.txt").code);
+	assertEquals(403, post(daemon.getToken(), narrow,
+			       "net.sf.saxon.Transform", "-xsl:narrow/main.xsl", "-s:narrow/in.xml", "+load=in.xml").code);
+	assertFalse(Files.exists(tmp.resolve("allowed/out.txt")));
+	// outside of the daemon's allowed paths
+	Files.createDirectories(tmp.resolve("outside"));
+	assertEquals(403, post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml",
+			       "-o:" + tmp.resolve("outside/out.xml")).code);
+	assertEquals(403, post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:../outside/in.xml").code);
+	assertFalse(Files.exists(tmp.resolve("outside/out.xml")));
+	// inside of the request's allowed paths
+	Response response = post(daemon.getToken(), narrow,
+				 "net.sf.saxon.Transform", "-xsl:narrow/main.xsl", "-s:narrow/in.xml",
+				 "-o:narrow/out.txt", "-traceout:#null");
+	assertEquals(200, response.code);
+	assertEquals(0, response.status, response.err);
+	assertEquals("2", new String(Files.readAllBytes(tmp.resolve("allowed/narrow/out.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rejected() throws IOException {
+	assertEquals(401, post("wrong", null, "net.sf.saxon.Transform", "-xsl:main.xsl").code);
+	assertEquals(400, post(daemon.getToken(), null, "java.lang.Runtime").code);
+	assertEquals(400, post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "-config:other.xml", "-xsl:main.xsl").code);
+	assertEquals(400, post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "-r:my.Resolver", "-xsl:main.xsl").code);
+	assertEquals(400, post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "--allowedProtocols:all", "-xsl:main.xsl").code);
+    }
+
+    @Test
+    public void badUsage() throws IOException {
+	Response response = post(daemon.getToken(), null, "net.sf.saxon.Transform", "-xsl:missing.xsl", "-s:in.xml");
+	assertEquals(200, response.code);
+	assertNotEquals(0, response.status);
+	// the daemon is still alive
+	assertEquals("2", post(daemon.getToken(), null,
+			       "net.sf.saxon.Transform", "-xsl:main.xsl", "-s:in.xml").out);
+    }
+
+    @Test
+    public void query() throws IOException {
+	Response response = post(daemon.getToken(), null, "net.sf.saxon.Query", "-qs:1 + 1", "!omit-xml-declaration=yes");
+	assertEquals(200, response.code);
+	assertEquals(0, response.status, response.err);
+	assertEquals("2", response.out.trim());
+    }
+
+}
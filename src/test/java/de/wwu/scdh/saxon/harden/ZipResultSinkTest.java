@@ -0,0 +1,157 @@
+package de.wwu.scdh.saxon.harden;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+
+@DisabledOnOs(OS.WINDOWS)
+public class ZipResultSinkTest {
+
+    private static final String XSL =
+	"<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'>"
+	+ "<xsl:template name='xsl:initial-template'>"
+	+ "<xsl:for-each select='1 to 20'>"
+	+ "<xsl:result-document href='out/{. mod 2}/doc{.}.xml' method='xml' omit-xml-declaration='yes'>"
+	+ "<doc n='{.}'>"
+	+ "<xsl:result-document href='nested{.}.txt' method='text'>nested</xsl:result-document>"
+	+ "</doc>"
+	+ "</xsl:result-document>"
+	+ "</xsl:for-each>"
+	+ "<done/>"
+	+ "</xsl:template>"
+	+ "</xsl:stylesheet>";
+
+    @TempDir
+    Path tmp;
+
+    private FilesystemFilter previous;
+
+    private ZipResultSink sink;
+
+    private XsltExecutable executable;
+
+    private Processor processor;
+
+    @BeforeEach
+    public void setup() throws IOException, FilesystemFilterException, SaxonApiException {
+	previous = FilesystemFilterRegistry.getFilter();
+	String allowed[] = { tmp.resolve("allowed").toString() };
+	FilesystemFilterRegistry.setFilter(new FilesystemFilter(allowed));
+	Files.write(tmp.resolve("main.xsl"), XSL.getBytes(StandardCharsets.UTF_8));
+	sink = new ZipResultSink(tmp.resolve("results.zip"), tmp.resolve("allowed"), 6);
+	processor = new Processor(false);
+	executable = processor.newXsltCompiler().compile(new StreamSource(tmp.resolve("main.xsl").toFile()));
+    }
+
+    @AfterEach
+    public void reset() throws IOException {
+	FilesystemFilterRegistry.setFilter(previous);
+	sink.close();
+    }
+
+    private void transform(String dir) throws SaxonApiException {
+	Xslt30Transformer transformer = executable.load30();
+	HardenedResultDocumentResolver resolver = new HardenedResultDocumentResolver();
+	resolver.setSink(sink);
+	transformer.getUnderlyingController().setResultDocumentResolver(resolver);
+	transformer.setBaseOutputURI(tmp.resolve(dir).resolve("main.xml").toFile().toURI().toString());
+	StringWriter out = new StringWriter();
+	transformer.callTemplate(null, processor.newSerializer(out));
+    }
+
+    private static String read(ZipFile zip, String name) throws IOException {
+	ZipEntry entry = zip.getEntry(name);
+	assertNotNull(entry, name);
+	byte[] content = new byte[(int) entry.getSize()];
+	int n = 0;
+	try (InputStream in = zip.getInputStream(entry)) {
+	    while (n < content.length) {
+		n += in.read(content, n, content.length - n);
+	    }
+	}
+	return new String(content, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void entries() throws SaxonApiException, IOException {
+	transform("allowed");
+	assertEquals(40, sink.getEntries());
+	sink.close();
+	// nothing written to the file system
+	assertFalse(Files.exists(tmp.resolve("allowed")));
+	try (ZipFile zip = new ZipFile(tmp.resolve("results.zip").toFile())) {
+	    assertEquals(40, zip.size());
+	    for (int i = 1; i <= 20; i++) {
+		assertEquals("<doc n=\"" + i + "\"/>", read(zip, "out/" + (i % 2) + "/doc" + i + ".xml"));
+		assertEquals("nested", read(zip, "nested" + i + ".txt"));
+	    }
+	}
+    }
+
+    @Test
+    public void notAllowed() throws IOException {
+	assertThrows(SaxonApiException.class, () -> transform("other"));
+	assertEquals(0, sink.getEntries());
+    }
+
+    @Test
+    public void entryName() throws XPathException {
+	assertEquals("a/b.xml", sink.entryName(tmp.resolve("allowed/a/./b.xml").toFile().toURI()));
+	assertEquals(tmp.resolve("other/c.xml").toString().substring(1),
+		     sink.entryName(tmp.resolve("other/c.xml").toFile().toURI()));
+	assertThrows(XPathException.class, () -> sink.entryName(URI.create("http://example.org/d.xml")));
+	assertThrows(XPathException.class, () -> sink.entryName(tmp.resolve("allowed").toFile().toURI()));
+    }
+
+    @Test
+    public void quota() throws SaxonApiException {
+	IOQuota quota = new IOQuota(IOQuota.UNLIMITED, 100, IOQuota.UNLIMITED, IOQuota.UNLIMITED);
+	assertThrows(Exception.class, () -> IOQuota.callWith(quota, () -> {
+		    transform("allowed");
+		    return null;
+		}));
+	assertTrue(sink.getBytes() <= 100);
+    }
+
+    @Test
+    public void quotaOnWrite() throws XPathException, IOException {
+	IOQuota quota = new IOQuota(IOQuota.UNLIMITED, 100, IOQuota.UNLIMITED, IOQuota.UNLIMITED);
+	OutputStream entry = sink.newEntry(tmp.resolve("allowed/big.xml").toFile().toURI(),
+					   ResolverMetrics.RESULT_DOCUMENT_RESOLVER, quota);
+	entry.write(new byte[100]);
+	// fails before the document is complete
+	IOException e = assertThrows(IOException.class, () -> entry.write(new byte[1]));
+	assertTrue(e.getMessage().contains("quota exceeded"));
+	assertEquals(101, quota.getBytesWritten());
+    }
+
+    @Test
+    public void closed() throws IOException {
+	sink.close();
+	assertThrows(SaxonApiException.class, () -> transform("allowed"));
+    }
+
+}
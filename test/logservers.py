@@ -1,11 +1,17 @@
 # USAGE:
-# $ python3 logserver.py
-# will start the server listening on localhost:8000
+# $ python3 logserver.py [PORT]
+# will start the server listening on localhost:8000 or PORT
+#
+# Responses carry an ETag, so that conditional requests of the
+# hardened remote fetcher are answered with 304 Not Modified.
 
 from http.server import HTTPServer, BaseHTTPRequestHandler
 from urllib.parse import parse_qs, urlparse
 from functools import cached_property
 import base64
+import sys
+
+ETAG = '"logserver-1"'
 
 class LogHandler(BaseHTTPRequestHandler):
 
@@ -22,11 +28,17 @@ class LogHandler(BaseHTTPRequestHandler):
             print(base64.b64decode(p))
         for p in params.get("plain", []):
             print(p)
+        if self.headers.get("If-None-Match") == ETAG:
+            self.send_response(304)
+            self.end_headers()
+            return
         self.send_response(200)
+        self.send_header("ETag", ETAG)
         self.send_header("Content-Type", "application/xml")
         self.end_headers()
         self.wfile.write(str.encode("<b>true</b>", "UTF-8")) # return true
 
 if __name__ == "__main__":
-    server = HTTPServer(("0.0.0.0", 8000), LogHandler)
+    port = int(sys.argv[1]) if len(sys.argv) > 1 else 8000
+    server = HTTPServer(("0.0.0.0", port), LogHandler)
     server.serve_forever()